@@ -3,6 +3,7 @@ package com.actionworks.flashsale.app.event.handler;
 
 import com.actionworks.flashsale.app.service.activity.cache.FlashActivitiesCacheService;
 import com.actionworks.flashsale.app.service.activity.cache.FlashActivityCacheService;
+import com.actionworks.flashsale.app.service.placeorder.snapshot.PlaceOrderSnapshotService;
 import com.actionworks.flashsale.config.annotion.BetaTrace;
 import com.actionworks.flashsale.domain.event.FlashActivityEvent;
 import com.alibaba.cola.dto.Response;
@@ -22,6 +23,8 @@ public class FlashActivityEventHandler implements EventHandlerI<Response, FlashA
     private FlashActivityCacheService flashActivityCacheService;
     @Resource
     private FlashActivitiesCacheService flashActivitiesCacheService;
+    @Resource
+    private PlaceOrderSnapshotService placeOrderSnapshotService;
 
     @Override
     @BetaTrace
@@ -34,6 +37,7 @@ public class FlashActivityEventHandler implements EventHandlerI<Response, FlashA
 
         flashActivityCacheService.tryToUpdateActivityCacheByLock(flashActivityEvent.getId());
         flashActivitiesCacheService.tryToUpdateActivitiesCacheByLock(1);
+        placeOrderSnapshotService.refreshActivity(flashActivityEvent.getId());
         return Response.buildSuccess();
     }
 }
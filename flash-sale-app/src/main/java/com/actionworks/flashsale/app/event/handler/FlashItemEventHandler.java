@@ -3,7 +3,12 @@ package com.actionworks.flashsale.app.event.handler;
 
 import com.actionworks.flashsale.app.service.item.cache.FlashItemCacheService;
 import com.actionworks.flashsale.app.service.item.cache.FlashItemsCacheService;
+import com.actionworks.flashsale.app.service.placeorder.leased.cache.LeasedStockCacheService;
+import com.actionworks.flashsale.app.service.placeorder.normal.cache.PlaceOrderAdmissionService;
+import com.actionworks.flashsale.app.service.placeorder.snapshot.PlaceOrderSnapshotService;
+import com.actionworks.flashsale.app.service.stock.ItemStockCacheService;
 import com.actionworks.flashsale.domain.event.FlashItemEvent;
+import com.actionworks.flashsale.domain.event.FlashItemEventType;
 import com.alibaba.cola.dto.Response;
 import com.alibaba.cola.event.EventHandler;
 import com.alibaba.cola.event.EventHandlerI;
@@ -23,6 +28,12 @@ public class FlashItemEventHandler implements EventHandlerI<Response, FlashItemE
     private FlashItemCacheService flashItemCacheService;
     @Resource
     private FlashItemsCacheService flashItemsCacheService;
+    @Resource
+    private ItemStockCacheService itemStockCacheService;
+    @Resource
+    private PlaceOrderAdmissionService placeOrderAdmissionService;
+    @Resource
+    private PlaceOrderSnapshotService placeOrderSnapshotService;
 
     @Override
     public Response execute(FlashItemEvent flashItemEvent) {
@@ -34,6 +45,13 @@ public class FlashItemEventHandler implements EventHandlerI<Response, FlashItemE
 
         flashItemCacheService.tryToUpdateItemCacheByLock(flashItemEvent.getId());
         flashItemsCacheService.tryToUpdateItemsCacheByLock(flashItemEvent.getFlashActivityId());
+        placeOrderSnapshotService.refreshItem(flashItemEvent.getId());
+        //秒杀品下线时归还本节点租借的库存
+        if (flashItemEvent.getEventType() == FlashItemEventType.OFFLINE && itemStockCacheService instanceof LeasedStockCacheService) {
+            ((LeasedStockCacheService) itemStockCacheService).returnItemStockLease(flashItemEvent.getId());
+        }
+        //秒杀品变更后重新编译下单准入记录
+        placeOrderAdmissionService.compile(flashItemEvent.getId());
         return Response.buildSuccess();
     }
 }
@@ -35,6 +35,7 @@ public enum AppErrorCode implements ErrorCodeI {
     GET_ITEM_FAILED("GET_ITEM_FAILED", "获取秒杀品失败"),
     ITEM_SOLD_OUT("ITEM_SOLD_OUT", "秒杀品已售罄"),
     REDUNDANT_SUBMIT("REDUNDANT_SUBMIT", "请勿重复下单"),
+    EXCEED_PURCHASE_LIMIT("EXCEED_PURCHASE_LIMIT", "超出限购数量"),
     ORDER_TOKENS_NOT_AVAILABLE("ORDER_TOKENS_NOT_AVAILABLE", "暂无可用库存"),
     ORDER_TASK_SUBMIT_FAILED("ORDER_TASK_SUBMIT_FAILED", "订单提交失败，请稍后再试"),
     ORDER_NOT_FOUND("ORDER_NOT_FOUND", "订单不存在"),
@@ -13,8 +13,17 @@ public class CacheConstants {
 
     public static final String ITEM_BUCKETS_CACHE_INIT_KEY = "ITEM_BUCKETS_CACHE_INIT_KEY";
     public static final String ITEM_BUCKETS_QUANTITY_KEY = "ITEM_BUCKETS_QUANTITY_KEY";
+    public static final String ITEM_BUCKETS_LOAD_KEY = "ITEM_BUCKETS_LOAD_KEY";
+    public static final String ITEM_BUCKETS_RECOMMENDED_QUANTITY_KEY = "ITEM_BUCKETS_RECOMMENDED_QUANTITY_KEY";
+    public static final String ITEM_BUCKETS_SIZING_KEY = "ITEM_BUCKETS_SIZING_KEY";
+    public static final String ITEM_BUCKETS_SUMMARY_KEY = "ITEM_BUCKETS_SUMMARY_KEY";
+    public static final String ITEM_BUCKETS_REBALANCE_KEY = "ITEM_BUCKETS_REBALANCE_KEY";
 
     public static final String ITEM_BUCKET_AVAILABLE_STOCKS_KEY = "ITEM_BUCKET_AVAILABLE_STOCKS_KEY";
     public static final String ITEM_STOCK_BUCKETS_SUSPEND_KEY = "ITEM_STOCK_BUCKETS_SUSPEND_KEY";
+    public static final String ITEM_BUCKET_ALIGN_KEY = "ITEM_BUCKET_ALIGN_KEY";
+
+    public static final String PLACE_ORDER_TASK_ORDER_ID_KEY = "PLACE_ORDER_TASK_ORDER_ID_KEY_";
+    public static final String WRITE_BEHIND_ORDER_FAILED_KEY = "WRITE_BEHIND_ORDER_FAILED_KEY_";
 
 }
@@ -11,4 +11,9 @@ public class StockBucketSummaryDTO {
     private Integer totalStocksAmount;
     private Integer availableStocksAmount;
     private List<StockBucketDTO> buckets;
+    //按观测负载建议的分桶数量，未开启分桶数量评估时为空
+    private Integer recommendedBucketsQuantity;
+    //最近一次与数据库核对的时间和数据库剩余库存减去缓存剩余库存的差值，汇总从数据库查询时为空
+    private Long checksumTime;
+    private Integer checksumDifference;
 }
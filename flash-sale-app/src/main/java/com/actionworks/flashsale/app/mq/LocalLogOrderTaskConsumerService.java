@@ -0,0 +1,135 @@
+package com.actionworks.flashsale.app.mq;
+
+import com.actionworks.flashsale.app.model.PlaceOrderTask;
+import com.actionworks.flashsale.app.service.placeorder.queued.PlaceOrderTaskBatchHandler;
+import com.actionworks.flashsale.app.service.placeorder.queued.QueuedPlaceOrderService;
+import com.alibaba.fastjson.JSON;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 本地日志下单任务消费，每个分区一个消费线程，从已提交的消费位置开始读取，处理完一批后提交消费位置
+ * 进程崩溃时未提交的任务会在重启后再次处理，与RocketMQ至少一次投递的语义一致，已有结果的任务在处理前按任务状态跳过。
+ */
+@Component
+@ConditionalOnExpression("'${ServiceType:}' == 'queued' && '${OrderTaskPostService:rocketmq}' == 'local'")
+public class LocalLogOrderTaskConsumerService {
+    private static final Logger logger = LoggerFactory.getLogger(LocalLogOrderTaskConsumerService.class);
+    private static final long AWAIT_APPEND_MILLIS = 100;
+
+    //大于1时批量处理，一次最多处理的下单任务数
+    @Value("${order.task-consumer.batch-size:1}")
+    private int batchSize;
+
+    @Resource
+    private LocalLogOrderTaskPostService localLogOrderTaskPostService;
+    @Resource
+    private QueuedPlaceOrderService queuedPlaceOrderService;
+    @Resource
+    private PlaceOrderTaskBatchHandler placeOrderTaskBatchHandler;
+
+    private ExecutorService consumerExecutor;
+    private volatile boolean running;
+
+    @PostConstruct
+    public void init() {
+        int partitionCount = localLogOrderTaskPostService.getPartitionCount();
+        running = true;
+        consumerExecutor = Executors.newFixedThreadPool(partitionCount);
+        for (int i = 0; i < partitionCount; i++) {
+            OrderTaskLog partition = localLogOrderTaskPostService.getPartitionLog(i);
+            consumerExecutor.execute(() -> consume(partition));
+        }
+        logger.info("initOrderTaskConsumer|下单任务本地日志消费已启动|{},{}", partitionCount, batchSize);
+    }
+
+    @PreDestroy
+    public void destroy() throws InterruptedException {
+        running = false;
+        consumerExecutor.shutdown();
+        if (!consumerExecutor.awaitTermination(30, TimeUnit.SECONDS)) {
+            consumerExecutor.shutdownNow();
+        }
+    }
+
+    private void consume(OrderTaskLog partition) {
+        long offset = partition.getCommittedOffset();
+        while (running) {
+            try {
+                OrderTaskLog.ReadResult readResult = partition.read(offset, Math.max(batchSize, 1));
+                if (readResult.getRecords().isEmpty()) {
+                    partition.awaitAppend(offset, AWAIT_APPEND_MILLIS);
+                    continue;
+                }
+                handle(readResult.getRecords());
+                //任务已处理完成，先推进消费位置，提交失败时不再重复处理这一批
+                offset = readResult.getNextOffset();
+                commit(partition, offset);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                //处理未完成，稍后从同一位置重试，已有结果的任务由任务状态过滤
+                logger.error("handleOrderTask|下单任务日志消费失败|{}", offset, e);
+                if (!pause()) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void commit(OrderTaskLog partition, long offset) {
+        try {
+            partition.commit(offset);
+        } catch (Exception e) {
+            //消费位置随下一批一起提交
+            logger.error("handleOrderTask|下单任务消费位置提交失败|{}", offset, e);
+        }
+    }
+
+    private boolean pause() {
+        try {
+            TimeUnit.MILLISECONDS.sleep(AWAIT_APPEND_MILLIS);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void handle(List<byte[]> records) {
+        List<PlaceOrderTask> placeOrderTasks = new ArrayList<>(records.size());
+        for (byte[] record : records) {
+            String message = new String(record, StandardCharsets.UTF_8);
+            try {
+                placeOrderTasks.add(JSON.parseObject(message, PlaceOrderTask.class));
+            } catch (Exception e) {
+                logger.error("handleOrderTask|下单任务消息解析失败|{}", message);
+            }
+        }
+        if (batchSize > 1) {
+            placeOrderTaskBatchHandler.handle(placeOrderTasks);
+            return;
+        }
+        for (PlaceOrderTask placeOrderTask : placeOrderTasks) {
+            try {
+                queuedPlaceOrderService.handlePlaceOrderTask(placeOrderTask);
+            } catch (Exception e) {
+                logger.error("handleOrderTask|下单任务消息处理失败|{}", placeOrderTask.getPlaceOrderTaskId());
+            }
+        }
+    }
+}
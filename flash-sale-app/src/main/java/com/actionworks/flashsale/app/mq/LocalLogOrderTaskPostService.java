@@ -0,0 +1,113 @@
+package com.actionworks.flashsale.app.mq;
+
+import com.actionworks.flashsale.app.model.PlaceOrderTask;
+import com.alibaba.fastjson.JSON;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 基于本地日志的下单任务投递，不依赖RocketMQ，用于本地压测和单机部署
+ * 下单任务按秒杀品ID写入对应分区的日志，同一秒杀品的任务在同一分区内保持顺序；
+ * 刷盘线程按固定间隔将各分区已追加的记录一次刷盘，开启同步刷盘时投递等待所在批次刷盘后才返回。
+ */
+@Component
+@ConditionalOnExpression("'${ServiceType:}' == 'queued' && '${OrderTaskPostService:rocketmq}' == 'local'")
+public class LocalLogOrderTaskPostService implements OrderTaskPostService {
+    private static final Logger logger = LoggerFactory.getLogger(LocalLogOrderTaskPostService.class);
+
+    @Value("${order.task-log.dir:./data/order-task-log}")
+    private String logDir;
+    @Value("${order.task-log.partitions:4}")
+    private int partitionCount;
+    @Value("${order.task-log.segment-size-mb:64}")
+    private int segmentSizeMb;
+    //刷盘间隔，该间隔内的追加在一次刷盘中提交，单位毫秒
+    @Value("${order.task-log.flush-interval-millis:10}")
+    private long flushIntervalMillis;
+    //投递是否等待刷盘完成
+    @Value("${order.task-log.sync-flush:false}")
+    private boolean syncFlush;
+    @Value("${order.task-log.sync-flush-timeout-millis:1000}")
+    private long syncFlushTimeoutMillis;
+
+    private OrderTaskLog[] partitions;
+    private ScheduledExecutorService flushExecutor;
+
+    @PostConstruct
+    public void init() throws IOException {
+        partitions = new OrderTaskLog[partitionCount];
+        for (int i = 0; i < partitionCount; i++) {
+            partitions[i] = new OrderTaskLog(new File(logDir, "partition-" + i), segmentSizeMb * 1024 * 1024);
+        }
+        flushExecutor = Executors.newSingleThreadScheduledExecutor();
+        flushExecutor.scheduleWithFixedDelay(this::flush, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        logger.info("initOrderTaskLog|下单任务本地日志已初始化|{},{},{}", logDir, partitionCount, syncFlush);
+    }
+
+    @PreDestroy
+    public void destroy() throws IOException {
+        flushExecutor.shutdown();
+        flush();
+        for (OrderTaskLog partition : partitions) {
+            partition.close();
+        }
+    }
+
+    @Override
+    public boolean post(PlaceOrderTask placeOrderTask) {
+        if (placeOrderTask == null || placeOrderTask.getItemId() == null) {
+            logger.info("postOrderTask|投递下单任务参数错误");
+            return false;
+        }
+        try {
+            OrderTaskLog partition = partitions[getPartition(placeOrderTask.getItemId())];
+            long offset = partition.append(JSON.toJSONString(placeOrderTask).getBytes(StandardCharsets.UTF_8));
+            if (syncFlush && !partition.awaitFlushed(offset, syncFlushTimeoutMillis)) {
+                //记录已写入并会被消费，不能按投递失败恢复下单许可，只记录刷盘超时
+                logger.info("postOrderTask|下单任务刷盘超时|{}", placeOrderTask.getPlaceOrderTaskId());
+            }
+            return true;
+        } catch (InterruptedException e) {
+            //等待刷盘时被中断，记录已写入
+            Thread.currentThread().interrupt();
+            return true;
+        } catch (Exception e) {
+            logger.error("postOrderTask|下单任务写入日志失败|{}", placeOrderTask.getPlaceOrderTaskId(), e);
+            return false;
+        }
+    }
+
+    int getPartitionCount() {
+        return partitionCount;
+    }
+
+    OrderTaskLog getPartitionLog(int partition) {
+        return partitions[partition];
+    }
+
+    private int getPartition(Long itemId) {
+        return (int) Math.floorMod(itemId, (long) partitionCount);
+    }
+
+    private void flush() {
+        for (OrderTaskLog partition : partitions) {
+            try {
+                partition.flush();
+            } catch (Exception e) {
+                logger.error("flushOrderTaskLog|下单任务日志刷盘失败", e);
+            }
+        }
+    }
+}
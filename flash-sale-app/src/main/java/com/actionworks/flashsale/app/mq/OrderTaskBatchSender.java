@@ -0,0 +1,249 @@
+package com.actionworks.flashsale.app.mq;
+
+import org.apache.rocketmq.client.producer.DefaultMQProducer;
+import org.apache.rocketmq.client.producer.SendCallback;
+import org.apache.rocketmq.client.producer.SendResult;
+import org.apache.rocketmq.client.producer.SendStatus;
+import org.apache.rocketmq.common.message.Message;
+import org.apache.rocketmq.common.message.MessageQueue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 下单任务批量异步发送
+ * 任务按秒杀品ID分配到固定的发送通道，每个通道一个发送线程，攒够一批或等待超过linger后异步发送，发送回调中统一完成该批任务的投递结果。
+ * 通道只决定由哪个线程发送，消息队列与同步发送一致按秒杀品ID对队列数取模选择，一批中属于不同队列的任务分组发送。
+ * 等待超时的任务若还未被发送线程取走则直接失败，之后不会再发送；已取走的任务可能已发送，继续等待发送回调。
+ */
+class OrderTaskBatchSender {
+    private static final Logger logger = LoggerFactory.getLogger(OrderTaskBatchSender.class);
+    private static final long QUEUE_REFRESH_INTERVAL_MILLIS = 30000;
+
+    private final DefaultMQProducer producer;
+    private final String topic;
+    private final int batchSize;
+    private final long lingerMillis;
+    private final long sendTimeoutMillis;
+    private final List<BlockingQueue<PendingOrderTask>> lanes = new ArrayList<>();
+    private final List<Thread> senderThreads = new ArrayList<>();
+    private volatile List<MessageQueue> messageQueues;
+    private volatile long messageQueuesRefreshTime;
+    private volatile boolean running = true;
+
+    OrderTaskBatchSender(DefaultMQProducer producer, String topic, int laneCount, int queueCapacity,
+                         int batchSize, long lingerMillis, long sendTimeoutMillis) {
+        this.producer = producer;
+        this.topic = topic;
+        this.batchSize = batchSize;
+        this.lingerMillis = lingerMillis;
+        this.sendTimeoutMillis = sendTimeoutMillis;
+        for (int i = 0; i < laneCount; i++) {
+            int lane = i;
+            lanes.add(new LinkedBlockingQueue<>(queueCapacity));
+            Thread senderThread = new Thread(() -> send(lane), "order-task-sender-" + i);
+            senderThread.setDaemon(true);
+            senderThreads.add(senderThread);
+        }
+        senderThreads.forEach(Thread::start);
+    }
+
+    /**
+     * 提交下单任务并等待所在批次发送确认；通道已满或超时前未被取走时返回失败
+     */
+    boolean post(Long itemId, String placeOrderTaskId, byte[] body, long timeoutMillis) throws InterruptedException {
+        PendingOrderTask pendingOrderTask = new PendingOrderTask(itemId, placeOrderTaskId, body);
+        if (!running || !lanes.get(getLane(itemId)).offer(pendingOrderTask)) {
+            logger.info("postOrderTask|下单任务发送通道已满|{}", placeOrderTaskId);
+            return false;
+        }
+        try {
+            return pendingOrderTask.result.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            if (pendingOrderTask.abandon()) {
+                logger.info("postOrderTask|下单任务投递超时|{}", placeOrderTaskId);
+                return false;
+            }
+        } catch (Exception e) {
+            logger.error("postOrderTask|下单任务投递错误|{}", placeOrderTaskId, e);
+            return false;
+        }
+        //已被发送线程取走，消息可能已发送，以发送回调的结果为准
+        try {
+            return pendingOrderTask.result.get(sendTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            logger.info("postOrderTask|下单任务投递结果未知，按已投递处理|{}", placeOrderTaskId);
+            return true;
+        } catch (Exception e) {
+            logger.error("postOrderTask|下单任务投递错误|{}", placeOrderTaskId, e);
+            return false;
+        }
+    }
+
+    void shutdown() throws InterruptedException {
+        running = false;
+        for (Thread senderThread : senderThreads) {
+            senderThread.join(sendTimeoutMillis);
+        }
+    }
+
+    private int getLane(Long itemId) {
+        return getQueueIndex(itemId, lanes.size());
+    }
+
+    private void send(int lane) {
+        BlockingQueue<PendingOrderTask> queue = lanes.get(lane);
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingOrderTask first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                List<PendingOrderTask> batch = new ArrayList<>(batchSize);
+                batch.add(first);
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+                while (batch.size() < batchSize) {
+                    queue.drainTo(batch, batchSize - batch.size());
+                    long remaining = deadline - System.nanoTime();
+                    if (batch.size() >= batchSize || remaining <= 0) {
+                        break;
+                    }
+                    PendingOrderTask next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                sendBatch(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void sendBatch(List<PendingOrderTask> batch) {
+        //剔除等待超时已放弃的任务
+        batch.removeIf(pendingOrderTask -> !pendingOrderTask.claim());
+        if (batch.isEmpty()) {
+            return;
+        }
+        List<MessageQueue> queues;
+        try {
+            queues = getMessageQueues();
+        } catch (Exception e) {
+            logger.error("postOrderTask|下单任务消息队列获取失败|{}", batch.size(), e);
+            messageQueuesRefreshTime = 0;
+            complete(batch, false);
+            return;
+        }
+        Map<MessageQueue, List<PendingOrderTask>> queueTasks = new LinkedHashMap<>();
+        for (PendingOrderTask pendingOrderTask : batch) {
+            MessageQueue messageQueue = queues.get(getQueueIndex(pendingOrderTask.itemId, queues.size()));
+            queueTasks.computeIfAbsent(messageQueue, queue -> new ArrayList<>()).add(pendingOrderTask);
+        }
+        queueTasks.forEach(this::sendBatch);
+    }
+
+    private void sendBatch(MessageQueue messageQueue, List<PendingOrderTask> batch) {
+        List<Message> messages = new ArrayList<>(batch.size());
+        for (PendingOrderTask pendingOrderTask : batch) {
+            Message message = new Message(topic, pendingOrderTask.body);
+            message.setKeys(pendingOrderTask.placeOrderTaskId);
+            messages.add(message);
+        }
+        try {
+            producer.send(messages, messageQueue, new SendCallback() {
+                @Override
+                public void onSuccess(SendResult sendResult) {
+                    boolean success = SendStatus.SEND_OK.equals(sendResult.getSendStatus());
+                    if (!success) {
+                        logger.info("postOrderTask|下单任务批量投递失败|{},{}", batch.size(), sendResult.getSendStatus());
+                    }
+                    complete(batch, success);
+                }
+
+                @Override
+                public void onException(Throwable e) {
+                    logger.error("postOrderTask|下单任务批量投递错误|{}", batch.size(), e);
+                    messageQueuesRefreshTime = 0;
+                    complete(batch, false);
+                }
+            }, sendTimeoutMillis);
+        } catch (Exception e) {
+            logger.error("postOrderTask|下单任务批量投递错误|{}", batch.size(), e);
+            messageQueuesRefreshTime = 0;
+            complete(batch, false);
+        }
+    }
+
+    /**
+     * 秒杀品对应的消息队列下标，同步发送的队列选择器与批量发送共用
+     */
+    static int getQueueIndex(Long itemId, int queueCount) {
+        return (int) Math.floorMod(itemId == null ? 0 : itemId, (long) queueCount);
+    }
+
+    /**
+     * 与同步发送的队列选择器使用同一份路由队列列表，不重新排序，保证同一秒杀品选中同一队列
+     */
+    private List<MessageQueue> getMessageQueues() throws Exception {
+        List<MessageQueue> queues = messageQueues;
+        if (queues == null || queues.isEmpty() || System.currentTimeMillis() - messageQueuesRefreshTime > QUEUE_REFRESH_INTERVAL_MILLIS) {
+            queues = producer.fetchPublishMessageQueues(topic);
+            messageQueues = queues;
+            messageQueuesRefreshTime = System.currentTimeMillis();
+        }
+        return queues;
+    }
+
+    private static void complete(List<PendingOrderTask> batch, boolean success) {
+        batch.forEach(pendingOrderTask -> pendingOrderTask.result.complete(success));
+    }
+
+    private static class PendingOrderTask {
+        private static final int WAITING = 0;
+        private static final int CLAIMED = 1;
+        private static final int ABANDONED = 2;
+
+        private final Long itemId;
+        private final String placeOrderTaskId;
+        private final byte[] body;
+        private final CompletableFuture<Boolean> result = new CompletableFuture<>();
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+
+        PendingOrderTask(Long itemId, String placeOrderTaskId, byte[] body) {
+            this.itemId = itemId;
+            this.placeOrderTaskId = placeOrderTaskId;
+            this.body = body;
+        }
+
+        /**
+         * 发送线程取走任务，任务已放弃时返回false
+         */
+        boolean claim() {
+            return state.compareAndSet(WAITING, CLAIMED);
+        }
+
+        /**
+         * 等待方放弃任务并以失败完成，任务已被取走时返回false
+         */
+        boolean abandon() {
+            if (!state.compareAndSet(WAITING, ABANDONED)) {
+                return false;
+            }
+            result.complete(false);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package com.actionworks.flashsale.app.mq;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.zip.CRC32;
+
+/**
+ * 下单任务日志的一个分区，由多个内存映射的定长分段文件组成，只追加写入
+ * 偏移量为逻辑字节位置，分段文件以起始偏移量命名；记录格式：长度(4字节) + CRC32(4字节) + 内容，
+ * 每次追加后在记录末尾写入长度0作为结束标记，分段剩余空间不足时写入-1并切换到下一分段。
+ * 刷盘由外部定时调用flush完成，多次追加在一次刷盘中提交；消费位置保存在分区目录的offset文件中，
+ * 消费位置之前的分段在提交消费位置时删除。启动时扫描最后一个分段恢复写入位置，遇到结束标记或校验失败即停止。
+ */
+class OrderTaskLog implements Closeable {
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int END_MARK_SIZE = 4;
+    private static final int ROLL_MARK = -1;
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String OFFSET_FILE = "consumer.offset";
+
+    private final File directory;
+    private final int segmentSize;
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    private final RandomAccessFile offsetFile;
+    private final MappedByteBuffer offsetBuffer;
+    private final Object flushMonitor = new Object();
+    private volatile Segment activeSegment;
+    private volatile long writeOffset;
+    private volatile long flushedOffset;
+
+    OrderTaskLog(File directory, int segmentSize) throws IOException {
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("无法创建下单任务日志目录：" + directory);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        File[] segmentFiles = directory.listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+        if (segmentFiles != null) {
+            for (File segmentFile : segmentFiles) {
+                long baseOffset = Long.parseLong(segmentFile.getName().substring(0, segmentFile.getName().length() - SEGMENT_SUFFIX.length()));
+                segments.put(baseOffset, new Segment(segmentFile, baseOffset, segmentSize));
+            }
+        }
+        this.offsetFile = new RandomAccessFile(new File(directory, OFFSET_FILE), "rw");
+        this.offsetBuffer = offsetFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 8);
+        this.activeSegment = segments.isEmpty() ? createSegment(0) : segments.lastEntry().getValue();
+        this.writeOffset = recoverWriteOffset();
+        this.flushedOffset = writeOffset;
+    }
+
+    /**
+     * 追加记录，返回记录结束位置的偏移量
+     */
+    synchronized long append(byte[] payload) throws IOException {
+        int size = RECORD_HEADER_SIZE + payload.length;
+        if (size + END_MARK_SIZE > segmentSize) {
+            throw new IllegalArgumentException("下单任务超过日志分段大小：" + payload.length);
+        }
+        Segment segment = activeSegment;
+        int position = (int) (writeOffset - segment.baseOffset);
+        if (position + size + END_MARK_SIZE > segmentSize) {
+            segment.buffer.putInt(position, ROLL_MARK);
+            segment = createSegment(segment.baseOffset + segmentSize);
+            activeSegment = segment;
+            position = 0;
+        }
+        ByteBuffer buffer = segment.buffer.duplicate();
+        buffer.putInt(position + 4, crc(payload));
+        buffer.position(position + RECORD_HEADER_SIZE);
+        buffer.put(payload);
+        buffer.putInt(position + size, 0);
+        //长度最后写入，写到一半崩溃时该记录不会被恢复
+        buffer.putInt(position, payload.length);
+        writeOffset = segment.baseOffset + position + size;
+        notifyAll();
+        return writeOffset;
+    }
+
+    /**
+     * 从指定偏移量开始读取最多maxRecords条记录
+     */
+    ReadResult read(long offset, int maxRecords) {
+        List<byte[]> records = new ArrayList<>();
+        long position = Math.max(offset, segments.firstKey());
+        long limit = writeOffset;
+        while (records.size() < maxRecords && position < limit) {
+            Map.Entry<Long, Segment> entry = segments.floorEntry(position);
+            Segment segment = entry.getValue();
+            int segmentPosition = (int) (position - segment.baseOffset);
+            int length = segment.buffer.getInt(segmentPosition);
+            if (length == ROLL_MARK) {
+                position = segment.baseOffset + segmentSize;
+                continue;
+            }
+            if (length <= 0) {
+                break;
+            }
+            ByteBuffer buffer = segment.buffer.duplicate();
+            buffer.position(segmentPosition + RECORD_HEADER_SIZE);
+            byte[] payload = new byte[length];
+            buffer.get(payload);
+            records.add(payload);
+            position += RECORD_HEADER_SIZE + length;
+        }
+        return new ReadResult(records, position);
+    }
+
+    /**
+     * 等待新记录写入，超时后返回
+     */
+    synchronized void awaitAppend(long offset, long timeoutMillis) throws InterruptedException {
+        if (writeOffset <= offset) {
+            wait(timeoutMillis);
+        }
+    }
+
+    /**
+     * 将已追加的记录刷盘，由刷盘线程定时调用
+     */
+    void flush() {
+        long targetOffset = writeOffset;
+        if (targetOffset <= flushedOffset) {
+            return;
+        }
+        Long fromOffset = segments.floorKey(flushedOffset);
+        for (Segment segment : (fromOffset == null ? segments : segments.tailMap(fromOffset)).values()) {
+            if (segment.baseOffset > targetOffset) {
+                break;
+            }
+            segment.buffer.force();
+        }
+        synchronized (flushMonitor) {
+            flushedOffset = targetOffset;
+            flushMonitor.notifyAll();
+        }
+    }
+
+    /**
+     * 等待指定偏移量之前的记录刷盘，超时返回false
+     */
+    boolean awaitFlushed(long offset, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (flushMonitor) {
+            while (flushedOffset < offset) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                flushMonitor.wait(remaining);
+            }
+        }
+        return true;
+    }
+
+    long getCommittedOffset() {
+        long committedOffset = offsetBuffer.getLong(0);
+        return Math.min(Math.max(committedOffset, segments.firstKey()), writeOffset);
+    }
+
+    /**
+     * 提交消费位置，并删除已全部消费的分段
+     */
+    void commit(long offset) throws IOException {
+        offsetBuffer.putLong(0, offset);
+        Map.Entry<Long, Segment> first;
+        while ((first = segments.firstEntry()) != null && first.getValue() != activeSegment && first.getKey() + segmentSize <= offset) {
+            segments.remove(first.getKey());
+            first.getValue().delete();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        offsetBuffer.force();
+        offsetFile.close();
+        for (Segment segment : segments.values()) {
+            segment.buffer.force();
+            segment.close();
+        }
+    }
+
+    private Segment createSegment(long baseOffset) throws IOException {
+        Segment segment = new Segment(new File(directory, String.format("%020d%s", baseOffset, SEGMENT_SUFFIX)), baseOffset, segmentSize);
+        segments.put(baseOffset, segment);
+        return segment;
+    }
+
+    private long recoverWriteOffset() throws IOException {
+        int position = 0;
+        while (position + RECORD_HEADER_SIZE <= segmentSize) {
+            Segment segment = activeSegment;
+            int length = segment.buffer.getInt(position);
+            if (length == ROLL_MARK) {
+                //切换分段后、新分段创建前崩溃
+                activeSegment = createSegment(segment.baseOffset + segmentSize);
+                position = 0;
+                continue;
+            }
+            if (length <= 0 || position + RECORD_HEADER_SIZE + length > segmentSize) {
+                break;
+            }
+            byte[] payload = new byte[length];
+            ByteBuffer buffer = segment.buffer.duplicate();
+            buffer.position(position + RECORD_HEADER_SIZE);
+            buffer.get(payload);
+            if (crc(payload) != segment.buffer.getInt(position + 4)) {
+                break;
+            }
+            position += RECORD_HEADER_SIZE + length;
+        }
+        if (position + END_MARK_SIZE <= segmentSize) {
+            activeSegment.buffer.putInt(position, 0);
+        }
+        return activeSegment.baseOffset + position;
+    }
+
+    private static int crc(byte[] payload) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(payload, 0, payload.length);
+        return (int) crc32.getValue();
+    }
+
+    static class ReadResult {
+        private final List<byte[]> records;
+        private final long nextOffset;
+
+        ReadResult(List<byte[]> records, long nextOffset) {
+            this.records = records;
+            this.nextOffset = nextOffset;
+        }
+
+        List<byte[]> getRecords() {
+            return records;
+        }
+
+        long getNextOffset() {
+            return nextOffset;
+        }
+    }
+
+    private static class Segment {
+        private final File file;
+        private final long baseOffset;
+        private final RandomAccessFile randomAccessFile;
+        private final MappedByteBuffer buffer;
+
+        Segment(File file, long baseOffset, int segmentSize) throws IOException {
+            this.file = file;
+            this.baseOffset = baseOffset;
+            this.randomAccessFile = new RandomAccessFile(file, "rw");
+            this.buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+
+        void close() throws IOException {
+            randomAccessFile.close();
+        }
+
+        void delete() throws IOException {
+            close();
+            if (!file.delete()) {
+                throw new IOException("无法删除下单任务日志分段：" + file);
+            }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.actionworks.flashsale.app.mq;
+
+import com.actionworks.flashsale.app.model.PlaceOrderTask;
+import com.alibaba.fastjson.JSON;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * 下单任务消息的紧凑二进制编码
+ * 格式：版本(1字节) + 字段存在标记(1字节) + 任务ID(变长长度 + UTF-8) + 各数值字段(ZigZag变长整数)，
+ * 一个下单任务通常编码为45字节左右，约为JSON的三分之一。解码时兼容JSON格式的消息，便于滚动升级。
+ */
+public final class PlaceOrderTaskCodec {
+    private static final byte VERSION = 1;
+    private static final int TASK_ID = 1;
+    private static final int USER_ID = 1 << 1;
+    private static final int ORDER_ID = 1 << 2;
+    private static final int ITEM_ID = 1 << 3;
+    private static final int ACTIVITY_ID = 1 << 4;
+    private static final int QUANTITY = 1 << 5;
+    private static final int TOTAL_AMOUNT = 1 << 6;
+    private static final int MAX_VARLONG_SIZE = 10;
+
+    private PlaceOrderTaskCodec() {
+    }
+
+    public static byte[] encode(PlaceOrderTask placeOrderTask) {
+        byte[] taskId = placeOrderTask.getPlaceOrderTaskId() == null ? null : placeOrderTask.getPlaceOrderTaskId().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(2 + (taskId == null ? 0 : MAX_VARLONG_SIZE + taskId.length) + 6 * MAX_VARLONG_SIZE);
+        buffer.put(VERSION);
+        buffer.put((byte) 0);
+        int flags = 0;
+        if (taskId != null) {
+            flags |= TASK_ID;
+            putVarLong(buffer, taskId.length);
+            buffer.put(taskId);
+        }
+        flags |= putIfPresent(buffer, placeOrderTask.getUserId(), USER_ID);
+        flags |= putIfPresent(buffer, placeOrderTask.getId(), ORDER_ID);
+        flags |= putIfPresent(buffer, placeOrderTask.getItemId(), ITEM_ID);
+        flags |= putIfPresent(buffer, placeOrderTask.getActivityId(), ACTIVITY_ID);
+        flags |= putIfPresent(buffer, placeOrderTask.getQuantity() == null ? null : placeOrderTask.getQuantity().longValue(), QUANTITY);
+        flags |= putIfPresent(buffer, placeOrderTask.getTotalAmount(), TOTAL_AMOUNT);
+        buffer.put(1, (byte) flags);
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    public static PlaceOrderTask decode(byte[] body) {
+        if (body == null || body.length == 0) {
+            return null;
+        }
+        if (body[0] != VERSION) {
+            return JSON.parseObject(new String(body, StandardCharsets.UTF_8), PlaceOrderTask.class);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(body);
+        buffer.get();
+        int flags = buffer.get();
+        PlaceOrderTask placeOrderTask = new PlaceOrderTask();
+        if ((flags & TASK_ID) != 0) {
+            byte[] taskId = new byte[(int) getVarLong(buffer)];
+            buffer.get(taskId);
+            placeOrderTask.setPlaceOrderTaskId(new String(taskId, StandardCharsets.UTF_8));
+        }
+        placeOrderTask.setUserId(getIfPresent(buffer, flags, USER_ID));
+        placeOrderTask.setId(getIfPresent(buffer, flags, ORDER_ID));
+        placeOrderTask.setItemId(getIfPresent(buffer, flags, ITEM_ID));
+        placeOrderTask.setActivityId(getIfPresent(buffer, flags, ACTIVITY_ID));
+        Long quantity = getIfPresent(buffer, flags, QUANTITY);
+        placeOrderTask.setQuantity(quantity == null ? null : quantity.intValue());
+        placeOrderTask.setTotalAmount(getIfPresent(buffer, flags, TOTAL_AMOUNT));
+        return placeOrderTask;
+    }
+
+    private static int putIfPresent(ByteBuffer buffer, Long value, int flag) {
+        if (value == null) {
+            return 0;
+        }
+        putVarLong(buffer, (value << 1) ^ (value >> 63));
+        return flag;
+    }
+
+    private static Long getIfPresent(ByteBuffer buffer, int flags, int flag) {
+        if ((flags & flag) == 0) {
+            return null;
+        }
+        long value = getVarLong(buffer);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void putVarLong(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private static long getVarLong(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("下单任务消息格式错误");
+    }
+}
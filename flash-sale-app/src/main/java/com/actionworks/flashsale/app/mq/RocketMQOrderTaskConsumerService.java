@@ -1,41 +1,110 @@
 package com.actionworks.flashsale.app.mq;
 
 import com.actionworks.flashsale.app.model.PlaceOrderTask;
+import com.actionworks.flashsale.app.service.placeorder.queued.PlaceOrderTaskBatchHandler;
 import com.actionworks.flashsale.app.service.placeorder.queued.QueuedPlaceOrderService;
-import com.alibaba.fastjson.JSON;
-import org.apache.commons.lang3.StringUtils;
+import org.apache.rocketmq.client.consumer.DefaultMQPushConsumer;
+import org.apache.rocketmq.client.consumer.listener.ConsumeOrderlyStatus;
+import org.apache.rocketmq.client.consumer.listener.MessageListenerOrderly;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.apache.rocketmq.spring.annotation.ConsumeMode;
 import org.apache.rocketmq.spring.annotation.RocketMQMessageListener;
 import org.apache.rocketmq.spring.core.RocketMQListener;
+import org.apache.rocketmq.spring.core.RocketMQPushConsumerLifecycleListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.List;
 
+/**
+ * 下单任务消费
+ * 生产端按秒杀品ID选择队列，这里按队列顺序消费，每个队列同一时刻只有一个线程处理，
+ * 同一秒杀品的库存扣减不会在多个消费线程之间争抢行锁；消费并行度等于队列数，应不少于热点秒杀品数。
+ */
 @Component
-@RocketMQMessageListener(topic = "PLACE_ORDER_TASK_TOPIC", consumerGroup = "PLACE_ORDER_TASK_TOPIC_CONSUMER_GROUP")
+@RocketMQMessageListener(topic = "PLACE_ORDER_TASK_TOPIC", consumerGroup = "PLACE_ORDER_TASK_TOPIC_CONSUMER_GROUP", consumeMode = ConsumeMode.ORDERLY)
 //@ConditionalOnProperty(name = "place_order_type", havingValue = "queued")
-@ConditionalOnProperty(name = "ServiceType", havingValue = "queued")
-public class RocketMQOrderTaskConsumerService implements RocketMQListener<String> {
+@ConditionalOnExpression("'${ServiceType:}' == 'queued' && '${OrderTaskPostService:rocketmq}' == 'rocketmq'")
+public class RocketMQOrderTaskConsumerService implements RocketMQListener<MessageExt>, RocketMQPushConsumerLifecycleListener {
     private static final Logger logger = LoggerFactory.getLogger(RocketMQOrderTaskConsumerService.class);
 
     @Resource
     private QueuedPlaceOrderService queuedPlaceOrderService;
+    @Resource
+    private PlaceOrderTaskBatchHandler placeOrderTaskBatchHandler;
+
+    //大于1时批量消费，一次最多处理的下单任务数
+    @Value("${order.task-consumer.batch-size:1}")
+    private int batchSize;
+
+    /**
+     * 批量消费时替换默认的逐条监听器
+     */
+    @Override
+    public void prepareStart(DefaultMQPushConsumer consumer) {
+        if (batchSize <= 1) {
+            return;
+        }
+        consumer.setConsumeMessageBatchMaxSize(batchSize);
+        consumer.setPullBatchSize(Math.max(consumer.getPullBatchSize(), batchSize));
+        consumer.setMessageListener((MessageListenerOrderly) (messages, context) -> {
+            try {
+                onMessages(messages);
+                return ConsumeOrderlyStatus.SUCCESS;
+            } catch (Exception e) {
+                //暂停当前队列稍后重新投递这一批，已处理的任务由任务状态和订单号过滤
+                logger.error("handleOrderTask|下单任务批量消息处理失败|{}", messages.size(), e);
+                return ConsumeOrderlyStatus.SUSPEND_CURRENT_QUEUE_A_MOMENT;
+            }
+        });
+        logger.info("handleOrderTask|下单任务批量消费已启用|{}", batchSize);
+    }
 
+    /**
+     * 消息体兼容JSON和紧凑二进制两种编码
+     */
     @Override
-    public void onMessage(String message) {
-        logger.info("handleOrderTask|接收下单任务消息|{}", message);
-        if (StringUtils.isEmpty(message)) {
-            logger.info("handleOrderTask|接收下单任务消息为空|{}", message);
+    public void onMessage(MessageExt message) {
+        logger.info("handleOrderTask|接收下单任务消息|{}", message.getMsgId());
+        PlaceOrderTask placeOrderTask = decode(message);
+        if (placeOrderTask == null) {
             return;
         }
         try {
-            PlaceOrderTask placeOrderTask = JSON.parseObject(message, PlaceOrderTask.class);
             queuedPlaceOrderService.handlePlaceOrderTask(placeOrderTask);
             logger.info("handleOrderTask|下单任务消息处理完成|{}", placeOrderTask.getPlaceOrderTaskId());
         } catch (Exception e) {
-            logger.error("handleOrderTask|下单任务消息处理失败|{}", message);
+            logger.error("handleOrderTask|下单任务消息处理失败|{}", placeOrderTask.getPlaceOrderTaskId());
+        }
+    }
+
+    private void onMessages(List<MessageExt> messages) {
+        logger.info("handleOrderTask|接收下单任务批量消息|{}", messages.size());
+        List<PlaceOrderTask> placeOrderTasks = new ArrayList<>(messages.size());
+        for (MessageExt message : messages) {
+            PlaceOrderTask placeOrderTask = decode(message);
+            if (placeOrderTask != null) {
+                placeOrderTasks.add(placeOrderTask);
+            }
+        }
+        placeOrderTaskBatchHandler.handle(placeOrderTasks);
+    }
+
+    private PlaceOrderTask decode(MessageExt message) {
+        try {
+            PlaceOrderTask placeOrderTask = PlaceOrderTaskCodec.decode(message.getBody());
+            if (placeOrderTask == null) {
+                logger.info("handleOrderTask|接收下单任务消息为空|{}", message.getMsgId());
+            }
+            return placeOrderTask;
+        } catch (Exception e) {
+            logger.error("handleOrderTask|下单任务消息解析失败|{}", message.getMsgId());
+            return null;
         }
     }
 }
@@ -3,22 +3,27 @@ package com.actionworks.flashsale.app.mq;
 import com.actionworks.flashsale.app.model.PlaceOrderTask;
 import com.alibaba.fastjson.JSON;
 import org.apache.rocketmq.client.producer.DefaultMQProducer;
+import org.apache.rocketmq.client.producer.MessageQueueSelector;
 import org.apache.rocketmq.client.producer.SendResult;
 import org.apache.rocketmq.client.producer.SendStatus;
 import org.apache.rocketmq.common.message.Message;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
 
 @Component
 //@ConditionalOnProperty(name = "place_order_type", havingValue = "queued")
-@ConditionalOnProperty(name = "ServiceType", havingValue = "queued")
+@ConditionalOnExpression("'${ServiceType:}' == 'queued' && '${OrderTaskPostService:rocketmq}' == 'rocketmq'")
 public class RocketMQOrderTaskPostService implements OrderTaskPostService {
     private static final Logger logger = LoggerFactory.getLogger(RocketMQOrderTaskPostService.class);
+    private static final MessageQueueSelector ITEM_QUEUE_SELECTOR = (messageQueues, message, itemId) ->
+            messageQueues.get(OrderTaskBatchSender.getQueueIndex((Long) itemId, messageQueues.size()));
 
     @Value("${rocketmq.name-server}")
     private String nameServer;
@@ -29,7 +34,24 @@ public class RocketMQOrderTaskPostService implements OrderTaskPostService {
     @Value("${rocketmq.placeorder.topic}")
     private String placeOrderTopic;
 
+    //异步批量发送，开启后消息使用紧凑二进制编码
+    @Value("${rocketmq.placeorder.producer.async:false}")
+    private boolean async;
+    //发送线程数，只决定由哪个线程发送，消息队列按秒杀品ID选择
+    @Value("${rocketmq.placeorder.producer.lanes:4}")
+    private int lanes;
+    @Value("${rocketmq.placeorder.producer.queue-capacity:10000}")
+    private int queueCapacity;
+    @Value("${rocketmq.placeorder.producer.batch-size:64}")
+    private int batchSize;
+    //等待攒批的最长时间，单位毫秒
+    @Value("${rocketmq.placeorder.producer.linger-millis:2}")
+    private long lingerMillis;
+    @Value("${rocketmq.placeorder.producer.send-timeout-millis:3000}")
+    private long sendTimeoutMillis;
+
     private DefaultMQProducer placeOrderMQProducer;
+    private OrderTaskBatchSender orderTaskBatchSender;
 
     @PostConstruct
     public void init() {
@@ -37,25 +59,41 @@ public class RocketMQOrderTaskPostService implements OrderTaskPostService {
             placeOrderMQProducer = new DefaultMQProducer(producerGroup);
             placeOrderMQProducer.setNamesrvAddr(nameServer);
             placeOrderMQProducer.start();
-            logger.info("initOrderTaskProducer|下单任务生产者初始化成功|{},{},{}", nameServer, producerGroup, placeOrderTopic);
+            if (async) {
+                orderTaskBatchSender = new OrderTaskBatchSender(placeOrderMQProducer, placeOrderTopic, lanes, queueCapacity, batchSize, lingerMillis, sendTimeoutMillis);
+            }
+            logger.info("initOrderTaskProducer|下单任务生产者初始化成功|{},{},{},{}", nameServer, producerGroup, placeOrderTopic, async);
         } catch (Exception e) {
             logger.error("initOrderTaskProducer|下单任务生产者初始化失败|{},{},{}", nameServer, producerGroup, placeOrderTopic, e);
         }
     }
 
+    @PreDestroy
+    public void destroy() throws InterruptedException {
+        if (orderTaskBatchSender != null) {
+            orderTaskBatchSender.shutdown();
+        }
+        if (placeOrderMQProducer != null) {
+            placeOrderMQProducer.shutdown();
+        }
+    }
+
     public boolean post(PlaceOrderTask placeOrderTask) {
-        logger.info("postOrderTask|投递下单任务|{}", JSON.toJSONString(placeOrderTask));
-        if (placeOrderTask == null) {
+        if (placeOrderTask == null || placeOrderTask.getItemId() == null) {
             logger.info("postOrderTask|投递下单任务参数错误");
             return false;
         }
-        String placeOrderTaskString = JSON.toJSONString(placeOrderTask);
+        logger.info("postOrderTask|投递下单任务|{}", placeOrderTask.getPlaceOrderTaskId());
+        if (async) {
+            return postAsync(placeOrderTask);
+        }
         Message message = new Message();
         message.setTopic(placeOrderTopic);
-        message.setBody(placeOrderTaskString.getBytes());
+        message.setBody(JSON.toJSONString(placeOrderTask).getBytes(StandardCharsets.UTF_8));
         try {
-            SendResult sendResult = placeOrderMQProducer.send(message);
-            logger.info("postOrderTask|下单任务投递完成|{}", placeOrderTask.getPlaceOrderTaskId(), JSON.toJSONString(sendResult));
+            //同一秒杀品的任务固定发送到同一队列，由消费端单线程顺序处理
+            SendResult sendResult = placeOrderMQProducer.send(message, ITEM_QUEUE_SELECTOR, placeOrderTask.getItemId());
+            logger.info("postOrderTask|下单任务投递完成|{},{}", placeOrderTask.getPlaceOrderTaskId(), sendResult.getSendStatus());
             if (SendStatus.SEND_OK.equals(sendResult.getSendStatus())) {
                 logger.info("postOrderTask|下单任务投递成功|{}", placeOrderTask.getPlaceOrderTaskId());
                 return true;
@@ -68,4 +106,19 @@ public class RocketMQOrderTaskPostService implements OrderTaskPostService {
             return false;
         }
     }
+
+    /**
+     * 加入所在通道的发送批次，等待该批次发送确认
+     */
+    private boolean postAsync(PlaceOrderTask placeOrderTask) {
+        byte[] body = PlaceOrderTaskCodec.encode(placeOrderTask);
+        try {
+            boolean success = orderTaskBatchSender.post(placeOrderTask.getItemId(), placeOrderTask.getPlaceOrderTaskId(), body, sendTimeoutMillis + lingerMillis);
+            logger.info("postOrderTask|下单任务批量投递完成|{},{}", placeOrderTask.getPlaceOrderTaskId(), success);
+            return success;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
 }
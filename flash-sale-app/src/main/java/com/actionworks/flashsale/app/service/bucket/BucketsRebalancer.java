@@ -0,0 +1,358 @@
+package com.actionworks.flashsale.app.service.bucket;
+
+import com.actionworks.flashsale.cache.DistributedCacheService;
+import com.actionworks.flashsale.cache.redis.RedisCacheService;
+import com.actionworks.flashsale.cache.redis.RedisScriptRegistry;
+import com.actionworks.flashsale.cache.redis.RedisScriptResult;
+import com.actionworks.flashsale.domain.model.PageResult;
+import com.actionworks.flashsale.domain.model.PagesQueryCondition;
+import com.actionworks.flashsale.domain.model.entity.FlashItem;
+import com.actionworks.flashsale.domain.model.enums.FlashItemStatus;
+import com.actionworks.flashsale.domain.service.BucketsDomainService;
+import com.actionworks.flashsale.domain.service.FlashItemDomainService;
+import com.actionworks.flashsale.lock.DistributedLock;
+import com.actionworks.flashsale.lock.DistributedLockFactoryService;
+import com.google.common.collect.Lists;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.actionworks.flashsale.app.model.constants.CacheConstants.HOURS_24;
+import static com.actionworks.flashsale.app.model.constants.CacheConstants.ITEM_BUCKETS_REBALANCE_KEY;
+import static com.actionworks.flashsale.app.model.constants.CacheConstants.ITEM_STOCK_BUCKETS_SUSPEND_KEY;
+import static com.actionworks.flashsale.app.service.bucket.DefaultBucketsArrangementService.getBucketAlignKey;
+import static com.actionworks.flashsale.app.service.bucket.DefaultBucketsArrangementService.getBucketAvailableStocksCacheKey;
+import static com.actionworks.flashsale.app.service.bucket.DefaultBucketsArrangementService.getBucketSuspendKey;
+import static com.actionworks.flashsale.app.service.placeorder.buckets.cache.BucketsCacheService.getItemStockBucketsQuantityCacheKey;
+import static com.actionworks.flashsale.app.service.placeorder.buckets.cache.BucketsCacheService.getStockBucketCacheInitLockKey;
+import static com.actionworks.flashsale.cache.redis.RedisLuaScript.DECREASE_BUCKET_STOCK;
+import static com.actionworks.flashsale.cache.redis.RedisLuaScript.INCREASE_BUCKET_STOCK;
+import static com.actionworks.flashsale.util.StringUtil.link;
+
+/**
+ * 分桶库存在线调拨
+ * 由一个节点定时观察各分桶的库存，按指数加权移动平均估算每个分桶的消耗速度和预计售罄时间，
+ * 将售罄最晚分桶的库存调拨给售罄最早的分桶，使各分桶接近同时售罄，调拨期间不暂停分桶服务。
+ * 各分桶位于不同的slot，调拨分三步：先用扣减脚本从转出分桶取出库存，再在一个事务中调拨数据库分桶，
+ * 最后用恢复脚本存入转入分桶；数据库调拨失败时将库存还给转出分桶。库存总是先取出再存入，调拨不会超卖。
+ * 分桶数量、剩余库存和暂停、校准标记均从缓存读取，定时观察不访问数据库分片；各分桶的消耗速度和调拨带来的库存变化
+ * 保存在Redis中秒杀品级别的调拨状态哈希里，换节点调拨时接续估算。
+ */
+@Component
+@ConditionalOnProperty(name = "ServiceType", havingValue = "buckets")
+public class BucketsRebalancer {
+    private static final Logger logger = LoggerFactory.getLogger(BucketsRebalancer.class);
+    private static final String LOCK_REBALANCE_BUCKETS_KEY = "LOCK_REBALANCE_BUCKETS_KEY";
+    private static final double EWMA_WEIGHT = 0.3;
+    private static final String QUANTITY = "quantity";
+    private static final String TIME_PREFIX = "time_";
+    private static final String STOCKS_PREFIX = "stocks_";
+    private static final String RATE_PREFIX = "rate_";
+    private static final String TRANSFERRED_PREFIX = "transferred_";
+
+    @Value("${stock.buckets.rebalance.enabled:false}")
+    private boolean enabled;
+    @Value("${stock.buckets.rebalance.interval-millis:1000}")
+    private long intervalMillis;
+    //转入分桶的预计售罄时间低于转出分桶的该比例时才调拨
+    @Value("${stock.buckets.rebalance.imbalance-ratio:0.5}")
+    private double imbalanceRatio;
+    @Value("${stock.buckets.rebalance.min-transfer:1}")
+    private int minTransfer;
+
+    @Resource
+    private BucketsDomainService bucketsDomainService;
+    @Resource
+    private FlashItemDomainService flashItemDomainService;
+    @Resource
+    private RedisScriptRegistry redisScriptRegistry;
+    @Resource
+    private DistributedCacheService distributedCacheService;
+    @Resource
+    private RedisCacheService redisCacheService;
+    @Resource
+    private DistributedLockFactoryService lockFactoryService;
+    @Resource
+    private DataSourceTransactionManager dataSourceTransactionManager;
+    @Resource
+    private TransactionDefinition transactionDefinition;
+    @Resource
+    private BucketsSummaryService bucketsSummaryService;
+
+    public static String getItemBucketsRebalanceKey(Long itemId) {
+        return link(ITEM_BUCKETS_REBALANCE_KEY, itemId);
+    }
+
+    @Scheduled(fixedDelayString = "${stock.buckets.rebalance.interval-millis:1000}")
+    public void rebalanceBucketsTask() {
+        if (!enabled) {
+            return;
+        }
+        DistributedLock rebalanceLock = lockFactoryService.getDistributedLock(LOCK_REBALANCE_BUCKETS_KEY);
+        try {
+            //锁在一个调拨周期后自动过期，周期内其他节点跳过
+            if (!rebalanceLock.tryLock(0, intervalMillis, TimeUnit.MILLISECONDS)) {
+                return;
+            }
+            PagesQueryCondition pagesQueryCondition = new PagesQueryCondition();
+            pagesQueryCondition.setStatus(FlashItemStatus.ONLINE.getCode());
+            PageResult<FlashItem> pageResult = flashItemDomainService.getFlashItems(pagesQueryCondition);
+            pageResult.getData().forEach(flashItem -> rebalance(flashItem.getId()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            logger.error("rebalanceBuckets|分桶库存调拨失败", e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void rebalance(Long itemId) {
+        try {
+            String bucketsQuantityValue = distributedCacheService.getString(getItemStockBucketsQuantityCacheKey(itemId));
+            if (bucketsQuantityValue == null) {
+                return;
+            }
+            int bucketsQuantity = Integer.parseInt(bucketsQuantityValue);
+            if (bucketsQuantity < 2) {
+                return;
+            }
+            //依次为各分桶的库存KEY、暂停KEY和校准标记KEY，分桶位于不同slot，由multiGet按slot拆分
+            List<String> bucketKeys = new ArrayList<>(bucketsQuantity * 3);
+            for (int serialNo = 0; serialNo < bucketsQuantity; serialNo++) {
+                bucketKeys.addAll(getBucketKeys(itemId, serialNo));
+            }
+            List<Object> bucketValues = redisCacheService.getRedisTemplate().opsForValue().multiGet(bucketKeys);
+            if (bucketValues == null) {
+                return;
+            }
+            String rebalanceKey = getItemBucketsRebalanceKey(itemId);
+            Map<Object, Object> savedStates = redisCacheService.getRedisTemplate().opsForHash().entries(rebalanceKey);
+            //分桶数量调整后重新编排了库存，消耗速度重新估算
+            boolean reset = savedStates == null || savedStates.get(QUANTITY) == null || toLong(savedStates.get(QUANTITY)) != bucketsQuantity;
+            long now = System.currentTimeMillis();
+            List<DepletionState> states = new ArrayList<>(bucketsQuantity);
+            for (int serialNo = 0; serialNo < bucketsQuantity; serialNo++) {
+                Object availableStocks = bucketValues.get(serialNo * 3);
+                //分桶库存未初始化、编排暂停或校准中时本周期不调拨
+                if (availableStocks == null || bucketValues.get(serialNo * 3 + 1) != null || bucketValues.get(serialNo * 3 + 2) != null) {
+                    return;
+                }
+                DepletionState state = reset ? new DepletionState(serialNo) : new DepletionState(serialNo, savedStates);
+                state.update((int) toLong(availableStocks), now);
+                states.add(state);
+            }
+            saveStates(rebalanceKey, bucketsQuantity, states, reset);
+
+            DepletionState receiver = null;
+            DepletionState donor = null;
+            for (DepletionState state : states) {
+                if (state.rate > 0 && (receiver == null || state.getTimeToEmpty() < receiver.getTimeToEmpty())) {
+                    receiver = state;
+                }
+                if (state.stocks > 0 && (donor == null || state.getTimeToEmpty() > donor.getTimeToEmpty())) {
+                    donor = state;
+                }
+            }
+            if (receiver == null || donor == null || receiver == donor) {
+                return;
+            }
+            int quantity = getRebalanceQuantity(donor.stocks, donor.rate, receiver.stocks, receiver.rate, imbalanceRatio);
+            if (quantity < minTransfer) {
+                return;
+            }
+            transfer(itemId, donor, receiver, quantity);
+        } catch (Exception e) {
+            logger.error("rebalanceBuckets|分桶库存调拨失败|{}", itemId, e);
+        }
+    }
+
+    /**
+     * 计算转出分桶调给转入分桶的库存，使两个分桶按各自的消耗速度预计同时售罄，单次最多调出转出分桶一半的库存；
+     * 转入分桶的预计售罄时间不低于转出分桶的imbalanceRatio时不调拨，返回0
+     */
+    static int getRebalanceQuantity(int donorStocks, double donorRate, int receiverStocks, double receiverRate, double imbalanceRatio) {
+        if (donorStocks <= 0 || receiverRate <= 0) {
+            return 0;
+        }
+        double receiverTimeToEmpty = receiverStocks / receiverRate;
+        if (donorRate > 0 && receiverTimeToEmpty >= donorStocks / donorRate * imbalanceRatio) {
+            return 0;
+        }
+        double equalizedQuantity = (donorStocks * receiverRate - receiverStocks * donorRate) / (donorRate + receiverRate);
+        return (int) Math.max(0, Math.min(Math.floor(equalizedQuantity), donorStocks / 2));
+    }
+
+    /**
+     * 写入本周期观察到的库存和消耗速度；调拨带来的库存变化以增量扣除已计入的部分，保留并发调拨写入的变化
+     */
+    private void saveStates(String rebalanceKey, int bucketsQuantity, List<DepletionState> states, boolean reset) {
+        Map<String, Object> values = new HashMap<>();
+        values.put(QUANTITY, bucketsQuantity);
+        states.forEach(state -> {
+            values.put(TIME_PREFIX + state.serialNo, state.lastTime);
+            values.put(STOCKS_PREFIX + state.serialNo, state.stocks);
+            values.put(RATE_PREFIX + state.serialNo, state.rate);
+        });
+        redisCacheService.getRedisTemplate().executePipelined(new SessionCallback<Object>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public <K, V> Object execute(RedisOperations<K, V> operations) {
+                RedisOperations<String, Object> redisOperations = (RedisOperations<String, Object>) operations;
+                if (reset) {
+                    redisOperations.delete(rebalanceKey);
+                }
+                redisOperations.opsForHash().putAll(rebalanceKey, values);
+                states.stream().filter(state -> state.transferred != 0)
+                        .forEach(state -> redisOperations.opsForHash().increment(rebalanceKey, TRANSFERRED_PREFIX + state.serialNo, -state.transferred));
+                redisOperations.expire(rebalanceKey, HOURS_24, TimeUnit.SECONDS);
+                return null;
+            }
+        });
+    }
+
+    private void recordTransferred(Long itemId, Integer serialNo, int quantity) {
+        try {
+            redisCacheService.getRedisTemplate().opsForHash().increment(getItemBucketsRebalanceKey(itemId), TRANSFERRED_PREFIX + serialNo, quantity);
+        } catch (Exception e) {
+            //下个周期的消耗速度估算会有偏差，不影响调拨结果
+            logger.error("rebalanceBuckets|调拨库存变化记录失败|{},{},{}", itemId, serialNo, quantity, e);
+        }
+    }
+
+    private void transfer(Long itemId, DepletionState donor, DepletionState receiver, int quantity) throws InterruptedException {
+        //与分桶编排和库存校准互斥，避免调拨中途的库存被覆盖
+        DistributedLock arrangementLock = lockFactoryService.getDistributedLock(ITEM_STOCK_BUCKETS_SUSPEND_KEY + itemId);
+        if (!arrangementLock.tryLock(0, 5, TimeUnit.SECONDS)) {
+            return;
+        }
+        try {
+            DistributedLock alignLock = lockFactoryService.getDistributedLock(getStockBucketCacheInitLockKey(itemId));
+            if (!alignLock.tryLock(0, 5, TimeUnit.SECONDS)) {
+                return;
+            }
+            try {
+                Long withdrawResult = redisScriptRegistry.executeForLong(DECREASE_BUCKET_STOCK, getBucketKeys(itemId, donor.serialNo), quantity);
+                if (withdrawResult == null || withdrawResult < 0) {
+                    logger.info("rebalanceBuckets|转出分桶库存扣减失败|{},{},{}", itemId, donor.serialNo, withdrawResult);
+                    return;
+                }
+                if (!transferBucketStocks(itemId, donor.serialNo, receiver.serialNo, quantity)) {
+                    RedisScriptResult refundResult = redisScriptRegistry.execute(INCREASE_BUCKET_STOCK, getBucketKeys(itemId, donor.serialNo), quantity);
+                    if (!refundResult.isSuccess()) {
+                        logger.error("rebalanceBuckets|转出分桶库存退回失败，等待库存校准|{},{},{}", itemId, donor.serialNo, quantity);
+                    }
+                    return;
+                }
+                recordTransferred(itemId, donor.serialNo, -quantity);
+                bucketsSummaryService.recordTransfer(itemId, donor.serialNo, receiver.serialNo, quantity);
+                RedisScriptResult depositResult = redisScriptRegistry.execute(INCREASE_BUCKET_STOCK, getBucketKeys(itemId, receiver.serialNo), quantity);
+                if (!depositResult.isSuccess()) {
+                    //数据库已完成调拨，缓存由库存校准按数据库对齐
+                    logger.error("rebalanceBuckets|转入分桶库存存入失败，等待库存校准|{},{},{}", itemId, receiver.serialNo, quantity);
+                    return;
+                }
+                recordTransferred(itemId, receiver.serialNo, quantity);
+                logger.info("rebalanceBuckets|分桶库存已调拨|{},{},{},{}", itemId, donor.serialNo, receiver.serialNo, quantity);
+            } finally {
+                alignLock.unlock();
+            }
+        } finally {
+            arrangementLock.unlock();
+        }
+    }
+
+    /**
+     * 同一秒杀品的分桶位于同一分库分表，调拨在一个本地事务中完成
+     */
+    private boolean transferBucketStocks(Long itemId, Integer fromSerialNo, Integer toSerialNo, int quantity) {
+        TransactionStatus transactionStatus = dataSourceTransactionManager.getTransaction(transactionDefinition);
+        try {
+            boolean success = bucketsDomainService.transferStocks(itemId, fromSerialNo, toSerialNo, quantity);
+            if (!success) {
+                dataSourceTransactionManager.rollback(transactionStatus);
+                logger.info("rebalanceBuckets|转出分桶数据库库存不足|{},{},{}", itemId, fromSerialNo, quantity);
+                return false;
+            }
+            dataSourceTransactionManager.commit(transactionStatus);
+            return true;
+        } catch (Exception e) {
+            dataSourceTransactionManager.rollback(transactionStatus);
+            logger.error("rebalanceBuckets|数据库分桶库存调拨失败|{},{},{}", itemId, fromSerialNo, toSerialNo, e);
+            return false;
+        }
+    }
+
+    private List<String> getBucketKeys(Long itemId, Integer serialNo) {
+        return Lists.newArrayList(getBucketAvailableStocksCacheKey(itemId, serialNo), getBucketSuspendKey(itemId, serialNo), getBucketAlignKey(itemId, serialNo));
+    }
+
+    private static long toLong(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        return value == null ? 0 : Long.parseLong(value.toString());
+    }
+
+    private static double toDouble(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        return value == null ? 0 : Double.parseDouble(value.toString());
+    }
+
+    /**
+     * 分桶的库存消耗速度（件/秒），为指数加权移动平均；计算消耗量时扣除调拨带来的库存变化
+     */
+    private static class DepletionState {
+        private final Integer serialNo;
+        private long lastTime;
+        private int lastStocks;
+        private int stocks;
+        private int transferred;
+        private double rate;
+
+        DepletionState(Integer serialNo) {
+            this.serialNo = serialNo;
+        }
+
+        DepletionState(Integer serialNo, Map<Object, Object> savedStates) {
+            this.serialNo = serialNo;
+            this.lastTime = toLong(savedStates.get(TIME_PREFIX + serialNo));
+            this.lastStocks = (int) toLong(savedStates.get(STOCKS_PREFIX + serialNo));
+            this.transferred = (int) toLong(savedStates.get(TRANSFERRED_PREFIX + serialNo));
+            this.rate = toDouble(savedStates.get(RATE_PREFIX + serialNo));
+        }
+
+        /**
+         * 更新后transferred保留本次计入的调拨变化，保存时从Redis中扣除
+         */
+        void update(int availableStocks, long now) {
+            if (lastTime > 0 && now > lastTime) {
+                int consumed = Math.max(0, lastStocks + transferred - availableStocks);
+                rate = EWMA_WEIGHT * consumed * 1000.0 / (now - lastTime) + (1 - EWMA_WEIGHT) * rate;
+            }
+            lastTime = now;
+            lastStocks = availableStocks;
+            stocks = availableStocks;
+        }
+
+        double getTimeToEmpty() {
+            return rate > 0 ? stocks / rate : Double.MAX_VALUE;
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package com.actionworks.flashsale.app.service.bucket;
+
+import com.actionworks.flashsale.app.model.dto.StockBucketSummaryDTO;
+import com.actionworks.flashsale.app.service.placeorder.buckets.cache.BucketsLoadRecorder;
+import com.actionworks.flashsale.app.service.placeorder.buckets.cache.BucketsLoadRecorder.BucketsLoad;
+import com.actionworks.flashsale.cache.DistributedCacheService;
+import com.actionworks.flashsale.cache.redis.RedisCacheService;
+import com.actionworks.flashsale.domain.model.PageResult;
+import com.actionworks.flashsale.domain.model.PagesQueryCondition;
+import com.actionworks.flashsale.domain.model.entity.FlashItem;
+import com.actionworks.flashsale.domain.model.enums.FlashItemStatus;
+import com.actionworks.flashsale.domain.service.FlashItemDomainService;
+import com.actionworks.flashsale.lock.DistributedLock;
+import com.actionworks.flashsale.lock.DistributedLockFactoryService;
+import org.apache.commons.collections.CollectionUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.actionworks.flashsale.app.model.constants.CacheConstants.HOURS_24;
+import static com.actionworks.flashsale.app.model.constants.CacheConstants.ITEM_BUCKETS_RECOMMENDED_QUANTITY_KEY;
+import static com.actionworks.flashsale.app.model.constants.CacheConstants.ITEM_BUCKETS_SIZING_KEY;
+import static com.actionworks.flashsale.util.StringUtil.link;
+
+/**
+ * 分桶数量评估
+ * 由一个节点定时根据分桶负载统计估算每个秒杀品的分桶脚本调用频率，按单个分桶KEY的访问频率上限计算需要的分桶数量，
+ * 同时要求每个分桶至少保留一定库存，库存减少或探测其他分桶的扣减比例过高时减少分桶，避免库存碎片导致提前售罄。
+ * 当前分桶数量和剩余库存从Redis分桶汇总中读取，评估时不访问数据库分片。
+ * 评估结果写入缓存作为建议值，在分桶汇总中展示，由运营确认后编排；调整分桶数量需要重新编排并暂停全部分桶，
+ * 不在售卖期间自动执行。
+ * 评估状态保存在Redis中秒杀品级别的评估哈希里，换节点评估时接续计算；调用频率以第一个出现扣减的区间为初始值，
+ * 完成若干次采样前不给出建议，避免开售前按零负载缩减分桶。
+ */
+@Component
+@ConditionalOnExpression("'${ServiceType:}' == 'buckets' && '${ItemStockCacheService:buckets}' == 'buckets'")
+public class BucketsSizer {
+    private static final Logger logger = LoggerFactory.getLogger(BucketsSizer.class);
+    private static final String LOCK_SIZE_BUCKETS_KEY = "LOCK_SIZE_BUCKETS_KEY";
+    private static final double EWMA_WEIGHT = 0.3;
+    private static final String TIME = "time";
+    private static final String DEDUCTIONS = "deductions";
+    private static final String OPS = "ops";
+    private static final String PROBED = "probed";
+    private static final String OPS_RATE = "opsRate";
+    private static final String PROBED_RATIO = "probedRatio";
+    private static final String SAMPLES = "samples";
+
+    @Value("${stock.buckets.sizing.enabled:false}")
+    private boolean enabled;
+    @Value("${stock.buckets.sizing.interval-millis:5000}")
+    private long intervalMillis;
+    //单个分桶KEY每秒的脚本调用上限
+    @Value("${stock.buckets.sizing.max-ops-per-bucket:5000}")
+    private double maxOpsPerBucket;
+    @Value("${stock.buckets.sizing.min-stocks-per-bucket:50}")
+    private int minStocksPerBucket;
+    //需要探测其他分桶的扣减超过该比例时，视为库存碎片，减少一个分桶
+    @Value("${stock.buckets.sizing.max-probed-ratio:0.3}")
+    private double maxProbedRatio;
+    @Value("${stock.buckets.sizing.max-buckets:32}")
+    private int maxBuckets;
+    //给出建议前至少需要的负载采样次数
+    @Value("${stock.buckets.sizing.warmup-samples:3}")
+    private int warmupSamples;
+
+    @Resource
+    private FlashItemDomainService flashItemDomainService;
+    @Resource
+    private BucketsSummaryService bucketsSummaryService;
+    @Resource
+    private BucketsLoadRecorder bucketsLoadRecorder;
+    @Resource
+    private DistributedCacheService distributedCacheService;
+    @Resource
+    private RedisCacheService redisCacheService;
+    @Resource
+    private DistributedLockFactoryService lockFactoryService;
+
+    public static String getItemRecommendedBucketsQuantityKey(Long itemId) {
+        return link(ITEM_BUCKETS_RECOMMENDED_QUANTITY_KEY, itemId);
+    }
+
+    public static String getItemBucketsSizingKey(Long itemId) {
+        return link(ITEM_BUCKETS_SIZING_KEY, itemId);
+    }
+
+    @Scheduled(fixedDelayString = "${stock.buckets.sizing.interval-millis:5000}")
+    public void sizeBucketsTask() {
+        if (!enabled) {
+            return;
+        }
+        DistributedLock sizeLock = lockFactoryService.getDistributedLock(LOCK_SIZE_BUCKETS_KEY);
+        try {
+            //锁在一个评估周期后自动过期，周期内其他节点跳过
+            if (!sizeLock.tryLock(0, intervalMillis, TimeUnit.MILLISECONDS)) {
+                return;
+            }
+            PagesQueryCondition pagesQueryCondition = new PagesQueryCondition();
+            pagesQueryCondition.setStatus(FlashItemStatus.ONLINE.getCode());
+            PageResult<FlashItem> pageResult = flashItemDomainService.getFlashItems(pagesQueryCondition);
+            pageResult.getData().forEach(flashItem -> size(flashItem.getId()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            logger.error("sizeBuckets|分桶数量评估失败", e);
+        }
+    }
+
+    private void size(Long itemId) {
+        try {
+            String sizingKey = getItemBucketsSizingKey(itemId);
+            LoadState state = new LoadState(redisCacheService.getRedisTemplate().opsForHash().entries(sizingKey));
+            long now = System.currentTimeMillis();
+            //其他节点刚完成本周期的评估，跳过，避免同一区间重复采样
+            if (now - state.lastTime < intervalMillis / 2) {
+                return;
+            }
+            BucketsLoad load = bucketsLoadRecorder.getLoad(itemId);
+            state.update(load, now);
+            saveState(sizingKey, state);
+            if (state.samples < warmupSamples) {
+                logger.debug("sizeBuckets|负载采样不足，暂不评估|{},{}", itemId, state.samples);
+                return;
+            }
+            StockBucketSummaryDTO summary = bucketsSummaryService.getSummary(itemId);
+            if (summary == null || CollectionUtils.isEmpty(summary.getBuckets())) {
+                logger.debug("sizeBuckets|分桶汇总不存在，暂不评估|{}", itemId);
+                return;
+            }
+            int currentQuantity = summary.getBuckets().size();
+            int availableStocks = summary.getAvailableStocksAmount();
+
+            int loadQuantity = (int) Math.max(1, Math.ceil(state.opsRate / maxOpsPerBucket));
+            int stockQuantity = Math.max(1, availableStocks / minStocksPerBucket);
+            boolean fragmented = state.probedRatio > maxProbedRatio && currentQuantity > 1;
+            if (fragmented) {
+                stockQuantity = Math.min(stockQuantity, currentQuantity - 1);
+            }
+            //库存约束优先于负载约束，宁可单个分桶压力偏高也不提前售罄
+            int recommendedQuantity = Math.max(1, Math.min(Math.min(loadQuantity, stockQuantity), maxBuckets));
+            distributedCacheService.put(getItemRecommendedBucketsQuantityKey(itemId), recommendedQuantity, HOURS_24);
+            logger.debug("sizeBuckets|分桶数量评估|{},{},{},{},{}", itemId, currentQuantity, recommendedQuantity, state.opsRate, state.probedRatio);
+            if (shouldResize(currentQuantity, recommendedQuantity, stockQuantity)) {
+                logger.info("sizeBuckets|建议调整分桶数量|{},{},{},{}", itemId, currentQuantity, recommendedQuantity, state.opsRate);
+            }
+        } catch (Exception e) {
+            logger.error("sizeBuckets|分桶数量评估失败|{}", itemId, e);
+        }
+    }
+
+    /**
+     * 负载超出时建议扩容；缩容只在库存不足以支撑当前分桶数量或建议值不超过当前一半时建议，避免反复编排
+     */
+    private boolean shouldResize(int currentQuantity, int recommendedQuantity, int stockQuantity) {
+        if (recommendedQuantity > currentQuantity) {
+            return true;
+        }
+        return recommendedQuantity < currentQuantity && (stockQuantity < currentQuantity || recommendedQuantity * 2 <= currentQuantity);
+    }
+
+    private void saveState(String sizingKey, LoadState state) {
+        Map<String, Object> values = new HashMap<>();
+        values.put(TIME, state.lastTime);
+        values.put(DEDUCTIONS, state.lastDeductions);
+        values.put(OPS, state.lastOps);
+        values.put(PROBED, state.lastProbed);
+        values.put(OPS_RATE, state.opsRate);
+        values.put(PROBED_RATIO, state.probedRatio);
+        values.put(SAMPLES, state.samples);
+        redisCacheService.getRedisTemplate().executePipelined(new SessionCallback<Object>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public <K, V> Object execute(RedisOperations<K, V> operations) {
+                RedisOperations<String, Object> redisOperations = (RedisOperations<String, Object>) operations;
+                redisOperations.opsForHash().putAll(sizingKey, values);
+                redisOperations.expire(sizingKey, HOURS_24, TimeUnit.SECONDS);
+                return null;
+            }
+        });
+    }
+
+    private static long toLong(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        return value == null ? 0 : Long.parseLong(value.toString());
+    }
+
+    private static double toDouble(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        return value == null ? 0 : Double.parseDouble(value.toString());
+    }
+
+    /**
+     * 秒杀品分桶脚本的调用频率（次/秒）和需要探测其他分桶的扣减比例，均为指数加权移动平均，从评估哈希中读取
+     */
+    private static class LoadState {
+        private long lastTime;
+        private long lastDeductions;
+        private long lastOps;
+        private long lastProbed;
+        private double opsRate;
+        private double probedRatio;
+        //有效采样次数，从第一个出现扣减的区间开始计数
+        private long samples;
+
+        LoadState(Map<Object, Object> savedState) {
+            this.lastTime = toLong(savedState.get(TIME));
+            this.lastDeductions = toLong(savedState.get(DEDUCTIONS));
+            this.lastOps = toLong(savedState.get(OPS));
+            this.lastProbed = toLong(savedState.get(PROBED));
+            this.opsRate = toDouble(savedState.get(OPS_RATE));
+            this.probedRatio = toDouble(savedState.get(PROBED_RATIO));
+            this.samples = toLong(savedState.get(SAMPLES));
+        }
+
+        void update(BucketsLoad load, long now) {
+            long deductions = load.getDeductions() - lastDeductions;
+            long ops = load.getOps() - lastOps;
+            long probed = load.getProbed() - lastProbed;
+            if (lastTime > 0 && now > lastTime && deductions >= 0 && ops >= 0) {
+                double sampledOpsRate = ops * 1000.0 / (now - lastTime);
+                if (samples == 0) {
+                    //以第一个出现扣减的区间作为初始值，之前没有扣减的区间不计入
+                    if (deductions > 0) {
+                        opsRate = sampledOpsRate;
+                        probedRatio = (double) probed / deductions;
+                        samples = 1;
+                    }
+                } else {
+                    opsRate = EWMA_WEIGHT * sampledOpsRate + (1 - EWMA_WEIGHT) * opsRate;
+                    if (deductions > 0) {
+                        probedRatio = EWMA_WEIGHT * probed / deductions + (1 - EWMA_WEIGHT) * probedRatio;
+                    }
+                    samples++;
+                }
+            }
+            lastTime = now;
+            lastDeductions = load.getDeductions();
+            lastOps = load.getOps();
+            lastProbed = load.getProbed();
+        }
+    }
+}
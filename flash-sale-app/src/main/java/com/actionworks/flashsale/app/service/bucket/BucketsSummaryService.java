@@ -0,0 +1,272 @@
+package com.actionworks.flashsale.app.service.bucket;
+
+import com.actionworks.flashsale.app.model.dto.StockBucketDTO;
+import com.actionworks.flashsale.app.model.dto.StockBucketSummaryDTO;
+import com.actionworks.flashsale.cache.redis.RedisCacheService;
+import com.actionworks.flashsale.domain.model.Bucket;
+import com.actionworks.flashsale.domain.model.PageResult;
+import com.actionworks.flashsale.domain.model.PagesQueryCondition;
+import com.actionworks.flashsale.domain.model.entity.FlashItem;
+import com.actionworks.flashsale.domain.model.enums.BucketStatus;
+import com.actionworks.flashsale.domain.model.enums.FlashItemStatus;
+import com.actionworks.flashsale.domain.service.BucketsDomainService;
+import com.actionworks.flashsale.domain.service.FlashItemDomainService;
+import com.actionworks.flashsale.lock.DistributedLock;
+import com.actionworks.flashsale.lock.DistributedLockFactoryService;
+import org.apache.commons.collections.CollectionUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.actionworks.flashsale.app.model.constants.CacheConstants.HOURS_24;
+import static com.actionworks.flashsale.app.model.constants.CacheConstants.ITEM_BUCKETS_SUMMARY_KEY;
+import static com.actionworks.flashsale.app.service.bucket.DefaultBucketsArrangementService.getBucketAlignKey;
+import static com.actionworks.flashsale.app.service.bucket.DefaultBucketsArrangementService.getBucketAvailableStocksCacheKey;
+import static com.actionworks.flashsale.app.service.bucket.DefaultBucketsArrangementService.getBucketSuspendKey;
+import static com.actionworks.flashsale.util.StringUtil.link;
+
+/**
+ * 分桶库存汇总
+ * 每个秒杀品在Redis中保存一条汇总记录：库存总数、分桶数量和各分桶的库存总数，在分桶编排和库存调拨时更新；
+ * 各分桶的剩余库存和暂停状态直接读取分桶脚本维护的分桶KEY，查询汇总时不访问数据库分片。
+ * 由一个节点定时将汇总记录与数据库核对，以数据库为准重建汇总记录；
+ * 缓存剩余库存在一个核对周期内没有变化（没有进行中的扣减）时，才记录数据库与缓存剩余库存的差值，不为零时需要排查。
+ */
+@Component
+@ConditionalOnProperty(name = "ServiceType", havingValue = "buckets")
+public class BucketsSummaryService {
+    private static final Logger logger = LoggerFactory.getLogger(BucketsSummaryService.class);
+    private static final String LOCK_CHECK_BUCKETS_SUMMARY_KEY = "LOCK_CHECK_BUCKETS_SUMMARY_KEY";
+    private static final String TOTAL = "total";
+    private static final String QUANTITY = "quantity";
+    private static final String BUCKET_TOTAL_PREFIX = "total_";
+    private static final String CHECKSUM_TIME = "checksumTime";
+    private static final String CHECKSUM_DIFFERENCE = "checksumDifference";
+    private static final String CHECKSUM_CACHE_STOCKS = "checksumCacheStocks";
+
+    @Value("${stock.buckets.summary.checksum-interval-millis:60000}")
+    private long checksumIntervalMillis;
+
+    @Resource
+    private BucketsDomainService bucketsDomainService;
+    @Resource
+    private FlashItemDomainService flashItemDomainService;
+    @Resource
+    private RedisCacheService redisCacheService;
+    @Resource
+    private DistributedLockFactoryService lockFactoryService;
+
+    public static String getItemBucketsSummaryKey(Long itemId) {
+        return link(ITEM_BUCKETS_SUMMARY_KEY, itemId);
+    }
+
+    /**
+     * 分桶编排完成后重建汇总记录
+     */
+    public void saveArrangement(Long itemId, List<Bucket> buckets) {
+        try {
+            writeSummary(itemId, buckets, null, null);
+        } catch (Exception e) {
+            //汇总写入失败时删除旧记录，查询时从数据库重建
+            logger.error("bucketsSummary|分桶汇总写入失败|{}", itemId, e);
+            redisCacheService.delete(getItemBucketsSummaryKey(itemId));
+        }
+    }
+
+    /**
+     * 数据库分桶库存调拨完成后更新两个分桶的库存总数，主桶的库存总数为秒杀品库存总数，保持不变
+     */
+    public void recordTransfer(Long itemId, Integer fromSerialNo, Integer toSerialNo, int quantity) {
+        String summaryKey = getItemBucketsSummaryKey(itemId);
+        try {
+            if (!Boolean.TRUE.equals(redisCacheService.hasKey(summaryKey))) {
+                return;
+            }
+            redisCacheService.getRedisTemplate().executePipelined(new SessionCallback<Object>() {
+                @Override
+                @SuppressWarnings("unchecked")
+                public <K, V> Object execute(RedisOperations<K, V> operations) {
+                    RedisOperations<String, Object> redisOperations = (RedisOperations<String, Object>) operations;
+                    if (fromSerialNo != 0) {
+                        redisOperations.opsForHash().increment(summaryKey, BUCKET_TOTAL_PREFIX + fromSerialNo, -quantity);
+                    }
+                    if (toSerialNo != 0) {
+                        redisOperations.opsForHash().increment(summaryKey, BUCKET_TOTAL_PREFIX + toSerialNo, quantity);
+                    }
+                    return null;
+                }
+            });
+        } catch (Exception e) {
+            logger.error("bucketsSummary|分桶汇总更新失败|{}", itemId, e);
+            redisCacheService.delete(summaryKey);
+        }
+    }
+
+    /**
+     * 汇总记录或分桶库存KEY缺失时返回null，由调用方从数据库查询
+     */
+    public StockBucketSummaryDTO getSummary(Long itemId) {
+        Map<Object, Object> summary = redisCacheService.getRedisTemplate().opsForHash().entries(getItemBucketsSummaryKey(itemId));
+        if (summary == null || summary.get(TOTAL) == null || summary.get(QUANTITY) == null) {
+            return null;
+        }
+        int bucketsQuantity = (int) toLong(summary.get(QUANTITY));
+        //每个分桶依次读取库存KEY和暂停KEY
+        List<String> bucketKeys = new ArrayList<>(bucketsQuantity * 2);
+        for (int serialNo = 0; serialNo < bucketsQuantity; serialNo++) {
+            bucketKeys.add(getBucketAvailableStocksCacheKey(itemId, serialNo));
+            bucketKeys.add(getBucketSuspendKey(itemId, serialNo));
+        }
+        List<Object> bucketsValues = redisCacheService.getRedisTemplate().opsForValue().multiGet(bucketKeys);
+        if (bucketsValues == null || bucketsValues.size() != bucketKeys.size()) {
+            return null;
+        }
+        int availableStocksAmount = 0;
+        List<StockBucketDTO> buckets = new ArrayList<>(bucketsQuantity);
+        for (int serialNo = 0; serialNo < bucketsQuantity; serialNo++) {
+            Object bucketAvailableStocksValue = bucketsValues.get(serialNo * 2);
+            if (bucketAvailableStocksValue == null) {
+                return null;
+            }
+            int bucketAvailableStocks = (int) toLong(bucketAvailableStocksValue);
+            availableStocksAmount += bucketAvailableStocks;
+            Object bucketTotalStocks = summary.get(BUCKET_TOTAL_PREFIX + serialNo);
+            //分桶暂停期间不提供扣减服务，视为禁用
+            boolean suspended = bucketsValues.get(serialNo * 2 + 1) != null;
+            buckets.add(new StockBucketDTO()
+                    .setSerialNo(serialNo)
+                    .setTotalStocksAmount(bucketTotalStocks == null ? null : (int) toLong(bucketTotalStocks))
+                    .setAvailableStocksAmount(bucketAvailableStocks)
+                    .setStatus(suspended ? BucketStatus.DISABLED.getCode() : BucketStatus.ENABLED.getCode()));
+        }
+        Object checksumTime = summary.get(CHECKSUM_TIME);
+        Object checksumDifference = summary.get(CHECKSUM_DIFFERENCE);
+        return new StockBucketSummaryDTO()
+                .setTotalStocksAmount((int) toLong(summary.get(TOTAL)))
+                .setAvailableStocksAmount(availableStocksAmount)
+                .setBuckets(buckets)
+                .setChecksumTime(checksumTime == null ? null : toLong(checksumTime))
+                .setChecksumDifference(checksumDifference == null ? null : (int) toLong(checksumDifference));
+    }
+
+    @Scheduled(fixedDelayString = "${stock.buckets.summary.checksum-interval-millis:60000}")
+    public void checkSummaryTask() {
+        DistributedLock checkLock = lockFactoryService.getDistributedLock(LOCK_CHECK_BUCKETS_SUMMARY_KEY);
+        try {
+            //锁在一个核对周期后自动过期，周期内其他节点跳过
+            if (!checkLock.tryLock(0, checksumIntervalMillis, TimeUnit.MILLISECONDS)) {
+                return;
+            }
+            PagesQueryCondition pagesQueryCondition = new PagesQueryCondition();
+            pagesQueryCondition.setStatus(FlashItemStatus.ONLINE.getCode());
+            PageResult<FlashItem> pageResult = flashItemDomainService.getFlashItems(pagesQueryCondition);
+            pageResult.getData().forEach(flashItem -> check(flashItem.getId()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            logger.error("bucketsSummary|分桶汇总核对失败", e);
+        }
+    }
+
+    /**
+     * 以数据库为准重建汇总记录，并在秒杀品静止时记录数据库剩余库存与缓存剩余库存的差值。
+     * 缓存先扣减、数据库后落库，扣减进行中两者必然不一致，因此只有缓存剩余库存与上一次核对时相同、
+     * 且没有分桶在暂停或校准时才比较，此时之前的扣减都已落库；否则本次不记录差值。
+     */
+    public void check(Long itemId) {
+        try {
+            String summaryKey = getItemBucketsSummaryKey(itemId);
+            Object lastCacheAvailableStocks = redisCacheService.getRedisTemplate().opsForHash().get(summaryKey, CHECKSUM_CACHE_STOCKS);
+            //先读数据库再读缓存，读数据库之后才开始的扣减会使缓存库存与上一次核对时不同
+            List<Bucket> buckets = bucketsDomainService.getBucketsByItem(itemId);
+            if (CollectionUtils.isEmpty(buckets)) {
+                return;
+            }
+            Integer cacheAvailableStocks = getStableCacheAvailableStocks(itemId, buckets);
+            Integer checksumDifference = null;
+            if (cacheAvailableStocks != null && lastCacheAvailableStocks != null && toLong(lastCacheAvailableStocks) == cacheAvailableStocks) {
+                int dbAvailableStocks = buckets.stream().mapToInt(Bucket::getAvailableStocksAmount).sum();
+                checksumDifference = dbAvailableStocks - cacheAvailableStocks;
+                if (checksumDifference != 0) {
+                    logger.info("bucketsSummary|分桶剩余库存与数据库不一致|{},{},{}", itemId, dbAvailableStocks, cacheAvailableStocks);
+                }
+            }
+            writeSummary(itemId, buckets, cacheAvailableStocks, checksumDifference);
+        } catch (Exception e) {
+            logger.error("bucketsSummary|分桶汇总核对失败|{}", itemId, e);
+        }
+    }
+
+    /**
+     * 读取缓存剩余库存总数，分桶库存KEY缺失或有分桶在暂停、校准时返回null
+     */
+    private Integer getStableCacheAvailableStocks(Long itemId, List<Bucket> buckets) {
+        List<String> bucketKeys = new ArrayList<>(buckets.size() * 3);
+        buckets.forEach(bucket -> {
+            bucketKeys.add(getBucketAvailableStocksCacheKey(itemId, bucket.getSerialNo()));
+            bucketKeys.add(getBucketSuspendKey(itemId, bucket.getSerialNo()));
+            bucketKeys.add(getBucketAlignKey(itemId, bucket.getSerialNo()));
+        });
+        List<Object> bucketsValues = redisCacheService.getRedisTemplate().opsForValue().multiGet(bucketKeys);
+        if (bucketsValues == null || bucketsValues.size() != bucketKeys.size()) {
+            return null;
+        }
+        int cacheAvailableStocks = 0;
+        for (int i = 0; i < bucketsValues.size(); i += 3) {
+            if (bucketsValues.get(i) == null || bucketsValues.get(i + 1) != null || bucketsValues.get(i + 2) != null) {
+                return null;
+            }
+            cacheAvailableStocks += (int) toLong(bucketsValues.get(i));
+        }
+        return cacheAvailableStocks;
+    }
+
+    private void writeSummary(Long itemId, List<Bucket> buckets, Integer cacheAvailableStocks, Integer checksumDifference) {
+        Map<String, Object> summary = new HashMap<>();
+        summary.put(QUANTITY, buckets.size());
+        buckets.forEach(bucket -> {
+            if (bucket.isPrimaryBucket()) {
+                summary.put(TOTAL, bucket.getTotalStocksAmount());
+            }
+            summary.put(BUCKET_TOTAL_PREFIX + bucket.getSerialNo(), bucket.getTotalStocksAmount());
+        });
+        if (cacheAvailableStocks != null) {
+            summary.put(CHECKSUM_CACHE_STOCKS, cacheAvailableStocks);
+        }
+        if (checksumDifference != null) {
+            summary.put(CHECKSUM_TIME, System.currentTimeMillis());
+            summary.put(CHECKSUM_DIFFERENCE, checksumDifference);
+        }
+        String summaryKey = getItemBucketsSummaryKey(itemId);
+        redisCacheService.getRedisTemplate().executePipelined(new SessionCallback<Object>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public <K, V> Object execute(RedisOperations<K, V> operations) {
+                RedisOperations<String, Object> redisOperations = (RedisOperations<String, Object>) operations;
+                redisOperations.delete(summaryKey);
+                redisOperations.opsForHash().putAll(summaryKey, summary);
+                redisOperations.expire(summaryKey, HOURS_24, TimeUnit.SECONDS);
+                return null;
+            }
+        });
+    }
+
+    private static long toLong(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        return Long.parseLong(value.toString());
+    }
+}
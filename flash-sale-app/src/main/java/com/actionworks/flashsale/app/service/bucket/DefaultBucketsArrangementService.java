@@ -26,8 +26,10 @@ import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.TimeUnit;
 
+import static com.actionworks.flashsale.app.model.constants.CacheConstants.ITEM_BUCKET_ALIGN_KEY;
 import static com.actionworks.flashsale.app.model.constants.CacheConstants.ITEM_BUCKET_AVAILABLE_STOCKS_KEY;
 import static com.actionworks.flashsale.app.model.constants.CacheConstants.ITEM_STOCK_BUCKETS_SUSPEND_KEY;
+import static com.actionworks.flashsale.app.service.bucket.BucketsSizer.getItemRecommendedBucketsQuantityKey;
 import static com.actionworks.flashsale.app.service.placeorder.buckets.cache.BucketsCacheService.getItemStockBucketsQuantityCacheKey;
 import static com.actionworks.flashsale.util.StringUtil.link;
 import static java.util.stream.Collectors.toList;
@@ -48,6 +50,8 @@ public class DefaultBucketsArrangementService implements BucketsArrangementServi
     private DataSourceTransactionManager dataSourceTransactionManager;
     @Resource
     private TransactionDefinition transactionDefinition;
+    @Resource
+    private BucketsSummaryService bucketsSummaryService;
 
     @Transactional
     @Override
@@ -109,6 +113,17 @@ public class DefaultBucketsArrangementService implements BucketsArrangementServi
         if (itemId == null) {
             throw new StockBucketException("参数错误");
         }
+        StockBucketSummaryDTO stockBucketSummaryDTO = null;
+        try {
+            stockBucketSummaryDTO = bucketsSummaryService.getSummary(itemId);
+        } catch (Exception e) {
+            logger.error("stockBucketsSummary|读取分桶汇总失败|{}", itemId, e);
+        }
+        String recommendedBucketsQuantity = distributedCacheService.getString(getItemRecommendedBucketsQuantityKey(itemId));
+        if (stockBucketSummaryDTO != null) {
+            return stockBucketSummaryDTO.setRecommendedBucketsQuantity(recommendedBucketsQuantity == null ? null : Integer.valueOf(recommendedBucketsQuantity));
+        }
+        //汇总记录不存在时从数据库查询并重建
         List<Bucket> buckets = bucketsDomainService.getBucketsByItem(itemId);
         int remainAvailableStocks = buckets.stream().mapToInt(Bucket::getAvailableStocksAmount).sum();
         Optional<Bucket> primaryBucketOptional = buckets.stream().filter(Bucket::isPrimaryBucket).findFirst();
@@ -116,7 +131,9 @@ public class DefaultBucketsArrangementService implements BucketsArrangementServi
             return new StockBucketSummaryDTO();
         }
         List<StockBucketDTO> subBuckets = buckets.stream().map(StockBucketBuilder::toStockBucketDTO).collect(toList());
-        return new StockBucketSummaryDTO().setTotalStocksAmount(primaryBucketOptional.get().getTotalStocksAmount()).setAvailableStocksAmount(remainAvailableStocks).setBuckets(subBuckets);
+        bucketsSummaryService.saveArrangement(itemId, buckets);
+        return new StockBucketSummaryDTO().setTotalStocksAmount(primaryBucketOptional.get().getTotalStocksAmount()).setAvailableStocksAmount(remainAvailableStocks).setBuckets(subBuckets)
+                .setRecommendedBucketsQuantity(recommendedBucketsQuantity == null ? null : Integer.valueOf(recommendedBucketsQuantity));
     }
 
     /**
@@ -184,6 +201,7 @@ public class DefaultBucketsArrangementService implements BucketsArrangementServi
             // 存入缓存，缓存的key设置由itemId，和分桶序号决定
             presentBuckets.forEach(bucket -> distributedCacheService.put(getBucketAvailableStocksCacheKey(itemId, bucket.getSerialNo()), bucket.getAvailableStocksAmount()));
             distributedCacheService.put(getItemStockBucketsQuantityCacheKey(itemId), presentBuckets.size());
+            bucketsSummaryService.saveArrangement(itemId, presentBuckets);
         } else {
             throw new StockBucketException("库存分桶失败");
         }
@@ -226,11 +244,23 @@ public class DefaultBucketsArrangementService implements BucketsArrangementServi
         return buckets;
     }
 
+    /**
+     * 分桶的库存、暂停和校准标记KEY使用相同的hash tag，在Redis Cluster中位于同一个slot，分桶脚本不会跨slot；
+     * 同一秒杀品的不同分桶hash tag不同，分散到不同的slot上，热点秒杀品的库存可以由多个分片共同承担
+     */
     public static String getBucketAvailableStocksCacheKey(Long itemId, Integer serialNumber) {
-        return link(ITEM_BUCKET_AVAILABLE_STOCKS_KEY, itemId, serialNumber);
+        return link(ITEM_BUCKET_AVAILABLE_STOCKS_KEY, getBucketHashTag(itemId, serialNumber));
+    }
+
+    public static String getBucketSuspendKey(Long itemId, Integer serialNumber) {
+        return link(ITEM_STOCK_BUCKETS_SUSPEND_KEY, getBucketHashTag(itemId, serialNumber));
+    }
+
+    public static String getBucketAlignKey(Long itemId, Integer serialNumber) {
+        return link(ITEM_BUCKET_ALIGN_KEY, getBucketHashTag(itemId, serialNumber));
     }
 
-    public static String getItemStockBucketsSuspendKey(Long itemId) {
-        return link(ITEM_STOCK_BUCKETS_SUSPEND_KEY, itemId);
+    private static String getBucketHashTag(Long itemId, Integer serialNumber) {
+        return "{" + link(itemId, serialNumber) + "}";
     }
 }
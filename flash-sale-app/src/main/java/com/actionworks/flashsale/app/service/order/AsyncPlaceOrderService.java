@@ -0,0 +1,143 @@
+package com.actionworks.flashsale.app.service.order;
+
+import com.actionworks.flashsale.app.exception.BizException;
+import com.actionworks.flashsale.app.model.command.FlashPlaceOrderCommand;
+import com.actionworks.flashsale.app.model.result.AppSimpleResult;
+import com.actionworks.flashsale.app.model.result.PlaceOrderResult;
+import com.actionworks.flashsale.app.security.SecurityService;
+import com.actionworks.flashsale.app.service.placeorder.PlaceOrderService;
+import com.actionworks.flashsale.app.service.placeorder.normal.NormalPlaceOrderService;
+import com.actionworks.flashsale.app.service.placeorder.normal.cache.PlaceOrderAdmissionService;
+import com.actionworks.flashsale.app.service.stock.ItemSoldOutService;
+import com.actionworks.flashsale.app.util.OrderNoGenerateContext;
+import com.actionworks.flashsale.app.util.OrderNoGenerateService;
+import com.actionworks.flashsale.domain.model.StockDeduction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.actionworks.flashsale.app.exception.AppErrorCode.INVALID_PARAMS;
+import static com.actionworks.flashsale.app.exception.AppErrorCode.ITEM_SOLD_OUT;
+import static com.actionworks.flashsale.app.exception.AppErrorCode.PLACE_ORDER_FAILED;
+import static com.actionworks.flashsale.app.exception.AppErrorCode.TRY_LATER;
+
+/**
+ * 异步下单
+ * 默认下单且开启下单准入时，准入校验和库存预扣减通过响应式Redis连接异步执行，Web容器线程发出请求后立即释放，
+ * Redis返回后才由有界的下单线程池执行数据库下单，下单线程只占用在数据库调用上；其余下单方式整体交给下单线程池执行。
+ * 线程数按数据库连接池规模配置，进行中的请求数以线程数加队列长度为上限，超出时直接返回稍后再试，线程池不会拒绝已接受的请求。
+ * 售罄的秒杀品在请求线程中直接拒绝，不占用下单线程。
+ */
+@Service
+public class AsyncPlaceOrderService {
+    private static final Logger logger = LoggerFactory.getLogger(AsyncPlaceOrderService.class);
+
+    @Value("${order.async.threads:64}")
+    private int threads;
+    @Value("${order.async.queue-size:2048}")
+    private int queueSize;
+
+    @Resource
+    private FlashOrderAppService flashOrderAppService;
+    @Resource
+    private ItemSoldOutService itemSoldOutService;
+    @Resource
+    private PlaceOrderService placeOrderService;
+    @Resource
+    private PlaceOrderAdmissionService placeOrderAdmissionService;
+    @Resource
+    private SecurityService securityService;
+    @Resource
+    private OrderNoGenerateService orderNoGenerateService;
+
+    private ThreadPoolExecutor placeOrderExecutor;
+    //进行中的请求许可，每个请求同一时刻在线程池中最多只有一个任务
+    private Semaphore inFlightPermits;
+
+    @PostConstruct
+    public void init() {
+        AtomicInteger threadNumber = new AtomicInteger();
+        placeOrderExecutor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueSize),
+                runnable -> new Thread(runnable, "async-place-order-" + threadNumber.incrementAndGet()), new ThreadPoolExecutor.AbortPolicy());
+        inFlightPermits = new Semaphore(threads + queueSize);
+        logger.info("initAsyncPlaceOrderService|异步下单线程池已初始化|{},{}", threads, queueSize);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        placeOrderExecutor.shutdown();
+    }
+
+    public CompletableFuture<AppSimpleResult<PlaceOrderResult>> placeOrder(Long userId, FlashPlaceOrderCommand placeOrderCommand) {
+        if (userId == null || placeOrderCommand == null || !placeOrderCommand.validateParams()) {
+            throw new BizException(INVALID_PARAMS);
+        }
+        if (itemSoldOutService.isSoldOut(placeOrderCommand.getItemId())) {
+            return CompletableFuture.completedFuture(AppSimpleResult.failed(ITEM_SOLD_OUT));
+        }
+        if (!inFlightPermits.tryAcquire()) {
+            logger.info("placeOrderAsync|下单线程池已满|{}", userId);
+            return CompletableFuture.completedFuture(AppSimpleResult.failed(TRY_LATER));
+        }
+        CompletableFuture<AppSimpleResult<PlaceOrderResult>> result;
+        try {
+            if (placeOrderService instanceof NormalPlaceOrderService && placeOrderAdmissionService.isEnabled()) {
+                result = placeAdmittedOrder((NormalPlaceOrderService) placeOrderService, userId, placeOrderCommand);
+            } else {
+                //通过代理调用，下单事务与同步下单一致
+                result = CompletableFuture.supplyAsync(() -> flashOrderAppService.placeOrder(userId, placeOrderCommand), placeOrderExecutor);
+            }
+        } catch (RejectedExecutionException e) {
+            inFlightPermits.release();
+            logger.info("placeOrderAsync|下单线程池已满|{}", userId);
+            return CompletableFuture.completedFuture(AppSimpleResult.failed(TRY_LATER));
+        } catch (RuntimeException e) {
+            inFlightPermits.release();
+            throw e;
+        }
+        return result.whenComplete((placeOrderResult, throwable) -> inFlightPermits.release());
+    }
+
+    /**
+     * 异步完成准入和库存预扣减，之后在下单线程池中执行数据库下单；准入记录不存在时在下单线程池中走完整下单流程
+     */
+    private CompletableFuture<AppSimpleResult<PlaceOrderResult>> placeAdmittedOrder(NormalPlaceOrderService normalPlaceOrderService, Long userId,
+                                                                                     FlashPlaceOrderCommand placeOrderCommand) {
+        if (!securityService.inspectRisksByPolicy(userId)) {
+            logger.info("placeOrderAsync|综合风控检验未通过|{}", userId);
+            return CompletableFuture.completedFuture(AppSimpleResult.failed(PLACE_ORDER_FAILED));
+        }
+        Long orderId = orderNoGenerateService.generateOrderNo(new OrderNoGenerateContext());
+        StockDeduction stockDeduction = new StockDeduction()
+                .setItemId(placeOrderCommand.getItemId())
+                .setQuantity(placeOrderCommand.getQuantity())
+                .setUserId(userId)
+                .setOrderId(orderId);
+        return placeOrderAdmissionService.admitAsync(userId, placeOrderCommand, stockDeduction, admission -> {
+            if (admission.isSkipped()) {
+                return flashOrderAppService.placeOrder(userId, placeOrderCommand);
+            }
+            if (!admission.isAdmitted()) {
+                logger.info("placeOrderAsync|下单准入未通过|{},{}", userId, placeOrderCommand.getItemId());
+                return AppSimpleResult.<PlaceOrderResult>failed(admission.getRejectedCode());
+            }
+            PlaceOrderResult placeOrderResult = normalPlaceOrderService.persistOrder(userId, placeOrderCommand, stockDeduction, admission.getFlashOrder());
+            if (!placeOrderResult.isSuccess()) {
+                return AppSimpleResult.<PlaceOrderResult>failed(placeOrderResult.getCode(), placeOrderResult.getMessage());
+            }
+            return AppSimpleResult.ok(placeOrderResult);
+        }, placeOrderExecutor);
+    }
+}
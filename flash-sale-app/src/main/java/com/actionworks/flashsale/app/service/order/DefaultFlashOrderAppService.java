@@ -13,6 +13,8 @@ import com.actionworks.flashsale.app.model.result.PlaceOrderResult;
 import com.actionworks.flashsale.app.security.SecurityService;
 import com.actionworks.flashsale.app.service.placeorder.PlaceOrderService;
 import com.actionworks.flashsale.app.service.placeorder.queued.QueuedPlaceOrderService;
+import com.actionworks.flashsale.app.service.placeorder.writebehind.WriteBehindPlaceOrderService;
+import com.actionworks.flashsale.app.service.stock.ItemSoldOutService;
 import com.actionworks.flashsale.app.service.stock.ItemStockCacheService;
 import com.actionworks.flashsale.domain.model.PageResult;
 import com.actionworks.flashsale.domain.model.StockDeduction;
@@ -30,11 +32,13 @@ import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 import static com.actionworks.flashsale.app.exception.AppErrorCode.FREQUENTLY_ERROR;
 import static com.actionworks.flashsale.app.exception.AppErrorCode.INVALID_PARAMS;
+import static com.actionworks.flashsale.app.exception.AppErrorCode.ITEM_SOLD_OUT;
 import static com.actionworks.flashsale.app.exception.AppErrorCode.ORDER_CANCEL_FAILED;
 import static com.actionworks.flashsale.app.exception.AppErrorCode.ORDER_NOT_FOUND;
 import static com.actionworks.flashsale.app.exception.AppErrorCode.ORDER_TYPE_NOT_SUPPORT;
@@ -59,6 +63,8 @@ public class DefaultFlashOrderAppService implements FlashOrderAppService {
     private SecurityService securityService;
     @Resource
     private PlaceOrderService placeOrderService;
+    @Resource
+    private ItemSoldOutService itemSoldOutService;
 
     @Override
     @Transactional//这个回滚标签放的位置不对，应该放在doPlaceOrder里
@@ -67,6 +73,19 @@ public class DefaultFlashOrderAppService implements FlashOrderAppService {
         if (userId == null || placeOrderCommand == null || !placeOrderCommand.validateParams()) {
             throw new BizException(INVALID_PARAMS);
         }
+        //秒杀品已售罄时直接拒绝，不再加锁和访问缓存
+        if (itemSoldOutService.isSoldOut(placeOrderCommand.getItemId())) {
+            return AppSimpleResult.failed(ITEM_SOLD_OUT.getErrCode(), ITEM_SOLD_OUT.getErrDesc());
+        }
+        //预扣减脚本已带用户下单防重标记时不再加用户锁，一次Redis调用完成防重和扣减
+        if (placeOrderService.isDuplicateOrderGuarded()) {
+            try {
+                return doPlaceOrder(userId, placeOrderCommand);
+            } catch (Exception e) {
+                logger.error("placeOrder|下单失败|{},{}", userId, JSON.toJSONString(placeOrderCommand), e);
+                throw new BizException(e.getMessage());
+            }
+        }
         //对一个以用户ID设置的分布式锁，避免一个用户重复下单即抖动
         String placeOrderLockKey = getPlaceOrderLockKey(userId);
         DistributedLock placeOrderLock = lockFactoryService.getDistributedLock(placeOrderLockKey);
@@ -75,19 +94,7 @@ public class DefaultFlashOrderAppService implements FlashOrderAppService {
             if (!isLockSuccess) {
                 return AppSimpleResult.failed(FREQUENTLY_ERROR.getErrCode(), FREQUENTLY_ERROR.getErrDesc());
             }
-            //安全检查
-            boolean isPassRiskInspect = securityService.inspectRisksByPolicy(userId);
-            if (!isPassRiskInspect) {
-                logger.info("placeOrder|综合风控检验未通过|{}", userId);
-                return AppSimpleResult.failed(PLACE_ORDER_FAILED);
-            }
-            //下单
-            PlaceOrderResult placeOrderResult = placeOrderService.doPlaceOrder(userId, placeOrderCommand);
-            if (!placeOrderResult.isSuccess()) {
-                return AppSimpleResult.failed(placeOrderResult.getCode(), placeOrderResult.getMessage());
-            }
-            logger.info("placeOrder|下单完成|{}", userId);
-            return AppSimpleResult.ok(placeOrderResult);
+            return doPlaceOrder(userId, placeOrderCommand);
         } catch (Exception e) {
             logger.error("placeOrder|下单失败|{},{}", userId, JSON.toJSONString(placeOrderCommand), e);
             throw new BizException(e.getMessage());
@@ -97,6 +104,22 @@ public class DefaultFlashOrderAppService implements FlashOrderAppService {
         }
     }
 
+    private AppSimpleResult<PlaceOrderResult> doPlaceOrder(Long userId, FlashPlaceOrderCommand placeOrderCommand) {
+        //安全检查
+        boolean isPassRiskInspect = securityService.inspectRisksByPolicy(userId);
+        if (!isPassRiskInspect) {
+            logger.info("placeOrder|综合风控检验未通过|{}", userId);
+            return AppSimpleResult.failed(PLACE_ORDER_FAILED);
+        }
+        //下单
+        PlaceOrderResult placeOrderResult = placeOrderService.doPlaceOrder(userId, placeOrderCommand);
+        if (!placeOrderResult.isSuccess()) {
+            return AppSimpleResult.failed(placeOrderResult.getCode(), placeOrderResult.getMessage());
+        }
+        logger.info("placeOrder|下单完成|{}", userId);
+        return AppSimpleResult.ok(placeOrderResult);
+    }
+
     @Override
     public AppSimpleResult<OrderTaskHandleResult> getPlaceOrderTaskResult(Long userId, Long itemId, String placeOrderTaskId) {
         if (userId == null || itemId == null || StringUtils.isEmpty(placeOrderTaskId)) {
@@ -109,11 +132,33 @@ public class DefaultFlashOrderAppService implements FlashOrderAppService {
                 return AppSimpleResult.failed(orderTaskHandleResult.getCode(), orderTaskHandleResult.getMessage(), orderTaskHandleResult);
             }
             return AppSimpleResult.ok(orderTaskHandleResult);
+        } else if (placeOrderService instanceof WriteBehindPlaceOrderService) {
+            //异步落库模式下任务ID即订单ID
+            if (!StringUtils.isNumeric(placeOrderTaskId)) {
+                throw new BizException(INVALID_PARAMS);
+            }
+            WriteBehindPlaceOrderService writeBehindPlaceOrderService = (WriteBehindPlaceOrderService) placeOrderService;
+            OrderTaskHandleResult orderTaskHandleResult = writeBehindPlaceOrderService.getPlaceOrderResult(userId, Long.valueOf(placeOrderTaskId));
+            if (!orderTaskHandleResult.isSuccess()) {
+                return AppSimpleResult.failed(orderTaskHandleResult.getCode(), orderTaskHandleResult.getMessage(), orderTaskHandleResult);
+            }
+            return AppSimpleResult.ok(orderTaskHandleResult);
         } else {
             return AppSimpleResult.failed(ORDER_TYPE_NOT_SUPPORT);
         }
     }
 
+    @Override
+    public CompletableFuture<OrderTaskHandleResult> awaitPlaceOrderTaskResult(Long userId, Long itemId, String placeOrderTaskId) {
+        if (userId == null || itemId == null || StringUtils.isEmpty(placeOrderTaskId)) {
+            throw new BizException(INVALID_PARAMS);
+        }
+        if (!(placeOrderService instanceof QueuedPlaceOrderService)) {
+            return CompletableFuture.completedFuture(OrderTaskHandleResult.failed(ORDER_TYPE_NOT_SUPPORT));
+        }
+        return ((QueuedPlaceOrderService) placeOrderService).awaitPlaceOrderResult(userId, itemId, placeOrderTaskId);
+    }
+
     @Override
     public AppMultiResult<FlashOrderDTO> getOrdersByUser(Long userId, FlashOrdersQuery flashOrdersQuery) {
         PageResult<FlashOrder> flashOrderPageResult = flashOrderDomainService.getOrdersByUser(userId, toFlashOrdersQuery(flashOrdersQuery));
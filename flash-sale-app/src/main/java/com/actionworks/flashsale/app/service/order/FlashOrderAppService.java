@@ -9,11 +9,15 @@ import com.actionworks.flashsale.app.model.result.AppSimpleResult;
 import com.actionworks.flashsale.app.model.result.OrderTaskHandleResult;
 import com.actionworks.flashsale.app.model.result.PlaceOrderResult;
 
+import java.util.concurrent.CompletableFuture;
+
 public interface FlashOrderAppService {
     //下单
     AppSimpleResult<PlaceOrderResult> placeOrder(Long userId, FlashPlaceOrderCommand placeOrderCommand);
     //获取订单
     AppSimpleResult<OrderTaskHandleResult> getPlaceOrderTaskResult(Long userId, Long itemId, String placeOrderTaskId);
+    //等待下单任务结果，取消返回的future即取消等待
+    CompletableFuture<OrderTaskHandleResult> awaitPlaceOrderTaskResult(Long userId, Long itemId, String placeOrderTaskId);
     //根据用户获取订单
     AppMultiResult<FlashOrderDTO> getOrdersByUser(Long userId, FlashOrdersQuery flashOrdersQuery);
     //取消订单
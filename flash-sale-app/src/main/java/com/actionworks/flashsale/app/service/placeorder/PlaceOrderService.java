@@ -5,4 +5,11 @@ import com.actionworks.flashsale.app.model.result.PlaceOrderResult;
 
 public interface PlaceOrderService {
     PlaceOrderResult doPlaceOrder(Long userId, FlashPlaceOrderCommand placeOrderCommand);
+
+    /**
+     * 下单过程中是否已防止同一用户重复下单，是则无需再加用户锁
+     */
+    default boolean isDuplicateOrderGuarded() {
+        return false;
+    }
 }
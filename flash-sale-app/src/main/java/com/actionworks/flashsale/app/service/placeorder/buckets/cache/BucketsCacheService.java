@@ -3,7 +3,8 @@ package com.actionworks.flashsale.app.service.placeorder.buckets.cache;
 import com.actionworks.flashsale.app.service.stock.ItemStockCacheService;
 import com.actionworks.flashsale.app.service.stock.model.ItemStockCache;
 import com.actionworks.flashsale.cache.DistributedCacheService;
-import com.actionworks.flashsale.cache.redis.RedisCacheService;
+import com.actionworks.flashsale.cache.redis.RedisScriptRegistry;
+import com.actionworks.flashsale.cache.redis.RedisScriptResult;
 import com.actionworks.flashsale.domain.model.Bucket;
 import com.actionworks.flashsale.domain.model.StockDeduction;
 import com.actionworks.flashsale.domain.service.BucketsDomainService;
@@ -16,19 +17,25 @@ import com.google.common.collect.Lists;
 import org.apache.commons.collections.CollectionUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
-import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.Resource;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import static com.actionworks.flashsale.app.model.constants.CacheConstants.ITEM_BUCKETS_CACHE_INIT_KEY;
 import static com.actionworks.flashsale.app.model.constants.CacheConstants.ITEM_BUCKETS_QUANTITY_KEY;
 import static com.actionworks.flashsale.app.service.bucket.DefaultBucketsArrangementService.getBucketAvailableStocksCacheKey;
-import static com.actionworks.flashsale.app.service.bucket.DefaultBucketsArrangementService.getItemStockBucketsSuspendKey;
-import static com.actionworks.flashsale.app.service.placeorder.normal.cache.NormalStockCacheService.getItemStocksCacheAlignKey;
+import static com.actionworks.flashsale.app.service.bucket.DefaultBucketsArrangementService.getBucketAlignKey;
+import static com.actionworks.flashsale.app.service.bucket.DefaultBucketsArrangementService.getBucketSuspendKey;
+import static com.actionworks.flashsale.cache.redis.RedisLuaScript.DECREASE_BUCKET_STOCK;
+import static com.actionworks.flashsale.cache.redis.RedisLuaScript.INCREASE_BUCKET_STOCK;
+import static com.actionworks.flashsale.cache.redis.RedisLuaScript.INIT_OR_ALIGN_BUCKET_STOCK;
 import static com.actionworks.flashsale.util.StringUtil.link;
 
 @Service
@@ -36,74 +43,29 @@ import static com.actionworks.flashsale.util.StringUtil.link;
 public class BucketsCacheService implements ItemStockCacheService {
 
     private static final Logger logger = LoggerFactory.getLogger(BucketsCacheService.class);
-    private static final String INIT_OR_ALIGN_ITEM_STOCK_LUA;
-    private static final String INCREASE_ITEM_STOCK_LUA;
-    private static final String DECREASE_ITEM_STOCK_LUA;
     private final static Cache<String, Integer> bucketAvailableStocksLocalCache = CacheBuilder.newBuilder().initialCapacity(1000).concurrencyLevel(5).expireAfterWrite(100, TimeUnit.MILLISECONDS).build();
     private final static Cache<Long, Integer> itemBucketsQuantityLocalCache = CacheBuilder.newBuilder().initialCapacity(10).concurrencyLevel(5).expireAfterWrite(10, TimeUnit.SECONDS).build();
 
-    static {
-        INIT_OR_ALIGN_ITEM_STOCK_LUA = "if (redis.call('exists', KEYS[2]) == 1) then" +
-                "    return -998;" +
-                "end;" +
-                "if (redis.call('exists', KEYS[3]) == 1) then" +
-                "    return -997;" +
-                "end;" +
-                "redis.call('set', KEYS[3] , 1);" +
-                "local stocksAmount = tonumber(ARGV[1]);" +
-                "local bucketsQuantity = tonumber(ARGV[2]);" +
-                "redis.call('set', KEYS[1] , stocksAmount);" +
-                "redis.call('set', KEYS[4] , bucketsQuantity);" +
-                "redis.call('del', KEYS[3]);" +
-                "return 1";
+    //本地维护的已空分桶标记，第N个元素为序号为N的分桶被观察到库存为0的时间，0表示未标记；
+    //标记只在确认库存为0时写入，超过有效期或分桶数量变化后失效，编排、调拨和其他节点的库存恢复无需通知本节点，只用于挑选探测的分桶
+    private final Map<Long, AtomicLongArray> emptyBucketsMarks = new ConcurrentHashMap<>();
 
-        INCREASE_ITEM_STOCK_LUA = "if (redis.call('exists', KEYS[1]) == 0) then" +
-                "    return -996;" +
-                "end;" +
-                "if (redis.call('exists', KEYS[2]) == 1) then" +
-                "    return -998;" +
-                "end;" +
-                "if (redis.call('exists', KEYS[3]) == 1) then" +
-                "    return -997;" +
-                "end;" +
-                "if (redis.call('exists', KEYS1]) == 1) then" +
-                "    local quantity = tonumber(ARGV[1]);" +
-                "    redis.call('incrby', KEYS[1] , quantity);" +
-                "    return 1;" +
-                "end;" +
-                "return -10000;";
-
-        DECREASE_ITEM_STOCK_LUA = "if (redis.call('exists', KEYS[1]) == 0) then" +
-                "    return -996;" +
-                "end;" +
-                "if (redis.call('exists', KEYS[2]) == 1) then" +
-                "    return -998;" +
-                "end;" +
-                "if (redis.call('exists', KEYS[3]) == 1) then" +
-                "    return -997;" +
-                "end;" +
-                "if (redis.call('exists', KEYS[1]) == 1) then" +
-                "    local stocksAmount = tonumber(redis.call('get', KEYS[1]));" +
-                "    local quantity = tonumber(ARGV[1]);" +
-                "    if (stocksAmount < quantity) then" +
-                "        return -1" +
-                "    end;" +
-                "    if (stocksAmount >= quantity) then" +
-                "        redis.call('incrby', KEYS[1], 0 - quantity);" +
-                "        return 1" +
-                "    end;" +
-                "end;" +
-                "return -10000;";
-    }
+    //所属分桶库存不足时，最多探测的其他非空分桶数量
+    @Value("${stock.buckets.max-probes:3}")
+    private int maxBucketProbes;
+    @Value("${stock.buckets.empty-mark-ttl-millis:1000}")
+    private long emptyMarkTtlMillis;
 
     @Resource
-    private RedisCacheService redisCacheService;
+    private RedisScriptRegistry redisScriptRegistry;
     @Resource
     private BucketsDomainService bucketsDomainService;
     @Resource
     private DistributedLockFactoryService distributedLockFactoryService;
     @Resource
     private DistributedCacheService distributedCacheService;
+    @Resource
+    private BucketsLoadRecorder bucketsLoadRecorder;
 
     public static String getItemStockBucketsQuantityCacheKey(Long itemId) {
         return link(ITEM_BUCKETS_QUANTITY_KEY, itemId);
@@ -130,28 +92,25 @@ public class BucketsCacheService implements ItemStockCacheService {
             }
             buckets.forEach(stockBucket -> {
                 String key1StockBucketCacheKey = getBucketAvailableStocksCacheKey(stockBucket.getItemId(), stockBucket.getSerialNo());
-                String key2StockBucketsSuspendKey = getItemStockBucketsSuspendKey(stockBucket.getItemId());
-                String key3ItemStocksCacheAlignKey = getItemStocksCacheAlignKey(stockBucket.getItemId());
-                String key4ItemStockBucketsQuantityCacheKey = getItemStockBucketsQuantityCacheKey(stockBucket.getItemId());
-                List<String> keys = Lists.newArrayList(key1StockBucketCacheKey, key2StockBucketsSuspendKey, key3ItemStocksCacheAlignKey, key4ItemStockBucketsQuantityCacheKey);
-                DefaultRedisScript<Long> redisScript = new DefaultRedisScript<>(INIT_OR_ALIGN_ITEM_STOCK_LUA, Long.class);
-                Long result = redisCacheService.getRedisTemplate().execute(redisScript, keys, stockBucket.getAvailableStocksAmount(), buckets.size());
-                if (result == null) {
-//                    logger.info("alignItemStocks|分桶库存校准失败|{},{}", itemId, stockBucketCacheInitLockKey);
-                    return;
-                }
-                if (result == -998) {
+                String key2StockBucketSuspendKey = getBucketSuspendKey(stockBucket.getItemId(), stockBucket.getSerialNo());
+                String key3StockBucketAlignKey = getBucketAlignKey(stockBucket.getItemId(), stockBucket.getSerialNo());
+                List<String> keys = Lists.newArrayList(key1StockBucketCacheKey, key2StockBucketSuspendKey, key3StockBucketAlignKey);
+                RedisScriptResult result = redisScriptRegistry.execute(INIT_OR_ALIGN_BUCKET_STOCK, keys, stockBucket.getAvailableStocksAmount());
+                if (result == RedisScriptResult.SUSPENDED) {
 //                    logger.info("alignItemStocks|库存维护中，已暂停服务|{},{},{}", result, itemId, stockBucketCacheInitLockKey);
                     return;
                 }
-                if (result == -997) {
+                if (result == RedisScriptResult.ALIGNING) {
 //                    logger.info("alignItemStocks|库存数据校准对齐中|{},{},{}", result, itemId, stockBucketCacheInitLockKey);
                     return;
                 }
-                if (result == 1) {
+                if (result.isSuccess()) {
+                    updateEmptyBucketMark(itemId, stockBucket.getSerialNo(), buckets.size(), stockBucket.getAvailableStocksAmount() == 0);
 //                    logger.info("alignItemStocks|分桶库存校准完成|{},{},{}", result, itemId, stockBucketCacheInitLockKey);
                 }
             });
+            //分桶数量是秒杀品级别的数据，与分桶不在同一个slot，单独写入
+            distributedCacheService.put(getItemStockBucketsQuantityCacheKey(itemId), buckets.size());
 //            logger.info("alignItemStocks|分桶库存校准全部完成|{},{}", itemId, stockBucketCacheInitLockKey);
             return true;
         } catch (Exception e) {
@@ -173,37 +132,29 @@ public class BucketsCacheService implements ItemStockCacheService {
             }
             //取模获取分桶号
             Integer targetBucketSerialNo = getTargetBucketSerialNo(stockDeduction.getUserId(), subBucketsQuantity);
-            stockDeduction.setSerialNo(targetBucketSerialNo);
-
-            String key1StockBucketCacheKey = getBucketAvailableStocksCacheKey(stockDeduction.getItemId(), targetBucketSerialNo);
-            String key2StockBucketsSuspendKey = getItemStockBucketsSuspendKey(stockDeduction.getItemId());
-            String key3ItemStocksAlignKey = getItemStocksCacheAlignKey(stockDeduction.getItemId());
-
-            List<String> keys = Lists.newArrayList(key1StockBucketCacheKey, key2StockBucketsSuspendKey, key3ItemStocksAlignKey);
-
-            DefaultRedisScript<Long> redisScript = new DefaultRedisScript<>(DECREASE_ITEM_STOCK_LUA, Long.class);
-            Long result = redisCacheService.getRedisTemplate().execute(redisScript, keys, stockDeduction.getQuantity());
-            if (result == null || result == -996) {
-//                logger.info("decreaseItemStock|分桶库存不存在|{},{}", targetBucketSerialNo, key1StockBucketCacheKey);
-                return false;
-            }
-            if (result == -998) {
-//                logger.info("decreaseItemStock|库存维护中，已暂停服务|{},{}", result, key1StockBucketCacheKey);
-                return false;
-            }
-            if (result == -997) {
-//                logger.info("decreaseItemStock|库存数据校准对齐中|{},{}", result, key1StockBucketCacheKey);
-                return false;
-            }
-            if (result == -1) {
-//                logger.info("decreaseItemStock|库存不足|{},{}", result, key1StockBucketCacheKey);
-                return false;
+            Long result = decreaseBucketStock(stockDeduction, targetBucketSerialNo, subBucketsQuantity);
+            int probes = 0;
+            //所属分桶库存不足时，根据本地分桶位图跳过已空的分桶，探测其他分桶；各分桶位于不同slot，每次探测是一次独立的脚本调用
+            boolean probed = RedisScriptResult.INSUFFICIENT.getCode().equals(result) || RedisScriptResult.NOT_EXIST.getCode().equals(result);
+            if (probed) {
+                for (int i = 1; i < subBucketsQuantity && probes < maxBucketProbes; i++) {
+                    int serialNo = (targetBucketSerialNo + i) % subBucketsQuantity;
+                    if (!isBucketAvailable(stockDeduction.getItemId(), serialNo, subBucketsQuantity)) {
+                        continue;
+                    }
+                    probes++;
+                    result = decreaseBucketStock(stockDeduction, serialNo, subBucketsQuantity);
+                    if (result != null && result >= 0) {
+                        break;
+                    }
+                }
             }
-            if (result == 1) {
-//                logger.info("decreaseItemStock|库存扣减成功|{},{}", result, key1StockBucketCacheKey);
+            bucketsLoadRecorder.record(stockDeduction.getItemId(), 1 + probes, probed);
+            if (result != null && result >= 0) {
+//                logger.info("decreaseItemStock|库存扣减成功|{},{}", result, stockDeduction.getSerialNo());
                 return true;
             }
-//            logger.info("decreaseItemStock|库存扣减失败|{},{}", result, key1StockBucketCacheKey);
+//            logger.info("decreaseItemStock|库存扣减失败|{},{}", RedisScriptResult.findBy(result), targetBucketSerialNo);
             return false;
         } catch (Exception e) {
             logger.error("decreaseItemStock|库存扣减失败", e);
@@ -222,31 +173,21 @@ public class BucketsCacheService implements ItemStockCacheService {
             if (subBucketsQuantity == null) {
                 return false;
             }
-            Integer targetBucketSerialNo = getTargetBucketSerialNo(stockDeduction.getUserId(), subBucketsQuantity);
+            //优先恢复到预扣减时实际扣减的分桶
+            Integer targetBucketSerialNo = stockDeduction.getSerialNo() != null ? stockDeduction.getSerialNo() : getTargetBucketSerialNo(stockDeduction.getUserId(), subBucketsQuantity);
             String key1StockBucketCacheKey = getBucketAvailableStocksCacheKey(stockDeduction.getItemId(), targetBucketSerialNo);
-            String key2StockBucketsSuspendKey = getItemStockBucketsSuspendKey(stockDeduction.getItemId());
-            String key3ItemStocksAlignKey = getItemStocksCacheAlignKey(stockDeduction.getItemId());
+            String key2StockBucketSuspendKey = getBucketSuspendKey(stockDeduction.getItemId(), targetBucketSerialNo);
+            String key3StockBucketAlignKey = getBucketAlignKey(stockDeduction.getItemId(), targetBucketSerialNo);
 
-            List<String> keys = Lists.newArrayList(key1StockBucketCacheKey, key2StockBucketsSuspendKey, key3ItemStocksAlignKey);
+            List<String> keys = Lists.newArrayList(key1StockBucketCacheKey, key2StockBucketSuspendKey, key3StockBucketAlignKey);
 
-            DefaultRedisScript<Long> redisScript = new DefaultRedisScript<>(INCREASE_ITEM_STOCK_LUA, Long.class);
-            Long result = redisCacheService.getRedisTemplate().execute(redisScript, keys, stockDeduction.getQuantity());
-            if (result == null || result == -996) {
-//                logger.info("increaseItemStock|分桶库存不存在|{},{},{}", stockDeduction.getItemId(), targetBucketSerialNo, key1StockBucketCacheKey);
-                return false;
-            }
-            if (result == -998) {
-//                logger.info("increaseItemStock|库存维护中，已暂停服务|{},{},{}", result, stockDeduction.getItemId(), key1StockBucketCacheKey);
-                return false;
-            }
-            if (result == -997) {
-//                logger.info("increaseItemStock|库存数据校准对齐中|{},{}", result, key1StockBucketCacheKey);
-                return false;
-            }
-            if (result == 1) {
+            RedisScriptResult result = redisScriptRegistry.execute(INCREASE_BUCKET_STOCK, keys, stockDeduction.getQuantity());
+            if (result.isSuccess()) {
+                updateEmptyBucketMark(stockDeduction.getItemId(), targetBucketSerialNo, subBucketsQuantity, false);
 //                logger.info("increaseItemStock|库存恢复成功|{},{}", result, key1StockBucketCacheKey);
                 return true;
             }
+//            logger.info("increaseItemStock|库存恢复失败|{},{}", result, key1StockBucketCacheKey);
             return false;
         } catch (Exception e) {
             logger.error("increaseItemStock|库存恢复失败|{}", e);
@@ -269,6 +210,46 @@ public class BucketsCacheService implements ItemStockCacheService {
         return new ItemStockCache().with(availableBucketStocks);
     }
 
+    /**
+     * 扣减指定分桶的库存，成功时返回分桶剩余库存并记录实际扣减的分桶，数据库扣减和库存恢复都以此为准
+     */
+    private Long decreaseBucketStock(StockDeduction stockDeduction, Integer serialNo, int bucketsQuantity) {
+        String key1StockBucketCacheKey = getBucketAvailableStocksCacheKey(stockDeduction.getItemId(), serialNo);
+        String key2StockBucketSuspendKey = getBucketSuspendKey(stockDeduction.getItemId(), serialNo);
+        String key3StockBucketAlignKey = getBucketAlignKey(stockDeduction.getItemId(), serialNo);
+        List<String> keys = Lists.newArrayList(key1StockBucketCacheKey, key2StockBucketSuspendKey, key3StockBucketAlignKey);
+        Long result = redisScriptRegistry.executeForLong(DECREASE_BUCKET_STOCK, keys, stockDeduction.getQuantity());
+        if (result != null && result >= 0) {
+            stockDeduction.setSerialNo(serialNo);
+            if (result == 0) {
+                updateEmptyBucketMark(stockDeduction.getItemId(), serialNo, bucketsQuantity, true);
+            }
+        } else if (RedisScriptResult.INSUFFICIENT.getCode().equals(result) && stockDeduction.getQuantity() == 1) {
+            //多件扣减不足时分桶可能仍有库存，只有单件扣减不足才说明分桶已空
+            updateEmptyBucketMark(stockDeduction.getItemId(), serialNo, bucketsQuantity, true);
+        }
+        return result;
+    }
+
+    private boolean isBucketAvailable(Long itemId, int serialNo, int bucketsQuantity) {
+        AtomicLongArray marks = emptyBucketsMarks.get(itemId);
+        if (marks == null || marks.length() != bucketsQuantity || serialNo >= bucketsQuantity) {
+            return true;
+        }
+        long markedTime = marks.get(serialNo);
+        return markedTime == 0 || System.currentTimeMillis() - markedTime > emptyMarkTtlMillis;
+    }
+
+    private void updateEmptyBucketMark(Long itemId, int serialNo, int bucketsQuantity, boolean empty) {
+        if (serialNo >= bucketsQuantity) {
+            return;
+        }
+        //分桶数量变化说明已重新编排，丢弃旧的标记
+        AtomicLongArray marks = emptyBucketsMarks.compute(itemId, (key, existing) ->
+                existing == null || existing.length() != bucketsQuantity ? new AtomicLongArray(bucketsQuantity) : existing);
+        marks.set(serialNo, empty ? System.currentTimeMillis() : 0);
+    }
+
     private Integer getTargetBucketSerialNo(Long userId, Integer bucketsQuantity) {
         if (userId == null || bucketsQuantity == null || bucketsQuantity <= 0) {
             return null;
@@ -291,7 +272,7 @@ public class BucketsCacheService implements ItemStockCacheService {
         return subBucketsQuantity;
     }
 
-    private String getStockBucketCacheInitLockKey(Long itemId) {
+    public static String getStockBucketCacheInitLockKey(Long itemId) {
         return link(ITEM_BUCKETS_CACHE_INIT_KEY, itemId);
     }
 }
@@ -0,0 +1,135 @@
+package com.actionworks.flashsale.app.service.placeorder.buckets.cache;
+
+import com.actionworks.flashsale.cache.redis.RedisCacheService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.actionworks.flashsale.app.model.constants.CacheConstants.HOURS_24;
+import static com.actionworks.flashsale.app.model.constants.CacheConstants.ITEM_BUCKETS_LOAD_KEY;
+import static com.actionworks.flashsale.util.StringUtil.link;
+
+/**
+ * 分桶库存负载统计
+ * 本地累计每个秒杀品的扣减请求数、分桶脚本调用数和需要探测其他分桶的扣减数，定时合并到Redis中秒杀品级别的计数哈希，
+ * 所有节点共享同一份计数，供分桶数量评估计算每个分桶KEY的访问频率和库存碎片程度。
+ */
+@Component
+@ConditionalOnProperty(name = "ItemStockCacheService", havingValue = "buckets", matchIfMissing = true)
+public class BucketsLoadRecorder {
+    private static final Logger logger = LoggerFactory.getLogger(BucketsLoadRecorder.class);
+    static final String DEDUCTIONS = "deductions";
+    static final String OPS = "ops";
+    static final String PROBED = "probed";
+
+    @Resource
+    private RedisCacheService redisCacheService;
+
+    private final Map<Long, LocalLoad> localLoads = new ConcurrentHashMap<>();
+
+    /**
+     * 记录一次扣减请求：ops为本次调用分桶脚本的次数，probed表示所属分桶库存不足而探测了其他分桶
+     */
+    public void record(Long itemId, int ops, boolean probed) {
+        if (itemId == null) {
+            return;
+        }
+        LocalLoad localLoad = localLoads.computeIfAbsent(itemId, id -> new LocalLoad());
+        localLoad.deductions.increment();
+        localLoad.ops.add(ops);
+        if (probed) {
+            localLoad.probed.increment();
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${stock.buckets.load.flush-interval-millis:1000}")
+    public void flushLoadTask() {
+        localLoads.forEach((itemId, localLoad) -> {
+            long deductions = localLoad.deductions.sumThenReset();
+            long ops = localLoad.ops.sumThenReset();
+            long probed = localLoad.probed.sumThenReset();
+            if (deductions == 0) {
+                return;
+            }
+            String loadKey = getItemBucketsLoadKey(itemId);
+            try {
+                redisCacheService.getRedisTemplate().executePipelined(new SessionCallback<Object>() {
+                    @Override
+                    @SuppressWarnings("unchecked")
+                    public <K, V> Object execute(RedisOperations<K, V> operations) {
+                        RedisOperations<String, Object> redisOperations = (RedisOperations<String, Object>) operations;
+                        redisOperations.opsForHash().increment(loadKey, DEDUCTIONS, deductions);
+                        redisOperations.opsForHash().increment(loadKey, OPS, ops);
+                        if (probed > 0) {
+                            redisOperations.opsForHash().increment(loadKey, PROBED, probed);
+                        }
+                        redisOperations.expire(loadKey, HOURS_24, TimeUnit.SECONDS);
+                        return null;
+                    }
+                });
+            } catch (Exception e) {
+                //统计失败不影响扣减，本周期计数丢弃
+                logger.error("flushBucketsLoad|分桶负载统计失败|{}", itemId, e);
+            }
+        });
+    }
+
+    public BucketsLoad getLoad(Long itemId) {
+        List<Object> values = redisCacheService.getRedisTemplate().opsForHash()
+                .multiGet(getItemBucketsLoadKey(itemId), Arrays.asList(DEDUCTIONS, OPS, PROBED));
+        return new BucketsLoad(toLong(values.get(0)), toLong(values.get(1)), toLong(values.get(2)));
+    }
+
+    public static String getItemBucketsLoadKey(Long itemId) {
+        return link(ITEM_BUCKETS_LOAD_KEY, itemId);
+    }
+
+    private static long toLong(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        return value == null ? 0 : Long.parseLong(value.toString());
+    }
+
+    private static class LocalLoad {
+        private final LongAdder deductions = new LongAdder();
+        private final LongAdder ops = new LongAdder();
+        private final LongAdder probed = new LongAdder();
+    }
+
+    public static class BucketsLoad {
+        private final long deductions;
+        private final long ops;
+        private final long probed;
+
+        BucketsLoad(long deductions, long ops, long probed) {
+            this.deductions = deductions;
+            this.ops = ops;
+            this.probed = probed;
+        }
+
+        public long getDeductions() {
+            return deductions;
+        }
+
+        public long getOps() {
+            return ops;
+        }
+
+        public long getProbed() {
+            return probed;
+        }
+    }
+}
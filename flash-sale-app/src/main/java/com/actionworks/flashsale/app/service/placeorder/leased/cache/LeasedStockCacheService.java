@@ -0,0 +1,353 @@
+package com.actionworks.flashsale.app.service.placeorder.leased.cache;
+
+import com.actionworks.flashsale.app.service.stock.ItemSoldOutService;
+import com.actionworks.flashsale.app.service.stock.ItemStockCacheService;
+import com.actionworks.flashsale.app.service.stock.model.ItemStockCache;
+import com.actionworks.flashsale.cache.DistributedCacheService;
+import com.actionworks.flashsale.cache.redis.RedisCacheService;
+import com.actionworks.flashsale.cache.redis.RedisScriptRegistry;
+import com.actionworks.flashsale.cache.redis.RedisScriptResult;
+import com.actionworks.flashsale.domain.model.StockDeduction;
+import com.actionworks.flashsale.domain.model.entity.FlashItem;
+import com.actionworks.flashsale.domain.service.FlashItemDomainService;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Lists;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.actionworks.flashsale.app.service.placeorder.normal.cache.NormalStockCacheService.getItemStocksCacheAlignKey;
+import static com.actionworks.flashsale.app.service.placeorder.normal.cache.NormalStockCacheService.getItemStocksCacheKey;
+import static com.actionworks.flashsale.cache.redis.RedisLuaScript.INCREASE_ITEM_STOCK;
+import static com.actionworks.flashsale.cache.redis.RedisLuaScript.INIT_OR_ALIGN_LEASED_ITEM_STOCK;
+import static com.actionworks.flashsale.cache.redis.RedisLuaScript.LEASE_ITEM_STOCK;
+import static com.actionworks.flashsale.cache.redis.RedisLuaScript.RETURN_ITEM_STOCK_LEASE;
+import static com.actionworks.flashsale.util.StringUtil.link;
+
+/**
+ * 节点租约库存
+ * 节点按块从Redis库存中租借库存放入本地库存池，预扣减只在JVM内通过CAS完成，不再每单访问Redis；
+ * 本地库存低于水位时异步续租，秒杀品长时间无人下单或节点关闭时将剩余库存归还Redis。
+ * 各节点通过心跳上报本地剩余库存并续期租约；租约中已售出的订单可能尚未落库，数据库可用库存此时偏多，
+ * 因此仍有节点持有租约时校准不覆盖Redis库存，租约全部归还后再以数据库为准校准。
+ * 节点异常退出时，其租约过期后在下一次校准中作废。
+ * 取消订单等增加库存的操作直接归还到Redis，保证上报的节点剩余库存只会偏多、不会偏少，从而避免超卖。
+ */
+@Service
+@ConditionalOnProperty(name = "ItemStockCacheService", havingValue = "leased")
+public class LeasedStockCacheService implements ItemStockCacheService {
+    private static final Logger logger = LoggerFactory.getLogger(LeasedStockCacheService.class);
+    private static final String ITEM_STOCK_LEASES_KEY = "ITEM_STOCK_LEASES_KEY";
+    private static final String ITEM_STOCK_LEASES_EXPIRE_KEY = "ITEM_STOCK_LEASES_EXPIRE_KEY";
+    private final static Cache<Long, ItemStockCache> itemStockLocalCache = CacheBuilder.newBuilder().initialCapacity(10).concurrencyLevel(5).expireAfterWrite(10, TimeUnit.SECONDS).build();
+    private static final String NODE_ID = ManagementFactory.getRuntimeMXBean().getName();
+
+    private final Map<Long, StockLease> stockLeases = new ConcurrentHashMap<>();
+    private final ExecutorService renewLeaseExecutor = Executors.newSingleThreadExecutor();
+
+    //每次租借的库存数量
+    @Value("${stock.lease.block-size:100}")
+    private int leaseBlockSize;
+    //本地库存低于该水位时异步续租
+    @Value("${stock.lease.low-watermark:20}")
+    private int leaseLowWatermark;
+    //租约有效期，超过该时间未续期的租约在校准时作废
+    @Value("${stock.lease.ttl-seconds:30}")
+    private int leaseTtlSeconds;
+    //本地库存池空闲超过该时间后归还剩余库存
+    @Value("${stock.lease.idle-seconds:10}")
+    private int leaseIdleSeconds;
+
+    @Resource
+    private RedisScriptRegistry redisScriptRegistry;
+    @Resource
+    private FlashItemDomainService flashItemDomainService;
+    @Resource
+    private DistributedCacheService distributedCacheService;
+    @Resource
+    private RedisCacheService redisCacheService;
+    @Resource
+    private ItemSoldOutService itemSoldOutService;
+
+    @Override
+    public boolean alignItemStocks(Long itemId) {
+        if (itemId == null) {
+            logger.info("alignItemStocks|参数为空");
+            return false;
+        }
+        try {
+            FlashItem flashItem = flashItemDomainService.getFlashItem(itemId);
+            if (flashItem == null) {
+                logger.info("alignItemStocks|秒杀品不存在|{}", itemId);
+                return false;
+            }
+            if (flashItem.getInitialStock() == null) {
+                logger.info("alignItemStocks|秒杀品未设置库存|{}", itemId);
+                return false;
+            }
+            RedisScriptResult result = redisScriptRegistry.execute(INIT_OR_ALIGN_LEASED_ITEM_STOCK, getLeaseKeys(itemId), flashItem.getAvailableStock(), System.currentTimeMillis());
+            if (result == RedisScriptResult.ALIGNING) {
+                logger.debug("alignItemStocks|仍有节点持有租约，跳过校准|{},{}", itemId, flashItem.getAvailableStock());
+                return true;
+            }
+            if (result.isSuccess()) {
+                logger.debug("alignItemStocks|秒杀品库存校准完成|{},{}", itemId, flashItem.getAvailableStock());
+                if (flashItem.getAvailableStock() > 0) {
+                    itemSoldOutService.clearSoldOut(itemId);
+                }
+                return true;
+            }
+            logger.info("alignItemStocks|秒杀品库存校准失败|{},{}", result, itemId);
+            return false;
+        } catch (Exception e) {
+            logger.error("alignItemStocks|秒杀品库存校准错误|{}", itemId, e);
+            return false;
+        }
+    }
+
+    @Override
+    public boolean decreaseItemStock(StockDeduction stockDeduction) {
+        if (stockDeduction == null || !stockDeduction.validate()) {
+            return false;
+        }
+        Long itemId = stockDeduction.getItemId();
+        int quantity = stockDeduction.getQuantity();
+        try {
+            //租约可能在并发归还中被关闭，此时重新获取一次
+            for (int i = 0; i < 2; i++) {
+                StockLease stockLease = stockLeases.computeIfAbsent(itemId, StockLease::new);
+                stockLease.touch();
+                if (stockLease.tryDecrease(quantity)) {
+                    renewLeaseIfNecessary(stockLease);
+                    return true;
+                }
+                synchronized (stockLease) {
+                    if (stockLease.closed) {
+                        continue;
+                    }
+                    if (stockLease.tryDecrease(quantity)) {
+                        return true;
+                    }
+                    if (!leaseStock(stockLease, Math.max(leaseBlockSize, quantity))) {
+                        logger.info("decreaseItemStock|租借库存失败|{}", itemId);
+                        return false;
+                    }
+                    boolean decreased = stockLease.tryDecrease(quantity);
+                    if (!decreased) {
+                        logger.info("decreaseItemStock|库存不足|{},{}", itemId, quantity);
+                        //其他节点租约中可能仍有库存，全局可用库存为0时才标记售罄
+                        if (stockLease.soldOut && stockLease.availableStock.get() == 0) {
+                            Integer availableStock = loadAvailableStock(itemId);
+                            if (availableStock != null && availableStock <= 0) {
+                                itemSoldOutService.markSoldOut(itemId);
+                            }
+                        }
+                    }
+                    return decreased;
+                }
+            }
+        } catch (Exception e) {
+            logger.error("decreaseItemStock|库存扣减失败|{}", itemId, e);
+        }
+        return false;
+    }
+
+    @Override
+    public boolean increaseItemStock(StockDeduction stockDeduction) {
+        if (stockDeduction == null || !stockDeduction.validate()) {
+            return false;
+        }
+        try {
+            List<String> keys = Lists.newArrayList(getItemStocksCacheKey(stockDeduction.getItemId()));
+            RedisScriptResult result = redisScriptRegistry.execute(INCREASE_ITEM_STOCK, keys, stockDeduction.getQuantity());
+            if (result.isSuccess()) {
+                logger.info("increaseItemStock|库存增加成功|{}", stockDeduction.getItemId());
+                itemSoldOutService.clearSoldOut(stockDeduction.getItemId());
+                return true;
+            }
+            logger.info("increaseItemStock|库存增加失败|{},{}", result, stockDeduction.getItemId());
+            return false;
+        } catch (Exception e) {
+            logger.error("increaseItemStock|库存增加失败", e);
+            return false;
+        }
+    }
+
+    @Override
+    public ItemStockCache getAvailableItemStock(Long userId, Long itemId) {
+        ItemStockCache itemStockCache = itemStockLocalCache.getIfPresent(itemId);
+        if (itemStockCache != null) {
+            return itemStockCache;
+        }
+        Integer availableStock = loadAvailableStock(itemId);
+        if (availableStock == null) {
+            return null;
+        }
+        itemStockCache = new ItemStockCache().with(availableStock);
+        itemStockLocalCache.put(itemId, itemStockCache);
+        return itemStockCache;
+    }
+
+    //可用库存包含各节点租约中尚未售出的库存
+    private Integer loadAvailableStock(Long itemId) {
+        String result = distributedCacheService.getString(getItemStocksCacheKey(itemId));
+        if (result == null) {
+            return null;
+        }
+        int availableStock = Integer.parseInt(result);
+        List<Object> leasedStocks = redisCacheService.getRedisTemplate().opsForHash().values(getItemStockLeasesKey(itemId));
+        for (Object leasedStock : leasedStocks) {
+            availableStock += Integer.parseInt(String.valueOf(leasedStock));
+        }
+        return availableStock;
+    }
+
+    /**
+     * 归还本节点在指定秒杀品上的租约，秒杀品下线时调用
+     */
+    public void returnItemStockLease(Long itemId) {
+        StockLease stockLease = stockLeases.remove(itemId);
+        if (stockLease == null) {
+            return;
+        }
+        int remaining;
+        synchronized (stockLease) {
+            stockLease.closed = true;
+            remaining = stockLease.availableStock.getAndSet(0);
+        }
+        try {
+            RedisScriptResult result = redisScriptRegistry.execute(RETURN_ITEM_STOCK_LEASE, getLeaseKeys(itemId), remaining, NODE_ID);
+            //归还失败时租约仍登记在Redis中，过期后由校准作废，库存不会丢失
+            logger.info("returnItemStockLease|归还租约库存|{},{},{}", itemId, remaining, result);
+        } catch (Exception e) {
+            logger.error("returnItemStockLease|归还租约库存失败|{},{}", itemId, remaining, e);
+        }
+    }
+
+    /**
+     * 上报本地剩余库存并续期租约，空闲的库存池归还Redis
+     */
+    @Scheduled(cron = "*/2 * * * * ?")
+    public void heartbeat() {
+        long idleDeadline = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(leaseIdleSeconds);
+        stockLeases.values().forEach(stockLease -> {
+            if (stockLease.lastAccessTime < idleDeadline) {
+                returnItemStockLease(stockLease.itemId);
+                return;
+            }
+            try {
+                //与续租串行，避免续租授予后旧的剩余库存覆盖租约登记
+                synchronized (stockLease) {
+                    if (!stockLease.closed) {
+                        leaseStock(stockLease, 0);
+                    }
+                }
+            } catch (Exception e) {
+                logger.error("heartbeat|租约续期失败|{}", stockLease.itemId, e);
+            }
+        });
+    }
+
+    @PreDestroy
+    public void destroy() {
+        stockLeases.keySet().forEach(this::returnItemStockLease);
+        renewLeaseExecutor.shutdown();
+    }
+
+    private void renewLeaseIfNecessary(StockLease stockLease) {
+        if (stockLease.availableStock.get() >= leaseLowWatermark || stockLease.soldOut) {
+            return;
+        }
+        if (!stockLease.renewing.compareAndSet(false, true)) {
+            return;
+        }
+        renewLeaseExecutor.execute(() -> {
+            try {
+                synchronized (stockLease) {
+                    if (!stockLease.closed && stockLease.availableStock.get() < leaseLowWatermark) {
+                        leaseStock(stockLease, leaseBlockSize);
+                    }
+                }
+            } catch (Exception e) {
+                logger.error("renewLease|续租失败|{}", stockLease.itemId, e);
+            } finally {
+                stockLease.renewing.set(false);
+            }
+        });
+    }
+
+    /**
+     * 从Redis租借库存，申请数量为0时仅上报剩余库存并续期
+     */
+    private boolean leaseStock(StockLease stockLease, int requested) {
+        long expireAt = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(leaseTtlSeconds);
+        Long granted = redisScriptRegistry.executeForLong(LEASE_ITEM_STOCK, getLeaseKeys(stockLease.itemId), requested, NODE_ID, stockLease.availableStock.get(), expireAt);
+        if (granted == null || granted < 0) {
+            logger.info("leaseStock|租借库存失败|{},{}", stockLease.itemId, RedisScriptResult.findBy(granted));
+            return false;
+        }
+        if (requested > 0) {
+            stockLease.soldOut = granted == 0;
+            stockLease.availableStock.addAndGet(granted.intValue());
+            logger.info("leaseStock|租借库存|{},{},{}", stockLease.itemId, requested, granted);
+        }
+        return true;
+    }
+
+    private List<String> getLeaseKeys(Long itemId) {
+        return Lists.newArrayList(getItemStocksCacheKey(itemId), getItemStocksCacheAlignKey(itemId), getItemStockLeasesKey(itemId), getItemStockLeasesExpireKey(itemId));
+    }
+
+    public static String getItemStockLeasesKey(Long itemId) {
+        return link(ITEM_STOCK_LEASES_KEY, itemId);
+    }
+
+    public static String getItemStockLeasesExpireKey(Long itemId) {
+        return link(ITEM_STOCK_LEASES_EXPIRE_KEY, itemId);
+    }
+
+    private static class StockLease {
+        private final Long itemId;
+        private final AtomicInteger availableStock = new AtomicInteger(0);
+        private final AtomicBoolean renewing = new AtomicBoolean(false);
+        private volatile long lastAccessTime = System.currentTimeMillis();
+        private volatile boolean soldOut;
+        private volatile boolean closed;
+
+        StockLease(Long itemId) {
+            this.itemId = itemId;
+        }
+
+        void touch() {
+            lastAccessTime = System.currentTimeMillis();
+        }
+
+        boolean tryDecrease(int quantity) {
+            while (true) {
+                int current = availableStock.get();
+                if (current < quantity) {
+                    return false;
+                }
+                if (availableStock.compareAndSet(current, current - quantity)) {
+                    return true;
+                }
+            }
+        }
+    }
+}
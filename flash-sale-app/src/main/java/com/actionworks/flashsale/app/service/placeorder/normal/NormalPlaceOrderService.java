@@ -2,12 +2,11 @@ package com.actionworks.flashsale.app.service.placeorder.normal;
 
 import com.actionworks.flashsale.app.exception.BizException;
 import com.actionworks.flashsale.app.model.command.FlashPlaceOrderCommand;
-import com.actionworks.flashsale.app.model.dto.FlashItemDTO;
-import com.actionworks.flashsale.app.model.result.AppSimpleResult;
 import com.actionworks.flashsale.app.model.result.PlaceOrderResult;
-import com.actionworks.flashsale.app.service.activity.FlashActivityAppService;
-import com.actionworks.flashsale.app.service.item.FlashItemAppService;
 import com.actionworks.flashsale.app.service.placeorder.PlaceOrderService;
+import com.actionworks.flashsale.app.service.placeorder.normal.cache.PlaceOrderAdmissionService;
+import com.actionworks.flashsale.app.service.placeorder.snapshot.PlaceOrderSnapshot;
+import com.actionworks.flashsale.app.service.placeorder.snapshot.PlaceOrderSnapshotService;
 import com.actionworks.flashsale.app.service.stock.ItemStockCacheService;
 import com.actionworks.flashsale.app.util.MultiPlaceOrderTypesCondition;
 import com.actionworks.flashsale.app.util.OrderNoGenerateContext;
@@ -19,10 +18,14 @@ import com.actionworks.flashsale.domain.service.StockDeductionDomainService;
 import com.alibaba.fastjson.JSON;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Conditional;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
@@ -41,13 +44,17 @@ public class NormalPlaceOrderService implements PlaceOrderService {
     @Resource
     private StockDeductionDomainService stockDeductionDomainService;
     @Resource
-    private FlashActivityAppService flashActivityAppService;
-    @Resource
     private ItemStockCacheService itemStockCacheService;
     @Resource
     private OrderNoGenerateService orderNoGenerateService;
     @Resource
-    private FlashItemAppService flashItemAppService;
+    private PlaceOrderSnapshotService placeOrderSnapshotService;
+    @Resource
+    private PlaceOrderAdmissionService placeOrderAdmissionService;
+
+    //库存预留剩余有效期不足该时间时不再提交订单，与过期预留清理的宽限时间共同避免释放后订单又提交
+    @Value("${stock.reservation.commit-margin-millis:5000}")
+    private long reservationCommitMarginMillis;
 
     @PostConstruct
     public void init() {
@@ -55,6 +62,11 @@ public class NormalPlaceOrderService implements PlaceOrderService {
     }
 
 
+    @Override
+    public boolean isDuplicateOrderGuarded() {
+        return itemStockCacheService.isDuplicateOrderGuarded();
+    }
+
     @Override
     public PlaceOrderResult doPlaceOrder(Long userId, FlashPlaceOrderCommand placeOrderCommand) {
         logger.info("placeOrder|开始下单|{},{}", userId, JSON.toJSONString(placeOrderCommand));
@@ -62,53 +74,51 @@ public class NormalPlaceOrderService implements PlaceOrderService {
         if (userId == null || placeOrderCommand == null || !placeOrderCommand.validateParams()) {
             throw new BizException(INVALID_PARAMS);
         }
-        //活动校验
-        boolean isActivityAllowPlaceOrder = flashActivityAppService.isAllowPlaceOrderOrNot(placeOrderCommand.getActivityId());
-        if (!isActivityAllowPlaceOrder) {
-            logger.info("placeOrder|秒杀活动下单规则校验未通过|{},{}", userId, placeOrderCommand.getActivityId());
-            return PlaceOrderResult.failed(PLACE_ORDER_FAILED);
-        }
-
-        //商品检验
-        boolean isItemAllowPlaceOrder = flashItemAppService.isAllowPlaceOrderOrNot(placeOrderCommand.getItemId());
-        if (!isItemAllowPlaceOrder) {
-            logger.info("placeOrder|秒杀品下单规则校验未通过|{},{}", userId, placeOrderCommand.getActivityId());
-            return PlaceOrderResult.failed(PLACE_ORDER_FAILED);
-        }
-        //获取对应秒杀品
-        AppSimpleResult<FlashItemDTO> flashItemResult = flashItemAppService.getFlashItem(placeOrderCommand.getItemId());
-        if (!flashItemResult.isSuccess() || flashItemResult.getData() == null) {
-            return PlaceOrderResult.failed(ITEM_NOT_FOUND);
-        }
-        FlashItemDTO flashItem = flashItemResult.getData();
         //生成订单ID
         Long orderId = orderNoGenerateService.generateOrderNo(new OrderNoGenerateContext());
-        //生成订单对象
-        FlashOrder flashOrderToPlace = toDomain(placeOrderCommand);
-        flashOrderToPlace.setItemTitle(flashItem.getItemTitle());
-        flashOrderToPlace.setFlashPrice(flashItem.getFlashPrice());
-        flashOrderToPlace.setUserId(userId);
-        flashOrderToPlace.setId(orderId);
         //生成库存数量变化对象
         StockDeduction stockDeduction = new StockDeduction()
                 .setItemId(placeOrderCommand.getItemId())
                 .setQuantity(placeOrderCommand.getQuantity())
-                .setUserId(userId);
+                .setUserId(userId)
+                .setOrderId(orderId);
+        //开启下单准入时一次Lua调用完成下单校验和库存预扣减，准入记录不存在时走完整校验
+        PlaceOrderAdmissionService.Admission admission = placeOrderAdmissionService.admit(userId, placeOrderCommand, stockDeduction);
+        if (!admission.isSkipped() && !admission.isAdmitted()) {
+            logger.info("placeOrder|下单准入未通过|{},{}", userId, JSON.toJSONString(placeOrderCommand));
+            return PlaceOrderResult.failed(admission.getRejectedCode());
+        }
+        FlashOrder flashOrderToPlace = admission.getFlashOrder();
+        if (flashOrderToPlace == null) {
+            flashOrderToPlace = toDomain(placeOrderCommand);
+            flashOrderToPlace.setUserId(userId);
+            flashOrderToPlace.setId(orderId);
+            PlaceOrderResult checkResult = checkAndPreDecreaseStock(userId, placeOrderCommand, flashOrderToPlace, stockDeduction);
+            if (checkResult != null) {
+                return checkResult;
+            }
+        }
+        return persistOrder(userId, placeOrderCommand, stockDeduction, flashOrderToPlace);
+    }
 
-        boolean preDecreaseStockSuccess = false;
-        //执行扣库存逻辑
+    /**
+     * 库存预扣减成功后的数据库下单，扣减数据库库存并写入订单；
+     * 异步下单时由下单线程池在预扣减完成后单独调用，通过代理调用时自带事务
+     */
+    @Transactional
+    public PlaceOrderResult persistOrder(Long userId, FlashPlaceOrderCommand placeOrderCommand, StockDeduction stockDeduction, FlashOrder flashOrderToPlace) {
+        Long orderId = stockDeduction.getOrderId();
+        if (isReservationExpiring(stockDeduction)) {
+            logger.info("placeOrder|库存预留即将过期，不再下单|{},{}", userId, orderId);
+            itemStockCacheService.releaseItemStockReservation(stockDeduction);
+            return PlaceOrderResult.failed(PLACE_ORDER_FAILED.getErrCode(), PLACE_ORDER_FAILED.getErrDesc());
+        }
         try {
-            //预扣库存，通过redis缓存完成，没有走本地缓存（最大程度降低延迟导致的不一致），通过lua脚本保证原子执行
-            //缓存预扣库存是为了减少数据库压力
-            preDecreaseStockSuccess = itemStockCacheService.decreaseItemStock(stockDeduction);
-            if (!preDecreaseStockSuccess) {
-                logger.info("placeOrder|库存预扣减失败|{},{}", userId, JSON.toJSONString(placeOrderCommand));
-                return PlaceOrderResult.failed(PLACE_ORDER_FAILED.getErrCode(), PLACE_ORDER_FAILED.getErrDesc());
-            }
             //数据库扣库存（保证一致性）
             boolean decreaseStockSuccess = stockDeductionDomainService.decreaseItemStock(stockDeduction);
             if (!decreaseStockSuccess) {
                 logger.info("placeOrder|库存扣减失败|{},{}", userId, JSON.toJSONString(placeOrderCommand));
+                itemStockCacheService.releaseItemStockReservation(stockDeduction);
                 return PlaceOrderResult.failed(PLACE_ORDER_FAILED.getErrCode(), PLACE_ORDER_FAILED.getErrDesc());
             }
             //下单（保证一致性）
@@ -118,16 +128,82 @@ public class NormalPlaceOrderService implements PlaceOrderService {
             }
         } catch (Exception e) {
             //恢复redis库存值
-            if (preDecreaseStockSuccess) {
-                boolean recoverStockSuccess = itemStockCacheService.increaseItemStock(stockDeduction);
-                if (!recoverStockSuccess) {
-                    logger.error("placeOrder|预扣库存恢复失败|{},{}", userId, JSON.toJSONString(placeOrderCommand), e);
-                }
+            boolean recoverStockSuccess = itemStockCacheService.releaseItemStockReservation(stockDeduction);
+            if (!recoverStockSuccess) {
+                logger.error("placeOrder|预扣库存恢复失败|{},{}", userId, JSON.toJSONString(placeOrderCommand), e);
             }
             logger.error("placeOrder|下单失败|{},{}", userId, JSON.toJSONString(placeOrderCommand), e);
             throw new BizException(PLACE_ORDER_FAILED.getErrDesc());
         }
+        confirmStockReservationAfterCommit(stockDeduction);
         logger.info("placeOrder|下单成功|{},{}", userId, orderId);
         return PlaceOrderResult.ok(orderId);
     }
+
+    /**
+     * 完整的下单校验和库存预扣减，未通过时返回失败结果
+     */
+    private PlaceOrderResult checkAndPreDecreaseStock(Long userId, FlashPlaceOrderCommand placeOrderCommand, FlashOrder flashOrderToPlace,
+                                                      StockDeduction stockDeduction) {
+        //下单校验只读取本地下单快照，不再查询活动和秒杀品缓存
+        PlaceOrderSnapshot snapshot = placeOrderSnapshotService.getSnapshot(placeOrderCommand.getItemId());
+        if (snapshot == null) {
+            return PlaceOrderResult.failed(ITEM_NOT_FOUND);
+        }
+        long now = System.currentTimeMillis();
+        if (!snapshot.isActivityAllowPlaceOrder(placeOrderCommand.getActivityId(), now)) {
+            logger.info("placeOrder|秒杀活动下单规则校验未通过|{},{}", userId, placeOrderCommand.getActivityId());
+            return PlaceOrderResult.failed(PLACE_ORDER_FAILED);
+        }
+        if (!snapshot.isItemAllowPlaceOrder(now)) {
+            logger.info("placeOrder|秒杀品下单规则校验未通过|{},{}", userId, placeOrderCommand.getActivityId());
+            return PlaceOrderResult.failed(PLACE_ORDER_FAILED);
+        }
+        flashOrderToPlace.setItemTitle(snapshot.getItemTitle());
+        flashOrderToPlace.setFlashPrice(snapshot.getFlashPrice());
+
+        //执行扣库存逻辑
+        //预扣库存，通过redis缓存完成，没有走本地缓存（最大程度降低延迟导致的不一致），通过lua脚本保证原子执行
+        //缓存预扣库存是为了减少数据库压力；重复下单时直接抛出异常
+        boolean preDecreaseStockSuccess = itemStockCacheService.decreaseItemStock(stockDeduction);
+        if (!preDecreaseStockSuccess) {
+            logger.info("placeOrder|库存预扣减失败|{},{}", userId, JSON.toJSONString(placeOrderCommand));
+            return PlaceOrderResult.failed(PLACE_ORDER_FAILED.getErrCode(), PLACE_ORDER_FAILED.getErrDesc());
+        }
+        return null;
+    }
+
+    private boolean isReservationExpiring(StockDeduction stockDeduction) {
+        Long reservationExpireTime = stockDeduction.getReservationExpireTime();
+        return reservationExpireTime != null && System.currentTimeMillis() >= reservationExpireTime - reservationCommitMarginMillis;
+    }
+
+    /**
+     * 库存预留在下单事务提交后确认，事务回滚时释放；不在事务中时直接确认
+     * 提交前预留即将过期时回滚事务，过期的预留可能已被清理任务释放
+     */
+    private void confirmStockReservationAfterCommit(StockDeduction stockDeduction) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            itemStockCacheService.confirmItemStockReservation(stockDeduction);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void beforeCommit(boolean readOnly) {
+                if (isReservationExpiring(stockDeduction)) {
+                    logger.info("placeOrder|库存预留即将过期，回滚下单|{}", stockDeduction.getOrderId());
+                    throw new BizException(PLACE_ORDER_FAILED.getErrDesc());
+                }
+            }
+
+            @Override
+            public void afterCompletion(int status) {
+                if (status == TransactionSynchronization.STATUS_COMMITTED) {
+                    itemStockCacheService.confirmItemStockReservation(stockDeduction);
+                } else {
+                    itemStockCacheService.releaseItemStockReservation(stockDeduction);
+                }
+            }
+        });
+    }
 }
@@ -0,0 +1,60 @@
+package com.actionworks.flashsale.app.service.placeorder.normal.cache;
+
+import com.actionworks.flashsale.domain.model.entity.FlashItem;
+import com.actionworks.flashsale.domain.service.FlashItemDomainService;
+import com.actionworks.flashsale.domain.service.FlashOrderDomainService;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 库存校准的数据库读取
+ * 秒杀品表与订单分片在不同的数据源，两次读取不是同一个快照。先读预留订单是否已落库、再读秒杀品库存：
+ * 两次读取之间提交的订单已从库存中扣减，又仍按预留计入，预期库存只会偏少不会偏多，不会因校准而超卖；
+ * 偏少的部分在订单提交、预留移除后的下一次校准中恢复。
+ */
+@Component
+@ConditionalOnProperty(name = "ItemStockCacheService", havingValue = "normal", matchIfMissing = true)
+public class ItemStockReconcileReader {
+    private static final int ORDER_IDS_BATCH_SIZE = 500;
+
+    @Resource
+    private FlashItemDomainService flashItemDomainService;
+    @Resource
+    private FlashOrderDomainService flashOrderDomainService;
+
+    public ReconcileRead read(Long itemId, List<Long> reservedOrderIds) {
+        Set<Long> placedOrderIds = new HashSet<>();
+        for (int i = 0; i < reservedOrderIds.size(); i += ORDER_IDS_BATCH_SIZE) {
+            List<Long> batch = reservedOrderIds.subList(i, Math.min(i + ORDER_IDS_BATCH_SIZE, reservedOrderIds.size()));
+            placedOrderIds.addAll(flashOrderDomainService.getPlacedOrderIds(itemId, batch));
+        }
+        FlashItem flashItem = flashItemDomainService.getFlashItem(itemId);
+        return new ReconcileRead(flashItem, placedOrderIds);
+    }
+
+    public static class ReconcileRead {
+        private final FlashItem flashItem;
+        private final Set<Long> placedOrderIds;
+
+        ReconcileRead(FlashItem flashItem, Set<Long> placedOrderIds) {
+            this.flashItem = flashItem;
+            this.placedOrderIds = placedOrderIds;
+        }
+
+        public FlashItem getFlashItem() {
+            return flashItem;
+        }
+
+        /**
+         * 预留中订单已在数据库提交的部分，数据库可用库存中已扣减
+         */
+        public Set<Long> getPlacedOrderIds() {
+            return placedOrderIds;
+        }
+    }
+}
@@ -1,92 +1,103 @@
 package com.actionworks.flashsale.app.service.placeorder.normal.cache;
 
+import com.actionworks.flashsale.app.exception.BizException;
+import com.actionworks.flashsale.app.service.stock.ItemSoldOutService;
 import com.actionworks.flashsale.app.service.stock.ItemStockCacheService;
 import com.actionworks.flashsale.app.service.stock.model.ItemStockCache;
 import com.actionworks.flashsale.app.util.MultiPlaceOrderTypesCondition;
+import com.actionworks.flashsale.app.service.placeorder.normal.cache.ItemStockReconcileReader.ReconcileRead;
 import com.actionworks.flashsale.cache.DistributedCacheService;
 import com.actionworks.flashsale.cache.redis.RedisCacheService;
+import com.actionworks.flashsale.cache.redis.RedisScriptRegistry;
+import com.actionworks.flashsale.cache.redis.RedisScriptResult;
 import com.actionworks.flashsale.domain.model.StockDeduction;
 import com.actionworks.flashsale.domain.model.entity.FlashItem;
-import com.actionworks.flashsale.domain.service.FlashItemDomainService;
 import com.alibaba.fastjson.JSON;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.Lists;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Conditional;
-import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
+import static com.actionworks.flashsale.app.exception.AppErrorCode.REDUNDANT_SUBMIT;
+import static com.actionworks.flashsale.cache.redis.RedisLuaScript.ALIGN_ITEM_STOCK;
+import static com.actionworks.flashsale.cache.redis.RedisLuaScript.CONFIRM_ITEM_STOCK_RESERVATION;
+import static com.actionworks.flashsale.cache.redis.RedisLuaScript.DECREASE_ITEM_STOCK;
+import static com.actionworks.flashsale.cache.redis.RedisLuaScript.INCREASE_ITEM_STOCK;
+import static com.actionworks.flashsale.cache.redis.RedisLuaScript.RELEASE_ITEM_STOCK_RESERVATION;
+import static com.actionworks.flashsale.cache.redis.RedisLuaScript.RENEW_ITEM_STOCK_RESERVATIONS;
+import static com.actionworks.flashsale.cache.redis.RedisLuaScript.SNAPSHOT_ITEM_STOCK;
 import static com.actionworks.flashsale.util.StringUtil.link;
 
 @Service
 @ConditionalOnProperty(name = "ItemStockCacheService", havingValue = "normal", matchIfMissing = true)
 public class NormalStockCacheService implements ItemStockCacheService {
     private static final String ITEM_STOCK_ALIGN_LOCK_KEY = "ITEM_STOCK_ALIGN_LOCK_KEY";
+    private static final String ITEM_STOCK_ALIGN_VERSION_KEY = "ITEM_STOCK_ALIGN_VERSION_KEY";
+    private static final String ITEM_STOCK_RESERVED_KEY = "ITEM_STOCK_RESERVED_KEY";
+    private static final String ITEM_STOCK_RESERVATIONS_KEY = "ITEM_STOCK_RESERVATIONS_KEY";
+    private static final String ITEM_STOCK_RESERVATION_EXPIRE_KEY = "ITEM_STOCK_RESERVATION_EXPIRE_KEY";
+    private static final String PLACE_ORDER_DEDUPE_KEY = "PLACE_ORDER_DEDUPE_KEY";
+    private static final String PLACE_ORDER_USER_QUANTITY_KEY = "PLACE_ORDER_USER_QUANTITY_KEY";
+    private static final String STOCK_RECONCILE_DRIFT_METRIC = "stock.reconcile.drift";
     private static final Logger logger = LoggerFactory.getLogger(NormalStockCacheService.class);
-    private static final int IN_STOCK_ALIGNING = -9;
-    private static final String INIT_OR_ALIGN_ITEM_STOCK_LUA;
-    private static final String INCREASE_ITEM_STOCK_LUA;
-    private static final String DECREASE_ITEM_STOCK_LUA;
     private final static Cache<Long, ItemStockCache> itemStockLocalCache = CacheBuilder.newBuilder().initialCapacity(10).concurrencyLevel(5).expireAfterWrite(10, TimeUnit.SECONDS).build();
     private static final String ITEM_STOCKS_CACHE_KEY = "ITEM_STOCKS_CACHE_KEY";
+    //各秒杀品最近一次校准后的库存快照，快照未变化时跳过数据库查询
+    private final Map<Long, ReconcileWatermark> reconcileWatermarks = new ConcurrentHashMap<>();
 
-    static {
-        //这个LUA脚本没有设置TTL
-        INIT_OR_ALIGN_ITEM_STOCK_LUA = "if (redis.call('exists', KEYS[2]) == 1) then" +
-                "    return -997;" +
-                "end;" +
-                "redis.call('set', KEYS[2] , 1);" +
-                "local stockNumber = tonumber(ARGV[1]);" +
-                "redis.call('set', KEYS[1] , stockNumber);" +
-                "redis.call('del', KEYS[2]);" +
-                "return 1";
-
-        INCREASE_ITEM_STOCK_LUA = "if (redis.call('exists', KEYS[2]) == 1) then" +
-                "    return -9;" +
-                "end;" +
-                "if (redis.call('exists', KEYS[1]) == 1) then" +
-                "    local stock = tonumber(redis.call('get', KEYS[1]));" +
-                "    local num = tonumber(ARGV[1]);" +
-                "    redis.call('incrby', KEYS[1] , num);" +
-                "    return 1;" +
-                "end;" +
-                "return -1;";
-
-
-        DECREASE_ITEM_STOCK_LUA = "if (redis.call('exists', KEYS[2]) == 1) then" +
-                "    return -9;" +
-                "end;" +
-                "if (redis.call('exists', KEYS[1]) == 1) then" +
-                "    local stock = tonumber(redis.call('get', KEYS[1]));" +
-                "    local num = tonumber(ARGV[1]);" +
-                "    if (stock < num) then" +
-                "        return -3" +
-                "    end;" +
-                "    if (stock >= num) then" +
-                "        redis.call('incrby', KEYS[1], 0 - num);" +
-                "        return 1" +
-                "    end;" +
-                "    return -2;" +
-                "end;" +
-                "return -1;";
-    }
+    //快照未变化时也要定期与数据库全量核对的间隔，单位秒
+    @Value("${stock.reconcile.full-interval-seconds:60}")
+    private long fullReconcileIntervalSeconds;
+    //库存预留的有效期，超时未确认或释放的预留由清理任务回收，单位秒
+    @Value("${stock.reservation.ttl-seconds:60}")
+    private long reservationTtlSeconds;
+    //下单成功后用户下单防重标记的保留时间，期间同一用户不能再次购买该秒杀品；为0时立即清除，单位秒
+    @Value("${order.dedupe.confirmed-ttl-seconds:0}")
+    private long dedupeConfirmedTtlSeconds;
 
     @Resource
-    private RedisCacheService redisCacheService;
-    @Resource
-    private FlashItemDomainService flashItemDomainService;
+    private RedisScriptRegistry redisScriptRegistry;
     @Resource
     private DistributedCacheService distributedCacheService;
+    @Resource
+    private ItemSoldOutService itemSoldOutService;
+    @Resource
+    private StockDeductionCoalescer stockDeductionCoalescer;
+    @Resource
+    private MeterRegistry meterRegistry;
+    @Resource
+    private RedisCacheService redisCacheService;
+    @Resource
+    private ItemStockReconcileReader itemStockReconcileReader;
 
-    //矫正库存缓存数据
+    /**
+     * 矫正库存缓存数据
+     * 校准不再设置校准标记，扣减和恢复无需等待：先读取库存快照、校准版本号和预留数量，再查询数据库，
+     * 以修正量（数据库可用库存 - 未落库的预留数量 - 快照库存）原子地应用到库存缓存上，快照之后的扣减和恢复都会保留；
+     * 未落库的预留是已预扣减但订单尚未在数据库提交的库存，数据库中还未扣减，不能算作偏差；
+     * 订单提交后才确认预留，台账中可能有订单已落库的预留，它们在数据库中已扣减，需从预留数量中剔除。
+     * 台账在快照之后读取，秒杀品库存和台账中订单是否落库在同一个数据库事务中读取，二者对应同一时刻；
+     * 快照之后才预扣减并已落库的订单也在台账中，剔除后恰好抵消数据库中的扣减，残余误差只会使库存偏少，下次校准恢复；
+     * 快照与上次校准后的结果一致时说明期间没有任何变化，跳过数据库查询，但每隔一段时间仍全量核对一次；
+     * 各节点都会执行校准，版本号不一致时说明其他节点已完成校准，本次放弃
+     */
     @Override
     public boolean alignItemStocks(Long itemId) {
         if (itemId == null) {
@@ -94,8 +105,28 @@ public class NormalStockCacheService implements ItemStockCacheService {
             return false;
         }
         try {
+            String key1ItemStocksCacheKey = getItemStocksCacheKey(itemId);
+            String key2ItemStocksAlignVersionKey = getItemStocksAlignVersionKey(itemId);
+            String key3ItemStocksReservedKey = getItemStocksReservedKey(itemId);
+            //先取快照再查数据库，快照之后的变化由修正量方式保留
+            List<Long> snapshot = redisScriptRegistry.executeForList(SNAPSHOT_ITEM_STOCK,
+                    Lists.newArrayList(key1ItemStocksCacheKey, key2ItemStocksAlignVersionKey, key3ItemStocksReservedKey));
+            boolean snapshotExists = snapshot.get(0) == 1;
+            long snapshotStock = snapshot.get(1);
+            long snapshotVersion = snapshot.get(2);
+            long snapshotReserved = snapshot.get(3);
+            ReconcileWatermark watermark = reconcileWatermarks.get(itemId);
+            if (snapshotExists && watermark != null && watermark.isUnchanged(snapshotStock, snapshotVersion, snapshotReserved, fullReconcileIntervalSeconds)) {
+                logger.debug("alignItemStocks|库存缓存无变化，跳过校准|{},{}", itemId, snapshotVersion);
+                if (snapshotStock > 0) {
+                    itemSoldOutService.clearLocalSoldOut(itemId);
+                }
+                return true;
+            }
+            Map<Long, Integer> reservationLedger = getReservationLedger(itemId);
             //从数据库中直接查询
-            FlashItem flashItem = flashItemDomainService.getFlashItem(itemId);
+            ReconcileRead reconcileRead = itemStockReconcileReader.read(itemId, new ArrayList<>(reservationLedger.keySet()));
+            FlashItem flashItem = reconcileRead.getFlashItem();
             if (flashItem == null) {
                 logger.info("alignItemStocks|秒杀品不存在|{}", itemId);
                 return false;
@@ -104,25 +135,34 @@ public class NormalStockCacheService implements ItemStockCacheService {
                 logger.info("alignItemStocks|秒杀品未设置库存|{}", itemId);
                 return false;
             }
-            String key1ItemStocksCacheKey = getItemStocksCacheKey(itemId);
-            //加锁的key
-            String key2ItemStocksAlignKey = getItemStocksCacheAlignKey(itemId);
-            List<String> keys = Lists.newArrayList(key1ItemStocksCacheKey, key2ItemStocksAlignKey);
-
-            DefaultRedisScript<Long> redisScript = new DefaultRedisScript<>(INIT_OR_ALIGN_ITEM_STOCK_LUA, Long.class);
-            Long result = redisCacheService.getRedisTemplate().execute(redisScript, keys, flashItem.getAvailableStock());
-            if (result == null) {
-                logger.info("alignItemStocks|秒杀品库存校准失败|{},{},{}", itemId, key1ItemStocksCacheKey, flashItem.getInitialStock());
-                return false;
-            }
-            if (result == -997) {
-                logger.info("alignItemStocks|已在校准中，本次校准取消|{},{},{},{}", result, itemId, key1ItemStocksCacheKey, flashItem.getInitialStock());
+            long placedReserved = reconcileRead.getPlacedOrderIds().stream().mapToLong(reservationLedger::get).sum();
+            long inFlightReserved = snapshotReserved - placedReserved;
+            long expectedStock = Math.max(0, flashItem.getAvailableStock() - inFlightReserved);
+            long delta = snapshotExists ? flashItem.getAvailableStock() - inFlightReserved - snapshotStock : 0;
+
+            List<String> keys = Lists.newArrayList(key1ItemStocksCacheKey, key2ItemStocksAlignVersionKey);
+            RedisScriptResult result = redisScriptRegistry.execute(ALIGN_ITEM_STOCK, keys, snapshotVersion, delta, expectedStock);
+            if (result == RedisScriptResult.ALIGNING) {
+                logger.debug("alignItemStocks|已由其他节点校准，本次校准取消|{},{}", itemId, snapshotVersion);
+                if (snapshotExists && snapshotStock > 0) {
+                    itemSoldOutService.clearLocalSoldOut(itemId);
+                }
                 return true;
             }
-            if (result == 1) {
-                logger.debug("alignItemStocks|秒杀品库存校准完成|{},{},{},{}", result, itemId, key1ItemStocksCacheKey, flashItem.getInitialStock());
+            if (result.isSuccess()) {
+                long alignedStock = snapshotExists ? snapshotStock + delta : expectedStock;
+                reconcileWatermarks.put(itemId, new ReconcileWatermark(alignedStock, snapshotVersion + 1, snapshotReserved));
+                if (delta != 0) {
+                    logger.info("alignItemStocks|秒杀品库存存在偏差，已修正|{},{},{}", itemId, snapshotStock, delta);
+                    recordDrift(itemId, delta);
+                }
+                logger.debug("alignItemStocks|秒杀品库存校准完成|{},{},{}", itemId, flashItem.getAvailableStock(), delta);
+                if (alignedStock > 0) {
+                    itemSoldOutService.clearSoldOut(itemId);
+                }
                 return true;
             }
+            logger.info("alignItemStocks|秒杀品库存校准失败|{},{},{}", result, itemId, key1ItemStocksCacheKey);
             return false;
         } catch (Exception e) {
             logger.error("alignItemStocks|秒杀品库存校准错误|{}", itemId, e);
@@ -130,47 +170,58 @@ public class NormalStockCacheService implements ItemStockCacheService {
         }
     }
 
+    /**
+     * 预扣减脚本中以SET NX PX设置用户下单防重标记，同一用户对同一秒杀品已有进行中的订单时拒绝，无需再加用户锁
+     */
+    @Override
+    public boolean isDuplicateOrderGuarded() {
+        return true;
+    }
+
     @Override
     public boolean decreaseItemStock(StockDeduction stockDeduction) {
         logger.info("decreaseItemStock|申请库存预扣减|{}", JSON.toJSONString(stockDeduction));
         if (stockDeduction == null || !stockDeduction.validate()) {
             return false;
         }
+        //预留以订单ID记账，没有订单ID无法保证确认和释放只执行一次
+        if (stockDeduction.getOrderId() == null) {
+            logger.info("decreaseItemStock|缺少订单ID|{}", JSON.toJSONString(stockDeduction));
+            return false;
+        }
+        Long itemId = stockDeduction.getItemId();
+        String key1ItemStocksCacheKey = getItemStocksCacheKey(itemId);
+        RedisScriptResult result;
         try {
-            String key1ItemStocksCacheKey = getItemStocksCacheKey(stockDeduction.getItemId());
-            String key2ItemStocksCacheAlignKey = getItemStocksCacheAlignKey(stockDeduction.getItemId());
-            List<String> keys = Lists.newArrayList(key1ItemStocksCacheKey, key2ItemStocksCacheAlignKey);
-            DefaultRedisScript<Long> redisScript = new DefaultRedisScript<>(DECREASE_ITEM_STOCK_LUA, Long.class);
-            Long result = null;
-            long startTime = System.currentTimeMillis();
-            while ((result == null || result == IN_STOCK_ALIGNING) && (System.currentTimeMillis() - startTime) < 1500) {
-                //通过lua脚本执行扣减库存
-                result = redisCacheService.getRedisTemplate().execute(redisScript, keys, stockDeduction.getQuantity());
-                if (result == null) {
-                    logger.info("decreaseItemStock|库存扣减失败|{}", key1ItemStocksCacheKey);
-                    return false;
-                }
-                if (result == IN_STOCK_ALIGNING) {
-                    logger.info("decreaseItemStock|库存校准中|{}", key1ItemStocksCacheKey);
-                    Thread.sleep(20);
-                }
-                if (result == -1 || result == -2) {
-                    logger.info("decreaseItemStock|库存扣减失败|{}", key1ItemStocksCacheKey);
-                    return false;
-                }
-                if (result == -3) {
-                    logger.info("decreaseItemStock|库存扣减失败|{}", key1ItemStocksCacheKey);
-                    return false;
-                }
-                if (result == 1) {
-                    logger.info("decreaseItemStock|库存扣减成功|{}", key1ItemStocksCacheKey);
-                    return true;
-                }
+            List<String> keys = Lists.newArrayList(key1ItemStocksCacheKey, getItemStocksReservedKey(itemId),
+                    getItemStockReservationsKey(itemId), getItemStockReservationExpireKey(itemId));
+            String dedupeKey = getPlaceOrderDedupeKey(stockDeduction.getUserId(), itemId);
+            long reservationTtlMillis = TimeUnit.SECONDS.toMillis(reservationTtlSeconds);
+            stockDeduction.setReservationExpireTime(System.currentTimeMillis() + reservationTtlMillis);
+            Object[] args = {stockDeduction.getQuantity(), String.valueOf(stockDeduction.getOrderId()), String.valueOf(stockDeduction.getUserId()),
+                    stockDeduction.getReservationExpireTime(), reservationTtlMillis};
+            //通过lua脚本执行扣减库存，开启合并时与同一秒杀品的并发请求合并为一次调用
+            if (stockDeductionCoalescer.isEnabled()) {
+                result = stockDeductionCoalescer.decrease(itemId, keys, Lists.newArrayList(dedupeKey), args);
+            } else {
+                keys.add(dedupeKey);
+                result = redisScriptRegistry.execute(DECREASE_ITEM_STOCK, keys, args);
             }
         } catch (Exception e) {
             logger.error("decreaseItemStock|库存扣减失败", e);
             return false;
         }
+        if (result.isSuccess()) {
+            logger.info("decreaseItemStock|库存扣减成功|{}", key1ItemStocksCacheKey);
+            return true;
+        }
+        logger.info("decreaseItemStock|库存扣减失败|{},{}", result, key1ItemStocksCacheKey);
+        if (result == RedisScriptResult.DUPLICATED) {
+            throw new BizException(REDUNDANT_SUBMIT);
+        }
+        if (result == RedisScriptResult.INSUFFICIENT) {
+            markSoldOutIfEmpty(itemId, key1ItemStocksCacheKey);
+        }
         return false;
     }
 
@@ -181,36 +232,90 @@ public class NormalStockCacheService implements ItemStockCacheService {
         }
         try {
             String key1ItemStocksCacheKey = getItemStocksCacheKey(stockDeduction.getItemId());
-            String key2ItemStocksCacheAlignKey = getItemStocksCacheAlignKey(stockDeduction.getItemId());
-            List<String> keys = Lists.newArrayList(key1ItemStocksCacheKey, key2ItemStocksCacheAlignKey);
-
-            DefaultRedisScript<Long> redisScript = new DefaultRedisScript<>(INCREASE_ITEM_STOCK_LUA, Long.class);
-            Long result = null;
-            long startTime = System.currentTimeMillis();
-            while ((result == null || result == IN_STOCK_ALIGNING) && (System.currentTimeMillis() - startTime) < 1500) {
-                result = redisCacheService.getRedisTemplate().execute(redisScript, keys, stockDeduction.getQuantity());
-                if (result == null) {
-                    logger.info("increaseItemStock|库存增加失败|{}", key1ItemStocksCacheKey);
-                    return false;
-                }
-                if (result == IN_STOCK_ALIGNING) {
-                    logger.info("increaseItemStock|库存校准中|{}", key1ItemStocksCacheKey);
-                    Thread.sleep(20);
-                }
-                if (result == -1) {
-                    logger.info("increaseItemStock|库存增加失败|{}", key1ItemStocksCacheKey);
-                    return false;
-                }
-                if (result == 1) {
-                    logger.info("increaseItemStock|库存增加成功|{}", key1ItemStocksCacheKey);
-                    return true;
-                }
+            List<String> keys = Lists.newArrayList(key1ItemStocksCacheKey);
+            RedisScriptResult result = redisScriptRegistry.execute(INCREASE_ITEM_STOCK, keys, stockDeduction.getQuantity());
+            if (result.isSuccess()) {
+                logger.info("increaseItemStock|库存增加成功|{}", key1ItemStocksCacheKey);
+                itemSoldOutService.clearSoldOut(stockDeduction.getItemId());
+                return true;
             }
+            logger.info("increaseItemStock|库存增加失败|{},{}", result, key1ItemStocksCacheKey);
+            return false;
         } catch (Exception e) {
             logger.error("increaseItemStock|库存增加失败", e);
             return false;
         }
-        return false;
+    }
+
+    @Override
+    public boolean confirmItemStockReservation(StockDeduction stockDeduction) {
+        if (stockDeduction == null || !stockDeduction.validate() || stockDeduction.getOrderId() == null) {
+            return false;
+        }
+        try {
+            Long itemId = stockDeduction.getItemId();
+            List<String> keys = Lists.newArrayList(getItemStocksReservedKey(itemId), getItemStockReservationsKey(itemId),
+                    getItemStockReservationExpireKey(itemId), getPlaceOrderDedupeKey(stockDeduction.getUserId(), itemId));
+            RedisScriptResult result = redisScriptRegistry.execute(CONFIRM_ITEM_STOCK_RESERVATION, keys, String.valueOf(stockDeduction.getOrderId()),
+                    TimeUnit.SECONDS.toMillis(dedupeConfirmedTtlSeconds));
+            if (result.isSuccess()) {
+                return true;
+            }
+            logger.info("confirmItemStockReservation|库存预留确认失败|{},{},{}", result, itemId, stockDeduction.getOrderId());
+            return false;
+        } catch (Exception e) {
+            logger.error("confirmItemStockReservation|库存预留确认失败|{}", stockDeduction.getOrderId(), e);
+            return false;
+        }
+    }
+
+    @Override
+    public boolean releaseItemStockReservation(StockDeduction stockDeduction) {
+        if (stockDeduction == null || !stockDeduction.validate() || stockDeduction.getOrderId() == null) {
+            return false;
+        }
+        try {
+            Long itemId = stockDeduction.getItemId();
+            String key1ItemStocksCacheKey = getItemStocksCacheKey(itemId);
+            List<String> keys = Lists.newArrayList(key1ItemStocksCacheKey, getItemStocksReservedKey(itemId), getItemStockReservationsKey(itemId),
+                    getItemStockReservationExpireKey(itemId), getPlaceOrderDedupeKey(stockDeduction.getUserId(), itemId),
+                    getPlaceOrderUserQuantityKey(stockDeduction.getUserId(), itemId));
+            RedisScriptResult result = redisScriptRegistry.execute(RELEASE_ITEM_STOCK_RESERVATION, keys, String.valueOf(stockDeduction.getOrderId()));
+            if (result.isSuccess()) {
+                logger.info("releaseItemStockReservation|库存预留已释放|{},{}", key1ItemStocksCacheKey, stockDeduction.getOrderId());
+                itemSoldOutService.clearSoldOut(itemId);
+                return true;
+            }
+            //预留已释放，只是库存缓存不存在未归还，库存由下次校准按数据库重新初始化
+            if (result == RedisScriptResult.NOT_EXIST) {
+                logger.info("releaseItemStockReservation|库存预留已释放，库存缓存不存在|{},{}", key1ItemStocksCacheKey, stockDeduction.getOrderId());
+                return true;
+            }
+            logger.info("releaseItemStockReservation|库存预留释放失败|{},{},{}", result, key1ItemStocksCacheKey, stockDeduction.getOrderId());
+            return false;
+        } catch (Exception e) {
+            logger.error("releaseItemStockReservation|库存预留释放失败|{}", stockDeduction.getOrderId(), e);
+            return false;
+        }
+    }
+
+    @Override
+    public boolean renewItemStockReservations(Long itemId, List<Long> orderIds) {
+        if (itemId == null || orderIds == null || orderIds.isEmpty()) {
+            return true;
+        }
+        try {
+            List<String> keys = Lists.newArrayList(getItemStockReservationsKey(itemId), getItemStockReservationExpireKey(itemId));
+            List<Object> args = new ArrayList<>(orderIds.size() + 1);
+            args.add(System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(reservationTtlSeconds));
+            orderIds.forEach(orderId -> args.add(String.valueOf(orderId)));
+            Long renewed = redisScriptRegistry.executeForLong(RENEW_ITEM_STOCK_RESERVATIONS, keys, args.toArray());
+            logger.info("renewItemStockReservations|库存预留已续期|{},{},{}", itemId, orderIds.size(), renewed);
+            return true;
+        } catch (Exception e) {
+            logger.error("renewItemStockReservations|库存预留续期失败|{}", itemId, e);
+            return false;
+        }
     }
 
     @Override
@@ -225,16 +330,94 @@ public class NormalStockCacheService implements ItemStockCacheService {
         if (availableStock == null) {
             return null;
         }
+        if (availableStock > 0) {
+            itemSoldOutService.clearLocalSoldOut(itemId);
+        }
         itemStockCache = new ItemStockCache().with(availableStock);
         itemStockLocalCache.put(itemId, itemStockCache);
         return itemStockCache;
     }
 
+    /**
+     * 读取库存预留台账，订单ID到预留数量；台账由脚本写入原始字符串，按字节读取
+     */
+    private Map<Long, Integer> getReservationLedger(Long itemId) {
+        byte[] reservationsKey = getItemStockReservationsKey(itemId).getBytes(StandardCharsets.UTF_8);
+        Map<byte[], byte[]> entries = redisCacheService.getRedisTemplate().execute((RedisCallback<Map<byte[], byte[]>>) connection -> connection.hGetAll(reservationsKey));
+        Map<Long, Integer> reservationLedger = new HashMap<>();
+        if (entries == null) {
+            return reservationLedger;
+        }
+        //台账记录格式：数量_用户ID
+        entries.forEach((orderId, entry) -> reservationLedger.put(Long.valueOf(new String(orderId, StandardCharsets.UTF_8)),
+                Integer.valueOf(new String(entry, StandardCharsets.UTF_8).split("_")[0])));
+        return reservationLedger;
+    }
+
+    //库存不足可能只是购买数量大于剩余库存，剩余库存为0时才标记售罄
+    private void markSoldOutIfEmpty(Long itemId, String itemStocksCacheKey) {
+        String availableStock = distributedCacheService.getString(itemStocksCacheKey);
+        if (availableStock != null && Integer.parseInt(availableStock) <= 0) {
+            itemSoldOutService.markSoldOut(itemId);
+        }
+    }
+
+    private void recordDrift(Long itemId, long delta) {
+        try {
+            meterRegistry.counter(STOCK_RECONCILE_DRIFT_METRIC, "itemId", String.valueOf(itemId), "direction", delta > 0 ? "up" : "down")
+                    .increment(Math.abs(delta));
+        } catch (Exception e) {
+            logger.error("alignItemStocks|库存偏差指标记录失败|{}", itemId, e);
+        }
+    }
+
     public static String getItemStocksCacheAlignKey(Long itemId) {
         return link(ITEM_STOCK_ALIGN_LOCK_KEY, itemId);
     }
 
+    public static String getItemStocksAlignVersionKey(Long itemId) {
+        return link(ITEM_STOCK_ALIGN_VERSION_KEY, itemId);
+    }
+
     public static String getItemStocksCacheKey(Long itemId) {
         return link(ITEM_STOCKS_CACHE_KEY, itemId);
     }
+
+    public static String getItemStocksReservedKey(Long itemId) {
+        return link(ITEM_STOCK_RESERVED_KEY, itemId);
+    }
+
+    public static String getItemStockReservationsKey(Long itemId) {
+        return link(ITEM_STOCK_RESERVATIONS_KEY, itemId);
+    }
+
+    public static String getItemStockReservationExpireKey(Long itemId) {
+        return link(ITEM_STOCK_RESERVATION_EXPIRE_KEY, itemId);
+    }
+
+    public static String getPlaceOrderDedupeKey(Long userId, Long itemId) {
+        return link(PLACE_ORDER_DEDUPE_KEY, userId, itemId);
+    }
+
+    public static String getPlaceOrderUserQuantityKey(Long userId, Long itemId) {
+        return link(PLACE_ORDER_USER_QUANTITY_KEY, userId, itemId);
+    }
+
+    private static class ReconcileWatermark {
+        private final long stock;
+        private final long version;
+        private final long reserved;
+        private final long reconciledAt = System.currentTimeMillis();
+
+        ReconcileWatermark(long stock, long version, long reserved) {
+            this.stock = stock;
+            this.version = version;
+            this.reserved = reserved;
+        }
+
+        boolean isUnchanged(long stock, long version, long reserved, long fullIntervalSeconds) {
+            return this.stock == stock && this.version == version && this.reserved == reserved
+                    && System.currentTimeMillis() - reconciledAt < TimeUnit.SECONDS.toMillis(fullIntervalSeconds);
+        }
+    }
 }
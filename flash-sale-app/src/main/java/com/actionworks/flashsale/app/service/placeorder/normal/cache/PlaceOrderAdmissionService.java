@@ -0,0 +1,255 @@
+package com.actionworks.flashsale.app.service.placeorder.normal.cache;
+
+import com.actionworks.flashsale.app.exception.AppErrorCode;
+import com.actionworks.flashsale.app.model.command.FlashPlaceOrderCommand;
+import com.actionworks.flashsale.app.service.placeorder.snapshot.PlaceOrderSnapshot;
+import com.actionworks.flashsale.app.service.placeorder.snapshot.PlaceOrderSnapshotService;
+import com.actionworks.flashsale.app.service.stock.ItemSoldOutService;
+import com.actionworks.flashsale.app.service.stock.ItemStockCacheService;
+import com.actionworks.flashsale.cache.redis.RedisScriptRegistry;
+import com.actionworks.flashsale.cache.redis.RedisScriptResult;
+import com.actionworks.flashsale.domain.model.PageResult;
+import com.actionworks.flashsale.domain.model.PagesQueryCondition;
+import com.actionworks.flashsale.domain.model.StockDeduction;
+import com.actionworks.flashsale.domain.model.entity.FlashActivity;
+import com.actionworks.flashsale.domain.model.entity.FlashItem;
+import com.actionworks.flashsale.domain.model.entity.FlashOrder;
+import com.actionworks.flashsale.domain.model.enums.FlashItemStatus;
+import com.actionworks.flashsale.domain.service.FlashActivityDomainService;
+import com.actionworks.flashsale.domain.service.FlashItemDomainService;
+import com.google.common.collect.Lists;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static com.actionworks.flashsale.app.exception.AppErrorCode.EXCEED_PURCHASE_LIMIT;
+import static com.actionworks.flashsale.app.exception.AppErrorCode.PLACE_ORDER_FAILED;
+import static com.actionworks.flashsale.app.exception.AppErrorCode.REDUNDANT_SUBMIT;
+import static com.actionworks.flashsale.app.model.builder.FlashOrderAppBuilder.toDomain;
+import static com.actionworks.flashsale.app.service.placeorder.normal.cache.NormalStockCacheService.getItemStockReservationExpireKey;
+import static com.actionworks.flashsale.app.service.placeorder.normal.cache.NormalStockCacheService.getItemStockReservationsKey;
+import static com.actionworks.flashsale.app.service.placeorder.normal.cache.NormalStockCacheService.getItemStocksCacheKey;
+import static com.actionworks.flashsale.app.service.placeorder.normal.cache.NormalStockCacheService.getItemStocksReservedKey;
+import static com.actionworks.flashsale.app.service.placeorder.normal.cache.NormalStockCacheService.getPlaceOrderDedupeKey;
+import static com.actionworks.flashsale.app.service.placeorder.normal.cache.NormalStockCacheService.getPlaceOrderUserQuantityKey;
+import static com.actionworks.flashsale.cache.redis.RedisLuaScript.ADMIT_PLACE_ORDER;
+import static com.actionworks.flashsale.cache.redis.RedisLuaScript.COMPILE_PLACE_ORDER_ADMISSION;
+import static com.actionworks.flashsale.util.StringUtil.link;
+
+/**
+ * 下单准入
+ * 将秒杀品和所属活动的上线状态、秒杀时段、秒杀价和限购数量编译为Redis中的准入记录，秒杀品变更时和定时任务中重新编译；
+ * 下单时一次Lua调用完成准入校验、限购、防重和库存预扣减，不再逐项查询活动和秒杀品。
+ * 准入记录或库存缓存不存在时返回跳过，由调用方走完整的下单校验。仅在缓存预扣减使用默认实现时生效。
+ */
+@Component
+public class PlaceOrderAdmissionService {
+    private static final Logger logger = LoggerFactory.getLogger(PlaceOrderAdmissionService.class);
+    private static final String PLACE_ORDER_ADMISSION_KEY = "PLACE_ORDER_ADMISSION_KEY";
+
+    @Value("${order.admission.enabled:false}")
+    private boolean enabled;
+    //每个用户对同一秒杀品的限购数量，为0时不限购
+    @Value("${order.admission.limit-per-user:0}")
+    private int limitPerUser;
+    //准入记录有效期，需大于刷新间隔，单位秒
+    @Value("${order.admission.record-ttl-seconds:30}")
+    private long recordTtlSeconds;
+    @Value("${stock.reservation.ttl-seconds:60}")
+    private long reservationTtlSeconds;
+
+    @Resource
+    private RedisScriptRegistry redisScriptRegistry;
+    @Resource
+    private ItemStockCacheService itemStockCacheService;
+    @Resource
+    private ItemSoldOutService itemSoldOutService;
+    @Resource
+    private FlashItemDomainService flashItemDomainService;
+    @Resource
+    private FlashActivityDomainService flashActivityDomainService;
+    @Resource
+    private PlaceOrderSnapshotService placeOrderSnapshotService;
+
+    public boolean isEnabled() {
+        return enabled && itemStockCacheService instanceof NormalStockCacheService;
+    }
+
+    @Scheduled(fixedDelayString = "${order.admission.refresh-interval-millis:5000}")
+    public void compileAdmissionsTask() {
+        if (!isEnabled()) {
+            return;
+        }
+        try {
+            PagesQueryCondition pagesQueryCondition = new PagesQueryCondition();
+            pagesQueryCondition.setStatus(FlashItemStatus.ONLINE.getCode());
+            PageResult<FlashItem> pageResult = flashItemDomainService.getFlashItems(pagesQueryCondition);
+            pageResult.getData().forEach(this::compile);
+        } catch (Exception e) {
+            logger.error("compileAdmissions|下单准入记录编译失败", e);
+        }
+    }
+
+    /**
+     * 重新编译秒杀品的准入记录，秒杀品变更事件中调用
+     */
+    public void compile(Long itemId) {
+        if (!isEnabled() || itemId == null) {
+            return;
+        }
+        try {
+            compile(flashItemDomainService.getFlashItem(itemId));
+        } catch (Exception e) {
+            logger.error("compileAdmissions|下单准入记录编译失败|{}", itemId, e);
+        }
+    }
+
+    private void compile(FlashItem flashItem) {
+        if (flashItem == null || flashItem.getStartTime() == null || flashItem.getEndTime() == null) {
+            return;
+        }
+        FlashActivity flashActivity = flashItem.getActivityId() == null ? null : flashActivityDomainService.getFlashActivity(flashItem.getActivityId());
+        boolean online = flashItem.isOnline() && flashActivity != null && flashActivity.isOnline();
+        //可下单时段取秒杀品与活动时段的交集
+        long startTime = flashItem.getStartTime().getTime();
+        long endTime = flashItem.getEndTime().getTime();
+        if (flashActivity != null && flashActivity.getStartTime() != null && flashActivity.getEndTime() != null) {
+            startTime = Math.max(startTime, flashActivity.getStartTime().getTime());
+            endTime = Math.min(endTime, flashActivity.getEndTime().getTime());
+        }
+        List<String> keys = Lists.newArrayList(getPlaceOrderAdmissionKey(flashItem.getId()));
+        redisScriptRegistry.execute(COMPILE_PLACE_ORDER_ADMISSION, keys, online ? "1" : "0", String.valueOf(flashItem.getActivityId()),
+                startTime, endTime, limitPerUser, flashItem.getFlashPrice(), TimeUnit.SECONDS.toMillis(recordTtlSeconds));
+        logger.debug("compileAdmissions|下单准入记录已编译|{},{}", flashItem.getId(), online);
+    }
+
+    /**
+     * 一次调用完成下单准入和库存预扣减
+     */
+    public Admission admit(Long userId, FlashPlaceOrderCommand placeOrderCommand, StockDeduction stockDeduction) {
+        if (!isEnabled()) {
+            return Admission.SKIPPED;
+        }
+        Long itemId = stockDeduction.getItemId();
+        //订单标题取自下单快照
+        PlaceOrderSnapshot snapshot = placeOrderSnapshotService.getSnapshot(itemId);
+        if (snapshot == null) {
+            return Admission.SKIPPED;
+        }
+        List<Long> result;
+        try {
+            result = redisScriptRegistry.executeForList(ADMIT_PLACE_ORDER, getAdmitKeys(userId, itemId), getAdmitArgs(userId, placeOrderCommand, stockDeduction));
+        } catch (Exception e) {
+            logger.error("admitPlaceOrder|下单准入失败|{},{}", userId, itemId, e);
+            return Admission.SKIPPED;
+        }
+        return toAdmission(userId, placeOrderCommand, stockDeduction, snapshot, result);
+    }
+
+    /**
+     * 异步完成下单准入和库存预扣减，调用线程不等待Redis响应，结果返回后在指定线程池中处理准入结果并执行后续步骤；
+     * 准入记录不存在等需要走完整校验的情况为跳过，脚本调用失败时预扣减结果未知，按拒绝处理，由过期清理回收可能已写入的预留
+     */
+    public <T> CompletableFuture<T> admitAsync(Long userId, FlashPlaceOrderCommand placeOrderCommand, StockDeduction stockDeduction,
+                                               Function<Admission, T> admissionHandler, Executor executor) {
+        Long itemId = stockDeduction.getItemId();
+        PlaceOrderSnapshot snapshot = isEnabled() ? placeOrderSnapshotService.getSnapshot(itemId) : null;
+        if (snapshot == null) {
+            return CompletableFuture.supplyAsync(() -> admissionHandler.apply(Admission.SKIPPED), executor);
+        }
+        return redisScriptRegistry.executeForListAsync(ADMIT_PLACE_ORDER, getAdmitKeys(userId, itemId), getAdmitArgs(userId, placeOrderCommand, stockDeduction))
+                .handleAsync((result, throwable) -> {
+                    if (throwable != null) {
+                        logger.error("admitPlaceOrder|下单准入失败|{},{}", userId, itemId, throwable);
+                        return admissionHandler.apply(new Admission(null, PLACE_ORDER_FAILED));
+                    }
+                    return admissionHandler.apply(toAdmission(userId, placeOrderCommand, stockDeduction, snapshot, result));
+                }, executor);
+    }
+
+    private List<String> getAdmitKeys(Long userId, Long itemId) {
+        return Lists.newArrayList(getPlaceOrderAdmissionKey(itemId), getItemStocksCacheKey(itemId), getItemStocksReservedKey(itemId),
+                getItemStockReservationsKey(itemId), getItemStockReservationExpireKey(itemId),
+                getPlaceOrderDedupeKey(userId, itemId), getPlaceOrderUserQuantityKey(userId, itemId));
+    }
+
+    private Object[] getAdmitArgs(Long userId, FlashPlaceOrderCommand placeOrderCommand, StockDeduction stockDeduction) {
+        long now = System.currentTimeMillis();
+        long reservationTtlMillis = TimeUnit.SECONDS.toMillis(reservationTtlSeconds);
+        stockDeduction.setReservationExpireTime(now + reservationTtlMillis);
+        return new Object[]{stockDeduction.getQuantity(), String.valueOf(stockDeduction.getOrderId()),
+                String.valueOf(userId), now + reservationTtlMillis, reservationTtlMillis, now, String.valueOf(placeOrderCommand.getActivityId())};
+    }
+
+    private Admission toAdmission(Long userId, FlashPlaceOrderCommand placeOrderCommand, StockDeduction stockDeduction, PlaceOrderSnapshot snapshot,
+                                  List<Long> result) {
+        Long itemId = stockDeduction.getItemId();
+        RedisScriptResult code = RedisScriptResult.findBy(result.get(0));
+        if (code == RedisScriptResult.NOT_EXIST) {
+            return Admission.SKIPPED;
+        }
+        if (code.isSuccess()) {
+            FlashOrder flashOrder = toDomain(placeOrderCommand);
+            flashOrder.setItemTitle(snapshot.getItemTitle());
+            flashOrder.setFlashPrice(result.get(1));
+            flashOrder.setUserId(userId);
+            flashOrder.setId(stockDeduction.getOrderId());
+            return new Admission(flashOrder, null);
+        }
+        logger.info("admitPlaceOrder|下单准入未通过|{},{},{}", code, userId, itemId);
+        if (code == RedisScriptResult.INSUFFICIENT && result.get(2) <= 0) {
+            itemSoldOutService.markSoldOut(itemId);
+        }
+        if (code == RedisScriptResult.DUPLICATED) {
+            return new Admission(null, REDUNDANT_SUBMIT);
+        }
+        if (code == RedisScriptResult.LIMIT_EXCEEDED) {
+            return new Admission(null, EXCEED_PURCHASE_LIMIT);
+        }
+        return new Admission(null, PLACE_ORDER_FAILED);
+    }
+
+    public static String getPlaceOrderAdmissionKey(Long itemId) {
+        return link(PLACE_ORDER_ADMISSION_KEY, itemId);
+    }
+
+    /**
+     * 准入结果：通过时携带待写入的订单，拒绝时携带错误码，两者都为空表示跳过
+     */
+    public static class Admission {
+        private static final Admission SKIPPED = new Admission(null, null);
+
+        private final FlashOrder flashOrder;
+        private final AppErrorCode rejectedCode;
+
+        Admission(FlashOrder flashOrder, AppErrorCode rejectedCode) {
+            this.flashOrder = flashOrder;
+            this.rejectedCode = rejectedCode;
+        }
+
+        public boolean isSkipped() {
+            return flashOrder == null && rejectedCode == null;
+        }
+
+        public boolean isAdmitted() {
+            return flashOrder != null;
+        }
+
+        public FlashOrder getFlashOrder() {
+            return flashOrder;
+        }
+
+        public AppErrorCode getRejectedCode() {
+            return rejectedCode;
+        }
+    }
+}
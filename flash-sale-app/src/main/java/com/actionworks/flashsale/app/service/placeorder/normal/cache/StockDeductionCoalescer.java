@@ -0,0 +1,181 @@
+package com.actionworks.flashsale.app.service.placeorder.normal.cache;
+
+import com.actionworks.flashsale.cache.redis.RedisScriptRegistry;
+import com.actionworks.flashsale.cache.redis.RedisScriptResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static com.actionworks.flashsale.cache.redis.RedisLuaScript.BATCH_DECREASE_ITEM_STOCK;
+
+/**
+ * 库存预扣减合并器
+ * 同一秒杀品在时间窗口内的并发扣减请求合并为一次Lua调用，脚本按请求顺序逐个扣减并返回各请求的结果；
+ * 窗口到期或请求数达到上限时提交。窗口越大Redis调用越少，但每个请求最多多等待一个窗口。
+ * 每个请求的脚本参数个数相同，各请求独有的KEY（如用户维度的KEY）和参数一样，提交时按请求顺序拼接在公共KEY之后。
+ */
+@Component
+public class StockDeductionCoalescer {
+    private static final Logger logger = LoggerFactory.getLogger(StockDeductionCoalescer.class);
+
+    private final Map<Long, DeductionBatch> pendingBatches = new ConcurrentHashMap<>();
+    private ScheduledExecutorService flushExecutor;
+
+    @Value("${stock.coalesce.enabled:false}")
+    private boolean enabled;
+    //合并窗口，单位微秒
+    @Value("${stock.coalesce.window-micros:1000}")
+    private long windowMicros;
+    @Value("${stock.coalesce.max-batch-size:64}")
+    private int maxBatchSize;
+    @Value("${stock.coalesce.flush-threads:4}")
+    private int flushThreads;
+    //等待批次结果的超时时间，单位毫秒
+    @Value("${stock.coalesce.timeout-millis:1500}")
+    private long timeoutMillis;
+
+    @Resource
+    private RedisScriptRegistry redisScriptRegistry;
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            return;
+        }
+        flushExecutor = Executors.newScheduledThreadPool(flushThreads);
+        logger.info("initStockDeductionCoalescer|库存预扣减合并已开启|{},{}", windowMicros, maxBatchSize);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (flushExecutor != null) {
+            flushExecutor.shutdown();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public RedisScriptResult decrease(Long itemId, List<String> keys, List<String> requestKeys, Object... args) throws InterruptedException {
+        DeductionRequest request = new DeductionRequest(requestKeys, args);
+        while (true) {
+            DeductionBatch batch = pendingBatches.get(itemId);
+            if (batch == null) {
+                DeductionBatch createdBatch = new DeductionBatch(itemId, keys);
+                batch = pendingBatches.putIfAbsent(itemId, createdBatch);
+                if (batch == null) {
+                    batch = createdBatch;
+                    flushExecutor.schedule(() -> flush(createdBatch), windowMicros, TimeUnit.MICROSECONDS);
+                }
+            }
+            int batchSize = batch.add(request);
+            if (batchSize < 0) {
+                //批次已提交，加入下一个批次
+                continue;
+            }
+            if (batchSize >= maxBatchSize) {
+                DeductionBatch fullBatch = batch;
+                flushExecutor.execute(() -> flush(fullBatch));
+            }
+            break;
+        }
+        try {
+            return request.result.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            logger.info("decreaseItemStock|等待合并扣减结果超时|{}", itemId);
+            return RedisScriptResult.UNKNOWN;
+        } catch (Exception e) {
+            logger.error("decreaseItemStock|合并扣减失败|{}", itemId, e);
+            return RedisScriptResult.UNKNOWN;
+        }
+    }
+
+    private void flush(DeductionBatch batch) {
+        List<DeductionRequest> requests = batch.close();
+        if (requests == null) {
+            return;
+        }
+        pendingBatches.remove(batch.itemId, batch);
+        if (requests.isEmpty()) {
+            return;
+        }
+        try {
+            List<String> keys = new ArrayList<>(batch.keys);
+            requests.forEach(request -> keys.addAll(request.keys));
+            Object[] args = requests.stream().flatMap(request -> Arrays.stream(request.args)).toArray();
+            List<Long> results = redisScriptRegistry.executeForList(BATCH_DECREASE_ITEM_STOCK, keys, args);
+            RedisScriptResult batchResult = results == null || results.isEmpty() ? RedisScriptResult.UNKNOWN : RedisScriptResult.findBy(results.get(0));
+            for (int i = 0; i < requests.size(); i++) {
+                if (!batchResult.isSuccess()) {
+                    requests.get(i).result.complete(batchResult);
+                    continue;
+                }
+                requests.get(i).result.complete(RedisScriptResult.findBy(results.get(i + 1)));
+            }
+        } catch (Exception e) {
+            logger.error("flushDeductionBatch|批量扣减库存失败|{},{}", batch.itemId, requests.size(), e);
+            requests.forEach(request -> request.result.complete(RedisScriptResult.UNKNOWN));
+        }
+    }
+
+    private static class DeductionRequest {
+        private final List<String> keys;
+        private final Object[] args;
+        private final CompletableFuture<RedisScriptResult> result = new CompletableFuture<>();
+
+        DeductionRequest(List<String> keys, Object[] args) {
+            this.keys = keys;
+            this.args = args;
+        }
+    }
+
+    private static class DeductionBatch {
+        private final Long itemId;
+        private final List<String> keys;
+        private final List<DeductionRequest> requests = new ArrayList<>();
+        private boolean closed;
+
+        DeductionBatch(Long itemId, List<String> keys) {
+            this.itemId = itemId;
+            this.keys = keys;
+        }
+
+        /**
+         * 加入批次，返回加入后的批次大小；批次已提交时返回-1
+         */
+        synchronized int add(DeductionRequest request) {
+            if (closed) {
+                return -1;
+            }
+            requests.add(request);
+            return requests.size();
+        }
+
+        /**
+         * 关闭批次并取出全部请求，批次只会被提交一次，重复关闭时返回null
+         */
+        synchronized List<DeductionRequest> close() {
+            if (closed) {
+                return null;
+            }
+            closed = true;
+            return requests;
+        }
+    }
+}
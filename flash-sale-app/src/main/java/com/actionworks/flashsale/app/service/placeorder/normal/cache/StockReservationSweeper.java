@@ -0,0 +1,138 @@
+package com.actionworks.flashsale.app.service.placeorder.normal.cache;
+
+import com.actionworks.flashsale.cache.redis.RedisCacheService;
+import com.actionworks.flashsale.domain.exception.DomainException;
+import com.actionworks.flashsale.domain.model.PageResult;
+import com.actionworks.flashsale.domain.model.PagesQueryCondition;
+import com.actionworks.flashsale.domain.model.StockDeduction;
+import com.actionworks.flashsale.domain.model.entity.FlashItem;
+import com.actionworks.flashsale.domain.model.entity.FlashOrder;
+import com.actionworks.flashsale.domain.model.enums.FlashItemStatus;
+import com.actionworks.flashsale.domain.service.FlashItemDomainService;
+import com.actionworks.flashsale.domain.service.FlashOrderDomainService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static com.actionworks.flashsale.app.service.placeorder.normal.cache.NormalStockCacheService.getItemStockReservationExpireKey;
+import static com.actionworks.flashsale.app.service.placeorder.normal.cache.NormalStockCacheService.getItemStockReservationsKey;
+
+/**
+ * 过期库存预留清理
+ * 预扣减成功后节点宕机或确认、释放调用失败时，预留会一直留在台账中。清理任务按过期时间分批取出超时的预留，
+ * 订单已在数据库中存在的确认，不存在的释放；确认和释放脚本以台账为准，多个节点同时清理也只会生效一次。
+ * 下单事务在预留过期前一段时间起不再提交，清理任务只取过期超过宽限时间的预留，查询时订单不存在即不会再提交，
+ * 释放后不会出现订单又提交导致的库存重复计算；宽限时间同时容忍节点之间的时钟偏差。
+ * 异步落库模式下，排队中的订单由落库管道定期续期，不会因落库积压而过期被释放。
+ */
+@Component
+@ConditionalOnProperty(name = "ItemStockCacheService", havingValue = "normal", matchIfMissing = true)
+public class StockReservationSweeper {
+    private static final Logger logger = LoggerFactory.getLogger(StockReservationSweeper.class);
+
+    @Value("${stock.reservation.sweep-batch-size:100}")
+    private int sweepBatchSize;
+    @Value("${stock.reservation.sweep-grace-millis:5000}")
+    private long sweepGraceMillis;
+
+    @Resource
+    private NormalStockCacheService normalStockCacheService;
+    @Resource
+    private RedisCacheService redisCacheService;
+    @Resource
+    private FlashItemDomainService flashItemDomainService;
+    @Resource
+    private FlashOrderDomainService flashOrderDomainService;
+
+    @Scheduled(fixedDelayString = "${stock.reservation.sweep-interval-millis:5000}")
+    public void sweepExpiredReservationsTask() {
+        try {
+            PagesQueryCondition pagesQueryCondition = new PagesQueryCondition();
+            pagesQueryCondition.setStatus(FlashItemStatus.ONLINE.getCode());
+            PageResult<FlashItem> pageResult = flashItemDomainService.getFlashItems(pagesQueryCondition);
+            pageResult.getData().forEach(flashItem -> sweepExpiredReservations(flashItem.getId()));
+        } catch (Exception e) {
+            logger.error("sweepExpiredReservations|过期库存预留清理失败", e);
+        }
+    }
+
+    public void sweepExpiredReservations(Long itemId) {
+        List<StockDeduction> expiredReservations = getExpiredReservations(itemId);
+        if (expiredReservations.isEmpty()) {
+            return;
+        }
+        int confirmed = 0;
+        int released = 0;
+        for (StockDeduction reservation : expiredReservations) {
+            Boolean orderExists = isOrderExists(reservation);
+            if (orderExists == null) {
+                continue;
+            }
+            if (orderExists) {
+                if (normalStockCacheService.confirmItemStockReservation(reservation)) {
+                    confirmed++;
+                }
+            } else if (normalStockCacheService.releaseItemStockReservation(reservation)) {
+                released++;
+            }
+        }
+        logger.info("sweepExpiredReservations|过期库存预留已回收|{},{},{},{}", itemId, expiredReservations.size(), confirmed, released);
+    }
+
+    private List<StockDeduction> getExpiredReservations(Long itemId) {
+        byte[] reservationsKey = getItemStockReservationsKey(itemId).getBytes(StandardCharsets.UTF_8);
+        byte[] expireKey = getItemStockReservationExpireKey(itemId).getBytes(StandardCharsets.UTF_8);
+        long deadline = System.currentTimeMillis() - sweepGraceMillis;
+        return redisCacheService.getRedisTemplate().execute((RedisCallback<List<StockDeduction>>) connection -> {
+            List<StockDeduction> reservations = new ArrayList<>();
+            Set<byte[]> orderIds = connection.zRangeByScore(expireKey, 0, deadline, 0, sweepBatchSize);
+            if (orderIds == null || orderIds.isEmpty()) {
+                return reservations;
+            }
+            byte[][] fields = orderIds.toArray(new byte[0][]);
+            List<byte[]> entries = connection.hMGet(reservationsKey, fields);
+            for (int i = 0; i < fields.length; i++) {
+                String orderId = new String(fields[i], StandardCharsets.UTF_8);
+                byte[] entry = entries == null ? null : entries.get(i);
+                if (entry == null) {
+                    //台账记录已确认或释放，只剩过期时间，直接清除
+                    connection.zRem(expireKey, fields[i]);
+                    continue;
+                }
+                //台账记录格式：数量_用户ID
+                String[] quantityAndUserId = new String(entry, StandardCharsets.UTF_8).split("_");
+                reservations.add(new StockDeduction()
+                        .setItemId(itemId)
+                        .setOrderId(Long.valueOf(orderId))
+                        .setQuantity(Integer.valueOf(quantityAndUserId[0]))
+                        .setUserId(Long.valueOf(quantityAndUserId[1])));
+            }
+            return reservations;
+        });
+    }
+
+    /**
+     * 查询订单是否已在数据库提交，查询出错时返回null，留待下次清理
+     */
+    private Boolean isOrderExists(StockDeduction reservation) {
+        try {
+            FlashOrder flashOrder = flashOrderDomainService.getOrder(reservation.getUserId(), reservation.getOrderId());
+            return flashOrder != null;
+        } catch (DomainException e) {
+            return false;
+        } catch (Exception e) {
+            logger.error("sweepExpiredReservations|订单查询失败|{}", reservation.getOrderId(), e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.actionworks.flashsale.app.service.placeorder.queued;
+
+import com.actionworks.flashsale.cache.redis.RedisCacheService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.concurrent.TimeUnit;
+
+import static com.actionworks.flashsale.app.model.constants.CacheConstants.HOURS_24;
+
+/**
+ * 下单任务统计
+ * 每个秒杀品在Redis中保存一个计数哈希：已提交任务数由提交脚本累加，下单成功和失败数由消费端累加，
+ * 所有节点共享同一份计数，供下单许可的动态发放计算消费吞吐量、积压和下单成功率。
+ * 动态发放的状态（上次调整时间、计数、吞吐量和成功率）也保存在该哈希中，由调整许可的脚本写入。
+ */
+@Component
+@ConditionalOnProperty(name = "ServiceType", havingValue = "queued")
+public class OrderTaskStatistics {
+    private static final Logger logger = LoggerFactory.getLogger(OrderTaskStatistics.class);
+    private static final String PLACE_ORDER_TASK_STATS_KEY = "PLACE_ORDER_TASK_STATS_KEY_";
+    static final String SUBMITTED = "submitted";
+    static final String SUCCEEDED = "succeeded";
+    static final String FAILED = "failed";
+    static final String ISSUANCE_TIME = "issuanceTime";
+    static final String ISSUANCE_COMPLETED = "issuanceCompleted";
+    static final String ISSUANCE_SUCCEEDED = "issuanceSucceeded";
+    static final String THROUGHPUT = "throughput";
+    static final String SUCCESS_RATIO = "successRatio";
+
+    @Resource
+    private RedisCacheService redisCacheService;
+
+    /**
+     * 记录秒杀品一批任务的处理结果
+     */
+    public void recordHandled(Long itemId, int succeeded, int failed) {
+        if (itemId == null || succeeded + failed == 0) {
+            return;
+        }
+        String statsKey = getItemTaskStatsKey(itemId);
+        try {
+            redisCacheService.getRedisTemplate().executePipelined(new SessionCallback<Object>() {
+                @Override
+                @SuppressWarnings("unchecked")
+                public <K, V> Object execute(RedisOperations<K, V> operations) {
+                    RedisOperations<String, Object> redisOperations = (RedisOperations<String, Object>) operations;
+                    if (succeeded > 0) {
+                        redisOperations.opsForHash().increment(statsKey, SUCCEEDED, succeeded);
+                    }
+                    if (failed > 0) {
+                        redisOperations.opsForHash().increment(statsKey, FAILED, failed);
+                    }
+                    redisOperations.expire(statsKey, HOURS_24, TimeUnit.SECONDS);
+                    return null;
+                }
+            });
+        } catch (Exception e) {
+            //统计失败不影响下单结果
+            logger.error("recordOrderTaskStats|下单任务统计失败|{},{},{}", itemId, succeeded, failed, e);
+        }
+    }
+
+    /**
+     * 任务提交后投递失败，撤销提交计数
+     */
+    public void recordSubmitCancelled(Long itemId) {
+        try {
+            redisCacheService.getRedisTemplate().opsForHash().increment(getItemTaskStatsKey(itemId), SUBMITTED, -1);
+        } catch (Exception e) {
+            logger.error("recordOrderTaskStats|下单任务统计失败|{}", itemId, e);
+        }
+    }
+
+    public static String getItemTaskStatsKey(Long itemId) {
+        return PLACE_ORDER_TASK_STATS_KEY + itemId;
+    }
+
+    static long toLong(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        return value == null ? 0 : Long.parseLong(value.toString());
+    }
+
+    public static class ItemTaskStats {
+        private final long submitted;
+        private final long succeeded;
+        private final long failed;
+
+        ItemTaskStats(long submitted, long succeeded, long failed) {
+            this.submitted = submitted;
+            this.succeeded = succeeded;
+            this.failed = failed;
+        }
+
+        public long getSubmitted() {
+            return submitted;
+        }
+
+        public long getSucceeded() {
+            return succeeded;
+        }
+
+        public long getCompleted() {
+            return succeeded + failed;
+        }
+
+        /**
+         * 已提交但尚未处理完的任务数，即队列积压
+         */
+        public long getInFlight() {
+            return Math.max(0, submitted - getCompleted());
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package com.actionworks.flashsale.app.service.placeorder.queued;
+
+import com.actionworks.flashsale.app.service.placeorder.queued.OrderTaskStatistics.ItemTaskStats;
+import com.actionworks.flashsale.app.service.stock.ItemStockCacheService;
+import com.actionworks.flashsale.app.service.stock.model.ItemStockCache;
+import com.actionworks.flashsale.cache.redis.RedisCacheService;
+import com.actionworks.flashsale.cache.redis.RedisScriptRegistry;
+import com.actionworks.flashsale.domain.model.PageResult;
+import com.actionworks.flashsale.domain.model.PagesQueryCondition;
+import com.actionworks.flashsale.domain.model.entity.FlashItem;
+import com.actionworks.flashsale.domain.model.enums.FlashItemStatus;
+import com.actionworks.flashsale.domain.service.FlashItemDomainService;
+import com.actionworks.flashsale.lock.DistributedLock;
+import com.actionworks.flashsale.lock.DistributedLockFactoryService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static com.actionworks.flashsale.app.model.constants.CacheConstants.HOURS_24;
+import static com.actionworks.flashsale.app.service.placeorder.queued.OrderTaskStatistics.FAILED;
+import static com.actionworks.flashsale.app.service.placeorder.queued.OrderTaskStatistics.ISSUANCE_COMPLETED;
+import static com.actionworks.flashsale.app.service.placeorder.queued.OrderTaskStatistics.ISSUANCE_SUCCEEDED;
+import static com.actionworks.flashsale.app.service.placeorder.queued.OrderTaskStatistics.ISSUANCE_TIME;
+import static com.actionworks.flashsale.app.service.placeorder.queued.OrderTaskStatistics.SUBMITTED;
+import static com.actionworks.flashsale.app.service.placeorder.queued.OrderTaskStatistics.SUCCEEDED;
+import static com.actionworks.flashsale.app.service.placeorder.queued.OrderTaskStatistics.SUCCESS_RATIO;
+import static com.actionworks.flashsale.app.service.placeorder.queued.OrderTaskStatistics.THROUGHPUT;
+import static com.actionworks.flashsale.app.service.placeorder.queued.OrderTaskStatistics.getItemTaskStatsKey;
+import static com.actionworks.flashsale.app.service.placeorder.queued.OrderTaskStatistics.toLong;
+import static com.actionworks.flashsale.app.service.placeorder.queued.QueuedPlaceOrderTaskService.getItemAvailableTokensKey;
+import static com.actionworks.flashsale.cache.redis.RedisLuaScript.ADJUST_ORDER_TOKENS;
+
+/**
+ * 下单许可刷新
+ * 定时为已上线的秒杀品初始化下单许可，下单请求中发现许可不存在时提交异步刷新，不在请求线程中加锁等待。
+ * 许可只在不存在时写入（SETNX），多个节点同时刷新也只有一个生效。
+ * 开启动态发放后，由一个节点定时根据下单任务统计调整许可：按下单成功率折算售完剩余库存还需要的任务数，
+ * 同时限制队列积压不超过消费端若干秒内能处理的任务数，成功率低时多发许可，积压增长时收紧许可。
+ * 发放状态与任务统计保存在同一个Redis哈希中，换节点调整时接续计算；许可以脚本写入，扣除读取后被取走的许可。
+ */
+@Component
+@ConditionalOnProperty(name = "ServiceType", havingValue = "queued")
+public class OrderTokenRefresher {
+    private static final Logger logger = LoggerFactory.getLogger(OrderTokenRefresher.class);
+    private static final String LOCK_ADJUST_ORDER_TOKENS_KEY = "LOCK_ADJUST_ORDER_TOKENS_KEY";
+    private static final double EWMA_WEIGHT = 0.3;
+    //本周期处理的任务数达到该值才更新成功率
+    private static final int MIN_SUCCESS_RATIO_SAMPLES = 20;
+    private static final List<Object> ISSUANCE_FIELDS = Arrays.asList(SUBMITTED, SUCCEEDED, FAILED,
+            ISSUANCE_TIME, ISSUANCE_COMPLETED, ISSUANCE_SUCCEEDED, THROUGHPUT, SUCCESS_RATIO);
+
+    @Value("${order.token.adaptive:false}")
+    private boolean adaptive;
+    @Value("${order.token.adjust-interval-millis:1000}")
+    private long adjustIntervalMillis;
+    //队列积压上限，按消费吞吐量折算的秒数
+    @Value("${order.token.max-lag-seconds:5}")
+    private double maxLagSeconds;
+    //积压上限的下限，消费吞吐量尚未测得时使用
+    @Value("${order.token.min-in-flight:100}")
+    private long minInFlight;
+    @Value("${order.token.min-success-ratio:0.1}")
+    private double minSuccessRatio;
+
+    @Resource
+    private RedisCacheService redisCacheService;
+    @Resource
+    private RedisScriptRegistry redisScriptRegistry;
+    @Resource
+    private ItemStockCacheService itemStockCacheService;
+    @Resource
+    private FlashItemDomainService flashItemDomainService;
+    @Resource
+    private DistributedLockFactoryService lockFactoryService;
+
+    private final Set<Long> refreshingItems = ConcurrentHashMap.newKeySet();
+    private final ExecutorService refreshExecutor = Executors.newSingleThreadExecutor();
+    private volatile List<Long> onlineItemIds = Collections.emptyList();
+
+    @PreDestroy
+    public void destroy() {
+        refreshExecutor.shutdownNow();
+    }
+
+    @Scheduled(fixedDelayString = "${order.token.refresh-interval-millis:5000}")
+    public void refreshTokensTask() {
+        try {
+            PagesQueryCondition pagesQueryCondition = new PagesQueryCondition();
+            pagesQueryCondition.setStatus(FlashItemStatus.ONLINE.getCode());
+            PageResult<FlashItem> pageResult = flashItemDomainService.getFlashItems(pagesQueryCondition);
+            onlineItemIds = pageResult.getData().stream().map(FlashItem::getId).collect(Collectors.toList());
+            onlineItemIds.forEach(this::refresh);
+        } catch (Exception e) {
+            logger.error("refreshAvailableTokens|刷新tokens失败", e);
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${order.token.adjust-interval-millis:1000}")
+    public void adjustTokensTask() {
+        if (!adaptive || onlineItemIds.isEmpty()) {
+            return;
+        }
+        DistributedLock adjustLock = lockFactoryService.getDistributedLock(LOCK_ADJUST_ORDER_TOKENS_KEY);
+        try {
+            //锁在一个调整周期后自动过期，周期内其他节点跳过
+            if (!adjustLock.tryLock(0, adjustIntervalMillis, TimeUnit.MILLISECONDS)) {
+                return;
+            }
+            onlineItemIds.forEach(this::adjust);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            logger.error("adjustAvailableTokens|调整tokens失败", e);
+        }
+    }
+
+    /**
+     * 提交异步刷新，同一秒杀品同时只有一个刷新任务
+     */
+    public void requestRefresh(Long itemId) {
+        if (itemId == null || !refreshingItems.add(itemId)) {
+            return;
+        }
+        try {
+            refreshExecutor.execute(() -> {
+                try {
+                    refresh(itemId);
+                } finally {
+                    refreshingItems.remove(itemId);
+                }
+            });
+        } catch (Exception e) {
+            refreshingItems.remove(itemId);
+            logger.error("refreshAvailableTokens|提交tokens刷新失败|{}", itemId, e);
+        }
+    }
+
+    private void refresh(Long itemId) {
+        try {
+            String availableTokensKey = getItemAvailableTokensKey(itemId);
+            if (Boolean.TRUE.equals(redisCacheService.hasKey(availableTokensKey))) {
+                return;
+            }
+            ItemStockCache itemStockCache = itemStockCacheService.getAvailableItemStock(null, itemId);
+            if (itemStockCache == null || !itemStockCache.isSuccess() || itemStockCache.getAvailableStock() == null) {
+                return;
+            }
+            Integer latestAvailableOrderTokens = (int) Math.ceil(itemStockCache.getAvailableStock() * 1.5);
+            if (adaptive) {
+                //动态发放时先按积压下限发放，测得吞吐量后再调整
+                latestAvailableOrderTokens = (int) Math.min(latestAvailableOrderTokens, minInFlight);
+            }
+            Boolean initialized = redisCacheService.getRedisTemplate().opsForValue()
+                    .setIfAbsent(availableTokensKey, latestAvailableOrderTokens, HOURS_24, TimeUnit.SECONDS);
+            if (Boolean.TRUE.equals(initialized)) {
+                logger.info("refreshAvailableTokens|tokens已初始化|{},{}", itemId, latestAvailableOrderTokens);
+            }
+        } catch (Exception e) {
+            logger.error("refreshAvailableTokens|刷新tokens失败|{}", itemId, e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void adjust(Long itemId) {
+        try {
+            ItemStockCache itemStockCache = itemStockCacheService.getAvailableItemStock(null, itemId);
+            if (itemStockCache == null || !itemStockCache.isSuccess() || itemStockCache.getAvailableStock() == null) {
+                return;
+            }
+            String availableTokensKey = getItemAvailableTokensKey(itemId);
+            String statsKey = getItemTaskStatsKey(itemId);
+            //先读取许可再读取统计，期间取走许可的任务已计入积压，调整偏保守
+            List<Object> results = redisCacheService.getRedisTemplate().executePipelined(new SessionCallback<Object>() {
+                @Override
+                public <K, V> Object execute(RedisOperations<K, V> operations) {
+                    RedisOperations<String, Object> redisOperations = (RedisOperations<String, Object>) operations;
+                    redisOperations.opsForValue().get(availableTokensKey);
+                    redisOperations.opsForHash().multiGet(statsKey, ISSUANCE_FIELDS);
+                    return null;
+                }
+            });
+            Object observedTokens = results.get(0);
+            List<Object> values = (List<Object>) results.get(1);
+            ItemTaskStats stats = new ItemTaskStats(toLong(values.get(0)), toLong(values.get(1)), toLong(values.get(2)));
+            IssuanceState state = new IssuanceState(values);
+            long lastTime = state.lastTime;
+            state.update(stats, System.currentTimeMillis());
+            long inFlight = stats.getInFlight();
+            //按成功率折算售完剩余库存还需要的任务数，扣除已在队列中的任务
+            long needed = (long) Math.ceil(itemStockCache.getAvailableStock() / state.successRatio) - inFlight;
+            //积压不超过消费端maxLagSeconds秒内能处理的任务数
+            long lagAllowance = (long) Math.max(minInFlight, state.throughput * maxLagSeconds) - inFlight;
+            long tokens = Math.max(0, Math.min(needed, lagAllowance));
+            Long adjustedTokens = redisScriptRegistry.executeForLong(ADJUST_ORDER_TOKENS, Arrays.asList(availableTokensKey, statsKey),
+                    observedTokens == null ? "" : String.valueOf(observedTokens), String.valueOf(tokens), String.valueOf(HOURS_24),
+                    String.valueOf(lastTime), String.valueOf(state.lastTime), String.valueOf(state.lastCompleted), String.valueOf(state.lastSucceeded),
+                    String.valueOf(state.throughput), String.valueOf(state.successRatio));
+            if (adjustedTokens == null || adjustedTokens < 0) {
+                logger.info("adjustAvailableTokens|发放状态已被其他节点更新，跳过本次调整|{}", itemId);
+                return;
+            }
+            logger.debug("adjustAvailableTokens|tokens已调整|{},{},{},{},{}", itemId, adjustedTokens, inFlight, state.throughput, state.successRatio);
+        } catch (Exception e) {
+            logger.error("adjustAvailableTokens|调整tokens失败|{}", itemId, e);
+        }
+    }
+
+    private static double toDouble(Object value, double defaultValue) {
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        return value == null ? defaultValue : Double.parseDouble(value.toString());
+    }
+
+    /**
+     * 秒杀品的消费吞吐量（任务/秒）和下单成功率，均为指数加权移动平均，从任务统计哈希中读取
+     */
+    private class IssuanceState {
+        private long lastTime;
+        private long lastCompleted;
+        private long lastSucceeded;
+        private double throughput;
+        private double successRatio;
+
+        IssuanceState(List<Object> values) {
+            this.lastTime = toLong(values.get(3));
+            this.lastCompleted = toLong(values.get(4));
+            this.lastSucceeded = toLong(values.get(5));
+            this.throughput = toDouble(values.get(6), 0);
+            this.successRatio = toDouble(values.get(7), 1);
+        }
+
+        void update(ItemTaskStats stats, long now) {
+            long completed = stats.getCompleted() - lastCompleted;
+            long succeeded = stats.getSucceeded() - lastSucceeded;
+            if (lastTime > 0 && now > lastTime && completed >= 0) {
+                throughput = EWMA_WEIGHT * completed * 1000.0 / (now - lastTime) + (1 - EWMA_WEIGHT) * throughput;
+                if (completed >= MIN_SUCCESS_RATIO_SAMPLES) {
+                    double ratio = EWMA_WEIGHT * succeeded / completed + (1 - EWMA_WEIGHT) * successRatio;
+                    successRatio = Math.max(minSuccessRatio, ratio);
+                }
+            }
+            lastTime = now;
+            lastCompleted = stats.getCompleted();
+            lastSucceeded = stats.getSucceeded();
+        }
+    }
+}
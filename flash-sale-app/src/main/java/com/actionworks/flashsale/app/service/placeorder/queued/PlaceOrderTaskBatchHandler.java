@@ -0,0 +1,216 @@
+package com.actionworks.flashsale.app.service.placeorder.queued;
+
+import com.actionworks.flashsale.app.model.PlaceOrderTask;
+import com.actionworks.flashsale.app.model.enums.OrderTaskStatus;
+import com.actionworks.flashsale.app.service.placeorder.snapshot.PlaceOrderSnapshot;
+import com.actionworks.flashsale.app.service.placeorder.snapshot.PlaceOrderSnapshotService;
+import com.actionworks.flashsale.app.util.OrderNoGenerateContext;
+import com.actionworks.flashsale.app.util.OrderNoGenerateService;
+import com.actionworks.flashsale.domain.model.entity.FlashItem;
+import com.actionworks.flashsale.domain.model.entity.FlashOrder;
+import com.actionworks.flashsale.domain.service.FlashItemDomainService;
+import com.actionworks.flashsale.domain.service.FlashOrderDomainService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.actionworks.flashsale.app.model.builder.FlashOrderAppBuilder.toDomain;
+
+/**
+ * 下单任务批量处理
+ * 一批任务按秒杀品分组，每组使用下单快照校验，按到达顺序在数据库剩余库存内分配，
+ * 合计数量一次条件扣减库存并多行插入订单，最后一次管道写回全部任务结果并通知等待的请求。
+ * 批量落库出错时该组退回逐个处理。
+ * 消息可能重复投递，处理前一次管道读取任务状态，只处理仍为已提交状态的任务；结果以条件写入，已有结果的任务不会被覆盖。
+ * 处理失败时抛出异常由消息队列重新投递；订单号在提交任务时确定，上一次已落库但结果未写回的任务按订单号查到后只补写结果。
+ */
+@Component
+@ConditionalOnProperty(name = "PlaceOrderService", havingValue = "queued")
+public class PlaceOrderTaskBatchHandler {
+    private static final Logger logger = LoggerFactory.getLogger(PlaceOrderTaskBatchHandler.class);
+    private static final int PERSIST_RETRY_TIMES = 3;
+
+    @Resource
+    private PlaceOrderSnapshotService placeOrderSnapshotService;
+    @Resource
+    private FlashItemDomainService flashItemDomainService;
+    @Resource
+    private FlashOrderDomainService flashOrderDomainService;
+    @Resource
+    private OrderNoGenerateService orderNoGenerateService;
+    @Resource
+    private PlaceOrderTaskBatchPersister placeOrderTaskBatchPersister;
+    @Resource
+    private PlaceOrderTaskService placeOrderTaskService;
+    @Resource
+    private PlaceOrderTaskResultNotifier placeOrderTaskResultNotifier;
+    @Resource
+    private QueuedPlaceOrderService queuedPlaceOrderService;
+    @Resource
+    private OrderTaskStatistics orderTaskStatistics;
+
+    public void handle(List<PlaceOrderTask> placeOrderTasks) {
+        if (placeOrderTasks == null || placeOrderTasks.isEmpty()) {
+            return;
+        }
+        List<PlaceOrderTask> pendingTasks = filterPendingTasks(placeOrderTasks);
+        if (pendingTasks.isEmpty()) {
+            return;
+        }
+        Map<Long, List<PlaceOrderTask>> itemTasks = new LinkedHashMap<>();
+        pendingTasks.forEach(placeOrderTask -> itemTasks.computeIfAbsent(placeOrderTask.getItemId(), itemId -> new ArrayList<>()).add(placeOrderTask));
+
+        //任务ID与订单号，订单号为空表示下单失败
+        Map<String, Long> taskOrderIds = new LinkedHashMap<>();
+        itemTasks.forEach((itemId, tasks) -> handleItemTasks(itemId, tasks, taskOrderIds));
+        //结果写回失败时抛出，重新投递后已落库的订单按订单号补写结果，不会重复下单
+        try {
+            Map<String, Long> updatedTaskOrderIds = placeOrderTaskService.updateTaskHandleResults(taskOrderIds);
+            placeOrderTaskResultNotifier.notifyResults(updatedTaskOrderIds);
+            itemTasks.forEach((itemId, tasks) -> recordHandled(itemId, tasks, updatedTaskOrderIds));
+        } catch (Exception e) {
+            logger.error("handleOrderTasks|下单任务结果写回失败|{}", taskOrderIds, e);
+            throw e;
+        }
+        logger.info("handleOrderTasks|下单任务批量处理完成|{},{}", pendingTasks.size(), itemTasks.size());
+    }
+
+    /**
+     * 剔除已有结果、已撤销或同一批内重复的任务
+     */
+    private List<PlaceOrderTask> filterPendingTasks(List<PlaceOrderTask> placeOrderTasks) {
+        Map<String, PlaceOrderTask> distinctTasks = new LinkedHashMap<>();
+        placeOrderTasks.forEach(placeOrderTask -> distinctTasks.putIfAbsent(placeOrderTask.getPlaceOrderTaskId(), placeOrderTask));
+        Map<String, OrderTaskStatus> taskStatuses = placeOrderTaskService.getTaskStatuses(distinctTasks.keySet());
+        List<PlaceOrderTask> pendingTasks = new ArrayList<>(distinctTasks.size());
+        distinctTasks.forEach((placeOrderTaskId, placeOrderTask) -> {
+            if (OrderTaskStatus.SUBMITTED.equals(taskStatuses.get(placeOrderTaskId))) {
+                pendingTasks.add(placeOrderTask);
+            }
+        });
+        if (pendingTasks.size() < placeOrderTasks.size()) {
+            logger.info("handleOrderTasks|跳过已处理或重复的任务|{},{}", placeOrderTasks.size(), pendingTasks.size());
+        }
+        return pendingTasks;
+    }
+
+    /**
+     * 剔除上一次处理中订单已落库的任务，直接以其订单号作为结果
+     */
+    private List<PlaceOrderTask> filterPlacedTasks(Long itemId, List<PlaceOrderTask> tasks, Map<String, Long> taskOrderIds) {
+        List<Long> orderIds = new ArrayList<>(tasks.size());
+        tasks.forEach(placeOrderTask -> {
+            if (placeOrderTask.getId() != null) {
+                orderIds.add(placeOrderTask.getId());
+            }
+        });
+        Set<Long> placedOrderIds = new HashSet<>(flashOrderDomainService.getPlacedOrderIds(itemId, orderIds));
+        if (placedOrderIds.isEmpty()) {
+            return tasks;
+        }
+        logger.info("handleOrderTasks|订单已落库，补写任务结果|{},{}", itemId, placedOrderIds);
+        List<PlaceOrderTask> unplacedTasks = new ArrayList<>(tasks.size());
+        for (PlaceOrderTask placeOrderTask : tasks) {
+            if (placedOrderIds.contains(placeOrderTask.getId())) {
+                taskOrderIds.put(placeOrderTask.getPlaceOrderTaskId(), placeOrderTask.getId());
+            } else {
+                unplacedTasks.add(placeOrderTask);
+            }
+        }
+        return unplacedTasks;
+    }
+
+    private void handleItemTasks(Long itemId, List<PlaceOrderTask> itemTasks, Map<String, Long> taskOrderIds) {
+        List<PlaceOrderTask> tasks = filterPlacedTasks(itemId, itemTasks, taskOrderIds);
+        PlaceOrderSnapshot snapshot = placeOrderSnapshotService.getSnapshot(itemId);
+        long now = System.currentTimeMillis();
+        List<PlaceOrderTask> allowedTasks = new ArrayList<>();
+        for (PlaceOrderTask placeOrderTask : tasks) {
+            if (snapshot == null || !snapshot.isActivityAllowPlaceOrder(placeOrderTask.getActivityId(), now) || !snapshot.isItemAllowPlaceOrder(now)) {
+                logger.info("handleOrderTasks|下单规则校验未通过|{},{}", placeOrderTask.getPlaceOrderTaskId(), itemId);
+                taskOrderIds.put(placeOrderTask.getPlaceOrderTaskId(), null);
+                continue;
+            }
+            allowedTasks.add(placeOrderTask);
+        }
+        if (allowedTasks.isEmpty()) {
+            return;
+        }
+        try {
+            for (int i = 0; i < PERSIST_RETRY_TIMES; i++) {
+                FlashItem flashItem = flashItemDomainService.getFlashItem(itemId);
+                int availableStock = flashItem.getAvailableStock() == null ? 0 : flashItem.getAvailableStock();
+                //按到达顺序分配库存，库存不足的任务下单失败
+                Map<String, Long> allocatedTaskOrderIds = new LinkedHashMap<>();
+                List<FlashOrder> flashOrders = new ArrayList<>();
+                for (PlaceOrderTask placeOrderTask : allowedTasks) {
+                    if (placeOrderTask.getQuantity() > availableStock) {
+                        allocatedTaskOrderIds.put(placeOrderTask.getPlaceOrderTaskId(), null);
+                        continue;
+                    }
+                    availableStock -= placeOrderTask.getQuantity();
+                    FlashOrder flashOrder = buildFlashOrder(placeOrderTask, snapshot);
+                    flashOrders.add(flashOrder);
+                    allocatedTaskOrderIds.put(placeOrderTask.getPlaceOrderTaskId(), flashOrder.getId());
+                }
+                if (flashOrders.isEmpty() || placeOrderTaskBatchPersister.persist(itemId, flashOrders)) {
+                    taskOrderIds.putAll(allocatedTaskOrderIds);
+                    return;
+                }
+                //其他批次并发扣减了库存，重新读取库存后分配
+                logger.info("handleOrderTasks|库存已变化，重新分配|{},{}", itemId, i);
+            }
+            logger.info("handleOrderTasks|库存扣减失败|{},{}", itemId, allowedTasks.size());
+            allowedTasks.forEach(placeOrderTask -> taskOrderIds.put(placeOrderTask.getPlaceOrderTaskId(), null));
+        } catch (Exception e) {
+            logger.error("handleOrderTasks|批量下单失败，退回逐个处理|{},{}", itemId, allowedTasks.size(), e);
+            allowedTasks.forEach(this::handleOne);
+        }
+    }
+
+    /**
+     * 统计批量处理的结果，退回逐个处理的任务由逐个处理时统计
+     */
+    private void recordHandled(Long itemId, List<PlaceOrderTask> tasks, Map<String, Long> taskOrderIds) {
+        int succeeded = 0;
+        int failed = 0;
+        for (PlaceOrderTask placeOrderTask : tasks) {
+            if (!taskOrderIds.containsKey(placeOrderTask.getPlaceOrderTaskId())) {
+                continue;
+            }
+            if (taskOrderIds.get(placeOrderTask.getPlaceOrderTaskId()) != null) {
+                succeeded++;
+            } else {
+                failed++;
+            }
+        }
+        orderTaskStatistics.recordHandled(itemId, succeeded, failed);
+    }
+
+    private void handleOne(PlaceOrderTask placeOrderTask) {
+        try {
+            queuedPlaceOrderService.handlePlaceOrderTask(placeOrderTask);
+        } catch (Exception e) {
+            logger.error("handleOrderTasks|下单任务处理失败|{}", placeOrderTask.getPlaceOrderTaskId(), e);
+        }
+    }
+
+    private FlashOrder buildFlashOrder(PlaceOrderTask placeOrderTask, PlaceOrderSnapshot snapshot) {
+        FlashOrder flashOrder = toDomain(placeOrderTask);
+        flashOrder.setItemTitle(snapshot.getItemTitle());
+        flashOrder.setFlashPrice(snapshot.getFlashPrice());
+        flashOrder.setUserId(placeOrderTask.getUserId());
+        //兼容提交时未确定订单号的任务
+        flashOrder.setId(placeOrderTask.getId() != null ? placeOrderTask.getId() : orderNoGenerateService.generateOrderNo(new OrderNoGenerateContext()));
+        return flashOrder;
+    }
+}
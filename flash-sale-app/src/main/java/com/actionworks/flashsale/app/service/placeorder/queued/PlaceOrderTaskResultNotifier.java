@@ -0,0 +1,142 @@
+package com.actionworks.flashsale.app.service.placeorder.queued;
+
+import com.actionworks.flashsale.app.model.enums.OrderTaskStatus;
+import com.actionworks.flashsale.app.model.result.OrderTaskHandleResult;
+import com.actionworks.flashsale.cache.redis.RedisCacheService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.actionworks.flashsale.util.StringUtil.link;
+
+/**
+ * 下单任务结果通知
+ * 各节点在内存中登记等待结果的请求，任务处理完成后通过Redis发布订阅广播结果，收到通知的节点直接唤醒本地等待的请求，
+ * 客户端一次长轮询即可拿到结果，不再反复查询任务状态。通知可能丢失，等待超时后由调用方再读取一次任务状态。
+ */
+@Service
+@ConditionalOnProperty(name = "PlaceOrderService", havingValue = "queued")
+public class PlaceOrderTaskResultNotifier {
+    private static final Logger logger = LoggerFactory.getLogger(PlaceOrderTaskResultNotifier.class);
+    private static final String PLACE_ORDER_TASK_RESULT_CHANNEL = "PLACE_ORDER_TASK_RESULT_CHANNEL";
+
+    private final Map<String, List<CompletableFuture<OrderTaskHandleResult>>> waiters = new ConcurrentHashMap<>();
+    private final AtomicInteger waiterCount = new AtomicInteger();
+
+    @Value("${order.task-result.max-waiters:200000}")
+    private int maxWaiters;
+
+    @Resource
+    private RedisCacheService redisCacheService;
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @PostConstruct
+    public void init() {
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> wakeUp(message), new ChannelTopic(PLACE_ORDER_TASK_RESULT_CHANNEL));
+        logger.info("taskResultNotifier|下单任务结果通知已初始化");
+    }
+
+    /**
+     * 登记等待任务结果，等待数已满时返回null，由调用方直接返回当前状态
+     * 取消返回的future即取消等待
+     */
+    public CompletableFuture<OrderTaskHandleResult> await(String placeOrderTaskId) {
+        if (waiterCount.incrementAndGet() > maxWaiters) {
+            waiterCount.decrementAndGet();
+            logger.info("taskResultNotifier|等待数已满|{}", placeOrderTaskId);
+            return null;
+        }
+        CompletableFuture<OrderTaskHandleResult> waiter = new CompletableFuture<>();
+        waiters.compute(placeOrderTaskId, (taskId, taskWaiters) -> {
+            List<CompletableFuture<OrderTaskHandleResult>> latestWaiters = taskWaiters == null ? new ArrayList<>() : taskWaiters;
+            latestWaiters.add(waiter);
+            return latestWaiters;
+        });
+        waiter.whenComplete((result, throwable) -> remove(placeOrderTaskId, waiter));
+        return waiter;
+    }
+
+    public void notifyResult(String placeOrderTaskId, OrderTaskStatus orderTaskStatus, Long orderId) {
+        try {
+            redisCacheService.getRedisTemplate().convertAndSend(PLACE_ORDER_TASK_RESULT_CHANNEL, link(placeOrderTaskId, orderTaskStatus.getStatus(), orderId));
+        } catch (Exception e) {
+            logger.error("taskResultNotifier|任务结果通知发送失败|{}", placeOrderTaskId, e);
+        }
+    }
+
+    /**
+     * 批量通知任务结果，订单号为空表示下单失败，一次管道提交
+     */
+    public void notifyResults(Map<String, Long> taskOrderIds) {
+        if (taskOrderIds == null || taskOrderIds.isEmpty()) {
+            return;
+        }
+        try {
+            redisCacheService.getRedisTemplate().executePipelined(new SessionCallback<Object>() {
+                @Override
+                public <K, V> Object execute(RedisOperations<K, V> operations) {
+                    taskOrderIds.forEach((placeOrderTaskId, orderId) -> {
+                        OrderTaskStatus orderTaskStatus = orderId != null ? OrderTaskStatus.SUCCESS : OrderTaskStatus.FAILED;
+                        operations.convertAndSend(PLACE_ORDER_TASK_RESULT_CHANNEL, link(placeOrderTaskId, orderTaskStatus.getStatus(), orderId));
+                    });
+                    return null;
+                }
+            });
+        } catch (Exception e) {
+            logger.error("taskResultNotifier|任务结果批量通知发送失败|{}", taskOrderIds.size(), e);
+        }
+    }
+
+    private void wakeUp(Message message) {
+        String[] notice = parse(message);
+        if (notice == null) {
+            return;
+        }
+        String placeOrderTaskId = notice[0];
+        List<CompletableFuture<OrderTaskHandleResult>> taskWaiters = waiters.remove(placeOrderTaskId);
+        if (taskWaiters == null) {
+            return;
+        }
+        OrderTaskStatus orderTaskStatus = OrderTaskStatus.findBy(Integer.valueOf(notice[1]));
+        OrderTaskHandleResult orderTaskHandleResult = OrderTaskStatus.SUCCESS.equals(orderTaskStatus)
+                ? OrderTaskHandleResult.ok("null".equals(notice[2]) ? null : Long.valueOf(notice[2]))
+                : OrderTaskHandleResult.failed(orderTaskStatus);
+        taskWaiters.forEach(waiter -> waiter.complete(orderTaskHandleResult));
+    }
+
+    private void remove(String placeOrderTaskId, CompletableFuture<OrderTaskHandleResult> waiter) {
+        waiterCount.decrementAndGet();
+        waiters.computeIfPresent(placeOrderTaskId, (taskId, taskWaiters) -> {
+            taskWaiters.remove(waiter);
+            return taskWaiters.isEmpty() ? null : taskWaiters;
+        });
+    }
+
+    private String[] parse(Message message) {
+        try {
+            Object notice = redisCacheService.getRedisTemplate().getValueSerializer().deserialize(message.getBody());
+            String[] parts = notice == null ? null : String.valueOf(notice).split("_");
+            return parts == null || parts.length != 3 ? null : parts;
+        } catch (Exception e) {
+            logger.error("taskResultNotifier|任务结果通知解析失败", e);
+            return null;
+        }
+    }
+}
@@ -4,11 +4,23 @@ import com.actionworks.flashsale.app.model.PlaceOrderTask;
 import com.actionworks.flashsale.app.model.enums.OrderTaskStatus;
 import com.actionworks.flashsale.app.model.result.OrderTaskSubmitResult;
 
+import java.util.Collection;
+import java.util.Map;
+
 public interface PlaceOrderTaskService {
 
     OrderTaskSubmitResult submit(PlaceOrderTask placeOrderTask);
 
-    void updateTaskHandleResult(String placeOrderTaskId, boolean result);
+    /**
+     * 批量更新任务处理结果，订单号为空表示下单失败；成功的任务同时写入订单号缓存，一次脚本调用完成。
+     * 只有仍处于已提交状态的任务才会写入，返回实际写入结果的任务
+     */
+    Map<String, Long> updateTaskHandleResults(Map<String, Long> taskOrderIds);
 
     OrderTaskStatus getTaskStatus(String placeOrderTaskId);
+
+    /**
+     * 批量查询任务状态，一次管道读取；任务不存在时不包含在结果中
+     */
+    Map<String, OrderTaskStatus> getTaskStatuses(Collection<String> placeOrderTaskIds);
 }
@@ -29,9 +29,15 @@ import org.slf4j.LoggerFactory;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 import static com.actionworks.flashsale.app.exception.AppErrorCode.GET_ITEM_FAILED;
 import static com.actionworks.flashsale.app.exception.AppErrorCode.INVALID_PARAMS;
@@ -39,12 +45,11 @@ import static com.actionworks.flashsale.app.exception.AppErrorCode.ITEM_NOT_ON_S
 import static com.actionworks.flashsale.app.exception.AppErrorCode.PLACE_ORDER_FAILED;
 import static com.actionworks.flashsale.app.exception.AppErrorCode.PLACE_ORDER_TASK_ID_INVALID;
 import static com.actionworks.flashsale.app.model.builder.FlashOrderAppBuilder.toDomain;
-import static com.actionworks.flashsale.app.model.constants.CacheConstants.HOURS_24;
+import static com.actionworks.flashsale.app.model.constants.CacheConstants.PLACE_ORDER_TASK_ORDER_ID_KEY;
 
 @Service
 @ConditionalOnProperty(name = "PlaceOrderService", havingValue = "queued")
 public class QueuedPlaceOrderService implements PlaceOrderService {
-    private static final String PLACE_ORDER_TASK_ORDER_ID_KEY = "PLACE_ORDER_TASK_ORDER_ID_KEY_";
     private static final Logger logger = LoggerFactory.getLogger(QueuedPlaceOrderService.class);
     @Resource
     private FlashItemAppService flashItemAppService;
@@ -64,6 +69,10 @@ public class QueuedPlaceOrderService implements PlaceOrderService {
     private OrderNoGenerateService orderNoGenerateService;
     @Resource
     private RedisCacheService redisCacheService;
+    @Resource
+    private PlaceOrderTaskResultNotifier placeOrderTaskResultNotifier;
+    @Resource
+    private OrderTaskStatistics orderTaskStatistics;
 
     @PostConstruct
     public void init() {
@@ -92,6 +101,8 @@ public class QueuedPlaceOrderService implements PlaceOrderService {
 
         PlaceOrderTask placeOrderTask = PlaceOrderTaskBuilder.with(userId, placeOrderCommand);
         placeOrderTask.setPlaceOrderTaskId(placeOrderTaskId);
+        //提交时确定订单号，批量处理重复投递的任务时据此判断订单是否已落库
+        placeOrderTask.setId(orderNoGenerateService.generateOrderNo(new OrderNoGenerateContext()));
         //提交到消息队列
         OrderTaskSubmitResult submitResult = placeOrderTaskService.submit(placeOrderTask);
         logger.info("placeOrder|任务提交结果|{},{},{}", userId, placeOrderTaskId, JSON.toJSONString(placeOrderTask));
@@ -106,18 +117,24 @@ public class QueuedPlaceOrderService implements PlaceOrderService {
 
     @Transactional
     public void handlePlaceOrderTask(PlaceOrderTask placeOrderTask) {
+        //重复投递的任务已有结果或已被撤销，不再处理
+        OrderTaskStatus orderTaskStatus = placeOrderTaskService.getTaskStatus(placeOrderTask.getPlaceOrderTaskId());
+        if (!OrderTaskStatus.SUBMITTED.equals(orderTaskStatus)) {
+            logger.info("handleOrderTask|下单任务不是待处理状态，跳过|{},{}", placeOrderTask.getPlaceOrderTaskId(), orderTaskStatus);
+            return;
+        }
         try {
             Long userId = placeOrderTask.getUserId();
             boolean isActivityAllowPlaceOrder = flashActivityAppService.isAllowPlaceOrderOrNot(placeOrderTask.getActivityId());
             if (!isActivityAllowPlaceOrder) {
                 logger.info("handleOrderTask|秒杀活动下单规则校验未通过|{},{}", placeOrderTask.getPlaceOrderTaskId(), placeOrderTask.getActivityId());
-                placeOrderTaskService.updateTaskHandleResult(placeOrderTask.getPlaceOrderTaskId(), false);
+                completeTask(placeOrderTask, false, null);
                 return;
             }
             boolean isItemAllowPlaceOrder = flashItemAppService.isAllowPlaceOrderOrNot(placeOrderTask.getItemId());
             if (!isItemAllowPlaceOrder) {
                 logger.info("handleOrderTask|秒杀品下单规则校验未通过|{},{}", placeOrderTask.getPlaceOrderTaskId(), placeOrderTask.getActivityId());
-                placeOrderTaskService.updateTaskHandleResult(placeOrderTask.getPlaceOrderTaskId(), false);
+                completeTask(placeOrderTask, false, null);
                 return;
             }
             FlashItem flashItem = flashItemDomainService.getFlashItem(placeOrderTask.getItemId());
@@ -135,19 +152,17 @@ public class QueuedPlaceOrderService implements PlaceOrderService {
             boolean decreaseStockSuccess = stockDeductionDomainService.decreaseItemStock(stockDeduction);
             if (!decreaseStockSuccess) {
                 logger.info("handleOrderTask|库存扣减失败|{},{}", placeOrderTask.getPlaceOrderTaskId(), JSON.toJSONString(placeOrderTask));
+                completeTask(placeOrderTask, false, null);
                 return;
             }
             boolean placeOrderSuccess = flashOrderDomainService.placeOrder(userId, flashOrderToPlace);
             if (!placeOrderSuccess) {
                 throw new BizException(PLACE_ORDER_FAILED.getErrDesc());
             }
-            //更新订单结果
-            placeOrderTaskService.updateTaskHandleResult(placeOrderTask.getPlaceOrderTaskId(), true);
-            //创建用户订单号缓存
-            redisCacheService.put(PLACE_ORDER_TASK_ORDER_ID_KEY + placeOrderTask.getPlaceOrderTaskId(), orderId, HOURS_24);
+            completeTask(placeOrderTask, true, orderId);
             logger.info("handleOrderTask|下单任务处理完成|{},{}", placeOrderTask.getPlaceOrderTaskId(), JSON.toJSONString(placeOrderTask));
         } catch (Exception e) {
-            placeOrderTaskService.updateTaskHandleResult(placeOrderTask.getPlaceOrderTaskId(), false);
+            completeTask(placeOrderTask, false, null);
             logger.error("handleOrderTask|下单任务处理错误|{},{}", placeOrderTask.getPlaceOrderTaskId(), JSON.toJSONString(placeOrderTask), e);
             throw new BizException(e.getMessage());
         }
@@ -158,14 +173,67 @@ public class QueuedPlaceOrderService implements PlaceOrderService {
         if (!generatedPlaceOrderTaskId.equals(placeOrderTaskId)) {
             return OrderTaskHandleResult.failed(PLACE_ORDER_TASK_ID_INVALID);
         }
+        return getPlaceOrderResult(placeOrderTaskId, placeOrderTaskService.getTaskStatus(placeOrderTaskId));
+    }
+
+    /**
+     * 等待下单任务结果，任务已结束时直接返回，否则在任务处理完成时通过通知唤醒
+     * 取消返回的future即取消等待
+     */
+    public CompletableFuture<OrderTaskHandleResult> awaitPlaceOrderResult(Long userId, Long itemId, String placeOrderTaskId) {
+        String generatedPlaceOrderTaskId = orderTaskIdGenerateService.generatePlaceOrderTaskId(userId, itemId);
+        if (!generatedPlaceOrderTaskId.equals(placeOrderTaskId)) {
+            return CompletableFuture.completedFuture(OrderTaskHandleResult.failed(PLACE_ORDER_TASK_ID_INVALID));
+        }
+        //先登记等待再读取状态，避免读取状态与登记之间完成的通知丢失
+        CompletableFuture<OrderTaskHandleResult> waiter = placeOrderTaskResultNotifier.await(placeOrderTaskId);
         OrderTaskStatus orderTaskStatus = placeOrderTaskService.getTaskStatus(placeOrderTaskId);
+        if (waiter != null && OrderTaskStatus.SUBMITTED.equals(orderTaskStatus)) {
+            return waiter;
+        }
+        if (waiter != null) {
+            waiter.cancel(false);
+        }
+        return CompletableFuture.completedFuture(getPlaceOrderResult(placeOrderTaskId, orderTaskStatus));
+    }
+
+    private OrderTaskHandleResult getPlaceOrderResult(String placeOrderTaskId, OrderTaskStatus orderTaskStatus) {
         if (orderTaskStatus == null) {
             return OrderTaskHandleResult.failed(PLACE_ORDER_TASK_ID_INVALID);
         }
         if (!OrderTaskStatus.SUCCESS.equals(orderTaskStatus)) {
             return OrderTaskHandleResult.failed(orderTaskStatus);
         }
-        Long orderId = redisCacheService.getObject(PLACE_ORDER_TASK_ORDER_ID_KEY + placeOrderTaskId, Long.class);
-        return OrderTaskHandleResult.ok(orderId);
+        //订单号由脚本以字符串写入，按字符串读取
+        String orderId = redisCacheService.getString(PLACE_ORDER_TASK_ORDER_ID_KEY + placeOrderTaskId);
+        return OrderTaskHandleResult.ok(orderId == null ? null : Long.valueOf(orderId));
+    }
+
+    /**
+     * 任务结果在下单事务结束后发布：事务提交后才写入成功状态并唤醒等待者，事务回滚时按失败发布；不在事务中时直接发布
+     */
+    private void completeTask(PlaceOrderTask placeOrderTask, boolean success, Long orderId) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            publishTaskResult(placeOrderTask, success, orderId);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCompletion(int status) {
+                publishTaskResult(placeOrderTask, success && status == TransactionSynchronization.STATUS_COMMITTED, orderId);
+            }
+        });
+    }
+
+    private void publishTaskResult(PlaceOrderTask placeOrderTask, boolean success, Long orderId) {
+        //任务已有结果时不再覆盖，也不重复通知和统计
+        Map<String, Long> updatedTaskOrderIds = placeOrderTaskService.updateTaskHandleResults(
+                Collections.singletonMap(placeOrderTask.getPlaceOrderTaskId(), success ? orderId : null));
+        if (updatedTaskOrderIds.isEmpty()) {
+            logger.info("handleOrderTask|下单任务已有结果，不再更新|{},{}", placeOrderTask.getPlaceOrderTaskId(), success);
+            return;
+        }
+        placeOrderTaskResultNotifier.notifyResult(placeOrderTask.getPlaceOrderTaskId(), success ? OrderTaskStatus.SUCCESS : OrderTaskStatus.FAILED, orderId);
+        orderTaskStatistics.recordHandled(placeOrderTask.getItemId(), success ? 1 : 0, success ? 0 : 1);
     }
 }
@@ -4,24 +4,26 @@ import com.actionworks.flashsale.app.model.PlaceOrderTask;
 import com.actionworks.flashsale.app.model.enums.OrderTaskStatus;
 import com.actionworks.flashsale.app.model.result.OrderTaskSubmitResult;
 import com.actionworks.flashsale.app.mq.OrderTaskPostService;
-import com.actionworks.flashsale.app.service.stock.ItemStockCacheService;
-import com.actionworks.flashsale.app.service.stock.model.ItemStockCache;
 import com.actionworks.flashsale.cache.redis.RedisCacheService;
-import com.actionworks.flashsale.lock.DistributedLock;
-import com.actionworks.flashsale.lock.DistributedLockFactoryService;
-import com.alibaba.fastjson.JSON;
+import com.actionworks.flashsale.cache.redis.RedisScriptRegistry;
+import com.actionworks.flashsale.cache.redis.RedisScriptResult;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
-import org.apache.commons.lang3.StringUtils;
+import com.google.common.collect.Lists;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
-import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.SessionCallback;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.Resource;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 import static com.actionworks.flashsale.app.exception.AppErrorCode.INVALID_PARAMS;
@@ -29,77 +31,76 @@ import static com.actionworks.flashsale.app.exception.AppErrorCode.ORDER_TASK_SU
 import static com.actionworks.flashsale.app.exception.AppErrorCode.ORDER_TOKENS_NOT_AVAILABLE;
 import static com.actionworks.flashsale.app.exception.AppErrorCode.REDUNDANT_SUBMIT;
 import static com.actionworks.flashsale.app.model.constants.CacheConstants.HOURS_24;
-
+import static com.actionworks.flashsale.app.model.constants.CacheConstants.PLACE_ORDER_TASK_ORDER_ID_KEY;
+import static com.actionworks.flashsale.app.service.placeorder.queued.OrderTaskStatistics.getItemTaskStatsKey;
+import static com.actionworks.flashsale.cache.redis.RedisLuaScript.COMPLETE_ORDER_TASKS;
+import static com.actionworks.flashsale.cache.redis.RedisLuaScript.RECOVER_ORDER_TOKEN;
+import static com.actionworks.flashsale.cache.redis.RedisLuaScript.SUBMIT_ORDER_TASK;
+
+/**
+ * 排队下单任务
+ * 提交时一次Lua调用完成防重、获取下单许可并标记任务已提交，下单许可由{@link OrderTokenRefresher}在后台初始化。
+ */
 @Service
 //@ConditionalOnProperty(name = "place_order_type", havingValue = "queued")
 @ConditionalOnProperty(name = "ServiceType", havingValue = "queued")
 public class QueuedPlaceOrderTaskService implements PlaceOrderTaskService {
-    private static final String LOCK_REFRESH_LATEST_AVAILABLE_TOKENS_KEY = "LOCK_REFRESH_LATEST_AVAILABLE_TOKENS_KEY_";
     private static final Logger logger = LoggerFactory.getLogger(QueuedPlaceOrderTaskService.class);
-    private final static Cache<Long, Integer> availableOrderTokensLocalCache = CacheBuilder.newBuilder().initialCapacity(20).concurrencyLevel(5).expireAfterWrite(20, TimeUnit.MILLISECONDS).build();
-    private static final String TAKE_ORDER_TOKEN_LUA;
-    private static final String RECOVER_ORDER_TOKEN_LUA;
+    //许可已耗尽的秒杀品，短时间内直接拒绝，不再访问Redis
+    private final static Cache<Long, Boolean> tokensExhaustedLocalCache = CacheBuilder.newBuilder().initialCapacity(20).concurrencyLevel(5).expireAfterWrite(20, TimeUnit.MILLISECONDS).build();
     private static final String PLACE_ORDER_TASK_ID_KEY = "PLACE_ORDER_TASK_ID_KEY_";
     private static final String PLACE_ORDER_TASK_AVAILABLE_TOKENS_KEY = "PLACE_ORDER_TASK_AVAILABLE_TOKENS_KEY_";
 
-    static {
-        TAKE_ORDER_TOKEN_LUA = "if (redis.call('exists', KEYS[1]) == 1) then" +
-                "    local availableTokensCount = tonumber(redis.call('get', KEYS[1]));" +
-                "    if (availableTokensCount == 0) then" +
-                "        return -1;" +
-                "    end;" +
-                "    if (availableTokensCount > 0) then" +
-                "        redis.call('incrby', KEYS[1], -1);" +
-                "        return 1;" +
-                "    end;" +
-                "end;" +
-                "return -100;";
-        RECOVER_ORDER_TOKEN_LUA = "if (redis.call('exists', KEYS[1]) == 1) then" +
-                "   redis.call('incrby', KEYS[1], 1);" +
-                "   return 1;" +
-                "end;" +
-                "return -100;";
-    }
-
     @Resource
     private RedisCacheService redisCacheService;
     @Resource
-    private ItemStockCacheService itemStockCacheService;
+    private RedisScriptRegistry redisScriptRegistry;
     @Resource
     private OrderTaskPostService orderTaskPostService;
     @Resource
-    private DistributedLockFactoryService lockFactoryService;
+    private OrderTokenRefresher orderTokenRefresher;
+    @Resource
+    private OrderTaskStatistics orderTaskStatistics;
 
     @Override
     public OrderTaskSubmitResult submit(PlaceOrderTask placeOrderTask) {
-        logger.info("submitOrderTask|提交下单任务|{}", JSON.toJSONString(placeOrderTask));
         if (placeOrderTask == null) {
             return OrderTaskSubmitResult.failed(INVALID_PARAMS);
         }
+        logger.info("submitOrderTask|提交下单任务|{},{}", placeOrderTask.getUserId(), placeOrderTask.getPlaceOrderTaskId());
+        Long itemId = placeOrderTask.getItemId();
+        if (tokensExhaustedLocalCache.getIfPresent(itemId) != null) {
+            return OrderTaskSubmitResult.failed(ORDER_TOKENS_NOT_AVAILABLE);
+        }
         String taskKey = getOrderTaskKey(placeOrderTask.getPlaceOrderTaskId());
-        Integer taskIdSubmittedResult = redisCacheService.getObject(taskKey, Integer.class);
-        if (taskIdSubmittedResult != null) {
+        //防重、扣减下单许可并标记已提交
+        List<String> keys = Lists.newArrayList(taskKey, getItemAvailableTokensKey(itemId), getItemTaskStatsKey(itemId));
+        RedisScriptResult result = redisScriptRegistry.execute(SUBMIT_ORDER_TASK, keys, HOURS_24);
+        if (result == RedisScriptResult.DUPLICATED) {
             return OrderTaskSubmitResult.failed(REDUNDANT_SUBMIT);
         }
-        //获取剩余下单许可
-        Integer availableOrderTokens = getAvailableOrderTokens(placeOrderTask.getItemId());
-        if (availableOrderTokens == null || availableOrderTokens == 0) {
+        if (result == RedisScriptResult.NOT_EXIST) {
+            orderTokenRefresher.requestRefresh(itemId);
             return OrderTaskSubmitResult.failed(ORDER_TOKENS_NOT_AVAILABLE);
         }
-        //扣减下单许可
-        if (!takeOrRecoverToken(placeOrderTask, TAKE_ORDER_TOKEN_LUA)) {
-            logger.info("submitOrderTask|库存扣减失败|{},{}", placeOrderTask.getUserId(), placeOrderTask.getPlaceOrderTaskId());
+        if (result == RedisScriptResult.INSUFFICIENT) {
+            tokensExhaustedLocalCache.put(itemId, true);
+            logger.info("submitOrderTask|下单许可不足|{},{}", placeOrderTask.getUserId(), placeOrderTask.getPlaceOrderTaskId());
             return OrderTaskSubmitResult.failed(ORDER_TOKENS_NOT_AVAILABLE);
         }
+        if (!result.isSuccess()) {
+            logger.info("submitOrderTask|下单任务提交失败|{},{},{}", placeOrderTask.getUserId(), placeOrderTask.getPlaceOrderTaskId(), result);
+            return OrderTaskSubmitResult.failed(ORDER_TASK_SUBMIT_FAILED);
+        }
         boolean postSuccess = orderTaskPostService.post(placeOrderTask);
         if (!postSuccess) {
-            //恢复下单许可
-            takeOrRecoverToken(placeOrderTask, RECOVER_ORDER_TOKEN_LUA);
+            //恢复下单许可并清除提交标记，允许用户重试
+            recoverToken(itemId);
+            redisCacheService.delete(taskKey);
+            orderTaskStatistics.recordSubmitCancelled(itemId);
             logger.info("submitOrderTask|下单任务提交失败|{},{}", placeOrderTask.getUserId(), placeOrderTask.getPlaceOrderTaskId());
             return OrderTaskSubmitResult.failed(ORDER_TASK_SUBMIT_FAILED);
         }
-        //缓存标记已经下单
-        redisCacheService.put(taskKey, 0, HOURS_24);
         logger.info("submitOrderTask|下单任务提交成功|{},{}", placeOrderTask.getUserId(), placeOrderTask.getPlaceOrderTaskId());
         return OrderTaskSubmitResult.ok();
     }
@@ -108,93 +109,97 @@ public class QueuedPlaceOrderTaskService implements PlaceOrderTaskService {
         return PLACE_ORDER_TASK_ID_KEY + placeOrderTaskId;
     }
 
-    public void updateTaskHandleResult(String placeOrderTaskId, boolean result) {
-        if (StringUtils.isEmpty(placeOrderTaskId)) {
-            return;
+    @Override
+    public Map<String, Long> updateTaskHandleResults(Map<String, Long> taskOrderIds) {
+        Map<String, Long> updatedTaskOrderIds = new LinkedHashMap<>();
+        if (taskOrderIds == null || taskOrderIds.isEmpty()) {
+            return updatedTaskOrderIds;
         }
-        String taskKey = getOrderTaskKey(placeOrderTaskId);
-        Integer taskStatus = redisCacheService.getObject(taskKey, Integer.class);
-        if (taskStatus == null || taskStatus != 0) {
-            return;
+        List<String> placeOrderTaskIds = new ArrayList<>(taskOrderIds.keySet());
+        List<String> keys = new ArrayList<>(placeOrderTaskIds.size() * 2);
+        List<Object> args = new ArrayList<>(placeOrderTaskIds.size() + 1);
+        args.add(HOURS_24);
+        for (String placeOrderTaskId : placeOrderTaskIds) {
+            Long orderId = taskOrderIds.get(placeOrderTaskId);
+            keys.add(getOrderTaskKey(placeOrderTaskId));
+            keys.add(PLACE_ORDER_TASK_ORDER_ID_KEY + placeOrderTaskId);
+            args.add(orderId == null ? "" : String.valueOf(orderId));
+        }
+        //状态以条件写入，已有结果的任务（如重复投递后再次处理）不会被覆盖
+        List<Long> results = redisScriptRegistry.executeForList(COMPLETE_ORDER_TASKS, keys, args.toArray());
+        for (int i = 0; i < placeOrderTaskIds.size(); i++) {
+            if (results != null && i < results.size() && RedisScriptResult.findBy(results.get(i)).isSuccess()) {
+                updatedTaskOrderIds.put(placeOrderTaskIds.get(i), taskOrderIds.get(placeOrderTaskIds.get(i)));
+            }
         }
-        redisCacheService.put(taskKey, result ? 1 : -1);
+        logger.info("updateTaskHandleResults|批量更新任务结果|{},{}", taskOrderIds.size(), updatedTaskOrderIds.size());
+        return updatedTaskOrderIds;
     }
 
     @Override
-    public OrderTaskStatus getTaskStatus(String placeOrderTaskId) {
-        String taskKey = getOrderTaskKey(placeOrderTaskId);
-        Integer taskStatus = redisCacheService.getObject(taskKey, Integer.class);
-        return OrderTaskStatus.findBy(taskStatus);
-    }
-
-    private boolean takeOrRecoverToken(PlaceOrderTask placeOrderTask, String script) {
-        List<String> keys = new ArrayList<>();
-        keys.add(getItemAvailableTokensKey(placeOrderTask.getItemId()));
-        DefaultRedisScript<Long> redisScript = new DefaultRedisScript<>(script, Long.class);
-
-        for (int i = 0; i < 3; i++) {
-            Long result = redisCacheService.getRedisTemplate().execute(redisScript, keys);
-            if (result == null) {
-                return false;
+    public Map<String, OrderTaskStatus> getTaskStatuses(Collection<String> placeOrderTaskIds) {
+        Map<String, OrderTaskStatus> taskStatuses = new HashMap<>();
+        if (placeOrderTaskIds == null || placeOrderTaskIds.isEmpty()) {
+            return taskStatuses;
+        }
+        List<String> taskIds = new ArrayList<>(placeOrderTaskIds);
+        List<Object> results = redisCacheService.getRedisTemplate().executePipelined(new SessionCallback<Object>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public <K, V> Object execute(RedisOperations<K, V> operations) {
+                RedisOperations<String, Object> redisOperations = (RedisOperations<String, Object>) operations;
+                taskIds.forEach(placeOrderTaskId -> redisOperations.opsForValue().get(getOrderTaskKey(placeOrderTaskId)));
+                return null;
             }
-            if (result == -100) {
-                refreshLatestAvailableTokens(placeOrderTask.getItemId());
-                continue;
+        });
+        for (int i = 0; i < taskIds.size() && i < results.size(); i++) {
+            OrderTaskStatus orderTaskStatus = toTaskStatus(results.get(i));
+            if (orderTaskStatus != null) {
+                taskStatuses.put(taskIds.get(i), orderTaskStatus);
             }
-            return result == 1L;
         }
-        return false;
+        return taskStatuses;
     }
 
-    private Integer getAvailableOrderTokens(Long itemId) {
-        Integer availableOrderTokens = availableOrderTokensLocalCache.getIfPresent(itemId);
-        if (availableOrderTokens != null) {
-            return availableOrderTokens;
-        }
-        return refreshLocalAvailableTokens(itemId);
+    @Override
+    public OrderTaskStatus getTaskStatus(String placeOrderTaskId) {
+        return OrderTaskStatus.findBy(getTaskStatusCode(getOrderTaskKey(placeOrderTaskId)));
     }
 
-    private synchronized Integer refreshLocalAvailableTokens(Long itemId) {
-        Integer availableOrderTokens = availableOrderTokensLocalCache.getIfPresent(itemId);
-        if (availableOrderTokens != null) {
-            return availableOrderTokens;
-        }
-        String availableTokensKey = getItemAvailableTokensKey(itemId);
-        Integer latestAvailableOrderTokens = redisCacheService.getObject(availableTokensKey, Integer.class);
-        if (latestAvailableOrderTokens != null) {
-            availableOrderTokensLocalCache.put(itemId, latestAvailableOrderTokens);
-            return latestAvailableOrderTokens;
-        }
-        return refreshLatestAvailableTokens(itemId);
+    /**
+     * 任务状态由脚本或值序列化器写入，统一按字符串读取
+     */
+    private Integer getTaskStatusCode(String taskKey) {
+        String taskStatus = redisCacheService.getString(taskKey);
+        if (taskStatus == null) {
+            return null;
+        }
+        try {
+            return Integer.valueOf(taskStatus);
+        } catch (NumberFormatException e) {
+            return null;
+        }
     }
 
-    private Integer refreshLatestAvailableTokens(Long itemId) {
-        DistributedLock refreshTokenLock = lockFactoryService.getDistributedLock(getRefreshTokensLockKey(itemId));
+    private static OrderTaskStatus toTaskStatus(Object taskStatus) {
+        if (taskStatus == null) {
+            return null;
+        }
         try {
-            boolean isLockSuccess = refreshTokenLock.tryLock(500, 1000, TimeUnit.MILLISECONDS);
-            if (!isLockSuccess) {
-                return null;
-            }
-            ItemStockCache itemStockCache = itemStockCacheService.getAvailableItemStock(null, itemId);
-            if (itemStockCache != null && itemStockCache.isSuccess() && itemStockCache.getAvailableStock() != null) {
-                Integer latestAvailableOrderTokens = (int) Math.ceil(itemStockCache.getAvailableStock() * 1.5);
-                redisCacheService.put(getItemAvailableTokensKey(itemId), latestAvailableOrderTokens, HOURS_24);
-                availableOrderTokensLocalCache.put(itemId, latestAvailableOrderTokens);
-                return latestAvailableOrderTokens;
-            }
-        } catch (Exception e) {
-            logger.error("refreshAvailableTokens|刷新tokens失败|{}", itemId, e);
-        } finally {
-            refreshTokenLock.unlock();
+            return OrderTaskStatus.findBy(Integer.valueOf(String.valueOf(taskStatus)));
+        } catch (NumberFormatException e) {
+            return null;
         }
-        return null;
     }
 
-    private String getRefreshTokensLockKey(Long itemId) {
-        return LOCK_REFRESH_LATEST_AVAILABLE_TOKENS_KEY + itemId;
+    private void recoverToken(Long itemId) {
+        RedisScriptResult result = redisScriptRegistry.execute(RECOVER_ORDER_TOKEN, Lists.newArrayList(getItemAvailableTokensKey(itemId)));
+        if (!result.isSuccess()) {
+            logger.info("submitOrderTask|恢复下单许可失败|{},{}", itemId, result);
+        }
     }
 
-    private String getItemAvailableTokensKey(Long itemId) {
+    public static String getItemAvailableTokensKey(Long itemId) {
         return PLACE_ORDER_TASK_AVAILABLE_TOKENS_KEY + itemId;
     }
 }
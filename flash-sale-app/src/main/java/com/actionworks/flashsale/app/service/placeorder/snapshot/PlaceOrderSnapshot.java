@@ -0,0 +1,70 @@
+package com.actionworks.flashsale.app.service.placeorder.snapshot;
+
+import com.actionworks.flashsale.domain.model.entity.FlashActivity;
+import com.actionworks.flashsale.domain.model.entity.FlashItem;
+
+/**
+ * 秒杀品下单快照，不可变
+ * 汇总下单校验所需的秒杀品和所属活动信息，时间以毫秒时间戳保存，校验时不访问缓存也不创建对象；
+ * 秒杀品或活动变更时整体替换为新的快照。
+ */
+public final class PlaceOrderSnapshot {
+    private final Long itemId;
+    private final Long activityId;
+    private final String itemTitle;
+    private final Long flashPrice;
+    private final boolean itemOnline;
+    private final long itemStartTime;
+    private final long itemEndTime;
+    private final boolean activityOnline;
+    private final long activityStartTime;
+    private final long activityEndTime;
+
+    private PlaceOrderSnapshot(FlashItem flashItem, FlashActivity flashActivity) {
+        this.itemId = flashItem.getId();
+        this.activityId = flashItem.getActivityId();
+        this.itemTitle = flashItem.getItemTitle();
+        this.flashPrice = flashItem.getFlashPrice();
+        this.itemOnline = flashItem.isOnline();
+        this.itemStartTime = flashItem.getStartTime() == null ? Long.MAX_VALUE : flashItem.getStartTime().getTime();
+        this.itemEndTime = flashItem.getEndTime() == null ? Long.MIN_VALUE : flashItem.getEndTime().getTime();
+        this.activityOnline = flashActivity != null && flashActivity.isOnline();
+        this.activityStartTime = flashActivity == null || flashActivity.getStartTime() == null ? Long.MAX_VALUE : flashActivity.getStartTime().getTime();
+        this.activityEndTime = flashActivity == null || flashActivity.getEndTime() == null ? Long.MIN_VALUE : flashActivity.getEndTime().getTime();
+    }
+
+    public static PlaceOrderSnapshot of(FlashItem flashItem, FlashActivity flashActivity) {
+        return new PlaceOrderSnapshot(flashItem, flashActivity);
+    }
+
+    /**
+     * 活动是否可下单，与原活动校验规则一致
+     */
+    public boolean isActivityAllowPlaceOrder(Long activityId, long now) {
+        return this.activityId != null && this.activityId.equals(activityId)
+                && activityOnline && activityStartTime < now && now < activityEndTime;
+    }
+
+    /**
+     * 秒杀品是否可下单，与原秒杀品校验规则一致
+     */
+    public boolean isItemAllowPlaceOrder(long now) {
+        return itemOnline && itemStartTime < now && now < itemEndTime;
+    }
+
+    public Long getItemId() {
+        return itemId;
+    }
+
+    public Long getActivityId() {
+        return activityId;
+    }
+
+    public String getItemTitle() {
+        return itemTitle;
+    }
+
+    public Long getFlashPrice() {
+        return flashPrice;
+    }
+}
@@ -0,0 +1,142 @@
+package com.actionworks.flashsale.app.service.placeorder.snapshot;
+
+import com.actionworks.flashsale.app.service.activity.cache.FlashActivityCacheService;
+import com.actionworks.flashsale.app.service.activity.cache.model.FlashActivityCache;
+import com.actionworks.flashsale.app.service.item.cache.FlashItemCacheService;
+import com.actionworks.flashsale.app.service.item.cache.model.FlashItemCache;
+import com.actionworks.flashsale.domain.exception.DomainException;
+import com.actionworks.flashsale.domain.model.entity.FlashActivity;
+import com.actionworks.flashsale.domain.model.entity.FlashItem;
+import com.actionworks.flashsale.domain.service.FlashActivityDomainService;
+import com.actionworks.flashsale.domain.service.FlashItemDomainService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 秒杀品下单快照
+ * 下单校验只读取本地快照，不再分别查询秒杀品和活动缓存；快照不存在时从缓存加载一次，已有快照不会被缓存覆盖。
+ * 本节点的秒杀品和活动事件触发时从数据库重建并整体替换快照；其他节点的变更由定时任务同样从数据库刷新，
+ * 分布式缓存中的秒杀品可能比数据库旧数分钟，不能用来替换快照。
+ */
+@Service
+public class PlaceOrderSnapshotService {
+    private static final Logger logger = LoggerFactory.getLogger(PlaceOrderSnapshotService.class);
+
+    private final Map<Long, PlaceOrderSnapshot> snapshots = new ConcurrentHashMap<>();
+
+    @Resource
+    private FlashItemCacheService flashItemCacheService;
+    @Resource
+    private FlashActivityCacheService flashActivityCacheService;
+    @Resource
+    private FlashItemDomainService flashItemDomainService;
+    @Resource
+    private FlashActivityDomainService flashActivityDomainService;
+
+    /**
+     * 获取秒杀品下单快照，秒杀品不存在或缓存暂不可用时返回null
+     */
+    public PlaceOrderSnapshot getSnapshot(Long itemId) {
+        if (itemId == null) {
+            return null;
+        }
+        PlaceOrderSnapshot snapshot = snapshots.get(itemId);
+        if (snapshot != null) {
+            return snapshot;
+        }
+        return loadFromCache(itemId);
+    }
+
+    /**
+     * 秒杀品变更后从数据库重建快照
+     */
+    public void refreshItem(Long itemId) {
+        if (itemId == null) {
+            return;
+        }
+        try {
+            snapshots.put(itemId, loadFromDB(itemId, new HashMap<>()));
+            logger.info("placeOrderSnapshot|秒杀品下单快照已更新|{}", itemId);
+        } catch (Exception e) {
+            //重建失败时移除旧快照，下次下单时从缓存加载
+            snapshots.remove(itemId);
+            logger.error("placeOrderSnapshot|秒杀品下单快照更新失败|{}", itemId, e);
+        }
+    }
+
+    /**
+     * 活动变更后重建所属秒杀品的快照
+     */
+    public void refreshActivity(Long activityId) {
+        if (activityId == null) {
+            return;
+        }
+        try {
+            FlashActivity flashActivity = flashActivityDomainService.getFlashActivity(activityId);
+            for (PlaceOrderSnapshot snapshot : new ArrayList<>(snapshots.values())) {
+                if (activityId.equals(snapshot.getActivityId())) {
+                    snapshots.put(snapshot.getItemId(), PlaceOrderSnapshot.of(flashItemDomainService.getFlashItem(snapshot.getItemId()), flashActivity));
+                }
+            }
+            logger.info("placeOrderSnapshot|活动下单快照已更新|{}", activityId);
+        } catch (Exception e) {
+            snapshots.values().removeIf(snapshot -> activityId.equals(snapshot.getActivityId()));
+            logger.error("placeOrderSnapshot|活动下单快照更新失败|{}", activityId, e);
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${order.snapshot.refresh-interval-millis:5000}")
+    public void refreshSnapshotsTask() {
+        //同一活动的秒杀品在一次刷新中只查询一次活动
+        Map<Long, FlashActivity> flashActivities = new HashMap<>();
+        for (Long itemId : new ArrayList<>(snapshots.keySet())) {
+            try {
+                snapshots.put(itemId, loadFromDB(itemId, flashActivities));
+            } catch (DomainException e) {
+                //秒杀品已不存在
+                snapshots.remove(itemId);
+                logger.info("placeOrderSnapshot|秒杀品不存在，移除下单快照|{}", itemId);
+            } catch (Exception e) {
+                //数据库暂不可用时保留原快照
+                logger.error("placeOrderSnapshot|秒杀品下单快照刷新失败|{}", itemId, e);
+            }
+        }
+    }
+
+    private PlaceOrderSnapshot loadFromDB(Long itemId, Map<Long, FlashActivity> flashActivities) {
+        FlashItem flashItem = flashItemDomainService.getFlashItem(itemId);
+        FlashActivity flashActivity = null;
+        if (flashItem.getActivityId() != null) {
+            flashActivity = flashActivities.computeIfAbsent(flashItem.getActivityId(), flashActivityDomainService::getFlashActivity);
+        }
+        return PlaceOrderSnapshot.of(flashItem, flashActivity);
+    }
+
+    private PlaceOrderSnapshot loadFromCache(Long itemId) {
+        FlashItemCache flashItemCache = flashItemCacheService.getCachedItem(itemId, null);
+        if (flashItemCache.isLater() || !flashItemCache.isExist() || flashItemCache.getFlashItem() == null) {
+            return null;
+        }
+        FlashItem flashItem = flashItemCache.getFlashItem();
+        FlashActivity flashActivity = null;
+        if (flashItem.getActivityId() != null) {
+            FlashActivityCache flashActivityCache = flashActivityCacheService.getCachedActivity(flashItem.getActivityId(), null);
+            if (flashActivityCache.isLater()) {
+                return null;
+            }
+            flashActivity = flashActivityCache.getFlashActivity();
+        }
+        //缓存可能比事件重建的快照旧，只在快照不存在时使用
+        PlaceOrderSnapshot snapshot = PlaceOrderSnapshot.of(flashItem, flashActivity);
+        PlaceOrderSnapshot existing = snapshots.putIfAbsent(itemId, snapshot);
+        return existing != null ? existing : snapshot;
+    }
+}
@@ -0,0 +1,193 @@
+package com.actionworks.flashsale.app.service.placeorder.writebehind;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * 订单预写日志，基于内存映射文件
+ * 文件头保存检查点，即此位置之前的订单均已写入数据库；之后依次为记录：长度(4字节) + CRC32(4字节) + 内容，
+ * 每次追加后在记录末尾写入长度0作为结束标记。订单可能被多个写入线程乱序落库，只有连续落库的部分才推进检查点。
+ * 日志按环形复用：写到末尾放不下时，只要检查点之前已落库的空间足够，就在当前位置写入回绕标记并从头继续写，
+ * 新记录不会越过检查点；数据库落库缓慢时，可写空间为文件容量减去检查点之后尚未落库的记录，用尽后追加失败。
+ * 恢复时从检查点开始读取，遇到回绕标记跳回文件头，遇到结束标记或校验失败的记录即停止。
+ * 默认不在每次追加时刷盘，进程崩溃时数据仍在操作系统页缓存中，主机宕机则依赖wal-force开启同步刷盘。
+ */
+class OrderWriteAheadLog implements Closeable {
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int END_MARK_SIZE = 4;
+    private static final int WRAP_MARK = -1;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private final boolean forceOnWrite;
+    //已落库但尚未连续的记录区间，起始位置 -> 结束位置
+    private final TreeMap<Integer, Integer> persistedRanges = new TreeMap<>();
+    private int checkpoint;
+    private int writePosition;
+    //回绕标记所在位置，检查点推进到此处后跳回文件头；未回绕时为-1
+    private int wrapPosition = -1;
+
+    OrderWriteAheadLog(File logFile, int capacity, boolean forceOnWrite) throws IOException {
+        File parent = logFile.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("无法创建订单预写日志目录：" + parent);
+        }
+        this.file = new RandomAccessFile(logFile, "rw");
+        this.channel = file.getChannel();
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        this.capacity = capacity;
+        this.forceOnWrite = forceOnWrite;
+        int savedCheckpoint = buffer.getInt(0);
+        this.checkpoint = savedCheckpoint < HEADER_SIZE || savedCheckpoint >= capacity ? HEADER_SIZE : savedCheckpoint;
+        this.writePosition = checkpoint;
+    }
+
+    /**
+     * 读取检查点之后尚未落库的记录，写入位置移动到最后一条有效记录之后
+     */
+    synchronized List<Record> recover() {
+        List<Record> records = new ArrayList<>();
+        int position = checkpoint;
+        wrapPosition = -1;
+        //回绕标记可能位于文件末尾不足一个记录头的空间内
+        while (position + END_MARK_SIZE <= capacity) {
+            int length = buffer.getInt(position);
+            if (length == WRAP_MARK && wrapPosition < 0 && position > HEADER_SIZE) {
+                wrapPosition = position;
+                position = HEADER_SIZE;
+                continue;
+            }
+            //回绕后的记录不会越过检查点
+            int limit = wrapPosition < 0 ? capacity : checkpoint;
+            if (length <= 0 || position + RECORD_HEADER_SIZE + length > limit) {
+                break;
+            }
+            byte[] payload = new byte[length];
+            for (int i = 0; i < length; i++) {
+                payload[i] = buffer.get(position + RECORD_HEADER_SIZE + i);
+            }
+            if (crc(payload) != buffer.getInt(position + 4)) {
+                break;
+            }
+            int end = position + RECORD_HEADER_SIZE + length;
+            records.add(new Record(position, end, payload));
+            position = end;
+        }
+        writePosition = position;
+        writeEndMark(writePosition);
+        return records;
+    }
+
+    /**
+     * 追加记录，日志已满时返回null
+     */
+    synchronized Record append(byte[] payload) {
+        int size = RECORD_HEADER_SIZE + payload.length;
+        int limit = wrapPosition < 0 ? capacity : checkpoint;
+        if (writePosition + size + END_MARK_SIZE > limit) {
+            if (wrapPosition >= 0) {
+                return null;
+            }
+            if (checkpoint == writePosition) {
+                //之前的记录均已落库，直接从头复用日志
+                if (HEADER_SIZE + size + END_MARK_SIZE > capacity) {
+                    return null;
+                }
+                checkpoint = HEADER_SIZE;
+                writePosition = HEADER_SIZE;
+                writeEndMark(writePosition);
+                buffer.putInt(0, checkpoint);
+            } else {
+                //检查点之前已落库的空间足够时回绕；先在文件头写结束标记，再写回绕标记，避免恢复时读到旧记录
+                if (HEADER_SIZE + size + END_MARK_SIZE > checkpoint) {
+                    return null;
+                }
+                writeEndMark(HEADER_SIZE);
+                buffer.putInt(writePosition, WRAP_MARK);
+                wrapPosition = writePosition;
+                writePosition = HEADER_SIZE;
+            }
+        }
+        int start = writePosition;
+        buffer.putInt(start + 4, crc(payload));
+        for (int i = 0; i < payload.length; i++) {
+            buffer.put(start + RECORD_HEADER_SIZE + i, payload[i]);
+        }
+        writeEndMark(start + size);
+        //长度最后写入，写到一半崩溃时该记录不会被恢复
+        buffer.putInt(start, payload.length);
+        writePosition = start + size;
+        if (forceOnWrite) {
+            buffer.force();
+        }
+        return new Record(start, writePosition, payload);
+    }
+
+    /**
+     * 标记记录已落库，连续落库的部分推进检查点
+     */
+    synchronized void markPersisted(Record record) {
+        persistedRanges.put(record.start, record.end);
+        while (true) {
+            if (checkpoint == wrapPosition) {
+                checkpoint = HEADER_SIZE;
+                wrapPosition = -1;
+            }
+            Integer end = persistedRanges.remove(checkpoint);
+            if (end == null) {
+                break;
+            }
+            checkpoint = end;
+        }
+        buffer.putInt(0, checkpoint);
+        if (forceOnWrite) {
+            buffer.force();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        buffer.force();
+        channel.close();
+        file.close();
+    }
+
+    private void writeEndMark(int position) {
+        if (position + END_MARK_SIZE <= capacity) {
+            buffer.putInt(position, 0);
+        }
+    }
+
+    private static int crc(byte[] payload) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(payload, 0, payload.length);
+        return (int) crc32.getValue();
+    }
+
+    static class Record {
+        private final int start;
+        private final int end;
+        private final byte[] payload;
+
+        Record(int start, int end, byte[] payload) {
+            this.start = start;
+            this.end = end;
+            this.payload = payload;
+        }
+
+        byte[] getPayload() {
+            return payload;
+        }
+    }
+}
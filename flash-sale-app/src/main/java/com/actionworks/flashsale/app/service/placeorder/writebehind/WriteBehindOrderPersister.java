@@ -0,0 +1,47 @@
+package com.actionworks.flashsale.app.service.placeorder.writebehind;
+
+import com.actionworks.flashsale.app.exception.BizException;
+import com.actionworks.flashsale.domain.model.StockDeduction;
+import com.actionworks.flashsale.domain.model.entity.FlashOrder;
+import com.actionworks.flashsale.domain.service.FlashOrderDomainService;
+import com.actionworks.flashsale.domain.service.StockDeductionDomainService;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.annotation.Resource;
+import java.util.List;
+
+import static com.actionworks.flashsale.app.exception.AppErrorCode.PLACE_ORDER_FAILED;
+
+/**
+ * 订单批量落库，同一秒杀品的一批订单在一个事务中完成：合计数量一次扣减数据库库存，订单多行插入
+ */
+@Component
+@ConditionalOnProperty(name = "PlaceOrderService", havingValue = "writebehind")
+public class WriteBehindOrderPersister {
+    @Resource
+    private FlashOrderDomainService flashOrderDomainService;
+    @Resource
+    private StockDeductionDomainService stockDeductionDomainService;
+
+    /**
+     * 返回false表示数据库库存不足，整批未写入
+     */
+    @Transactional(rollbackFor = Exception.class)
+    public boolean persist(Long itemId, List<FlashOrder> flashOrders) {
+        int totalQuantity = flashOrders.stream().mapToInt(FlashOrder::getQuantity).sum();
+        StockDeduction stockDeduction = new StockDeduction()
+                .setItemId(itemId)
+                .setQuantity(totalQuantity);
+        boolean decreaseStockSuccess = stockDeductionDomainService.decreaseItemStock(stockDeduction);
+        if (!decreaseStockSuccess) {
+            return false;
+        }
+        boolean placeOrderSuccess = flashOrderDomainService.placeOrders(flashOrders);
+        if (!placeOrderSuccess) {
+            throw new BizException(PLACE_ORDER_FAILED.getErrDesc());
+        }
+        return true;
+    }
+}
@@ -0,0 +1,313 @@
+package com.actionworks.flashsale.app.service.placeorder.writebehind;
+
+import com.actionworks.flashsale.app.model.enums.OrderTaskStatus;
+import com.actionworks.flashsale.app.service.stock.ItemStockCacheService;
+import com.actionworks.flashsale.cache.redis.RedisCacheService;
+import com.actionworks.flashsale.domain.exception.DomainException;
+import com.actionworks.flashsale.domain.model.StockDeduction;
+import com.actionworks.flashsale.domain.model.entity.FlashOrder;
+import com.actionworks.flashsale.domain.service.FlashOrderDomainService;
+import com.alibaba.fastjson.JSON;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static com.actionworks.flashsale.app.model.constants.CacheConstants.HOURS_24;
+import static com.actionworks.flashsale.app.model.constants.CacheConstants.WRITE_BEHIND_ORDER_FAILED_KEY;
+
+/**
+ * 订单异步落库管道
+ * 库存预扣减成功后，订单先追加到本地预写日志，再放入内存环形队列，请求线程随即返回；
+ * 后台写入线程批量取出订单，按秒杀品分组落库，落库成功后确认库存预留，数据库库存不足的订单释放预留并记录下单失败，
+ * 客户端已拿到订单ID，可通过{@link #getOrderStatus}查询最终结果。
+ * 数据库异常时持续重试，队列写满后新订单直接失败；进程重启时从预写日志中恢复未落库的订单。
+ * 订单落库前定期延长其库存预留的过期时间，避免落库积压超过预留有效期时被过期清理释放、库存重复发放。
+ */
+@Component
+@ConditionalOnProperty(name = "PlaceOrderService", havingValue = "writebehind")
+public class WriteBehindOrderPipeline {
+    private static final Logger logger = LoggerFactory.getLogger(WriteBehindOrderPipeline.class);
+
+    @Value("${order.write-behind.wal-file:./data/order_write_behind.wal}")
+    private String walFile;
+    @Value("${order.write-behind.wal-size-mb:64}")
+    private int walSizeMb;
+    //每次追加和推进检查点时是否同步刷盘
+    @Value("${order.write-behind.wal-force:false}")
+    private boolean walForce;
+    @Value("${order.write-behind.buffer-size:65536}")
+    private int bufferSize;
+    @Value("${order.write-behind.batch-size:200}")
+    private int batchSize;
+    @Value("${order.write-behind.writer-threads:2}")
+    private int writerThreads;
+    //落库失败后的重试间隔，单位毫秒
+    @Value("${order.write-behind.retry-interval-millis:500}")
+    private long retryIntervalMillis;
+
+    @Resource
+    private WriteBehindOrderPersister writeBehindOrderPersister;
+    @Resource
+    private FlashOrderDomainService flashOrderDomainService;
+    @Resource
+    private ItemStockCacheService itemStockCacheService;
+    @Resource
+    private RedisCacheService redisCacheService;
+
+    private OrderWriteAheadLog writeAheadLog;
+    private BlockingQueue<WriteBehindOrder> ringBuffer;
+    //已提交尚未处理完毕的订单，定期为其库存预留续期
+    private final Map<Long, FlashOrder> pendingOrders = new ConcurrentHashMap<>();
+    private ExecutorService writerExecutor;
+    private volatile boolean running;
+
+    @PostConstruct
+    public void init() throws IOException {
+        writeAheadLog = new OrderWriteAheadLog(new File(walFile), walSizeMb * 1024 * 1024, walForce);
+        ringBuffer = new ArrayBlockingQueue<>(bufferSize);
+        recover();
+        running = true;
+        writerExecutor = Executors.newFixedThreadPool(writerThreads);
+        for (int i = 0; i < writerThreads; i++) {
+            writerExecutor.execute(this::writeLoop);
+        }
+        logger.info("initWriteBehindOrderPipeline|订单异步落库管道已启动|{},{},{}", walFile, bufferSize, writerThreads);
+    }
+
+    @PreDestroy
+    public void destroy() throws IOException, InterruptedException {
+        //停止接收新订单，写入线程处理完队列中的订单后退出，未处理完的由下次启动时恢复
+        running = false;
+        writerExecutor.shutdown();
+        if (!writerExecutor.awaitTermination(30, TimeUnit.SECONDS)) {
+            logger.info("destroyWriteBehindOrderPipeline|订单未全部落库，将在重启后恢复|{}", ringBuffer.size());
+            writerExecutor.shutdownNow();
+        }
+        writeAheadLog.close();
+    }
+
+    /**
+     * 提交订单，写入预写日志并放入队列；队列或日志已满时返回false
+     */
+    public boolean submit(FlashOrder flashOrder) {
+        if (!running) {
+            return false;
+        }
+        byte[] payload = JSON.toJSONString(flashOrder).getBytes(StandardCharsets.UTF_8);
+        //日志写入与入队在同一把锁内，队列顺序与日志顺序一致；只有这里入队，剩余容量检查后入队必定成功
+        synchronized (this) {
+            if (ringBuffer.remainingCapacity() == 0) {
+                logger.info("submitWriteBehindOrder|订单队列已满|{}", flashOrder.getId());
+                return false;
+            }
+            OrderWriteAheadLog.Record record = writeAheadLog.append(payload);
+            if (record == null) {
+                logger.info("submitWriteBehindOrder|订单预写日志已满|{}", flashOrder.getId());
+                return false;
+            }
+            pendingOrders.put(flashOrder.getId(), flashOrder);
+            ringBuffer.add(new WriteBehindOrder(flashOrder, record));
+        }
+        return true;
+    }
+
+    /**
+     * 为尚未落库的订单续期库存预留，续期间隔需小于预留有效期
+     */
+    @Scheduled(fixedDelayString = "${order.write-behind.reservation-renew-interval-millis:10000}")
+    public void renewReservationsTask() {
+        if (pendingOrders.isEmpty()) {
+            return;
+        }
+        Map<Long, List<Long>> itemOrderIds = new LinkedHashMap<>();
+        pendingOrders.values().forEach(flashOrder -> itemOrderIds.computeIfAbsent(flashOrder.getItemId(), k -> new ArrayList<>()).add(flashOrder.getId()));
+        itemOrderIds.forEach((itemId, orderIds) -> {
+            for (int from = 0; from < orderIds.size(); from += batchSize) {
+                itemStockCacheService.renewItemStockReservations(itemId, orderIds.subList(from, Math.min(from + batchSize, orderIds.size())));
+            }
+        });
+    }
+
+    private void writeLoop() {
+        while (running || !ringBuffer.isEmpty()) {
+            try {
+                WriteBehindOrder first = ringBuffer.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                List<WriteBehindOrder> batch = new ArrayList<>(batchSize);
+                batch.add(first);
+                ringBuffer.drainTo(batch, batchSize - 1);
+                persistBatch(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                logger.error("writeBehindOrders|订单落库异常", e);
+            }
+        }
+    }
+
+    private void recover() {
+        List<OrderWriteAheadLog.Record> records = writeAheadLog.recover();
+        if (records.isEmpty()) {
+            return;
+        }
+        logger.info("recoverWriteBehindOrders|开始恢复未落库订单|{}", records.size());
+        List<WriteBehindOrder> recoveredOrders = records.stream()
+                .map(record -> new WriteBehindOrder(JSON.parseObject(new String(record.getPayload(), StandardCharsets.UTF_8), FlashOrder.class), record))
+                .collect(Collectors.toList());
+        //重启期间预留可能已接近过期，恢复落库前先续期
+        recoveredOrders.forEach(order -> pendingOrders.put(order.flashOrder.getId(), order.flashOrder));
+        renewReservationsTask();
+        for (int from = 0; from < recoveredOrders.size(); from += batchSize) {
+            persistBatch(recoveredOrders.subList(from, Math.min(from + batchSize, recoveredOrders.size())));
+        }
+        logger.info("recoverWriteBehindOrders|未落库订单恢复完成|{}", records.size());
+    }
+
+    private void persistBatch(List<WriteBehindOrder> batch) {
+        Map<Long, List<WriteBehindOrder>> itemOrders = new LinkedHashMap<>();
+        batch.forEach(order -> itemOrders.computeIfAbsent(order.flashOrder.getItemId(), k -> new ArrayList<>()).add(order));
+        itemOrders.forEach((itemId, orders) -> {
+            List<FlashOrder> flashOrders = orders.stream().map(order -> order.flashOrder).collect(Collectors.toList());
+            //中断退出时不推进检查点，由下次启动时恢复
+            if (persistItemOrders(itemId, flashOrders)) {
+                orders.forEach(order -> {
+                    writeAheadLog.markPersisted(order.record);
+                    pendingOrders.remove(order.flashOrder.getId());
+                });
+            }
+        });
+    }
+
+    /**
+     * 同一秒杀品的订单落库，返回订单是否已处理完毕（落库或释放预留）
+     */
+    private boolean persistItemOrders(Long itemId, List<FlashOrder> flashOrders) {
+        List<FlashOrder> ordersToPersist = flashOrders;
+        while (true) {
+            try {
+                if (writeBehindOrderPersister.persist(itemId, ordersToPersist)) {
+                    ordersToPersist.forEach(flashOrder -> itemStockCacheService.confirmItemStockReservation(toStockDeduction(flashOrder)));
+                    logger.info("writeBehindOrders|订单批量落库完成|{},{}", itemId, ordersToPersist.size());
+                    return true;
+                }
+                break;
+            } catch (Exception e) {
+                logger.error("writeBehindOrders|订单批量落库失败，稍后重试|{},{}", itemId, ordersToPersist.size(), e);
+                if (!sleepBeforeRetry()) {
+                    return false;
+                }
+                //事务可能已提交但未收到结果，重试前剔除已落库的订单
+                ordersToPersist = excludePersisted(ordersToPersist);
+                if (ordersToPersist.isEmpty()) {
+                    return true;
+                }
+            }
+        }
+        //合计数量超过数据库库存，逐个订单落库，库存不足的订单释放预留
+        if (ordersToPersist.size() > 1) {
+            boolean handled = true;
+            for (FlashOrder flashOrder : ordersToPersist) {
+                handled = persistItemOrders(itemId, Collections.singletonList(flashOrder)) && handled;
+            }
+            return handled;
+        }
+        FlashOrder failedOrder = ordersToPersist.get(0);
+        logger.info("writeBehindOrders|数据库库存不足，订单落库失败|{},{}", itemId, failedOrder.getId());
+        itemStockCacheService.releaseItemStockReservation(toStockDeduction(failedOrder));
+        //记录下单失败，值为用户ID，查询时校验订单归属
+        redisCacheService.put(getOrderFailedKey(failedOrder.getId()), String.valueOf(failedOrder.getUserId()), HOURS_24);
+        return true;
+    }
+
+    /**
+     * 查询订单落库结果：仍在本节点排队或尚未落库时为已提交，已落库为成功，数据库库存不足被丢弃时为失败
+     */
+    public OrderTaskStatus getOrderStatus(Long userId, Long orderId) {
+        FlashOrder pendingOrder = pendingOrders.get(orderId);
+        if (pendingOrder != null) {
+            return userId.equals(pendingOrder.getUserId()) ? OrderTaskStatus.SUBMITTED : null;
+        }
+        String failedUserId = redisCacheService.getString(getOrderFailedKey(orderId));
+        if (failedUserId != null) {
+            return String.valueOf(userId).equals(failedUserId) ? OrderTaskStatus.FAILED : null;
+        }
+        try {
+            FlashOrder flashOrder = flashOrderDomainService.getOrder(userId, orderId);
+            return userId.equals(flashOrder.getUserId()) ? OrderTaskStatus.SUCCESS : null;
+        } catch (DomainException e) {
+            //订单可能仍在其他节点排队
+            return OrderTaskStatus.SUBMITTED;
+        }
+    }
+
+    private List<FlashOrder> excludePersisted(List<FlashOrder> flashOrders) {
+        List<FlashOrder> unpersisted = new ArrayList<>();
+        for (FlashOrder flashOrder : flashOrders) {
+            try {
+                flashOrderDomainService.getOrder(flashOrder.getUserId(), flashOrder.getId());
+                itemStockCacheService.confirmItemStockReservation(toStockDeduction(flashOrder));
+            } catch (Exception e) {
+                //订单不存在或暂时无法查询时保留，由重试处理
+                unpersisted.add(flashOrder);
+            }
+        }
+        return unpersisted;
+    }
+
+    private boolean sleepBeforeRetry() {
+        try {
+            Thread.sleep(retryIntervalMillis);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static String getOrderFailedKey(Long orderId) {
+        return WRITE_BEHIND_ORDER_FAILED_KEY + orderId;
+    }
+
+    private StockDeduction toStockDeduction(FlashOrder flashOrder) {
+        return new StockDeduction()
+                .setItemId(flashOrder.getItemId())
+                .setQuantity(flashOrder.getQuantity())
+                .setUserId(flashOrder.getUserId())
+                .setOrderId(flashOrder.getId());
+    }
+
+    private static class WriteBehindOrder {
+        private final FlashOrder flashOrder;
+        private final OrderWriteAheadLog.Record record;
+
+        WriteBehindOrder(FlashOrder flashOrder, OrderWriteAheadLog.Record record) {
+            this.flashOrder = flashOrder;
+            this.record = record;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.actionworks.flashsale.app.service.placeorder.writebehind;
+
+import com.actionworks.flashsale.app.exception.BizException;
+import com.actionworks.flashsale.app.model.command.FlashPlaceOrderCommand;
+import com.actionworks.flashsale.app.model.enums.OrderTaskStatus;
+import com.actionworks.flashsale.app.model.result.OrderTaskHandleResult;
+import com.actionworks.flashsale.app.model.result.PlaceOrderResult;
+import com.actionworks.flashsale.app.service.placeorder.PlaceOrderService;
+import com.actionworks.flashsale.app.service.placeorder.normal.cache.PlaceOrderAdmissionService;
+import com.actionworks.flashsale.app.service.placeorder.snapshot.PlaceOrderSnapshot;
+import com.actionworks.flashsale.app.service.placeorder.snapshot.PlaceOrderSnapshotService;
+import com.actionworks.flashsale.app.service.stock.ItemStockCacheService;
+import com.actionworks.flashsale.app.util.OrderNoGenerateContext;
+import com.actionworks.flashsale.app.util.OrderNoGenerateService;
+import com.actionworks.flashsale.domain.model.StockDeduction;
+import com.actionworks.flashsale.domain.model.entity.FlashOrder;
+import com.alibaba.fastjson.JSON;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+
+import static com.actionworks.flashsale.app.exception.AppErrorCode.INVALID_PARAMS;
+import static com.actionworks.flashsale.app.exception.AppErrorCode.ITEM_NOT_FOUND;
+import static com.actionworks.flashsale.app.exception.AppErrorCode.PLACE_ORDER_FAILED;
+import static com.actionworks.flashsale.app.exception.AppErrorCode.PLACE_ORDER_TASK_ID_INVALID;
+import static com.actionworks.flashsale.app.exception.AppErrorCode.TRY_LATER;
+import static com.actionworks.flashsale.app.model.builder.FlashOrderAppBuilder.toDomain;
+
+/**
+ * 异步落库下单
+ * 与默认下单相同，先通过缓存预扣库存，之后不再同步写数据库，订单交给异步落库管道后直接返回订单ID，
+ * 数据库库存扣减和订单写入由后台批量完成，订单ID同时作为下单任务ID，用于查询最终落库结果
+ */
+@Service
+@ConditionalOnProperty(name = "PlaceOrderService", havingValue = "writebehind")
+public class WriteBehindPlaceOrderService implements PlaceOrderService {
+    private static final Logger logger = LoggerFactory.getLogger(WriteBehindPlaceOrderService.class);
+    @Resource
+    private PlaceOrderSnapshotService placeOrderSnapshotService;
+    @Resource
+    private ItemStockCacheService itemStockCacheService;
+    @Resource
+    private OrderNoGenerateService orderNoGenerateService;
+    @Resource
+    private WriteBehindOrderPipeline writeBehindOrderPipeline;
+    @Resource
+    private PlaceOrderAdmissionService placeOrderAdmissionService;
+
+    @PostConstruct
+    public void init() {
+        logger.info("initPlaceOrderService|异步落库下单服务已经初始化");
+    }
+
+    @Override
+    public boolean isDuplicateOrderGuarded() {
+        return itemStockCacheService.isDuplicateOrderGuarded();
+    }
+
+    @Override
+    public PlaceOrderResult doPlaceOrder(Long userId, FlashPlaceOrderCommand placeOrderCommand) {
+        logger.info("placeOrder|开始下单|{},{}", userId, JSON.toJSONString(placeOrderCommand));
+        if (userId == null || placeOrderCommand == null || !placeOrderCommand.validateParams()) {
+            throw new BizException(INVALID_PARAMS);
+        }
+        Long orderId = orderNoGenerateService.generateOrderNo(new OrderNoGenerateContext());
+        StockDeduction stockDeduction = new StockDeduction()
+                .setItemId(placeOrderCommand.getItemId())
+                .setQuantity(placeOrderCommand.getQuantity())
+                .setUserId(userId)
+                .setOrderId(orderId);
+        //开启下单准入时一次Lua调用完成下单校验和库存预扣减，准入记录不存在时走完整校验
+        PlaceOrderAdmissionService.Admission admission = placeOrderAdmissionService.admit(userId, placeOrderCommand, stockDeduction);
+        if (!admission.isSkipped() && !admission.isAdmitted()) {
+            logger.info("placeOrder|下单准入未通过|{},{}", userId, JSON.toJSONString(placeOrderCommand));
+            return PlaceOrderResult.failed(admission.getRejectedCode());
+        }
+        FlashOrder flashOrderToPlace = admission.getFlashOrder();
+        if (flashOrderToPlace == null) {
+            flashOrderToPlace = toDomain(placeOrderCommand);
+            flashOrderToPlace.setUserId(userId);
+            flashOrderToPlace.setId(orderId);
+            PlaceOrderResult checkResult = checkAndPreDecreaseStock(userId, placeOrderCommand, flashOrderToPlace, stockDeduction);
+            if (checkResult != null) {
+                return checkResult;
+            }
+        }
+        //预扣成功后交给异步落库管道，管道已满时释放预留
+        boolean submitSuccess = writeBehindOrderPipeline.submit(flashOrderToPlace);
+        if (!submitSuccess) {
+            itemStockCacheService.releaseItemStockReservation(stockDeduction);
+            return PlaceOrderResult.failed(TRY_LATER);
+        }
+        logger.info("placeOrder|下单成功，等待落库|{},{}", userId, orderId);
+        return PlaceOrderResult.ok(orderId).setPlaceOrderTaskId(String.valueOf(orderId));
+    }
+
+    public OrderTaskHandleResult getPlaceOrderResult(Long userId, Long orderId) {
+        OrderTaskStatus orderTaskStatus = writeBehindOrderPipeline.getOrderStatus(userId, orderId);
+        if (orderTaskStatus == null) {
+            return OrderTaskHandleResult.failed(PLACE_ORDER_TASK_ID_INVALID);
+        }
+        if (!OrderTaskStatus.SUCCESS.equals(orderTaskStatus)) {
+            return OrderTaskHandleResult.failed(orderTaskStatus).setOrderId(orderId);
+        }
+        return OrderTaskHandleResult.ok(orderId);
+    }
+
+    private PlaceOrderResult checkAndPreDecreaseStock(Long userId, FlashPlaceOrderCommand placeOrderCommand, FlashOrder flashOrderToPlace,
+                                                      StockDeduction stockDeduction) {
+        //下单校验只读取本地下单快照，不再查询活动和秒杀品缓存
+        PlaceOrderSnapshot snapshot = placeOrderSnapshotService.getSnapshot(placeOrderCommand.getItemId());
+        if (snapshot == null) {
+            return PlaceOrderResult.failed(ITEM_NOT_FOUND);
+        }
+        long now = System.currentTimeMillis();
+        if (!snapshot.isActivityAllowPlaceOrder(placeOrderCommand.getActivityId(), now)) {
+            logger.info("placeOrder|秒杀活动下单规则校验未通过|{},{}", userId, placeOrderCommand.getActivityId());
+            return PlaceOrderResult.failed(PLACE_ORDER_FAILED);
+        }
+        if (!snapshot.isItemAllowPlaceOrder(now)) {
+            logger.info("placeOrder|秒杀品下单规则校验未通过|{},{}", userId, placeOrderCommand.getActivityId());
+            return PlaceOrderResult.failed(PLACE_ORDER_FAILED);
+        }
+        flashOrderToPlace.setItemTitle(snapshot.getItemTitle());
+        flashOrderToPlace.setFlashPrice(snapshot.getFlashPrice());
+        boolean preDecreaseStockSuccess = itemStockCacheService.decreaseItemStock(stockDeduction);
+        if (!preDecreaseStockSuccess) {
+            logger.info("placeOrder|库存预扣减失败|{},{}", userId, JSON.toJSONString(placeOrderCommand));
+            return PlaceOrderResult.failed(PLACE_ORDER_FAILED.getErrCode(), PLACE_ORDER_FAILED.getErrDesc());
+        }
+        return null;
+    }
+}
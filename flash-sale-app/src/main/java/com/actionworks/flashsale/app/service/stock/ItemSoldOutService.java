@@ -0,0 +1,123 @@
+package com.actionworks.flashsale.app.service.stock;
+
+import com.actionworks.flashsale.cache.redis.RedisCacheService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 秒杀品售罄标记
+ * 标记保存在各节点内存中，库存预扣减首次发现售罄时设置，并通过Redis发布订阅同步到其他节点；
+ * 库存校准或取消订单恢复库存后清除。下单入口据此直接拒绝售罄秒杀品的请求，不再加锁和访问Redis。
+ * 发布订阅消息可能丢失，标记只用于快速失败：标记在短时间后自动过期，过期后由下一次预扣减重新确认；
+ * 本节点校准或读取缓存时发现库存大于0也直接清除本地标记。库存的准确性仍以缓存和数据库为准。
+ */
+@Service
+public class ItemSoldOutService {
+    private static final Logger logger = LoggerFactory.getLogger(ItemSoldOutService.class);
+    private static final String ITEM_SOLD_OUT_CHANNEL = "ITEM_SOLD_OUT_CHANNEL";
+    private static final String ITEM_STOCK_RESTORED_CHANNEL = "ITEM_STOCK_RESTORED_CHANNEL";
+
+    //秒杀品ID到标记过期时间
+    private final Map<Long, Long> soldOutItems = new ConcurrentHashMap<>();
+
+    @Value("${stock.sold-out.flag-ttl-millis:5000}")
+    private long flagTtlMillis;
+
+    @Resource
+    private RedisCacheService redisCacheService;
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @PostConstruct
+    public void init() {
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            Long itemId = toItemId(message);
+            if (itemId != null && mark(itemId)) {
+                logger.info("itemSoldOut|收到秒杀品售罄通知|{}", itemId);
+            }
+        }, new ChannelTopic(ITEM_SOLD_OUT_CHANNEL));
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            Long itemId = toItemId(message);
+            if (itemId != null && soldOutItems.remove(itemId) != null) {
+                logger.info("itemSoldOut|收到秒杀品库存恢复通知|{}", itemId);
+            }
+        }, new ChannelTopic(ITEM_STOCK_RESTORED_CHANNEL));
+    }
+
+    public boolean isSoldOut(Long itemId) {
+        if (itemId == null) {
+            return false;
+        }
+        Long expireTime = soldOutItems.get(itemId);
+        if (expireTime == null) {
+            return false;
+        }
+        if (System.currentTimeMillis() < expireTime) {
+            return true;
+        }
+        soldOutItems.remove(itemId, expireTime);
+        return false;
+    }
+
+    public void markSoldOut(Long itemId) {
+        if (itemId == null || !mark(itemId)) {
+            return;
+        }
+        logger.info("itemSoldOut|秒杀品已售罄|{}", itemId);
+        publish(ITEM_SOLD_OUT_CHANNEL, itemId);
+    }
+
+    public void clearSoldOut(Long itemId) {
+        if (itemId == null || soldOutItems.remove(itemId) == null) {
+            return;
+        }
+        logger.info("itemSoldOut|秒杀品库存已恢复|{}", itemId);
+        publish(ITEM_STOCK_RESTORED_CHANNEL, itemId);
+    }
+
+    /**
+     * 本节点观察到库存大于0时清除本地标记，不通知其他节点
+     */
+    public void clearLocalSoldOut(Long itemId) {
+        if (itemId != null && soldOutItems.remove(itemId) != null) {
+            logger.info("itemSoldOut|本节点发现秒杀品有库存，清除售罄标记|{}", itemId);
+        }
+    }
+
+    /**
+     * 设置或延长标记，原来没有有效标记时返回true
+     */
+    private boolean mark(Long itemId) {
+        long now = System.currentTimeMillis();
+        Long previousExpireTime = soldOutItems.put(itemId, now + flagTtlMillis);
+        return previousExpireTime == null || previousExpireTime <= now;
+    }
+
+    private void publish(String channel, Long itemId) {
+        try {
+            redisCacheService.getRedisTemplate().convertAndSend(channel, itemId);
+        } catch (Exception e) {
+            logger.error("itemSoldOut|售罄标记同步失败|{},{}", channel, itemId, e);
+        }
+    }
+
+    private Long toItemId(Message message) {
+        try {
+            Object itemId = redisCacheService.getRedisTemplate().getValueSerializer().deserialize(message.getBody());
+            return itemId == null ? null : Long.valueOf(String.valueOf(itemId));
+        } catch (Exception e) {
+            logger.error("itemSoldOut|售罄通知解析失败", e);
+            return null;
+        }
+    }
+}
@@ -3,6 +3,8 @@ package com.actionworks.flashsale.app.service.stock;
 import com.actionworks.flashsale.app.service.stock.model.ItemStockCache;
 import com.actionworks.flashsale.domain.model.StockDeduction;
 
+import java.util.List;
+
 public interface ItemStockCacheService {
     boolean alignItemStocks(Long itemId);
 
@@ -10,5 +12,33 @@ public interface ItemStockCacheService {
 
     boolean increaseItemStock(StockDeduction stockDeduction);
 
+    /**
+     * 预扣减时是否已防止同一用户重复下单，是则下单时无需再加用户锁
+     */
+    default boolean isDuplicateOrderGuarded() {
+        return false;
+    }
+
+    /**
+     * 确认库存预留，订单在数据库提交后调用；不跟踪预留的实现无需处理
+     */
+    default boolean confirmItemStockReservation(StockDeduction stockDeduction) {
+        return true;
+    }
+
+    /**
+     * 释放库存预留，下单失败时调用；不跟踪预留的实现等同于恢复库存
+     */
+    default boolean releaseItemStockReservation(StockDeduction stockDeduction) {
+        return increaseItemStock(stockDeduction);
+    }
+
+    /**
+     * 延长同一秒杀品下多笔库存预留的过期时间，订单尚未落库前调用；不跟踪预留的实现无需处理
+     */
+    default boolean renewItemStockReservations(Long itemId, List<Long> orderIds) {
+        return true;
+    }
+
     ItemStockCache getAvailableItemStock(Long userId, Long itemId);
 }
@@ -1,5 +1,6 @@
 package com.actionworks.flashsale.controller.resource;
 
+import com.actionworks.flashsale.app.service.order.AsyncPlaceOrderService;
 import com.actionworks.flashsale.app.service.order.FlashOrderAppService;
 import com.actionworks.flashsale.app.model.command.FlashPlaceOrderCommand;
 import com.actionworks.flashsale.app.model.dto.FlashOrderDTO;
@@ -17,6 +18,7 @@ import com.alibaba.cola.dto.MultiResponse;
 import com.alibaba.cola.dto.Response;
 import com.alibaba.cola.dto.SingleResponse;
 import com.alibaba.csp.sentinel.annotation.SentinelResource;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
@@ -25,9 +27,13 @@ import org.springframework.web.bind.annotation.RequestAttribute;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import javax.annotation.Resource;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
+import static com.actionworks.flashsale.app.exception.AppErrorCode.TRY_LATER;
 import static com.actionworks.flashsale.controller.model.builder.FlashOrderBuilder.toFlashOrdersResponse;
 
 @RestController
@@ -35,16 +41,40 @@ public class FlashOrderController {
 
     @Resource
     private FlashOrderAppService flashOrderAppService;
+    @Resource
+    private AsyncPlaceOrderService asyncPlaceOrderService;
+
+    @Value("${order.async.timeout-millis:5000}")
+    private long asyncTimeoutMillis;
+    @Value("${order.task-result.await-timeout-millis:15000}")
+    private long awaitTimeoutMillis;
 
     @PostMapping(value = "/flash-orders")
     @SentinelResource("PlaceOrderResource")
     public SingleResponse<PlaceOrderResult> placeOrder(@RequestAttribute Long userId, @RequestBody FlashPlaceOrderRequest flashPlaceOrderRequest) {
         FlashPlaceOrderCommand placeOrderCommand = FlashOrderBuilder.toCommand(flashPlaceOrderRequest);
         AppSimpleResult<PlaceOrderResult> placeOrderResult = flashOrderAppService.placeOrder(userId, placeOrderCommand);
-        if (!placeOrderResult.isSuccess() || placeOrderResult.getData() == null) {
-            return ResponseBuilder.withSingle(placeOrderResult);
-        }
-        return SingleResponse.of(placeOrderResult.getData());
+        return toPlaceOrderResponse(placeOrderResult);
+    }
+
+    /**
+     * 异步下单，下单在下单线程池中执行，容器线程提交后立即释放；超时未完成时返回稍后再试，订单仍可能下单成功
+     */
+    @PostMapping(value = "/flash-orders/async")
+    @SentinelResource("PlaceOrderResource")
+    public DeferredResult<SingleResponse<PlaceOrderResult>> placeOrderAsync(@RequestAttribute Long userId, @RequestBody FlashPlaceOrderRequest flashPlaceOrderRequest) {
+        FlashPlaceOrderCommand placeOrderCommand = FlashOrderBuilder.toCommand(flashPlaceOrderRequest);
+        DeferredResult<SingleResponse<PlaceOrderResult>> deferredResult = new DeferredResult<>(asyncTimeoutMillis,
+                ResponseBuilder.withSingle(AppSimpleResult.failed(TRY_LATER)));
+        asyncPlaceOrderService.placeOrder(userId, placeOrderCommand).whenComplete((placeOrderResult, throwable) -> {
+            if (throwable != null) {
+                //与同步下单一致，交给全局异常处理
+                deferredResult.setErrorResult(throwable instanceof CompletionException && throwable.getCause() != null ? throwable.getCause() : throwable);
+                return;
+            }
+            deferredResult.setResult(toPlaceOrderResponse(placeOrderResult));
+        });
+        return deferredResult;
     }
 
     @GetMapping(value = "/items/{itemId}/flash-orders/{placeOrderTaskId}")
@@ -57,6 +87,22 @@ public class FlashOrderController {
         return SingleResponse.of(placeOrderTaskResult.getData());
     }
 
+    /**
+     * 长轮询获取下单任务结果，任务处理完成时立即返回；超时后读取一次当前结果返回，任务仍在处理中时客户端可再次发起
+     */
+    @GetMapping(value = "/items/{itemId}/flash-orders/{placeOrderTaskId}/await")
+    @SentinelResource("PlaceOrderTask")
+    public DeferredResult<SingleResponse<OrderTaskHandleResult>> awaitPlaceOrderTaskResult(@RequestAttribute Long userId, @PathVariable Long itemId, @PathVariable String placeOrderTaskId) {
+        DeferredResult<SingleResponse<OrderTaskHandleResult>> deferredResult = new DeferredResult<>(awaitTimeoutMillis);
+        CompletableFuture<OrderTaskHandleResult> taskResult = flashOrderAppService.awaitPlaceOrderTaskResult(userId, itemId, placeOrderTaskId);
+        //兼顾结果通知丢失的情况
+        deferredResult.onTimeout(() -> deferredResult.setResult(getPlaceOrderTaskResult(userId, itemId, placeOrderTaskId)));
+        //请求结束时取消等待
+        deferredResult.onCompletion(() -> taskResult.cancel(false));
+        taskResult.thenAccept(orderTaskHandleResult -> deferredResult.setResult(toPlaceOrderTaskResponse(orderTaskHandleResult)));
+        return deferredResult;
+    }
+
     @GetMapping(value = "/flash-orders/my")
     public MultiResponse<FlashOrderResponse> myOrders(@RequestAttribute Long userId,
                                                       @RequestParam Integer pageSize,
@@ -79,4 +125,18 @@ public class FlashOrderController {
         AppResult appResult = flashOrderAppService.cancelOrder(userId, orderId);
         return ResponseBuilder.with(appResult);
     }
+
+    private SingleResponse<PlaceOrderResult> toPlaceOrderResponse(AppSimpleResult<PlaceOrderResult> placeOrderResult) {
+        if (!placeOrderResult.isSuccess() || placeOrderResult.getData() == null) {
+            return ResponseBuilder.withSingle(placeOrderResult);
+        }
+        return SingleResponse.of(placeOrderResult.getData());
+    }
+
+    private SingleResponse<OrderTaskHandleResult> toPlaceOrderTaskResponse(OrderTaskHandleResult orderTaskHandleResult) {
+        if (!orderTaskHandleResult.isSuccess()) {
+            return ResponseBuilder.withSingle(AppSimpleResult.failed(orderTaskHandleResult.getCode(), orderTaskHandleResult.getMessage(), orderTaskHandleResult));
+        }
+        return SingleResponse.of(orderTaskHandleResult);
+    }
 }
@@ -27,7 +27,8 @@ public enum DomainErrorCode implements ErrorCodeI {
     TOTAL_STOCKS_AMOUNT_INVALID("TOTAL_STOCKS_AMOUNT_INVALID", "库存总数错误"),
     AVAILABLE_STOCKS_AMOUNT_NOT_EQUALS_TO_TOTAL_STOCKS_AMOUNT("AVAILABLE_STOCKS_AMOUNT_NOT_EQUALS_TO_TOTAL_STOCKS_AMOUNT", "子桶可用库存与库存总数不匹配"),
     AVAILABLE_STOCKS_AMOUNT_INVALID("AVAILABLE_STOCKS_AMOUNT_INVALID", "子桶可用库存数量错误"),
-    STOCK_BUCKET_ITEM_INVALID("STOCK_BUCKET_ITEM_INVALID", "秒杀品ID设置错误");
+    STOCK_BUCKET_ITEM_INVALID("STOCK_BUCKET_ITEM_INVALID", "秒杀品ID设置错误"),
+    BUCKET_STOCKS_TRANSFER_FAILED("BUCKET_STOCKS_TRANSFER_FAILED", "分桶库存调拨失败");
 
 
     private final String errCode;
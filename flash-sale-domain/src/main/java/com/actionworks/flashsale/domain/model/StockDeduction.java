@@ -10,6 +10,11 @@ public class StockDeduction {
     private Integer quantity;
     private Long userId;
     private Integer serialNo;
+    private Long orderId;
+    /**
+     * 库存预留的过期时间戳（毫秒），预扣减时设置
+     */
+    private Long reservationExpireTime;
 
     public boolean validate() {
         return itemId != null && quantity != null && quantity > 0 && userId != null;
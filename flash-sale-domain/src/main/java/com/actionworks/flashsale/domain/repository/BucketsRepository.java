@@ -11,6 +11,10 @@ public interface BucketsRepository {
 
     boolean increaseItemStock(Long itemId, Integer quantity, Integer serialNo);
 
+    boolean transferOutStocks(Long itemId, Integer quantity, Integer serialNo);
+
+    boolean transferInStocks(Long itemId, Integer quantity, Integer serialNo);
+
     List<Bucket> getBucketsByItem(Long itemId);
 
     boolean suspendBuckets(Long itemId);
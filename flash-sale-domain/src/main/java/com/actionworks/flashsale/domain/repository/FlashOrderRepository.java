@@ -9,10 +9,14 @@ import java.util.Optional;
 public interface FlashOrderRepository {
     boolean save(FlashOrder flashOrder);
 
+    int saveAll(List<FlashOrder> flashOrders);
+
     boolean updateStatus(FlashOrder flashOrder);
 
     Optional<FlashOrder> findById(Long orderId);
 
+    List<Long> findExistingIds(Long itemId, List<Long> orderIds);
+
     List<FlashOrder> findFlashOrdersByCondition(PagesQueryCondition pagesQueryCondition);
 
     int countFlashOrdersByCondition(PagesQueryCondition buildParams);
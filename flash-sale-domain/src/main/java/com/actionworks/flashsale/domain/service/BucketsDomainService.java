@@ -12,4 +12,9 @@ public interface BucketsDomainService {
     boolean arrangeBuckets(Long itemId, List<Bucket> buckets);
 
     boolean resumeBuckets(Long itemId);
+
+    /**
+     * 在同一秒杀品的两个分桶之间调拨可用库存，需在事务中调用；转出分桶库存不足时返回false
+     */
+    boolean transferStocks(Long itemId, Integer fromSerialNo, Integer toSerialNo, Integer quantity);
 }
@@ -15,6 +15,13 @@ public interface FlashOrderDomainService {
      */
     boolean placeOrder(Long userId, FlashOrder flashOrder);
 
+    /**
+     * 批量下单，一次写入多个订单
+     *
+     * @param flashOrders 下单信息
+     */
+    boolean placeOrders(List<FlashOrder> flashOrders);
+
     /**
      * 根据用户获取订单
      *
@@ -41,6 +48,15 @@ public interface FlashOrderDomainService {
      */
     FlashOrder getOrder(Long userId, Long orderId);
 
+    /**
+     * 从给定的订单ID中筛选出已在数据库中的订单，按秒杀品ID路由到订单所在分片
+     *
+     * @param itemId   秒杀品ID
+     * @param orderIds 订单ID集合
+     * @return 已存在的订单ID集合
+     */
+    List<Long> getPlacedOrderIds(Long itemId, List<Long> orderIds);
+
     /**
      * 根据ID取消订单
      *  @param userId  当前用户
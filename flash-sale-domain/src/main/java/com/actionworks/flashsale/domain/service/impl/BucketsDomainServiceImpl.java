@@ -20,6 +20,7 @@ import java.util.Optional;
 
 import static com.actionworks.flashsale.domain.exception.DomainErrorCode.AVAILABLE_STOCKS_AMOUNT_INVALID;
 import static com.actionworks.flashsale.domain.exception.DomainErrorCode.AVAILABLE_STOCKS_AMOUNT_NOT_EQUALS_TO_TOTAL_STOCKS_AMOUNT;
+import static com.actionworks.flashsale.domain.exception.DomainErrorCode.BUCKET_STOCKS_TRANSFER_FAILED;
 import static com.actionworks.flashsale.domain.exception.DomainErrorCode.MULTI_PRIMARY_BUCKETS_FOUND_BUT_EXPECT_ONE;
 import static com.actionworks.flashsale.domain.exception.DomainErrorCode.PARAMS_INVALID;
 import static com.actionworks.flashsale.domain.exception.DomainErrorCode.PRIMARY_BUCKET_IS_MISSING;
@@ -122,4 +123,20 @@ public class BucketsDomainServiceImpl implements BucketsDomainService {
         return true;
 
     }
+
+    @Override
+    public boolean transferStocks(Long itemId, Integer fromSerialNo, Integer toSerialNo, Integer quantity) {
+        if (itemId == null || itemId <= 0 || fromSerialNo == null || toSerialNo == null || fromSerialNo.equals(toSerialNo) || quantity == null || quantity <= 0) {
+            throw new DomainException(PARAMS_INVALID);
+        }
+        if (!bucketsRepository.transferOutStocks(itemId, quantity, fromSerialNo)) {
+            return false;
+        }
+        //转入失败时抛出异常，由调用方事务回滚转出
+        if (!bucketsRepository.transferInStocks(itemId, quantity, toSerialNo)) {
+            throw new DomainException(BUCKET_STOCKS_TRANSFER_FAILED);
+        }
+        logger.info("transferStocks|分桶库存已调拨|{},{},{},{}", itemId, fromSerialNo, toSerialNo, quantity);
+        return true;
+    }
 }
@@ -17,6 +17,7 @@ import org.springframework.stereotype.Service;
 import org.springframework.util.StringUtils;
 
 import javax.annotation.Resource;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
 
@@ -51,6 +52,30 @@ public class FlashOrderDomainServiceImpl implements FlashOrderDomainService {
         return saveSuccess;
     }
 
+    @Override
+    public boolean placeOrders(List<FlashOrder> flashOrders) {
+        if (flashOrders == null || flashOrders.isEmpty()) {
+            throw new DomainException(PARAMS_INVALID);
+        }
+        for (FlashOrder flashOrder : flashOrders) {
+            if (!flashOrder.validateParamsForCreate()) {
+                throw new DomainException(PARAMS_INVALID);
+            }
+            flashOrder.setStatus(FlashOrderStatus.CREATED.getCode());
+        }
+        boolean saveSuccess = flashOrderRepository.saveAll(flashOrders) == flashOrders.size();
+        if (saveSuccess) {
+            flashOrders.forEach(flashOrder -> {
+                FlashOrderEvent flashOrderEvent = new FlashOrderEvent();
+                flashOrderEvent.setEventType(FlashOrderEventType.CREATED);
+                flashOrderEvent.setOrderId(flashOrder.getId());
+                domainEventPublisher.publish(flashOrderEvent);
+            });
+        }
+        logger.info("placeOrders|订单已批量创建|{},{}", flashOrders.size(), saveSuccess);
+        return saveSuccess;
+    }
+
     @Override
     public PageResult<FlashOrder> getOrdersByUser(Long userId, PagesQueryCondition pagesQueryCondition) {
         if (pagesQueryCondition == null) {
@@ -84,6 +109,14 @@ public class FlashOrderDomainServiceImpl implements FlashOrderDomainService {
         return flashOrderOptional.get();
     }
 
+    @Override
+    public List<Long> getPlacedOrderIds(Long itemId, List<Long> orderIds) {
+        if (itemId == null || orderIds == null || orderIds.isEmpty()) {
+            return new ArrayList<>();
+        }
+        return flashOrderRepository.findExistingIds(itemId, orderIds);
+    }
+
     @Override
     public boolean cancelOrder(Long userId, Long orderId) {
         logger.info("placeOrder|取消订单|{},{}", userId, orderId);
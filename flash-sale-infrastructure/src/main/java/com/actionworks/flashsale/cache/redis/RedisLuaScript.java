@@ -0,0 +1,56 @@
+package com.actionworks.flashsale.cache.redis;
+
+/**
+ * 统一登记的Lua脚本，脚本内容存放在classpath下的lua目录中
+ */
+public enum RedisLuaScript {
+    /**
+     * 秒杀品库存
+     */
+    SNAPSHOT_ITEM_STOCK("lua/stock/snapshot_item_stock.lua"),
+    ALIGN_ITEM_STOCK("lua/stock/align_item_stock.lua"),
+    INCREASE_ITEM_STOCK("lua/stock/increase_item_stock.lua"),
+    DECREASE_ITEM_STOCK("lua/stock/decrease_item_stock.lua"),
+    BATCH_DECREASE_ITEM_STOCK("lua/stock/batch_decrease_item_stock.lua"),
+    CONFIRM_ITEM_STOCK_RESERVATION("lua/stock/confirm_item_stock_reservation.lua"),
+    RELEASE_ITEM_STOCK_RESERVATION("lua/stock/release_item_stock_reservation.lua"),
+    RENEW_ITEM_STOCK_RESERVATIONS("lua/stock/renew_item_stock_reservations.lua"),
+
+    /**
+     * 节点租约库存
+     */
+    INIT_OR_ALIGN_LEASED_ITEM_STOCK("lua/lease/init_or_align_leased_item_stock.lua"),
+    LEASE_ITEM_STOCK("lua/lease/lease_item_stock.lua"),
+    RETURN_ITEM_STOCK_LEASE("lua/lease/return_item_stock_lease.lua"),
+
+    /**
+     * 分桶库存
+     */
+    INIT_OR_ALIGN_BUCKET_STOCK("lua/bucket/init_or_align_bucket_stock.lua"),
+    INCREASE_BUCKET_STOCK("lua/bucket/increase_bucket_stock.lua"),
+    DECREASE_BUCKET_STOCK("lua/bucket/decrease_bucket_stock.lua"),
+
+    /**
+     * 下单许可
+     */
+    RECOVER_ORDER_TOKEN("lua/order/recover_order_token.lua"),
+    SUBMIT_ORDER_TASK("lua/order/submit_order_task.lua"),
+    COMPLETE_ORDER_TASKS("lua/order/complete_order_tasks.lua"),
+    ADJUST_ORDER_TOKENS("lua/order/adjust_order_tokens.lua"),
+
+    /**
+     * 下单准入
+     */
+    COMPILE_PLACE_ORDER_ADMISSION("lua/order/compile_place_order_admission.lua"),
+    ADMIT_PLACE_ORDER("lua/order/admit_place_order.lua");
+
+    private final String location;
+
+    RedisLuaScript(String location) {
+        this.location = location;
+    }
+
+    public String getLocation() {
+        return location;
+    }
+}
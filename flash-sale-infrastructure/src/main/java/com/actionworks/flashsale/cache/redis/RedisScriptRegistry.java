@@ -0,0 +1,179 @@
+package com.actionworks.flashsale.cache.redis;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.ReactiveRedisConnection;
+import org.springframework.data.redis.connection.ReactiveRedisConnectionFactory;
+import org.springframework.data.redis.connection.ReactiveScriptingCommands;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Lua脚本注册中心
+ * 启动时一次性加载全部脚本并通过SCRIPT LOAD预热，运行时只通过EVALSHA调用；
+ * Redis重启或脚本缓存被清空时（NOSCRIPT），重新加载后再次执行。
+ * 脚本以内容的SHA1寻址，滚动发布时新旧版本的脚本可以在同一个Redis中共存。
+ */
+@Component
+public class RedisScriptRegistry {
+    private static final Logger logger = LoggerFactory.getLogger(RedisScriptRegistry.class);
+    private static final String NO_SCRIPT_ERROR = "NOSCRIPT";
+    private final Map<RedisLuaScript, DefaultRedisScript<Long>> scripts = new EnumMap<>(RedisLuaScript.class);
+
+    @Resource
+    private RedisTemplate<String, Object> redisTemplate;
+
+    @PostConstruct
+    public void init() {
+        for (RedisLuaScript luaScript : RedisLuaScript.values()) {
+            DefaultRedisScript<Long> redisScript = new DefaultRedisScript<>();
+            redisScript.setLocation(new ClassPathResource(luaScript.getLocation()));
+            redisScript.setResultType(Long.class);
+            scripts.put(luaScript, redisScript);
+        }
+        try {
+            redisTemplate.execute((RedisCallback<Void>) connection -> {
+                scripts.forEach((luaScript, redisScript) -> loadScript(connection, luaScript, redisScript));
+                return null;
+            });
+            logger.info("initRedisScripts|Lua脚本预加载完成|{}", scripts.size());
+        } catch (Exception e) {
+            // 预加载失败不影响启动，首次调用时会通过NOSCRIPT重新加载
+            logger.error("initRedisScripts|Lua脚本预加载失败", e);
+        }
+    }
+
+    public RedisScriptResult execute(RedisLuaScript luaScript, List<String> keys, Object... args) {
+        return RedisScriptResult.findBy(executeForLong(luaScript, keys, args));
+    }
+
+    public Long executeForLong(RedisLuaScript luaScript, List<String> keys, Object... args) {
+        return evalSha(luaScript, ReturnType.INTEGER, keys, args);
+    }
+
+    /**
+     * 执行返回整数数组的脚本，如批量扣减库存时逐个返回每个请求的结果
+     */
+    public List<Long> executeForList(RedisLuaScript luaScript, List<String> keys, Object... args) {
+        return evalSha(luaScript, ReturnType.MULTI, keys, args);
+    }
+
+    /**
+     * 异步执行返回整数数组的脚本，通过响应式连接发送，调用线程不等待Redis响应；
+     * 脚本缓存丢失时改用EVAL执行，Redis同时缓存脚本。连接工厂不支持响应式连接时退化为同步执行
+     */
+    public CompletableFuture<List<Long>> executeForListAsync(RedisLuaScript luaScript, List<String> keys, Object... args) {
+        RedisConnectionFactory connectionFactory = redisTemplate.getConnectionFactory();
+        if (!(connectionFactory instanceof ReactiveRedisConnectionFactory)) {
+            CompletableFuture<List<Long>> result = new CompletableFuture<>();
+            try {
+                result.complete(executeForList(luaScript, keys, args));
+            } catch (Exception e) {
+                result.completeExceptionally(e);
+            }
+            return result;
+        }
+        DefaultRedisScript<Long> redisScript = scripts.get(luaScript);
+        byte[][] keysAndArgs = serializeKeysAndArgs(keys, args);
+        ReactiveRedisConnection connection = ((ReactiveRedisConnectionFactory) connectionFactory).getReactiveConnection();
+        ReactiveScriptingCommands scriptingCommands = connection.scriptingCommands();
+        Flux<Object> result = scriptingCommands.<Object>evalSha(redisScript.getSha1(), ReturnType.MULTI, keys.size(), toByteBuffers(keysAndArgs))
+                .onErrorResume(this::isNoScriptError, e -> {
+                    logger.info("executeScript|脚本缓存丢失，改用EVAL执行|{},{}", luaScript, redisScript.getSha1());
+                    ByteBuffer script = ByteBuffer.wrap(redisScript.getScriptAsString().getBytes(StandardCharsets.UTF_8));
+                    return scriptingCommands.eval(script, ReturnType.MULTI, keys.size(), toByteBuffers(keysAndArgs));
+                });
+        return result.collectList()
+                .map(RedisScriptRegistry::toLongList)
+                .doFinally(signal -> connection.closeLater().subscribe())
+                .toFuture();
+    }
+
+    private <T> T evalSha(RedisLuaScript luaScript, ReturnType returnType, List<String> keys, Object[] args) {
+        DefaultRedisScript<Long> redisScript = scripts.get(luaScript);
+        byte[][] keysAndArgs = serializeKeysAndArgs(keys, args);
+        return redisTemplate.execute((RedisCallback<T>) connection -> {
+            try {
+                return connection.evalSha(redisScript.getSha1(), returnType, keys.size(), keysAndArgs);
+            } catch (RuntimeException e) {
+                if (!isNoScriptError(e)) {
+                    throw e;
+                }
+                logger.info("executeScript|脚本缓存丢失，重新加载|{},{}", luaScript, redisScript.getSha1());
+                loadScript(connection, luaScript, redisScript);
+                return connection.evalSha(redisScript.getSha1(), returnType, keys.size(), keysAndArgs);
+            }
+        });
+    }
+
+    private void loadScript(RedisConnection connection, RedisLuaScript luaScript, DefaultRedisScript<Long> redisScript) {
+        String sha1 = connection.scriptLoad(redisScript.getScriptAsString().getBytes(StandardCharsets.UTF_8));
+        logger.debug("loadScript|Lua脚本已加载|{},{}", luaScript, sha1);
+    }
+
+    @SuppressWarnings("unchecked")
+    private byte[][] serializeKeysAndArgs(List<String> keys, Object[] args) {
+        RedisSerializer<String> keySerializer = (RedisSerializer<String>) redisTemplate.getKeySerializer();
+        RedisSerializer<Object> argsSerializer = (RedisSerializer<Object>) redisTemplate.getValueSerializer();
+        byte[][] keysAndArgs = new byte[keys.size() + args.length][];
+        int i = 0;
+        for (String key : keys) {
+            keysAndArgs[i++] = keySerializer.serialize(key);
+        }
+        for (Object arg : args) {
+            // 字符串参数按原文传入脚本，避免被JSON序列化器加上引号
+            keysAndArgs[i++] = arg instanceof String ? keySerializer.serialize((String) arg) : argsSerializer.serialize(arg);
+        }
+        return keysAndArgs;
+    }
+
+    private static ByteBuffer[] toByteBuffers(byte[][] keysAndArgs) {
+        ByteBuffer[] buffers = new ByteBuffer[keysAndArgs.length];
+        for (int i = 0; i < keysAndArgs.length; i++) {
+            buffers[i] = ByteBuffer.wrap(keysAndArgs[i]);
+        }
+        return buffers;
+    }
+
+    /**
+     * 响应式命令返回的数组结果可能整体作为一个元素发出，也可能逐个发出，统一展开为整数列表
+     */
+    @SuppressWarnings("unchecked")
+    private static List<Long> toLongList(List<Object> elements) {
+        List<Object> values = elements.size() == 1 && elements.get(0) instanceof List ? (List<Object>) elements.get(0) : elements;
+        List<Long> result = new ArrayList<>(values.size());
+        for (Object value : values) {
+            result.add(value instanceof Number ? ((Number) value).longValue() : Long.valueOf(String.valueOf(value)));
+        }
+        return result;
+    }
+
+    private boolean isNoScriptError(Throwable e) {
+        Throwable current = e;
+        while (current != null) {
+            if (current.getMessage() != null && current.getMessage().contains(NO_SCRIPT_ERROR)) {
+                return true;
+            }
+            current = current.getCause();
+        }
+        return false;
+    }
+}
@@ -0,0 +1,49 @@
+package com.actionworks.flashsale.cache.redis;
+
+/**
+ * Lua脚本统一返回码，所有登记在{@link RedisLuaScript}中的脚本都只返回以下数值
+ * （租借库存脚本成功时返回实际租到的数量，分桶预扣减脚本成功时返回分桶剩余库存，需通过executeForLong调用）
+ */
+public enum RedisScriptResult {
+    SUCCESS(1L, "执行成功"),
+    INSUFFICIENT(-1L, "库存或许可不足"),
+    DUPLICATED(-2L, "重复提交"),
+    NOT_ALLOWED(-3L, "不满足下单条件"),
+    LIMIT_EXCEEDED(-4L, "超出限购数量"),
+    NOT_EXIST(-996L, "缓存数据不存在"),
+    ALIGNING(-997L, "库存校准中"),
+    SUSPENDED(-998L, "库存维护中，已暂停服务"),
+    UNKNOWN(-10000L, "未知结果");
+
+    private final Long code;
+    private final String desc;
+
+    RedisScriptResult(Long code, String desc) {
+        this.code = code;
+        this.desc = desc;
+    }
+
+    public static RedisScriptResult findBy(Long code) {
+        if (code == null) {
+            return UNKNOWN;
+        }
+        for (RedisScriptResult scriptResult : RedisScriptResult.values()) {
+            if (scriptResult.getCode().equals(code)) {
+                return scriptResult;
+            }
+        }
+        return UNKNOWN;
+    }
+
+    public boolean isSuccess() {
+        return this == SUCCESS;
+    }
+
+    public Long getCode() {
+        return code;
+    }
+
+    public String getDesc() {
+        return desc;
+    }
+}
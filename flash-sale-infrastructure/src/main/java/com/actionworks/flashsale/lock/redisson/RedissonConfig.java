@@ -1,5 +1,6 @@
 package com.actionworks.flashsale.lock.redisson;
 
+import org.apache.commons.lang3.StringUtils;
 import org.redisson.Redisson;
 import org.redisson.api.RedissonClient;
 import org.redisson.config.Config;
@@ -12,10 +13,19 @@ public class RedissonConfig {
 
     @Value("${spring.redis.address}")
     private String redisAddress;
+    //配置了集群节点时使用Redis Cluster，格式与spring.redis.cluster.nodes一致
+    @Value("${spring.redis.cluster.nodes:}")
+    private String clusterNodes;
 
     @Bean
     public RedissonClient redissonClient() {
         Config config = new Config();
+        if (StringUtils.isNotBlank(clusterNodes)) {
+            for (String node : clusterNodes.split(",")) {
+                config.useClusterServers().addNodeAddress("redis://" + node.trim());
+            }
+            return Redisson.create(config);
+        }
         config.useSingleServer().setAddress(redisAddress).setDatabase(0);
 
         return Redisson.create(config);
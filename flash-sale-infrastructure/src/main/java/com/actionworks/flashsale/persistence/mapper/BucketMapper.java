@@ -12,6 +12,10 @@ public interface BucketMapper {
 
     boolean decreaseItemStock(@Param("itemId") Long itemId, @Param("quantity") Integer quantity, @Param("serialNo") Integer serialNo);
 
+    boolean transferOutStocks(@Param("itemId") Long itemId, @Param("quantity") Integer quantity, @Param("serialNo") Integer serialNo);
+
+    boolean transferInStocks(@Param("itemId") Long itemId, @Param("quantity") Integer quantity, @Param("serialNo") Integer serialNo);
+
     List<BucketDO> getBucketsByItem(@Param("itemId") Long itemId);
 
     int updateStatusByItem(@Param("itemId") Long itemId, @Param("status") int status);
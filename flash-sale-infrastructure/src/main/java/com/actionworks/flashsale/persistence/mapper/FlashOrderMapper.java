@@ -11,10 +11,14 @@ import java.util.List;
 public interface FlashOrderMapper {
     int insert(FlashOrderDO flashOrderDO);
 
+    int insertBatch(@Param("flashOrders") List<FlashOrderDO> flashOrderDOs);
+
     int updateStatus(FlashOrderDO flashOrderDO);
 
     FlashOrderDO getById(@Param("orderId") Long orderId);
 
+    List<Long> findExistingIds(@Param("itemId") Long itemId, @Param("orderIds") List<Long> orderIds);
+
     List<FlashOrderDO> findFlashOrdersByCondition(PagesQueryCondition pagesQueryCondition);
 
     Integer countFlashOrdersByCondition();
@@ -25,6 +25,14 @@ public class FlashOrderRepositoryImpl implements FlashOrderRepository {
         return effectedRows == 1;
     }
 
+    @Override
+    public int saveAll(List<FlashOrder> flashOrders) {
+        List<FlashOrderDO> flashOrderDOs = flashOrders.stream()
+                .map(FlashOrderBuilder::toDataObjectForCreate)
+                .collect(Collectors.toList());
+        return flashOrderMapper.insertBatch(flashOrderDOs);
+    }
+
     @Override
     public boolean updateStatus(FlashOrder flashOrder) {
         FlashOrderDO flashOrderDO = FlashOrderBuilder.toDataObjectForCreate(flashOrder);
@@ -42,6 +50,11 @@ public class FlashOrderRepositoryImpl implements FlashOrderRepository {
         return Optional.of(flashOrder);
     }
 
+    @Override
+    public List<Long> findExistingIds(Long itemId, List<Long> orderIds) {
+        return flashOrderMapper.findExistingIds(itemId, orderIds);
+    }
+
     @Override
     public List<FlashOrder> findFlashOrdersByCondition(PagesQueryCondition pagesQueryCondition) {
         return flashOrderMapper.findFlashOrdersByCondition(pagesQueryCondition)
@@ -72,4 +72,20 @@ public class StockBucketRepositoryImpl implements BucketsRepository {
         }
         return bucketMapper.increaseItemStock(itemId, quantity, serialNo);
     }
+
+    @Override
+    public boolean transferOutStocks(Long itemId, Integer quantity, Integer serialNo) {
+        if (itemId == null || quantity == null || serialNo == null) {
+            return false;
+        }
+        return bucketMapper.transferOutStocks(itemId, quantity, serialNo);
+    }
+
+    @Override
+    public boolean transferInStocks(Long itemId, Integer quantity, Integer serialNo) {
+        if (itemId == null || quantity == null || serialNo == null) {
+            return false;
+        }
+        return bucketMapper.transferInStocks(itemId, quantity, serialNo);
+    }
 }
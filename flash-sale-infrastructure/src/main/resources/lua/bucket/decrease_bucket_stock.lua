@@ -0,0 +1,19 @@
+-- 预扣减分桶库存，脚本只访问同一分桶的KEY，这些KEY带有相同的hash tag，在Redis Cluster中位于同一个slot
+-- KEYS[1] 分桶库存KEY  KEYS[2] 分桶暂停KEY  KEYS[3] 分桶校准标记KEY
+-- ARGV[1] 扣减数量
+-- 成功时返回扣减后的分桶剩余库存
+if (redis.call('exists', KEYS[1]) == 0) then
+    return -996;
+end;
+if (redis.call('exists', KEYS[2]) == 1) then
+    return -998;
+end;
+if (redis.call('exists', KEYS[3]) == 1) then
+    return -997;
+end;
+local stocksAmount = tonumber(redis.call('get', KEYS[1]));
+local quantity = tonumber(ARGV[1]);
+if (stocksAmount < quantity) then
+    return -1;
+end;
+return redis.call('incrby', KEYS[1], 0 - quantity);
@@ -0,0 +1,15 @@
+-- 恢复分桶库存
+-- KEYS[1] 分桶库存KEY  KEYS[2] 分桶暂停KEY  KEYS[3] 分桶校准标记KEY
+-- ARGV[1] 恢复数量
+if (redis.call('exists', KEYS[1]) == 0) then
+    return -996;
+end;
+if (redis.call('exists', KEYS[2]) == 1) then
+    return -998;
+end;
+if (redis.call('exists', KEYS[3]) == 1) then
+    return -997;
+end;
+local quantity = tonumber(ARGV[1]);
+redis.call('incrby', KEYS[1], quantity);
+return 1;
@@ -0,0 +1,14 @@
+-- 初始化或校准分桶库存
+-- KEYS[1] 分桶库存KEY  KEYS[2] 分桶暂停KEY  KEYS[3] 分桶校准标记KEY
+-- ARGV[1] 分桶可用库存
+if (redis.call('exists', KEYS[2]) == 1) then
+    return -998;
+end;
+if (redis.call('exists', KEYS[3]) == 1) then
+    return -997;
+end;
+redis.call('set', KEYS[3], 1);
+local stocksAmount = tonumber(ARGV[1]);
+redis.call('set', KEYS[1], stocksAmount);
+redis.call('del', KEYS[3]);
+return 1;
@@ -0,0 +1,30 @@
+-- 初始化或校准租约模式下的秒杀品库存
+-- 租约过期的节点视为已下线，其租约作废；仍有节点持有租约时，租约中已售出但尚未落库的订单无法统计，不覆盖已有库存
+-- KEYS[1] 库存缓存KEY  KEYS[2] 库存校准标记KEY  KEYS[3] 节点租约库存HASH  KEYS[4] 节点租约过期时间HASH
+-- ARGV[1] 数据库可用库存  ARGV[2] 当前时间戳（毫秒）
+if (redis.call('exists', KEYS[2]) == 1) then
+    return -997;
+end;
+local now = tonumber(ARGV[2]);
+local expireTimes = redis.call('hgetall', KEYS[4]);
+for i = 1, #expireTimes, 2 do
+    if (tonumber(expireTimes[i + 1]) < now) then
+        redis.call('hdel', KEYS[3], expireTimes[i]);
+        redis.call('hdel', KEYS[4], expireTimes[i]);
+    end;
+end;
+local leases = redis.call('hvals', KEYS[3]);
+if (#leases > 0 and redis.call('exists', KEYS[1]) == 1) then
+    return -997;
+end;
+-- 库存KEY丢失时仍需初始化，扣除各节点上报的租约库存
+local leasedStock = 0;
+for i = 1, #leases, 1 do
+    leasedStock = leasedStock + tonumber(leases[i]);
+end;
+local stockNumber = tonumber(ARGV[1]) - leasedStock;
+if (stockNumber < 0) then
+    stockNumber = 0;
+end;
+redis.call('set', KEYS[1], stockNumber);
+return 1;
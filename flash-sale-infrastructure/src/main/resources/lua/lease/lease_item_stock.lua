@@ -0,0 +1,21 @@
+-- 节点租借库存，同时上报节点剩余库存并续期租约；申请数量为0时仅作心跳
+-- KEYS[1] 库存缓存KEY  KEYS[2] 库存校准标记KEY  KEYS[3] 节点租约库存HASH  KEYS[4] 节点租约过期时间HASH
+-- ARGV[1] 申请数量  ARGV[2] 节点ID  ARGV[3] 节点剩余库存  ARGV[4] 租约过期时间戳（毫秒）
+-- 返回实际租到的数量（库存不足时少于申请数量，售罄时为0）
+if (redis.call('exists', KEYS[2]) == 1) then
+    return -997;
+end;
+if (redis.call('exists', KEYS[1]) == 0) then
+    return -996;
+end;
+local stock = tonumber(redis.call('get', KEYS[1]));
+local granted = math.min(stock, tonumber(ARGV[1]));
+if (granted < 0) then
+    granted = 0;
+end;
+if (granted > 0) then
+    redis.call('incrby', KEYS[1], 0 - granted);
+end;
+redis.call('hset', KEYS[3], ARGV[2], tonumber(ARGV[3]) + granted);
+redis.call('hset', KEYS[4], ARGV[2], ARGV[4]);
+return granted;
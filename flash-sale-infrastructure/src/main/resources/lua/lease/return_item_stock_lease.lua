@@ -0,0 +1,13 @@
+-- 节点归还租约中的剩余库存并注销租约
+-- KEYS[1] 库存缓存KEY  KEYS[2] 库存校准标记KEY  KEYS[3] 节点租约库存HASH  KEYS[4] 节点租约过期时间HASH
+-- ARGV[1] 归还数量  ARGV[2] 节点ID
+if (redis.call('exists', KEYS[2]) == 1) then
+    return -997;
+end;
+redis.call('hdel', KEYS[3], ARGV[2]);
+redis.call('hdel', KEYS[4], ARGV[2]);
+if (redis.call('exists', KEYS[1]) == 0) then
+    return -996;
+end;
+redis.call('incrby', KEYS[1], tonumber(ARGV[1]));
+return 1;
@@ -0,0 +1,26 @@
+-- 动态调整下单许可，发放状态与任务统计保存在同一个哈希中，由任意节点接续计算
+-- 发放状态的更新时间与读取时不一致说明其他节点已完成本周期的调整，放弃本次调整
+-- 读取许可后到本次写入期间被取走的许可从目标值中扣除，归还的许可不重复发放
+-- KEYS[1] 下单许可KEY  KEYS[2] 下单任务统计KEY
+-- ARGV[1] 读取到的许可数，为空字符串表示许可不存在  ARGV[2] 目标许可数  ARGV[3] 有效期（秒）
+-- ARGV[4] 读取到的状态更新时间  ARGV[5] 本次更新时间  ARGV[6] 已完成任务数  ARGV[7] 下单成功任务数
+-- ARGV[8] 消费吞吐量  ARGV[9] 下单成功率
+-- 返回写入的许可数，-2表示状态已被其他节点更新
+local issuanceTime = redis.call('hget', KEYS[2], 'issuanceTime') or '0';
+if (issuanceTime ~= ARGV[4]) then
+    return -2;
+end;
+redis.call('hmset', KEYS[2], 'issuanceTime', ARGV[5], 'issuanceCompleted', ARGV[6], 'issuanceSucceeded', ARGV[7],
+        'throughput', ARGV[8], 'successRatio', ARGV[9]);
+redis.call('expire', KEYS[2], tonumber(ARGV[3]));
+local tokens = tonumber(ARGV[2]);
+local observed = tonumber(ARGV[1]);
+local current = tonumber(redis.call('get', KEYS[1]));
+if (observed ~= nil and current ~= nil and observed > current) then
+    tokens = tokens - (observed - current);
+end;
+if (tokens < 0) then
+    tokens = 0;
+end;
+redis.call('set', KEYS[1], tokens, 'EX', tonumber(ARGV[3]));
+return tokens;
@@ -0,0 +1,44 @@
+-- 下单准入，一次调用完成下单校验、限购、防重和库存预扣减
+-- 校验准入记录中的上线状态、活动和秒杀时段，再按用户限购数量和防重标记拦截，最后预扣库存并记录预留
+-- KEYS[1] 下单准入KEY  KEYS[2] 库存缓存KEY  KEYS[3] 库存预留KEY  KEYS[4] 库存预留台账KEY  KEYS[5] 库存预留过期时间KEY
+-- KEYS[6] 用户下单防重KEY  KEYS[7] 用户已购数量KEY
+-- ARGV[1] 扣减数量  ARGV[2] 订单ID  ARGV[3] 用户ID  ARGV[4] 预留过期时间戳（毫秒）  ARGV[5] 防重标记有效期（毫秒）
+-- ARGV[6] 当前时间戳（毫秒）  ARGV[7] 活动ID
+-- 返回数组：执行结果、秒杀价、剩余库存；准入记录或库存缓存不存在时返回-996，由调用方走完整下单校验
+local admission = redis.call('hmget', KEYS[1], 'online', 'activityId', 'startTime', 'endTime', 'limitPerUser', 'flashPrice');
+if (not admission[1]) then
+    return { -996, 0, 0 };
+end;
+local now = tonumber(ARGV[6]);
+if (admission[1] ~= '1' or admission[2] ~= ARGV[7] or now < tonumber(admission[3]) or now >= tonumber(admission[4])) then
+    return { -3, 0, 0 };
+end;
+local flashPrice = tonumber(admission[6]);
+if (redis.call('hexists', KEYS[4], ARGV[2]) == 1) then
+    return { 1, flashPrice, 0 };
+end;
+if (redis.call('exists', KEYS[6]) == 1) then
+    return { -2, flashPrice, 0 };
+end;
+local num = tonumber(ARGV[1]);
+local limitPerUser = tonumber(admission[5]);
+if (limitPerUser > 0 and tonumber(redis.call('get', KEYS[7]) or '0') + num > limitPerUser) then
+    return { -4, flashPrice, 0 };
+end;
+if (redis.call('exists', KEYS[2]) == 0) then
+    return { -996, flashPrice, 0 };
+end;
+local stock = tonumber(redis.call('get', KEYS[2]));
+if (stock < num) then
+    return { -1, flashPrice, stock };
+end;
+redis.call('incrby', KEYS[2], 0 - num);
+redis.call('incrby', KEYS[3], num);
+redis.call('hset', KEYS[4], ARGV[2], num .. '_' .. ARGV[3]);
+redis.call('zadd', KEYS[5], tonumber(ARGV[4]), ARGV[2]);
+redis.call('set', KEYS[6], ARGV[2], 'PX', tonumber(ARGV[5]), 'NX');
+if (limitPerUser > 0) then
+    redis.call('incrby', KEYS[7], num);
+    redis.call('pexpireat', KEYS[7], tonumber(admission[4]) + 86400000);
+end;
+return { 1, flashPrice, stock - num };
@@ -0,0 +1,8 @@
+-- 写入秒杀品下单准入记录，由秒杀品和活动信息编译而成，供准入脚本一次完成下单校验
+-- KEYS[1] 下单准入KEY
+-- ARGV[1] 是否可下单（1可下单，0不可下单）  ARGV[2] 活动ID  ARGV[3] 开始时间戳（毫秒）  ARGV[4] 结束时间戳（毫秒）
+-- ARGV[5] 每个用户限购数量（0不限购）  ARGV[6] 秒杀价  ARGV[7] 记录有效期（毫秒）
+redis.call('hset', KEYS[1], 'online', ARGV[1], 'activityId', ARGV[2], 'startTime', ARGV[3], 'endTime', ARGV[4],
+        'limitPerUser', ARGV[5], 'flashPrice', ARGV[6]);
+redis.call('pexpire', KEYS[1], tonumber(ARGV[7]));
+return 1;
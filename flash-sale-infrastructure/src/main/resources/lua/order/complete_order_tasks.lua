@@ -0,0 +1,23 @@
+-- 批量写入下单任务结果，只有仍处于已提交状态的任务才写入，重复投递的任务不会覆盖已有结果
+-- 成功的任务先写入订单号再更新状态，查询到成功状态时订单号已可读取
+-- KEYS[2i-1] 下单任务KEY  KEYS[2i] 任务订单号KEY
+-- ARGV[1] 有效期（秒）  ARGV[i+1] 订单号，为空字符串表示下单失败
+-- 按任务顺序返回是否写入：1写入，-2任务已有结果或不存在
+local ttl = tonumber(ARGV[1]);
+local results = {};
+for i = 1, #KEYS / 2 do
+    local taskKey = KEYS[2 * i - 1];
+    local orderId = ARGV[i + 1];
+    if (redis.call('get', taskKey) == '0') then
+        if (orderId ~= '') then
+            redis.call('set', KEYS[2 * i], orderId, 'EX', ttl);
+            redis.call('set', taskKey, '1', 'EX', ttl);
+        else
+            redis.call('set', taskKey, '-1', 'EX', ttl);
+        end;
+        results[i] = 1;
+    else
+        results[i] = -2;
+    end;
+end;
+return results;
@@ -0,0 +1,7 @@
+-- 恢复下单许可
+-- KEYS[1] 下单许可KEY
+if (redis.call('exists', KEYS[1]) == 1) then
+    redis.call('incrby', KEYS[1], 1);
+    return 1;
+end;
+return -996;
@@ -0,0 +1,18 @@
+-- 提交下单任务，一次调用完成防重、获取下单许可、标记任务已提交和累加提交计数
+-- KEYS[1] 下单任务KEY  KEYS[2] 下单许可KEY  KEYS[3] 下单任务统计KEY
+-- ARGV[1] 任务标记和统计有效期（秒）
+if (redis.call('exists', KEYS[1]) == 1) then
+    return -2;
+end;
+local availableTokensCount = redis.call('get', KEYS[2]);
+if (not availableTokensCount) then
+    return -996;
+end;
+if (tonumber(availableTokensCount) <= 0) then
+    return -1;
+end;
+redis.call('incrby', KEYS[2], -1);
+redis.call('set', KEYS[1], '0', 'EX', tonumber(ARGV[1]));
+redis.call('hincrby', KEYS[3], 'submitted', 1);
+redis.call('expire', KEYS[3], tonumber(ARGV[1]));
+return 1;
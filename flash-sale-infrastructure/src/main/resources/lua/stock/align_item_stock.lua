@@ -0,0 +1,19 @@
+-- 初始化或校准秒杀品库存
+-- 校准不设置任何标记，也不阻塞扣减：校准方先读取库存快照及校准版本号，再查询数据库，以修正量的方式应用差值，
+-- 快照之后发生的扣减和恢复都会保留；版本号不一致说明其他节点已基于更新的快照完成校准，本次校准放弃
+-- KEYS[1] 库存缓存KEY  KEYS[2] 库存校准版本号KEY
+-- ARGV[1] 快照时的校准版本号  ARGV[2] 修正量（数据库可用库存 - 快照预留数量 - 快照库存）  ARGV[3] 库存缓存不存在时的初始库存
+local version = tonumber(redis.call('get', KEYS[2]) or '0');
+if (version ~= tonumber(ARGV[1])) then
+    return -997;
+end;
+if (redis.call('exists', KEYS[1]) == 0) then
+    redis.call('set', KEYS[1], tonumber(ARGV[3]));
+else
+    local delta = tonumber(ARGV[2]);
+    if (delta ~= 0) then
+        redis.call('incrby', KEYS[1], delta);
+    end;
+end;
+redis.call('incr', KEYS[2]);
+return 1;
@@ -0,0 +1,35 @@
+-- 批量预扣减秒杀品库存，按请求顺序逐个判断，库存足够的请求扣减成功，不足的请求失败
+-- KEYS[1] 库存缓存KEY  KEYS[2] 库存预留KEY  KEYS[3] 库存预留台账KEY  KEYS[4] 库存预留过期时间KEY
+-- KEYS[4 + i] 第i个请求的用户下单防重KEY
+-- ARGV 每个请求依次占5个参数：扣减数量、订单ID、用户ID、预留过期时间戳（毫秒）、防重标记有效期（毫秒）
+-- 返回数组，第一个元素为整批的执行结果，之后依次为各请求的结果（1成功，-1库存不足，-2重复下单）
+if (redis.call('exists', KEYS[1]) == 0) then
+    return { -996 };
+end;
+local stock = tonumber(redis.call('get', KEYS[1]));
+local decreased = 0;
+local results = { 1 };
+for i = 1, #ARGV, 5 do
+    local index = #results;
+    local quantity = tonumber(ARGV[i]);
+    local orderId = ARGV[i + 1];
+    local dedupeKey = KEYS[4 + index];
+    if (redis.call('hexists', KEYS[3], orderId) == 1) then
+        results[index + 1] = 1;
+    elseif (redis.call('exists', dedupeKey) == 1) then
+        results[index + 1] = -2;
+    elseif (stock - decreased >= quantity) then
+        decreased = decreased + quantity;
+        redis.call('hset', KEYS[3], orderId, quantity .. '_' .. ARGV[i + 2]);
+        redis.call('zadd', KEYS[4], tonumber(ARGV[i + 3]), orderId);
+        redis.call('set', dedupeKey, orderId, 'PX', tonumber(ARGV[i + 4]), 'NX');
+        results[index + 1] = 1;
+    else
+        results[index + 1] = -1;
+    end;
+end;
+if (decreased > 0) then
+    redis.call('incrby', KEYS[1], 0 - decreased);
+    redis.call('incrby', KEYS[2], decreased);
+end;
+return results;
@@ -0,0 +1,25 @@
+-- 确认库存预留，订单已在数据库提交，预留转为已售
+-- 以台账中的记录为准，每笔预留只会被确认或释放一次，重复调用不再生效
+-- 用户下单防重标记按配置延长有效期，有效期为0时删除，允许用户再次下单
+-- KEYS[1] 库存预留KEY  KEYS[2] 库存预留台账KEY  KEYS[3] 库存预留过期时间KEY  KEYS[4] 用户下单防重KEY
+-- ARGV[1] 订单ID  ARGV[2] 下单成功后防重标记的有效期（毫秒）
+if (redis.call('get', KEYS[4]) == ARGV[1]) then
+    local confirmedTtl = tonumber(ARGV[2]);
+    if (confirmedTtl > 0) then
+        redis.call('pexpire', KEYS[4], confirmedTtl);
+    else
+        redis.call('del', KEYS[4]);
+    end;
+end;
+local entry = redis.call('hget', KEYS[2], ARGV[1]);
+if (not entry) then
+    return 1;
+end;
+redis.call('hdel', KEYS[2], ARGV[1]);
+redis.call('zrem', KEYS[3], ARGV[1]);
+local num = tonumber(string.match(entry, '^(%d+)'));
+local reserved = tonumber(redis.call('get', KEYS[1]) or '0');
+if (reserved > 0) then
+    redis.call('incrby', KEYS[1], 0 - math.min(reserved, num));
+end;
+return 1;
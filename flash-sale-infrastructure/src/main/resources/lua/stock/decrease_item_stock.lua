@@ -0,0 +1,24 @@
+-- 预扣减秒杀品库存，同时以订单ID为键记录预留，订单尚未在数据库提交前库存处于预留状态
+-- 同一订单重复扣减时直接返回成功，不会重复扣减；同一用户对同一秒杀品已有进行中的订单时返回-2
+-- KEYS[1] 库存缓存KEY  KEYS[2] 库存预留KEY  KEYS[3] 库存预留台账KEY  KEYS[4] 库存预留过期时间KEY  KEYS[5] 用户下单防重KEY
+-- ARGV[1] 扣减数量  ARGV[2] 订单ID  ARGV[3] 用户ID  ARGV[4] 预留过期时间戳（毫秒）  ARGV[5] 防重标记有效期（毫秒）
+if (redis.call('hexists', KEYS[3], ARGV[2]) == 1) then
+    return 1;
+end;
+if (redis.call('exists', KEYS[5]) == 1) then
+    return -2;
+end;
+if (redis.call('exists', KEYS[1]) == 1) then
+    local stock = tonumber(redis.call('get', KEYS[1]));
+    local num = tonumber(ARGV[1]);
+    if (stock < num) then
+        return -1;
+    end;
+    redis.call('incrby', KEYS[1], 0 - num);
+    redis.call('incrby', KEYS[2], num);
+    redis.call('hset', KEYS[3], ARGV[2], num .. '_' .. ARGV[3]);
+    redis.call('zadd', KEYS[4], tonumber(ARGV[4]), ARGV[2]);
+    redis.call('set', KEYS[5], ARGV[2], 'PX', tonumber(ARGV[5]), 'NX');
+    return 1;
+end;
+return -996;
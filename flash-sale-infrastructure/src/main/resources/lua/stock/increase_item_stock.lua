@@ -0,0 +1,9 @@
+-- 恢复秒杀品库存
+-- KEYS[1] 库存缓存KEY
+-- ARGV[1] 恢复数量
+if (redis.call('exists', KEYS[1]) == 1) then
+    local num = tonumber(ARGV[1]);
+    redis.call('incrby', KEYS[1], num);
+    return 1;
+end;
+return -996;
@@ -0,0 +1,29 @@
+-- 释放库存预留，下单失败时将预扣减的库存归还，并清除用户下单防重标记、退回用户已购数量
+-- 以台账中的记录为准，每笔预留只会被确认或释放一次，重复调用不会重复归还库存
+-- 库存缓存不存在时只释放预留，库存由下次校准按数据库重新初始化
+-- KEYS[1] 库存缓存KEY  KEYS[2] 库存预留KEY  KEYS[3] 库存预留台账KEY  KEYS[4] 库存预留过期时间KEY  KEYS[5] 用户下单防重KEY
+-- KEYS[6] 用户已购数量KEY
+-- ARGV[1] 订单ID
+if (redis.call('get', KEYS[5]) == ARGV[1]) then
+    redis.call('del', KEYS[5]);
+end;
+local entry = redis.call('hget', KEYS[3], ARGV[1]);
+if (not entry) then
+    return 1;
+end;
+redis.call('hdel', KEYS[3], ARGV[1]);
+redis.call('zrem', KEYS[4], ARGV[1]);
+local num = tonumber(string.match(entry, '^(%d+)'));
+local reserved = tonumber(redis.call('get', KEYS[2]) or '0');
+if (reserved > 0) then
+    redis.call('incrby', KEYS[2], 0 - math.min(reserved, num));
+end;
+local purchased = tonumber(redis.call('get', KEYS[6]) or '0');
+if (purchased > 0) then
+    redis.call('incrby', KEYS[6], 0 - math.min(purchased, num));
+end;
+if (redis.call('exists', KEYS[1]) == 0) then
+    return -996;
+end;
+redis.call('incrby', KEYS[1], num);
+return 1;
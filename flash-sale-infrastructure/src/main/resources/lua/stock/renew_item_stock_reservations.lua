@@ -0,0 +1,13 @@
+-- 延长库存预留的过期时间，订单仍在本节点等待落库时定期调用，避免被过期清理释放
+-- 只延长台账中仍存在的预留，已确认或释放的订单跳过；返回延长的预留数量
+-- KEYS[1] 库存预留台账KEY  KEYS[2] 库存预留过期时间KEY
+-- ARGV[1] 新的预留过期时间戳（毫秒）  ARGV[2..n] 订单ID
+local renewed = 0;
+local expireAt = tonumber(ARGV[1]);
+for i = 2, #ARGV do
+    if (redis.call('hexists', KEYS[1], ARGV[i]) == 1) then
+        redis.call('zadd', KEYS[2], expireAt, ARGV[i]);
+        renewed = renewed + 1;
+    end;
+end;
+return renewed;
@@ -0,0 +1,10 @@
+-- 读取秒杀品库存快照，供校准计算修正量
+-- KEYS[1] 库存缓存KEY  KEYS[2] 库存校准版本号KEY  KEYS[3] 库存预留KEY
+-- 返回数组：库存缓存是否存在（1存在，0不存在）、库存、校准版本号、预留数量
+local stock = redis.call('get', KEYS[1]);
+local version = tonumber(redis.call('get', KEYS[2]) or '0');
+local reserved = tonumber(redis.call('get', KEYS[3]) or '0');
+if (not stock) then
+    return { 0, 0, version, reserved };
+end;
+return { 1, tonumber(stock), version, reserved };
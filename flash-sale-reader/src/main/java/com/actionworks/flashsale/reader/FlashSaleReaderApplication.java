@@ -0,0 +1,15 @@
+package com.actionworks.flashsale.reader;
+
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.autoconfigure.SpringBootApplication;
+
+/**
+ * 响应式读节点，只提供活动和秒杀品浏览接口，数据来自下单节点维护的缓存，可与下单节点分开部署和扩容
+ */
+@SpringBootApplication
+public class FlashSaleReaderApplication {
+
+    public static void main(String[] args) {
+        SpringApplication.run(FlashSaleReaderApplication.class, args);
+    }
+}
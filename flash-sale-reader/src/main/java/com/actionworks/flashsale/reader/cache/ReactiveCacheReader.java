@@ -0,0 +1,62 @@
+package com.actionworks.flashsale.reader.cache;
+
+import com.alibaba.fastjson.JSON;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.Resource;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * 缓存读取，本地缓存命中时直接返回，未命中时通过响应式Redis客户端读取下单节点写入的分布式缓存
+ * 下单节点以JSON字符串写入缓存，经Jackson序列化后保存为带引号的字符串，读取时需先还原为JSON字符串。
+ * 读节点不访问数据库，分布式缓存不存在时返回空，由调用方按稍后再试处理。
+ */
+@Component
+public class ReactiveCacheReader {
+    private static final Logger logger = LoggerFactory.getLogger(ReactiveCacheReader.class);
+    private final Cache<String, Object> localCache = CacheBuilder.newBuilder().initialCapacity(10).concurrencyLevel(5).expireAfterWrite(10, TimeUnit.SECONDS).build();
+
+    @Resource
+    private ReactiveStringRedisTemplate reactiveStringRedisTemplate;
+
+    /**
+     * 读取缓存对象，指定版本时本地缓存版本不低于该版本才使用
+     */
+    public <T> Mono<T> getObject(String key, Class<T> targetClass, Function<T, Long> versionGetter, Long version) {
+        Object localCached = localCache.getIfPresent(key);
+        if (targetClass.isInstance(localCached)) {
+            T cached = targetClass.cast(localCached);
+            Long cachedVersion = versionGetter.apply(cached);
+            if (version == null || (cachedVersion != null && version <= cachedVersion)) {
+                return Mono.just(cached);
+            }
+        }
+        return reactiveStringRedisTemplate.opsForValue().get(key)
+                .flatMap(value -> Mono.justOrEmpty(parse(key, value, targetClass)))
+                .doOnNext(value -> localCache.put(key, value));
+    }
+
+    /**
+     * 读取数值类缓存，如库存，不做本地缓存
+     */
+    public Mono<String> getString(String key) {
+        return reactiveStringRedisTemplate.opsForValue().get(key);
+    }
+
+    private <T> T parse(String key, String value, Class<T> targetClass) {
+        try {
+            String json = value.startsWith("\"") ? JSON.parseObject(value, String.class) : value;
+            return JSON.parseObject(json, targetClass);
+        } catch (Exception e) {
+            logger.error("readCache|缓存解析失败|{}", key, e);
+            return null;
+        }
+    }
+}
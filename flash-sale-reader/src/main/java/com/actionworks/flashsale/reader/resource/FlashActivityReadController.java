@@ -0,0 +1,105 @@
+package com.actionworks.flashsale.reader.resource;
+
+import com.actionworks.flashsale.app.model.builder.FlashActivityAppBuilder;
+import com.actionworks.flashsale.app.model.dto.FlashActivityDTO;
+import com.actionworks.flashsale.app.model.query.FlashActivitiesQuery;
+import com.actionworks.flashsale.app.model.result.AppMultiResult;
+import com.actionworks.flashsale.app.model.result.AppSimpleResult;
+import com.actionworks.flashsale.app.service.activity.cache.model.FlashActivitiesCache;
+import com.actionworks.flashsale.app.service.activity.cache.model.FlashActivityCache;
+import com.actionworks.flashsale.controller.model.builder.ResponseBuilder;
+import com.actionworks.flashsale.controller.model.response.FlashActivityResponse;
+import com.actionworks.flashsale.domain.model.enums.FlashActivityStatus;
+import com.actionworks.flashsale.reader.cache.ReactiveCacheReader;
+import com.alibaba.cola.dto.MultiResponse;
+import com.alibaba.cola.dto.SingleResponse;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.Resource;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static com.actionworks.flashsale.app.exception.AppErrorCode.ACTIVITY_NOT_FOUND;
+import static com.actionworks.flashsale.app.model.constants.CacheConstants.ACTIVITIES_CACHE_KEY;
+import static com.actionworks.flashsale.app.model.constants.CacheConstants.ACTIVITY_CACHE_KEY;
+import static com.actionworks.flashsale.controller.model.builder.FlashActivityBuilder.toFlashActivitiesResponse;
+import static com.actionworks.flashsale.controller.model.builder.FlashActivityBuilder.toFlashActivityResponse;
+import static com.actionworks.flashsale.util.StringUtil.link;
+
+/**
+ * 秒杀活动浏览接口，路径和响应与下单节点一致
+ * 活动列表只缓存了无关键字的第一页，其他查询应由网关转发到下单节点，读节点返回稍后再试。
+ */
+@RestController
+public class FlashActivityReadController {
+
+    @Resource
+    private ReactiveCacheReader reactiveCacheReader;
+
+    @GetMapping(value = "/flash-activities")
+    public Mono<MultiResponse<FlashActivityResponse>> getFlashActivities(@RequestParam Integer pageSize,
+                                                                         @RequestParam Integer pageNumber,
+                                                                         @RequestParam(required = false) String keyword) {
+        FlashActivitiesQuery flashActivitiesQuery = new FlashActivitiesQuery()
+                .setKeyword(keyword)
+                .setPageSize(pageSize)
+                .setPageNumber(pageNumber);
+        return getCachedActivities(flashActivitiesQuery);
+    }
+
+    @GetMapping(value = "/flash-activities/online")
+    public Mono<MultiResponse<FlashActivityResponse>> getOnlineFlashActivities(@RequestParam Integer pageSize,
+                                                                               @RequestParam Integer pageNumber,
+                                                                               @RequestParam(required = false) String keyword) {
+        FlashActivitiesQuery flashActivitiesQuery = new FlashActivitiesQuery()
+                .setKeyword(keyword)
+                .setPageSize(pageSize)
+                .setPageNumber(pageNumber)
+                .setStatus(FlashActivityStatus.ONLINE.getCode());
+        return getCachedActivities(flashActivitiesQuery);
+    }
+
+    @GetMapping(value = "/flash-activities/{activityId}")
+    public Mono<SingleResponse<FlashActivityResponse>> getFlashActivity(@PathVariable Long activityId,
+                                                                        @RequestParam(required = false) Long version) {
+        return reactiveCacheReader.getObject(link(ACTIVITY_CACHE_KEY, activityId), FlashActivityCache.class, FlashActivityCache::getVersion, version)
+                .map(this::toFlashActivityResult)
+                .defaultIfEmpty(ResponseBuilder.withSingle(AppSimpleResult.tryLater()));
+    }
+
+    private Mono<MultiResponse<FlashActivityResponse>> getCachedActivities(FlashActivitiesQuery flashActivitiesQuery) {
+        if (!flashActivitiesQuery.isFirstPureQuery()) {
+            return Mono.just(ResponseBuilder.withMulti(AppMultiResult.tryLater()));
+        }
+        return reactiveCacheReader.getObject(link(ACTIVITIES_CACHE_KEY, flashActivitiesQuery.getPageNumber()), FlashActivitiesCache.class, FlashActivitiesCache::getVersion, null)
+                .map(this::toFlashActivitiesResult)
+                .defaultIfEmpty(ResponseBuilder.withMulti(AppMultiResult.tryLater()));
+    }
+
+    private MultiResponse<FlashActivityResponse> toFlashActivitiesResult(FlashActivitiesCache flashActivitiesCache) {
+        if (flashActivitiesCache.isLater()) {
+            return ResponseBuilder.withMulti(AppMultiResult.tryLater());
+        }
+        if (flashActivitiesCache.getFlashActivities() == null || flashActivitiesCache.getFlashActivities().isEmpty()) {
+            return ResponseBuilder.withMulti(AppMultiResult.empty());
+        }
+        List<FlashActivityDTO> flashActivityDTOList = flashActivitiesCache.getFlashActivities().stream().map(FlashActivityAppBuilder::toFlashActivityDTO).collect(Collectors.toList());
+        return MultiResponse.of(toFlashActivitiesResponse(flashActivityDTOList), flashActivitiesCache.getTotal());
+    }
+
+    private SingleResponse<FlashActivityResponse> toFlashActivityResult(FlashActivityCache flashActivityCache) {
+        if (flashActivityCache.isLater()) {
+            return ResponseBuilder.withSingle(AppSimpleResult.tryLater());
+        }
+        if (!flashActivityCache.isExist() || flashActivityCache.getFlashActivity() == null) {
+            return ResponseBuilder.withSingle(AppSimpleResult.failed(ACTIVITY_NOT_FOUND));
+        }
+        FlashActivityDTO flashActivityDTO = FlashActivityAppBuilder.toFlashActivityDTO(flashActivityCache.getFlashActivity());
+        flashActivityDTO.setVersion(flashActivityCache.getVersion());
+        return SingleResponse.of(toFlashActivityResponse(flashActivityDTO));
+    }
+}
@@ -0,0 +1,104 @@
+package com.actionworks.flashsale.reader.resource;
+
+import com.actionworks.flashsale.app.model.builder.FlashItemAppBuilder;
+import com.actionworks.flashsale.app.model.dto.FlashItemDTO;
+import com.actionworks.flashsale.app.model.query.FlashItemsQuery;
+import com.actionworks.flashsale.app.model.result.AppMultiResult;
+import com.actionworks.flashsale.app.model.result.AppSimpleResult;
+import com.actionworks.flashsale.app.service.item.cache.model.FlashItemCache;
+import com.actionworks.flashsale.app.service.item.cache.model.FlashItemsCache;
+import com.actionworks.flashsale.controller.model.builder.ResponseBuilder;
+import com.actionworks.flashsale.controller.model.response.FlashItemResponse;
+import com.actionworks.flashsale.domain.model.entity.FlashItem;
+import com.actionworks.flashsale.domain.model.enums.FlashItemStatus;
+import com.actionworks.flashsale.reader.cache.ReactiveCacheReader;
+import com.alibaba.cola.dto.MultiResponse;
+import com.alibaba.cola.dto.SingleResponse;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.Resource;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+import static com.actionworks.flashsale.app.exception.AppErrorCode.ITEM_NOT_FOUND;
+import static com.actionworks.flashsale.app.model.constants.CacheConstants.ITEMS_CACHE_KEY;
+import static com.actionworks.flashsale.app.model.constants.CacheConstants.ITEM_CACHE_KEY;
+import static com.actionworks.flashsale.controller.model.builder.FlashItemBuilder.toFlashItemResponse;
+import static com.actionworks.flashsale.controller.model.builder.FlashItemBuilder.toFlashItemsResponse;
+import static com.actionworks.flashsale.util.StringUtil.link;
+
+/**
+ * 秒杀品浏览接口，路径和响应与下单节点一致
+ * 在线秒杀品列表只缓存了无关键字的第一页，其他分页查询需要访问数据库，应由网关转发到下单节点，读节点返回稍后再试。
+ */
+@RestController
+public class FlashItemReadController {
+    //与NormalStockCacheService中的库存缓存KEY一致
+    private static final String ITEM_STOCKS_CACHE_KEY = "ITEM_STOCKS_CACHE_KEY";
+
+    @Resource
+    private ReactiveCacheReader reactiveCacheReader;
+
+    @GetMapping(value = "/activities/{activityId}/flash-items/online")
+    public Mono<MultiResponse<FlashItemResponse>> getOnlineFlashItems(@PathVariable Long activityId,
+                                                                      @RequestParam Integer pageSize,
+                                                                      @RequestParam Integer pageNumber,
+                                                                      @RequestParam(required = false) String keyword) {
+        FlashItemsQuery flashItemsQuery = new FlashItemsQuery()
+                .setKeyword(keyword)
+                .setPageSize(pageSize)
+                .setPageNumber(pageNumber)
+                .setStatus(FlashItemStatus.ONLINE.getCode());
+        if (!flashItemsQuery.isOnlineFirstPageQuery()) {
+            return Mono.just(ResponseBuilder.withMulti(AppMultiResult.tryLater()));
+        }
+        return reactiveCacheReader.getObject(link(ITEMS_CACHE_KEY, activityId), FlashItemsCache.class, FlashItemsCache::getVersion, null)
+                .map(this::toFlashItemsResult)
+                .defaultIfEmpty(ResponseBuilder.withMulti(AppMultiResult.tryLater()));
+    }
+
+    @GetMapping(value = "/activities/{activityId}/flash-items/{itemId}")
+    public Mono<SingleResponse<FlashItemResponse>> getFlashItem(@PathVariable Long activityId,
+                                                                @PathVariable Long itemId,
+                                                                @RequestParam(required = false) Long version) {
+        Mono<FlashItemCache> flashItemCache = reactiveCacheReader.getObject(link(ITEM_CACHE_KEY, itemId), FlashItemCache.class, FlashItemCache::getVersion, version);
+        //最新库存与秒杀品缓存并发读取
+        Mono<Optional<String>> availableStock = reactiveCacheReader.getString(link(ITEM_STOCKS_CACHE_KEY, itemId))
+                .map(Optional::of)
+                .defaultIfEmpty(Optional.empty());
+        return flashItemCache.zipWith(availableStock)
+                .map(tuple -> toFlashItemResult(tuple.getT1(), tuple.getT2()))
+                .defaultIfEmpty(ResponseBuilder.withSingle(AppSimpleResult.tryLater()));
+    }
+
+    private MultiResponse<FlashItemResponse> toFlashItemsResult(FlashItemsCache flashItemsCache) {
+        if (flashItemsCache.isLater()) {
+            return ResponseBuilder.withMulti(AppMultiResult.tryLater());
+        }
+        if (flashItemsCache.isEmpty() || flashItemsCache.getFlashItems() == null || flashItemsCache.getFlashItems().isEmpty()) {
+            return ResponseBuilder.withMulti(AppMultiResult.empty());
+        }
+        List<FlashItemDTO> flashItemDTOList = flashItemsCache.getFlashItems().stream().map(FlashItemAppBuilder::toFlashItemDTO).collect(Collectors.toList());
+        return MultiResponse.of(toFlashItemsResponse(flashItemDTOList), flashItemsCache.getTotal());
+    }
+
+    private SingleResponse<FlashItemResponse> toFlashItemResult(FlashItemCache flashItemCache, Optional<String> availableStock) {
+        if (flashItemCache.isLater()) {
+            return ResponseBuilder.withSingle(AppSimpleResult.tryLater());
+        }
+        if (!flashItemCache.isExist() || flashItemCache.getFlashItem() == null) {
+            return ResponseBuilder.withSingle(AppSimpleResult.failed(ITEM_NOT_FOUND));
+        }
+        FlashItem flashItem = flashItemCache.getFlashItem();
+        FlashItemDTO flashItemDTO = FlashItemAppBuilder.toFlashItemDTO(flashItem);
+        //本地缓存中的对象在多个请求间共享，库存只设置在DTO上
+        availableStock.ifPresent(stock -> flashItemDTO.setAvailableStock(Integer.valueOf(stock)));
+        flashItemDTO.setVersion(flashItemCache.getVersion());
+        return SingleResponse.of(toFlashItemResponse(flashItemDTO));
+    }
+}
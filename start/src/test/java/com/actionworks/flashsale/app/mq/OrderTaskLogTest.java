@@ -0,0 +1,151 @@
+package com.actionworks.flashsale.app.mq;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OrderTaskLogTest {
+    //每条记录8字节记录头 + 20字节内容，末尾预留4字节结束标记，每个分段恰好容纳2条记录
+    private static final int SEGMENT_SIZE = 64;
+    private static final int RECORD_SIZE = 28;
+
+    @TempDir
+    File tempDir;
+
+    @Test
+    void readsAppendedRecordsInOrder() throws Exception {
+        OrderTaskLog orderTaskLog = new OrderTaskLog(tempDir, SEGMENT_SIZE);
+        orderTaskLog.append(payload(0));
+        long endOffset = orderTaskLog.append(payload(1));
+        assertEquals(2 * RECORD_SIZE, endOffset);
+
+        OrderTaskLog.ReadResult readResult = orderTaskLog.read(0, 10);
+        assertEquals(names(0, 1), names(readResult.getRecords()));
+        assertEquals(endOffset, readResult.getNextOffset());
+        //从上一次读取结束的位置继续读取
+        assertEquals(names(1), names(orderTaskLog.read(RECORD_SIZE, 10).getRecords()));
+        assertTrue(orderTaskLog.read(endOffset, 10).getRecords().isEmpty());
+
+        assertFalse(orderTaskLog.awaitFlushed(endOffset, 0));
+        orderTaskLog.flush();
+        assertTrue(orderTaskLog.awaitFlushed(endOffset, 0));
+        orderTaskLog.close();
+    }
+
+    @Test
+    void rollsToNextSegmentWhenFull() throws Exception {
+        OrderTaskLog orderTaskLog = new OrderTaskLog(tempDir, SEGMENT_SIZE);
+        for (int i = 0; i < 5; i++) {
+            orderTaskLog.append(payload(i));
+        }
+        //第三条记录放不下时切换到偏移量64的分段
+        assertEquals(3, segmentFiles().size());
+        OrderTaskLog.ReadResult readResult = orderTaskLog.read(0, 3);
+        assertEquals(names(0, 1, 2), names(readResult.getRecords()));
+        assertEquals(SEGMENT_SIZE + RECORD_SIZE, readResult.getNextOffset());
+        assertEquals(names(3, 4), names(orderTaskLog.read(readResult.getNextOffset(), 10).getRecords()));
+        orderTaskLog.close();
+
+        OrderTaskLog reopened = new OrderTaskLog(tempDir, SEGMENT_SIZE);
+        assertEquals(2 * SEGMENT_SIZE + 2 * RECORD_SIZE, reopened.append(payload(5)));
+        assertEquals(names(0, 1, 2, 3, 4, 5), names(reopened.read(0, 10).getRecords()));
+        reopened.close();
+    }
+
+    @Test
+    void stopsRecoveryAtTornRecord() throws Exception {
+        OrderTaskLog orderTaskLog = new OrderTaskLog(tempDir, SEGMENT_SIZE);
+        orderTaskLog.append(payload(0));
+        orderTaskLog.append(payload(1));
+        orderTaskLog.close();
+
+        //破坏第二条记录的内容，模拟写到一半时崩溃
+        try (RandomAccessFile file = new RandomAccessFile(segmentFiles().get(0), "rw")) {
+            file.seek(RECORD_SIZE + 8);
+            file.write('x');
+        }
+        OrderTaskLog reopened = new OrderTaskLog(tempDir, SEGMENT_SIZE);
+        assertEquals(names(0), names(reopened.read(0, 10).getRecords()));
+        //写入位置回到损坏记录处，新记录覆盖它
+        assertEquals(2 * RECORD_SIZE, reopened.append(payload(2)));
+        reopened.close();
+
+        reopened = new OrderTaskLog(tempDir, SEGMENT_SIZE);
+        assertEquals(names(0, 2), names(reopened.read(0, 10).getRecords()));
+        reopened.close();
+    }
+
+    @Test
+    void recoversWhenCrashedBetweenRollMarkAndNewSegment() throws Exception {
+        OrderTaskLog orderTaskLog = new OrderTaskLog(tempDir, SEGMENT_SIZE);
+        orderTaskLog.append(payload(0));
+        orderTaskLog.append(payload(1));
+        orderTaskLog.close();
+
+        //已写入切换标记，但下一分段还未创建
+        try (RandomAccessFile file = new RandomAccessFile(segmentFiles().get(0), "rw")) {
+            file.seek(2 * RECORD_SIZE);
+            file.writeInt(-1);
+        }
+        OrderTaskLog reopened = new OrderTaskLog(tempDir, SEGMENT_SIZE);
+        assertEquals(2, segmentFiles().size());
+        assertEquals(SEGMENT_SIZE + RECORD_SIZE, reopened.append(payload(2)));
+        assertEquals(names(0, 1, 2), names(reopened.read(0, 10).getRecords()));
+        reopened.close();
+    }
+
+    @Test
+    void commitPersistsOffsetAndDeletesConsumedSegments() throws Exception {
+        OrderTaskLog orderTaskLog = new OrderTaskLog(tempDir, SEGMENT_SIZE);
+        for (int i = 0; i < 5; i++) {
+            orderTaskLog.append(payload(i));
+        }
+        assertEquals(0, orderTaskLog.getCommittedOffset());
+
+        //消费到第二个分段中间，只删除第一个分段
+        long offset = SEGMENT_SIZE + RECORD_SIZE;
+        orderTaskLog.commit(offset);
+        assertEquals(offset, orderTaskLog.getCommittedOffset());
+        assertEquals(2, segmentFiles().size());
+        assertEquals(names(2, 3, 4), names(orderTaskLog.read(0, 10).getRecords()));
+        orderTaskLog.close();
+
+        OrderTaskLog reopened = new OrderTaskLog(tempDir, SEGMENT_SIZE);
+        assertEquals(offset, reopened.getCommittedOffset());
+        assertEquals(names(3, 4), names(reopened.read(reopened.getCommittedOffset(), 10).getRecords()));
+
+        //正在写入的分段即使已全部消费也保留
+        long endOffset = reopened.append(payload(5));
+        reopened.commit(endOffset);
+        assertEquals(1, segmentFiles().size());
+        assertEquals(endOffset, reopened.getCommittedOffset());
+        reopened.close();
+    }
+
+    private List<File> segmentFiles() {
+        File[] files = tempDir.listFiles((dir, name) -> name.endsWith(".log"));
+        return files == null ? Arrays.asList() : Arrays.stream(files).sorted().collect(Collectors.toList());
+    }
+
+    private static byte[] payload(int index) {
+        return String.format("task-%015d", index).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static List<String> names(int... indexes) {
+        return Arrays.stream(indexes).mapToObj(index -> new String(payload(index), StandardCharsets.UTF_8)).collect(Collectors.toList());
+    }
+
+    private static List<String> names(List<byte[]> records) {
+        return records.stream().map(record -> new String(record, StandardCharsets.UTF_8)).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,64 @@
+package com.actionworks.flashsale.app.mq;
+
+import com.actionworks.flashsale.app.model.PlaceOrderTask;
+import com.alibaba.fastjson.JSON;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PlaceOrderTaskCodecTest {
+
+    @Test
+    void roundTripsAllFields() {
+        PlaceOrderTask placeOrderTask = placeOrderTask();
+
+        byte[] body = PlaceOrderTaskCodec.encode(placeOrderTask);
+
+        assertEquals(placeOrderTask, PlaceOrderTaskCodec.decode(body));
+        //紧凑编码明显小于JSON
+        assertTrue(body.length * 2 < JSON.toJSONString(placeOrderTask).getBytes(StandardCharsets.UTF_8).length);
+    }
+
+    @Test
+    void roundTripsBoundaryValuesAndMissingFields() {
+        PlaceOrderTask placeOrderTask = new PlaceOrderTask();
+        placeOrderTask.setPlaceOrderTaskId("任务-" + Long.MAX_VALUE);
+        placeOrderTask.setUserId(Long.MAX_VALUE);
+        placeOrderTask.setItemId(Long.MIN_VALUE);
+        placeOrderTask.setQuantity(-1);
+        placeOrderTask.setTotalAmount(0L);
+
+        PlaceOrderTask decoded = PlaceOrderTaskCodec.decode(PlaceOrderTaskCodec.encode(placeOrderTask));
+
+        assertEquals(placeOrderTask, decoded);
+        assertNull(decoded.getId());
+        assertNull(decoded.getActivityId());
+        assertEquals(new PlaceOrderTask(), PlaceOrderTaskCodec.decode(PlaceOrderTaskCodec.encode(new PlaceOrderTask())));
+    }
+
+    @Test
+    void decodesJsonMessagesFromOlderProducers() {
+        PlaceOrderTask placeOrderTask = placeOrderTask();
+        byte[] body = JSON.toJSONString(placeOrderTask).getBytes(StandardCharsets.UTF_8);
+
+        assertEquals(placeOrderTask, PlaceOrderTaskCodec.decode(body));
+        assertNull(PlaceOrderTaskCodec.decode(new byte[0]));
+        assertNull(PlaceOrderTaskCodec.decode(null));
+    }
+
+    private static PlaceOrderTask placeOrderTask() {
+        PlaceOrderTask placeOrderTask = new PlaceOrderTask();
+        placeOrderTask.setPlaceOrderTaskId("a1b2c3d4e5f60718293a4b5c6d7e8f90");
+        placeOrderTask.setUserId(1024L);
+        placeOrderTask.setId(1465214358962421760L);
+        placeOrderTask.setItemId(88L);
+        placeOrderTask.setActivityId(7L);
+        placeOrderTask.setQuantity(2);
+        placeOrderTask.setTotalAmount(19900L);
+        return placeOrderTask;
+    }
+}
@@ -0,0 +1,50 @@
+package com.actionworks.flashsale.app.service.bucket;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class BucketsRebalancerTest {
+    private static final double IMBALANCE_RATIO = 0.5;
+
+    @Test
+    void transfersStocksSoBothBucketsEmptyTogether() {
+        //转出分桶100件每秒2件预计50秒售罄，转入分桶20件每秒2件预计10秒售罄
+        int quantity = BucketsRebalancer.getRebalanceQuantity(100, 2, 20, 2, IMBALANCE_RATIO);
+
+        assertEquals(40, quantity);
+        //调拨后两个分桶都是60件，预计同时售罄
+        assertEquals((100 - quantity) / 2.0, (20 + quantity) / 2.0);
+    }
+
+    @Test
+    void weighsTransferByDepletionRates() {
+        //转出分桶消耗速度是转入分桶的3倍，调拨后库存比例也为3:1
+        int quantity = BucketsRebalancer.getRebalanceQuantity(100, 3, 0, 1, IMBALANCE_RATIO);
+
+        assertEquals(25, quantity);
+        assertEquals(100 - quantity, 3 * quantity);
+    }
+
+    @Test
+    void transfersAtMostHalfOfDonorStocks() {
+        assertEquals(50, BucketsRebalancer.getRebalanceQuantity(100, 1, 10, 9, IMBALANCE_RATIO));
+        //转出分桶没有消耗时预计永不售罄，同样最多调出一半
+        assertEquals(20, BucketsRebalancer.getRebalanceQuantity(40, 0, 10, 5, IMBALANCE_RATIO));
+        assertEquals(0, BucketsRebalancer.getRebalanceQuantity(1, 0, 0, 5, IMBALANCE_RATIO));
+    }
+
+    @Test
+    void skipsBucketsThatAreCloseEnough() {
+        //预计售罄时间30秒与50秒，未低于一半，不调拨
+        assertEquals(0, BucketsRebalancer.getRebalanceQuantity(100, 2, 60, 2, IMBALANCE_RATIO));
+        //差距刚超过阈值时调拨
+        assertEquals(26, BucketsRebalancer.getRebalanceQuantity(100, 2, 48, 2, IMBALANCE_RATIO));
+    }
+
+    @Test
+    void skipsWhenDonorIsEmptyOrReceiverIsIdle() {
+        assertEquals(0, BucketsRebalancer.getRebalanceQuantity(0, 1, 0, 5, IMBALANCE_RATIO));
+        assertEquals(0, BucketsRebalancer.getRebalanceQuantity(100, 1, 10, 0, IMBALANCE_RATIO));
+    }
+}
@@ -0,0 +1,165 @@
+package com.actionworks.flashsale.app.service.placeorder.normal.cache;
+
+import com.actionworks.flashsale.cache.redis.RedisLuaScript;
+import com.actionworks.flashsale.cache.redis.RedisScriptRegistry;
+import com.actionworks.flashsale.cache.redis.RedisScriptResult;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class StockDeductionCoalescerTest {
+    private static final Long ITEM_ID = 1L;
+    private static final List<String> KEYS = Arrays.asList("stock", "reserved", "reservations", "expire");
+
+    private final ExecutorService callers = Executors.newCachedThreadPool();
+    private StockDeductionCoalescer coalescer;
+
+    @AfterEach
+    void tearDown() {
+        callers.shutdownNow();
+        if (coalescer != null) {
+            coalescer.destroy();
+        }
+    }
+
+    @Test
+    void returnsUnknownWhenBatchResultTimesOut() throws Exception {
+        coalescer = newCoalescer(args -> {
+            sleep(500);
+            return Arrays.asList(1L, 1L);
+        }, 100, 50);
+
+        assertEquals(RedisScriptResult.UNKNOWN, decrease(1L));
+    }
+
+    @Test
+    void returnsUnknownWhenScriptFails() throws Exception {
+        coalescer = newCoalescer(args -> {
+            throw new IllegalStateException("redis down");
+        }, 100, 1000);
+
+        assertEquals(RedisScriptResult.UNKNOWN, decrease(1L));
+    }
+
+    @Test
+    void returnsUnknownWhenScriptReturnsNothing() throws Exception {
+        coalescer = newCoalescer(args -> Collections.emptyList(), 100, 1000);
+
+        assertEquals(RedisScriptResult.UNKNOWN, decrease(1L));
+    }
+
+    @Test
+    void appliesBatchLevelFailureToEveryRequest() throws Exception {
+        coalescer = newCoalescer(args -> Collections.singletonList(RedisScriptResult.NOT_EXIST.getCode()), 20000, 1000);
+
+        List<RedisScriptResult> results = decreaseConcurrently(3);
+
+        assertEquals(Collections.nCopies(3, RedisScriptResult.NOT_EXIST), results);
+    }
+
+    @Test
+    void mapsPerRequestResultsInRequestOrder() throws Exception {
+        List<Object[]> submittedArgs = new CopyOnWriteArrayList<>();
+        coalescer = newCoalescer(args -> {
+            submittedArgs.add(args);
+            //按提交顺序：第一个成功，第二个库存不足，第三个重复下单
+            return Arrays.asList(1L, 1L, -1L, -2L);
+        }, 1_000_000, 5000);
+
+        List<Future<RedisScriptResult>> futures = new ArrayList<>();
+        for (long orderId = 1; orderId <= 3; orderId++) {
+            long currentOrderId = orderId;
+            futures.add(callers.submit(() -> decrease(currentOrderId)));
+            //保证按顺序加入同一批次，间隔留出线程启动的余量
+            sleep(100);
+        }
+
+        assertEquals(RedisScriptResult.SUCCESS, futures.get(0).get());
+        assertEquals(RedisScriptResult.INSUFFICIENT, futures.get(1).get());
+        assertEquals(RedisScriptResult.DUPLICATED, futures.get(2).get());
+        assertEquals(1, submittedArgs.size());
+        assertEquals(Arrays.asList(1, 1L, 1, 2L, 1, 3L), Arrays.asList(submittedArgs.get(0)));
+    }
+
+    @Test
+    void flushesAsSoonAsBatchIsFull() throws Exception {
+        coalescer = newCoalescer(args -> Arrays.asList(1L, 1L, 1L), 10_000_000, 1000);
+        ReflectionTestUtils.setField(coalescer, "maxBatchSize", 2);
+
+        long startTime = System.currentTimeMillis();
+        List<RedisScriptResult> results = decreaseConcurrently(2);
+
+        assertEquals(Collections.nCopies(2, RedisScriptResult.SUCCESS), results);
+        //窗口为10秒，提前返回说明批次满时立即提交
+        assertTrue(System.currentTimeMillis() - startTime < 5000);
+    }
+
+    private List<RedisScriptResult> decreaseConcurrently(int requests) throws Exception {
+        CountDownLatch startLatch = new CountDownLatch(1);
+        List<Future<RedisScriptResult>> futures = new ArrayList<>();
+        for (long orderId = 1; orderId <= requests; orderId++) {
+            long currentOrderId = orderId;
+            futures.add(callers.submit(() -> {
+                startLatch.await();
+                return decrease(currentOrderId);
+            }));
+        }
+        startLatch.countDown();
+        List<RedisScriptResult> results = new ArrayList<>();
+        for (Future<RedisScriptResult> future : futures) {
+            results.add(future.get());
+        }
+        return results;
+    }
+
+    private RedisScriptResult decrease(long orderId) throws InterruptedException {
+        return coalescer.decrease(ITEM_ID, KEYS, Collections.singletonList("dedupe_" + orderId), 1, orderId);
+    }
+
+    private static StockDeductionCoalescer newCoalescer(Function<Object[], List<Long>> script, long windowMicros, long timeoutMillis) {
+        StockDeductionCoalescer coalescer = new StockDeductionCoalescer();
+        ReflectionTestUtils.setField(coalescer, "redisScriptRegistry", new StubRedisScriptRegistry(script));
+        ReflectionTestUtils.setField(coalescer, "enabled", true);
+        ReflectionTestUtils.setField(coalescer, "windowMicros", windowMicros);
+        ReflectionTestUtils.setField(coalescer, "maxBatchSize", 64);
+        ReflectionTestUtils.setField(coalescer, "flushThreads", 2);
+        ReflectionTestUtils.setField(coalescer, "timeoutMillis", timeoutMillis);
+        coalescer.init();
+        return coalescer;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class StubRedisScriptRegistry extends RedisScriptRegistry {
+        private final Function<Object[], List<Long>> script;
+
+        StubRedisScriptRegistry(Function<Object[], List<Long>> script) {
+            this.script = script;
+        }
+
+        @Override
+        public List<Long> executeForList(RedisLuaScript luaScript, List<String> keys, Object... args) {
+            return script.apply(args);
+        }
+    }
+}
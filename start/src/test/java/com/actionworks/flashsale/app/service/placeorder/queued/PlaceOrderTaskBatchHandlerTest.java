@@ -0,0 +1,217 @@
+package com.actionworks.flashsale.app.service.placeorder.queued;
+
+import com.actionworks.flashsale.app.model.PlaceOrderTask;
+import com.actionworks.flashsale.app.model.enums.OrderTaskStatus;
+import com.actionworks.flashsale.app.service.placeorder.snapshot.PlaceOrderSnapshot;
+import com.actionworks.flashsale.app.service.placeorder.snapshot.PlaceOrderSnapshotService;
+import com.actionworks.flashsale.app.util.OrderNoGenerateService;
+import com.actionworks.flashsale.domain.model.entity.FlashActivity;
+import com.actionworks.flashsale.domain.model.entity.FlashItem;
+import com.actionworks.flashsale.domain.model.entity.FlashOrder;
+import com.actionworks.flashsale.domain.model.enums.FlashActivityStatus;
+import com.actionworks.flashsale.domain.model.enums.FlashItemStatus;
+import com.actionworks.flashsale.domain.service.FlashItemDomainService;
+import com.actionworks.flashsale.domain.service.FlashOrderDomainService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class PlaceOrderTaskBatchHandlerTest {
+    private static final Long ITEM_ID = 1L;
+    private static final Long ACTIVITY_ID = 10L;
+
+    private final PlaceOrderSnapshotService placeOrderSnapshotService = mock(PlaceOrderSnapshotService.class);
+    private final FlashItemDomainService flashItemDomainService = mock(FlashItemDomainService.class);
+    private final FlashOrderDomainService flashOrderDomainService = mock(FlashOrderDomainService.class);
+    private final PlaceOrderTaskBatchPersister placeOrderTaskBatchPersister = mock(PlaceOrderTaskBatchPersister.class);
+    private final PlaceOrderTaskService placeOrderTaskService = mock(PlaceOrderTaskService.class);
+    private final PlaceOrderTaskResultNotifier placeOrderTaskResultNotifier = mock(PlaceOrderTaskResultNotifier.class);
+    private final Map<String, OrderTaskStatus> taskStatuses = new HashMap<>();
+    private final Map<String, Long> writtenResults = new LinkedHashMap<>();
+    private PlaceOrderTaskBatchHandler handler;
+
+    @BeforeEach
+    void setUp() {
+        AtomicLong orderIds = new AtomicLong(1000);
+        OrderNoGenerateService orderNoGenerateService = context -> orderIds.incrementAndGet();
+        handler = new PlaceOrderTaskBatchHandler();
+        ReflectionTestUtils.setField(handler, "placeOrderSnapshotService", placeOrderSnapshotService);
+        ReflectionTestUtils.setField(handler, "flashItemDomainService", flashItemDomainService);
+        ReflectionTestUtils.setField(handler, "flashOrderDomainService", flashOrderDomainService);
+        ReflectionTestUtils.setField(handler, "orderNoGenerateService", orderNoGenerateService);
+        ReflectionTestUtils.setField(handler, "placeOrderTaskBatchPersister", placeOrderTaskBatchPersister);
+        ReflectionTestUtils.setField(handler, "placeOrderTaskService", placeOrderTaskService);
+        ReflectionTestUtils.setField(handler, "placeOrderTaskResultNotifier", placeOrderTaskResultNotifier);
+        ReflectionTestUtils.setField(handler, "queuedPlaceOrderService", mock(QueuedPlaceOrderService.class));
+        ReflectionTestUtils.setField(handler, "orderTaskStatistics", mock(OrderTaskStatistics.class));
+
+        when(placeOrderSnapshotService.getSnapshot(ITEM_ID)).thenReturn(onSaleSnapshot());
+        when(placeOrderTaskBatchPersister.persist(eq(ITEM_ID), anyList())).thenReturn(true);
+        when(placeOrderTaskService.getTaskStatuses(any())).thenAnswer(invocation -> {
+            Collection<String> placeOrderTaskIds = invocation.getArgument(0);
+            Map<String, OrderTaskStatus> result = new HashMap<>();
+            placeOrderTaskIds.stream().filter(taskStatuses::containsKey).forEach(id -> result.put(id, taskStatuses.get(id)));
+            return result;
+        });
+        //模拟条件写入：只有已提交状态的任务写入结果
+        when(placeOrderTaskService.updateTaskHandleResults(any())).thenAnswer(invocation -> {
+            Map<String, Long> taskOrderIds = invocation.getArgument(0);
+            Map<String, Long> updated = new LinkedHashMap<>();
+            taskOrderIds.forEach((id, orderId) -> {
+                if (taskStatuses.get(id) == OrderTaskStatus.SUBMITTED) {
+                    taskStatuses.put(id, orderId != null ? OrderTaskStatus.SUCCESS : OrderTaskStatus.FAILED);
+                    updated.put(id, orderId);
+                }
+            });
+            writtenResults.putAll(updated);
+            return updated;
+        });
+    }
+
+    @Test
+    void allocatesStockInArrivalOrder() {
+        stockOf(5);
+        List<PlaceOrderTask> tasks = Arrays.asList(task("t1", 2), task("t2", 4), task("t3", 3), task("t4", 1));
+
+        handler.handle(tasks);
+
+        //t1占2件，t2需要4件超出剩余3件失败，t3占3件，t4已无库存失败
+        assertNotNull(writtenResults.get("t1"));
+        assertNull(writtenResults.get("t2"));
+        assertNotNull(writtenResults.get("t3"));
+        assertNull(writtenResults.get("t4"));
+        assertEquals(Arrays.asList("t1", "t2", "t3", "t4"), new ArrayList<>(writtenResults.keySet()));
+        assertEquals(Arrays.asList(2, 3), persistedQuantities());
+    }
+
+    @Test
+    void skipsTasksThatAlreadyHaveResults() {
+        stockOf(10);
+        PlaceOrderTask redelivered = task("t1", 2);
+        taskStatuses.put("t1", OrderTaskStatus.SUCCESS);
+        PlaceOrderTask pending = task("t2", 3);
+
+        handler.handle(Arrays.asList(redelivered, pending, task("t2", 3)));
+
+        //已成功的任务不再分配库存，同一批内重复的任务只处理一次
+        assertEquals(Arrays.asList(3), persistedQuantities());
+        assertFalse(writtenResults.containsKey("t1"));
+        assertNotNull(writtenResults.get("t2"));
+        assertEquals(OrderTaskStatus.SUCCESS, taskStatuses.get("t1"));
+    }
+
+    @Test
+    void skipsWholeBatchWhenNothingIsPending() {
+        stockOf(10);
+        PlaceOrderTask cancelled = new PlaceOrderTask();
+        cancelled.setPlaceOrderTaskId("t1");
+        cancelled.setItemId(ITEM_ID);
+        cancelled.setActivityId(ACTIVITY_ID);
+        cancelled.setUserId(1L);
+        cancelled.setQuantity(1);
+
+        //任务状态不存在（如投递超时后已撤销），不再下单
+        handler.handle(Arrays.asList(cancelled));
+
+        verify(placeOrderTaskBatchPersister, never()).persist(anyLong(), anyList());
+        verify(placeOrderTaskService, never()).updateTaskHandleResults(any());
+        assertTrue(writtenResults.isEmpty());
+    }
+
+    @Test
+    void completesRedeliveredTasksWhoseOrdersAreAlreadyPlaced() {
+        stockOf(10);
+        PlaceOrderTask placed = task("t1", 2);
+        placed.setId(501L);
+        PlaceOrderTask unplaced = task("t2", 3);
+        unplaced.setId(502L);
+        //上一次处理时t1的订单已落库，但结果未写回
+        when(flashOrderDomainService.getPlacedOrderIds(eq(ITEM_ID), anyList())).thenReturn(Arrays.asList(501L));
+
+        handler.handle(Arrays.asList(placed, unplaced));
+
+        assertEquals(Long.valueOf(501L), writtenResults.get("t1"));
+        assertEquals(Long.valueOf(502L), writtenResults.get("t2"));
+        assertEquals(Arrays.asList(3), persistedQuantities());
+    }
+
+    @Test
+    void rethrowsWhenResultsCannotBeWrittenBack() {
+        stockOf(10);
+        doThrow(new IllegalStateException("redis unavailable")).when(placeOrderTaskService).updateTaskHandleResults(any());
+
+        //抛出后由消息队列重新投递
+        assertThrows(IllegalStateException.class, () -> handler.handle(Arrays.asList(task("t1", 1))));
+    }
+
+    private List<Integer> persistedQuantities() {
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<List<FlashOrder>> captor = ArgumentCaptor.forClass(List.class);
+        verify(placeOrderTaskBatchPersister).persist(eq(ITEM_ID), captor.capture());
+        return captor.getValue().stream().map(FlashOrder::getQuantity).collect(Collectors.toList());
+    }
+
+    private void stockOf(int availableStock) {
+        FlashItem flashItem = new FlashItem();
+        flashItem.setId(ITEM_ID);
+        flashItem.setAvailableStock(availableStock);
+        when(flashItemDomainService.getFlashItem(ITEM_ID)).thenReturn(flashItem);
+    }
+
+    private PlaceOrderTask task(String placeOrderTaskId, int quantity) {
+        PlaceOrderTask placeOrderTask = new PlaceOrderTask();
+        placeOrderTask.setPlaceOrderTaskId(placeOrderTaskId);
+        placeOrderTask.setItemId(ITEM_ID);
+        placeOrderTask.setActivityId(ACTIVITY_ID);
+        placeOrderTask.setUserId((long) placeOrderTaskId.hashCode());
+        placeOrderTask.setQuantity(quantity);
+        taskStatuses.putIfAbsent(placeOrderTaskId, OrderTaskStatus.SUBMITTED);
+        return placeOrderTask;
+    }
+
+    private static PlaceOrderSnapshot onSaleSnapshot() {
+        long now = System.currentTimeMillis();
+        FlashItem flashItem = new FlashItem();
+        flashItem.setId(ITEM_ID);
+        flashItem.setActivityId(ACTIVITY_ID);
+        flashItem.setItemTitle("item");
+        flashItem.setFlashPrice(100L);
+        flashItem.setStatus(FlashItemStatus.ONLINE.getCode());
+        flashItem.setStartTime(new Date(now - 60_000));
+        flashItem.setEndTime(new Date(now + 60_000));
+        FlashActivity flashActivity = new FlashActivity();
+        flashActivity.setId(ACTIVITY_ID);
+        flashActivity.setStatus(FlashActivityStatus.ONLINE.getCode());
+        flashActivity.setStartTime(new Date(now - 60_000));
+        flashActivity.setEndTime(new Date(now + 60_000));
+        return PlaceOrderSnapshot.of(flashItem, flashActivity);
+    }
+}
@@ -0,0 +1,155 @@
+package com.actionworks.flashsale.app.service.placeorder.writebehind;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class OrderWriteAheadLogTest {
+    //文件头16字节，每条记录8字节记录头 + 20字节内容，末尾预留4字节结束标记，恰好容纳4条记录
+    private static final int CAPACITY = 16 + 28 * 4 + 4;
+
+    @TempDir
+    File tempDir;
+
+    @Test
+    void recoversUnpersistedRecordsAfterReopen() throws Exception {
+        File logFile = new File(tempDir, "order.wal");
+        OrderWriteAheadLog writeAheadLog = new OrderWriteAheadLog(logFile, CAPACITY, false);
+        writeAheadLog.recover();
+        writeAheadLog.append(payload(0));
+        writeAheadLog.append(payload(1));
+        writeAheadLog.close();
+
+        OrderWriteAheadLog reopened = new OrderWriteAheadLog(logFile, CAPACITY, false);
+        assertEquals(names(0, 1), names(reopened.recover()));
+        reopened.close();
+    }
+
+    @Test
+    void advancesCheckpointOnlyOverContiguousRecords() throws Exception {
+        File logFile = new File(tempDir, "order.wal");
+        OrderWriteAheadLog writeAheadLog = new OrderWriteAheadLog(logFile, CAPACITY, false);
+        writeAheadLog.recover();
+        writeAheadLog.append(payload(0));
+        OrderWriteAheadLog.Record second = writeAheadLog.append(payload(1));
+        writeAheadLog.append(payload(2));
+        //第二条先落库，第一条未落库前检查点不能越过它
+        writeAheadLog.markPersisted(second);
+        writeAheadLog.close();
+
+        OrderWriteAheadLog reopened = new OrderWriteAheadLog(logFile, CAPACITY, false);
+        assertEquals(names(0, 1, 2), names(reopened.recover()));
+        reopened.close();
+
+        writeAheadLog = new OrderWriteAheadLog(logFile, CAPACITY, false);
+        List<OrderWriteAheadLog.Record> records = writeAheadLog.recover();
+        writeAheadLog.markPersisted(records.get(1));
+        writeAheadLog.markPersisted(records.get(0));
+        writeAheadLog.close();
+
+        reopened = new OrderWriteAheadLog(logFile, CAPACITY, false);
+        assertEquals(names(2), names(reopened.recover()));
+        reopened.close();
+    }
+
+    @Test
+    void wrapsIntoPersistedSpaceWhileLaterRecordsArePending() throws Exception {
+        File logFile = new File(tempDir, "order.wal");
+        OrderWriteAheadLog writeAheadLog = new OrderWriteAheadLog(logFile, CAPACITY, false);
+        writeAheadLog.recover();
+        OrderWriteAheadLog.Record first = writeAheadLog.append(payload(0));
+        OrderWriteAheadLog.Record second = writeAheadLog.append(payload(1));
+        writeAheadLog.append(payload(2));
+        writeAheadLog.append(payload(3));
+        assertNull(writeAheadLog.append(payload(4)));
+
+        //前两条落库后空出文件头的空间，后两条仍未落库也能回绕继续写入
+        writeAheadLog.markPersisted(first);
+        writeAheadLog.markPersisted(second);
+        assertNotNull(writeAheadLog.append(payload(4)));
+        //回绕后连同结束标记都不能越过检查点
+        assertNull(writeAheadLog.append(payload(5)));
+        writeAheadLog.close();
+
+        OrderWriteAheadLog reopened = new OrderWriteAheadLog(logFile, CAPACITY, false);
+        List<OrderWriteAheadLog.Record> records = reopened.recover();
+        assertEquals(names(2, 3, 4), names(records));
+
+        //全部落库后检查点经回绕标记回到文件头，之后继续顺序写到文件末尾
+        records.forEach(reopened::markPersisted);
+        for (int i = 5; i < 8; i++) {
+            assertNotNull(reopened.append(payload(i)));
+        }
+        reopened.close();
+
+        reopened = new OrderWriteAheadLog(logFile, CAPACITY, false);
+        assertEquals(names(5, 6, 7), names(reopened.recover()));
+        reopened.close();
+    }
+
+    @Test
+    void reusesLogFromHeadWhenEverythingIsPersisted() throws Exception {
+        File logFile = new File(tempDir, "order.wal");
+        OrderWriteAheadLog writeAheadLog = new OrderWriteAheadLog(logFile, CAPACITY, false);
+        writeAheadLog.recover();
+        for (int i = 0; i < 4; i++) {
+            writeAheadLog.markPersisted(writeAheadLog.append(payload(i)));
+        }
+        for (int i = 4; i < 8; i++) {
+            assertNotNull(writeAheadLog.append(payload(i)));
+        }
+        writeAheadLog.close();
+
+        OrderWriteAheadLog reopened = new OrderWriteAheadLog(logFile, CAPACITY, false);
+        assertEquals(names(4, 5, 6, 7), names(reopened.recover()));
+        reopened.close();
+    }
+
+    @Test
+    void stopsRecoveryAtTornRecord() throws Exception {
+        File logFile = new File(tempDir, "order.wal");
+        OrderWriteAheadLog writeAheadLog = new OrderWriteAheadLog(logFile, CAPACITY, false);
+        writeAheadLog.recover();
+        writeAheadLog.append(payload(0));
+        writeAheadLog.append(payload(1));
+        writeAheadLog.close();
+
+        //破坏第二条记录的内容，模拟写到一半时崩溃
+        try (RandomAccessFile file = new RandomAccessFile(logFile, "rw")) {
+            file.seek(16 + 28 + 8);
+            file.write('x');
+        }
+        OrderWriteAheadLog reopened = new OrderWriteAheadLog(logFile, CAPACITY, false);
+        List<OrderWriteAheadLog.Record> records = reopened.recover();
+        assertEquals(names(0), names(records));
+        //写入位置回到损坏记录处，新记录覆盖它
+        assertNotNull(reopened.append(payload(2)));
+        reopened.close();
+
+        reopened = new OrderWriteAheadLog(logFile, CAPACITY, false);
+        assertEquals(names(0, 2), names(reopened.recover()));
+        reopened.close();
+    }
+
+    private static byte[] payload(int index) {
+        return String.format("order-%014d", index).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static List<String> names(int... indexes) {
+        return Arrays.stream(indexes).mapToObj(index -> new String(payload(index), StandardCharsets.UTF_8)).collect(Collectors.toList());
+    }
+
+    private static List<String> names(List<OrderWriteAheadLog.Record> records) {
+        return records.stream().map(record -> new String(record.getPayload(), StandardCharsets.UTF_8)).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,135 @@
+package com.actionworks.flashsale.benchmark;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 秒杀品库存行锁压测，对比排队下单中多线程任意处理任务与按秒杀品分区单线程处理时的行锁等待
+ * 每个事务与消费端一致：条件扣减flash_item库存后再读取一次，模拟插入订单期间持有行锁；结束后恢复被扣减的库存。
+ * 行锁等待取自InnoDB全局状态的增量，压测期间数据库上不应有其他负载。需要可访问的MySQL和已有的秒杀品，例如：
+ * -Djdbc.url=jdbc:mysql://127.0.0.1:3306/flash_sale -Djdbc.user=root -Djdbc.password=xxx
+ * -Dbenchmark.items=1,2,3,4 -Dbenchmark.threads=32 -Dbenchmark.seconds=10
+ * 未验证：尚未在MySQL上运行过，没有实测数据，分区消费减少行锁等待的结论仍需运行本压测确认
+ */
+public class ItemStockRowLockBenchmark {
+    private static final String DECREASE_STOCK_SQL = "UPDATE flash_item SET modified_time = now(), available_stock = available_stock - 1 WHERE id = ? AND available_stock >= 1";
+    private static final String SELECT_STOCK_SQL = "SELECT available_stock FROM flash_item WHERE id = ?";
+    private static final String RESTORE_STOCK_SQL = "UPDATE flash_item SET available_stock = available_stock + ? WHERE id = ?";
+
+    public static void main(String[] args) throws Exception {
+        String url = System.getProperty("jdbc.url", "jdbc:mysql://127.0.0.1:3306/flash_sale?serverTimezone=UTC");
+        String user = System.getProperty("jdbc.user", "root");
+        String password = System.getProperty("jdbc.password", "");
+        long[] itemIds = Arrays.stream(System.getProperty("benchmark.items", "1").split(",")).mapToLong(itemId -> Long.parseLong(itemId.trim())).toArray();
+        int threads = Integer.getInteger("benchmark.threads", 32);
+        int seconds = Integer.getInteger("benchmark.seconds", 10);
+
+        System.out.printf("%-14s%-10s%-12s%-14s%-16s%-12s%n", "mode", "workers", "txn/s", "lock waits", "lock wait(ms)", "deadlocks");
+        run("shared", url, user, password, itemIds, threads, seconds, false);
+        run("partitioned", url, user, password, itemIds, threads, seconds, true);
+    }
+
+    /**
+     * shared：每个线程随机处理任意秒杀品的任务，即并发消费；partitioned：每个秒杀品只由一个线程处理
+     */
+    private static void run(String mode, String url, String user, String password, long[] itemIds,
+                            int threads, int seconds, boolean partitioned) throws Exception {
+        int workers = partitioned ? Math.min(threads, itemIds.length) : threads;
+        AtomicLongArray deducted = new AtomicLongArray(itemIds.length);
+        AtomicLong transactions = new AtomicLong();
+        AtomicLong deadlocks = new AtomicLong();
+        Map<String, Long> statusBefore = getRowLockStatus(url, user, password);
+        CountDownLatch startLatch = new CountDownLatch(1);
+        CountDownLatch doneLatch = new CountDownLatch(workers);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        for (int i = 0; i < workers; i++) {
+            int worker = i;
+            new Thread(() -> {
+                try (Connection connection = DriverManager.getConnection(url, user, password);
+                     PreparedStatement decrease = connection.prepareStatement(DECREASE_STOCK_SQL);
+                     PreparedStatement select = connection.prepareStatement(SELECT_STOCK_SQL)) {
+                    connection.setAutoCommit(false);
+                    startLatch.await();
+                    int round = 0;
+                    while (System.nanoTime() < deadline) {
+                        int index = partitioned ? nextOwnedItem(worker, workers, itemIds.length, round++) : ThreadLocalRandom.current().nextInt(itemIds.length);
+                        try {
+                            decrease.setLong(1, itemIds[index]);
+                            int updated = decrease.executeUpdate();
+                            select.setLong(1, itemIds[index]);
+                            try (ResultSet ignored = select.executeQuery()) {
+                                connection.commit();
+                            }
+                            deducted.addAndGet(index, updated);
+                            transactions.incrementAndGet();
+                        } catch (SQLException e) {
+                            connection.rollback();
+                            if ("40001".equals(e.getSQLState())) {
+                                deadlocks.incrementAndGet();
+                            } else {
+                                throw e;
+                            }
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                } finally {
+                    doneLatch.countDown();
+                }
+            }).start();
+        }
+        startLatch.countDown();
+        doneLatch.await();
+        Map<String, Long> statusAfter = getRowLockStatus(url, user, password);
+        restoreStocks(url, user, password, itemIds, deducted);
+
+        System.out.printf("%-14s%-10d%-12d%-14d%-16d%-12d%n", mode, workers, transactions.get() / seconds,
+                statusAfter.get("Innodb_row_lock_waits") - statusBefore.get("Innodb_row_lock_waits"),
+                statusAfter.get("Innodb_row_lock_time") - statusBefore.get("Innodb_row_lock_time"), deadlocks.get());
+    }
+
+    /**
+     * 分区模式下第worker个线程依次处理归属于它的秒杀品
+     */
+    private static int nextOwnedItem(int worker, int workers, int itemCount, int round) {
+        int owned = (itemCount - worker + workers - 1) / workers;
+        return worker + (round % owned) * workers;
+    }
+
+    private static Map<String, Long> getRowLockStatus(String url, String user, String password) throws SQLException {
+        Map<String, Long> status = new HashMap<>();
+        try (Connection connection = DriverManager.getConnection(url, user, password);
+             Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("SHOW GLOBAL STATUS LIKE 'Innodb_row_lock%'")) {
+            while (resultSet.next()) {
+                status.put(resultSet.getString(1), resultSet.getLong(2));
+            }
+        }
+        return status;
+    }
+
+    private static void restoreStocks(String url, String user, String password, long[] itemIds, AtomicLongArray deducted) throws SQLException {
+        try (Connection connection = DriverManager.getConnection(url, user, password);
+             PreparedStatement restore = connection.prepareStatement(RESTORE_STOCK_SQL)) {
+            for (int i = 0; i < itemIds.length; i++) {
+                restore.setLong(1, deducted.get(i));
+                restore.setLong(2, itemIds[i]);
+                restore.executeUpdate();
+            }
+        }
+    }
+}
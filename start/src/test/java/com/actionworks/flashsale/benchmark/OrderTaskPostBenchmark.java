@@ -0,0 +1,148 @@
+package com.actionworks.flashsale.benchmark;
+
+import com.actionworks.flashsale.app.model.PlaceOrderTask;
+import com.actionworks.flashsale.app.mq.LocalLogOrderTaskPostService;
+import com.actionworks.flashsale.app.mq.OrderTaskPostService;
+import com.actionworks.flashsale.app.mq.RocketMQOrderTaskPostService;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.core.env.MapPropertySource;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * 下单任务投递压测，对比本地日志（异步刷盘、同步组提交刷盘）与RocketMQ（同步逐条、异步批量）的投递吞吐量和延迟分位数
+ * 直接运行main方法即可，指定-Dbenchmark.rocketmq时才压测RocketMQ，例如：
+ * -Dbenchmark.threads=64 -Dbenchmark.seconds=10 -Dbenchmark.items=16 -Dbenchmark.rocketmq=127.0.0.1:9876
+ */
+public class OrderTaskPostBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int threads = Integer.getInteger("benchmark.threads", 64);
+        int seconds = Integer.getInteger("benchmark.seconds", 10);
+        int items = Integer.getInteger("benchmark.items", 16);
+        String nameServer = System.getProperty("benchmark.rocketmq");
+
+        System.out.printf("%-22s%-14s%-12s%-12s%-12s%-10s%n", "backend", "posts/s", "p50(us)", "p99(us)", "p999(us)", "failures");
+        run("local", localProperties(false), LocalLogOrderTaskPostService.class, threads, seconds, items);
+        run("local-sync-flush", localProperties(true), LocalLogOrderTaskPostService.class, threads, seconds, items);
+        if (nameServer != null) {
+            run("rocketmq", rocketMQProperties(nameServer, false), RocketMQOrderTaskPostService.class, threads, seconds, items);
+            run("rocketmq-async-batch", rocketMQProperties(nameServer, true), RocketMQOrderTaskPostService.class, threads, seconds, items);
+        }
+    }
+
+    private static Map<String, Object> rocketMQProperties(String nameServer, boolean async) {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("ServiceType", "queued");
+        properties.put("rocketmq.name-server", nameServer);
+        properties.put("rocketmq.placeorder.producer.group", "PLACE_ORDER_TASK_BENCHMARK_PRODUCER_GROUP");
+        properties.put("rocketmq.placeorder.topic", System.getProperty("benchmark.topic", "PLACE_ORDER_TASK_TOPIC"));
+        properties.put("rocketmq.placeorder.producer.async", async);
+        return properties;
+    }
+
+    private static Map<String, Object> localProperties(boolean syncFlush) throws IOException {
+        File logDir = Files.createTempDirectory("order-task-log").toFile();
+        logDir.deleteOnExit();
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("ServiceType", "queued");
+        properties.put("OrderTaskPostService", "local");
+        properties.put("order.task-log.dir", logDir.getAbsolutePath());
+        properties.put("order.task-log.sync-flush", syncFlush);
+        return properties;
+    }
+
+    private static void run(String backend, Map<String, Object> properties, Class<? extends OrderTaskPostService> postServiceClass,
+                            int threads, int seconds, int items) throws Exception {
+        AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext();
+        context.getEnvironment().getPropertySources().addFirst(new MapPropertySource("benchmark", properties));
+        context.register(postServiceClass);
+        context.refresh();
+        OrderTaskPostService orderTaskPostService = context.getBean(OrderTaskPostService.class);
+
+        long[][] latencies = new long[threads][];
+        int[] counts = new int[threads];
+        AtomicLong failures = new AtomicLong();
+        AtomicLong taskIds = new AtomicLong();
+        CountDownLatch startLatch = new CountDownLatch(1);
+        CountDownLatch doneLatch = new CountDownLatch(threads);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        for (int i = 0; i < threads; i++) {
+            int index = i;
+            new Thread(() -> {
+                long[] samples = new long[1 << 16];
+                int count = 0;
+                try {
+                    startLatch.await();
+                    while (System.nanoTime() < deadline) {
+                        long taskId = taskIds.incrementAndGet();
+                        PlaceOrderTask placeOrderTask = new PlaceOrderTask();
+                        placeOrderTask.setPlaceOrderTaskId(String.format("%032x", taskId));
+                        placeOrderTask.setUserId(taskId);
+                        placeOrderTask.setItemId(taskId % items);
+                        placeOrderTask.setActivityId(1L);
+                        placeOrderTask.setQuantity(1);
+                        placeOrderTask.setTotalAmount(100L);
+                        long start = System.nanoTime();
+                        if (!orderTaskPostService.post(placeOrderTask)) {
+                            failures.incrementAndGet();
+                        }
+                        if (count == samples.length) {
+                            samples = Arrays.copyOf(samples, samples.length * 2);
+                        }
+                        samples[count++] = System.nanoTime() - start;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    latencies[index] = samples;
+                    counts[index] = count;
+                    doneLatch.countDown();
+                }
+            }).start();
+        }
+        startLatch.countDown();
+        doneLatch.await();
+        context.close();
+
+        int total = Arrays.stream(counts).sum();
+        long[] merged = new long[total];
+        int offset = 0;
+        for (int i = 0; i < threads; i++) {
+            System.arraycopy(latencies[i], 0, merged, offset, counts[i]);
+            offset += counts[i];
+        }
+        Arrays.sort(merged);
+        System.out.printf("%-22s%-14d%-12d%-12d%-12d%-10d%n", backend, total / seconds,
+                percentile(merged, 0.50), percentile(merged, 0.99), percentile(merged, 0.999), failures.get());
+        Object logDir = properties.get("order.task-log.dir");
+        if (logDir != null) {
+            deleteRecursively(new File(logDir.toString()));
+        }
+    }
+
+    private static long percentile(long[] sortedNanos, double percentile) {
+        if (sortedNanos.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.min(sortedNanos.length - 1, Math.ceil(percentile * sortedNanos.length) - 1);
+        return TimeUnit.NANOSECONDS.toMicros(sortedNanos[Math.max(index, 0)]);
+    }
+
+    private static void deleteRecursively(File directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.actionworks.flashsale.benchmark;
+
+import com.actionworks.flashsale.util.Base64Util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 同步下单与异步下单接口对比压测，按并发用户数分别测量两个接口的吞吐量和延迟分位数
+ * 需要已启动的应用和一个在售且库存充足的秒杀品，直接运行main方法即可，例如：
+ * -Dbenchmark.url=http://127.0.0.1:8090/api -Dbenchmark.itemId=1 -Dbenchmark.activityId=1 -Dbenchmark.users=2000,5000,10000 -Dbenchmark.seconds=30
+ * 每个并发用户一个线程，大并发时建议配合-Xss256k运行；每次请求使用新的用户ID，避免被防重拦截
+ */
+public class PlaceOrderEndpointBenchmark {
+    private static final String[] ENDPOINTS = {"/flash-orders", "/flash-orders/async"};
+
+    public static void main(String[] args) throws Exception {
+        String baseUrl = System.getProperty("benchmark.url", "http://127.0.0.1:8090/api");
+        long itemId = Long.getLong("benchmark.itemId", 1L);
+        long activityId = Long.getLong("benchmark.activityId", 1L);
+        int seconds = Integer.getInteger("benchmark.seconds", 30);
+        String[] users = System.getProperty("benchmark.users", "2000,5000,10000").split(",");
+        //保持连接复用，与真实客户端一致
+        System.setProperty("http.maxConnections", "10000");
+
+        System.out.printf("%-22s%-10s%-12s%-12s%-12s%-12s%-10s%n", "endpoint", "users", "req/s", "p50(ms)", "p99(ms)", "p999(ms)", "errors");
+        AtomicLong userIds = new AtomicLong(System.currentTimeMillis() * 1000);
+        for (String user : users) {
+            int concurrentUsers = Integer.parseInt(user.trim());
+            for (String endpoint : ENDPOINTS) {
+                run(baseUrl + endpoint, itemId, activityId, concurrentUsers, seconds, userIds);
+            }
+        }
+    }
+
+    private static void run(String url, long itemId, long activityId, int concurrentUsers, int seconds, AtomicLong userIds) throws InterruptedException {
+        byte[] body = String.format("{\"itemId\":%d,\"activityId\":%d,\"quantity\":1}", itemId, activityId).getBytes(StandardCharsets.UTF_8);
+        long[][] latencies = new long[concurrentUsers][];
+        int[] counts = new int[concurrentUsers];
+        AtomicLong errors = new AtomicLong();
+        CountDownLatch startLatch = new CountDownLatch(1);
+        CountDownLatch doneLatch = new CountDownLatch(concurrentUsers);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        for (int i = 0; i < concurrentUsers; i++) {
+            int index = i;
+            new Thread(() -> {
+                long[] samples = new long[1024];
+                int count = 0;
+                try {
+                    startLatch.await();
+                    while (System.nanoTime() < deadline) {
+                        long start = System.nanoTime();
+                        if (!post(url, userIds.incrementAndGet(), body)) {
+                            errors.incrementAndGet();
+                        }
+                        if (count == samples.length) {
+                            samples = Arrays.copyOf(samples, samples.length * 2);
+                        }
+                        samples[count++] = System.nanoTime() - start;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    latencies[index] = samples;
+                    counts[index] = count;
+                    doneLatch.countDown();
+                }
+            }).start();
+        }
+        startLatch.countDown();
+        doneLatch.await();
+
+        int total = Arrays.stream(counts).sum();
+        long[] merged = new long[total];
+        int offset = 0;
+        for (int i = 0; i < concurrentUsers; i++) {
+            System.arraycopy(latencies[i], 0, merged, offset, counts[i]);
+            offset += counts[i];
+        }
+        Arrays.sort(merged);
+        String endpoint = url.substring(url.indexOf("/flash-orders"));
+        System.out.printf("%-22s%-10d%-12d%-12d%-12d%-12d%-10d%n", endpoint, concurrentUsers, total / seconds,
+                percentile(merged, 0.50), percentile(merged, 0.99), percentile(merged, 0.999), errors.get());
+    }
+
+    /**
+     * 发送下单请求，HTTP状态码非200或连接失败时返回false；业务失败（如库存不足）仍计为正常响应
+     */
+    private static boolean post(String url, long userId, byte[] body) {
+        HttpURLConnection connection = null;
+        try {
+            String token = Base64Util.encode("{\"userId\":" + userId + "}");
+            connection = (HttpURLConnection) new URL(url + "?token=" + token).openConnection();
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setConnectTimeout(10000);
+            connection.setReadTimeout(30000);
+            connection.setRequestProperty("Content-Type", "application/json");
+            try (OutputStream outputStream = connection.getOutputStream()) {
+                outputStream.write(body);
+            }
+            int status = connection.getResponseCode();
+            drain(status < 400 ? connection.getInputStream() : connection.getErrorStream());
+            return status == HttpURLConnection.HTTP_OK;
+        } catch (Exception e) {
+            if (connection != null) {
+                connection.disconnect();
+            }
+            return false;
+        }
+    }
+
+    private static void drain(InputStream inputStream) throws IOException {
+        if (inputStream == null) {
+            return;
+        }
+        try (InputStream in = inputStream; ByteArrayOutputStream out = new ByteArrayOutputStream()) {
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        }
+    }
+
+    private static long percentile(long[] sortedNanos, double percentile) {
+        if (sortedNanos.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.min(sortedNanos.length - 1, Math.ceil(percentile * sortedNanos.length) - 1);
+        return TimeUnit.NANOSECONDS.toMillis(sortedNanos[Math.max(index, 0)]);
+    }
+}
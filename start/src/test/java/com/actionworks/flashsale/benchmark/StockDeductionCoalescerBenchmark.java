@@ -0,0 +1,167 @@
+package com.actionworks.flashsale.benchmark;
+
+import com.actionworks.flashsale.app.service.placeorder.normal.cache.StockDeductionCoalescer;
+import com.actionworks.flashsale.cache.redis.RedisScriptRegistry;
+import com.actionworks.flashsale.cache.redis.RedisScriptResult;
+import com.actionworks.flashsale.config.RedisConfig;
+import com.google.common.collect.Lists;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.RedisTemplate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.actionworks.flashsale.app.service.placeorder.normal.cache.NormalStockCacheService.getItemStockReservationExpireKey;
+import static com.actionworks.flashsale.app.service.placeorder.normal.cache.NormalStockCacheService.getItemStockReservationsKey;
+import static com.actionworks.flashsale.app.service.placeorder.normal.cache.NormalStockCacheService.getItemStocksCacheKey;
+import static com.actionworks.flashsale.app.service.placeorder.normal.cache.NormalStockCacheService.getItemStocksReservedKey;
+import static com.actionworks.flashsale.app.service.placeorder.normal.cache.NormalStockCacheService.getPlaceOrderDedupeKey;
+import static com.actionworks.flashsale.cache.redis.RedisLuaScript.DECREASE_ITEM_STOCK;
+
+/**
+ * 库存预扣减合并压测，对比逐单调用与不同合并窗口下的吞吐量和延迟分位数
+ * 需要可访问的Redis，直接运行main方法即可，例如：
+ * -Dredis.host=127.0.0.1 -Dredis.port=6379 -Dbenchmark.threads=200 -Dbenchmark.seconds=10 -Dbenchmark.windows=0,500,1000,2000
+ * 窗口为0表示不合并，即当前逐单执行Lua脚本的方式
+ */
+public class StockDeductionCoalescerBenchmark {
+    private static final Long BENCHMARK_ITEM_ID = -1L;
+
+    public static void main(String[] args) throws Exception {
+        String host = System.getProperty("redis.host", "127.0.0.1");
+        int port = Integer.getInteger("redis.port", 6379);
+        int threads = Integer.getInteger("benchmark.threads", 200);
+        int seconds = Integer.getInteger("benchmark.seconds", 10);
+        String[] windows = System.getProperty("benchmark.windows", "0,500,1000,2000").split(",");
+
+        System.out.printf("%-14s%-14s%-12s%-12s%-12s%-12s%n", "window(us)", "ops/s", "p50(us)", "p99(us)", "p999(us)", "redis calls");
+        for (String window : windows) {
+            long windowMicros = Long.parseLong(window.trim());
+            AnnotationConfigApplicationContext context = createContext(host, port, windowMicros);
+            LettuceConnectionFactory connectionFactory = context.getBean(LettuceConnectionFactory.class);
+            try {
+                run(context, windowMicros, threads, seconds);
+            } finally {
+                context.close();
+                connectionFactory.destroy();
+            }
+        }
+    }
+
+    private static AnnotationConfigApplicationContext createContext(String host, int port, long windowMicros) {
+        AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext();
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("stock.coalesce.enabled", windowMicros > 0);
+        properties.put("stock.coalesce.window-micros", windowMicros);
+        context.getEnvironment().getPropertySources().addFirst(new MapPropertySource("benchmark", properties));
+        LettuceConnectionFactory connectionFactory = new LettuceConnectionFactory(new RedisStandaloneConfiguration(host, port));
+        connectionFactory.afterPropertiesSet();
+        context.getBeanFactory().registerSingleton("redisConnectionFactory", connectionFactory);
+        context.register(RedisConfig.class, RedisScriptRegistry.class, StockDeductionCoalescer.class);
+        context.refresh();
+        return context;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void run(AnnotationConfigApplicationContext context, long windowMicros, int threads, int seconds) throws InterruptedException {
+        RedisTemplate<String, Object> redisTemplate = context.getBean(RedisTemplate.class);
+        RedisScriptRegistry redisScriptRegistry = context.getBean(RedisScriptRegistry.class);
+        StockDeductionCoalescer coalescer = context.getBean(StockDeductionCoalescer.class);
+        List<String> keys = Lists.newArrayList(getItemStocksCacheKey(BENCHMARK_ITEM_ID), getItemStocksReservedKey(BENCHMARK_ITEM_ID),
+                getItemStockReservationsKey(BENCHMARK_ITEM_ID), getItemStockReservationExpireKey(BENCHMARK_ITEM_ID));
+        //库存足够大，只测量扣减路径本身
+        redisTemplate.opsForValue().set(keys.get(0), Integer.MAX_VALUE);
+        Long commandsBefore = getProcessedCommands(redisTemplate);
+
+        long[][] latencies = new long[threads][];
+        int[] counts = new int[threads];
+        AtomicLong failures = new AtomicLong();
+        //每次扣减使用不同的订单ID和用户ID，与线上一样逐笔记录预留和防重标记，防重标记1秒后过期
+        AtomicLong orderIds = new AtomicLong();
+        long expireAt = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(10);
+        CountDownLatch startLatch = new CountDownLatch(1);
+        CountDownLatch doneLatch = new CountDownLatch(threads);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        for (int i = 0; i < threads; i++) {
+            int index = i;
+            new Thread(() -> {
+                long[] samples = new long[1 << 16];
+                int count = 0;
+                try {
+                    startLatch.await();
+                    while (System.nanoTime() < deadline) {
+                        long orderId = orderIds.incrementAndGet();
+                        List<String> dedupeKeys = Lists.newArrayList(getPlaceOrderDedupeKey(orderId, BENCHMARK_ITEM_ID));
+                        Object[] args = {1, String.valueOf(orderId), String.valueOf(orderId), expireAt, 1000};
+                        List<String> requestKeys = new ArrayList<>(keys);
+                        requestKeys.addAll(dedupeKeys);
+                        long start = System.nanoTime();
+                        RedisScriptResult result = windowMicros > 0
+                                ? coalescer.decrease(BENCHMARK_ITEM_ID, keys, dedupeKeys, args)
+                                : redisScriptRegistry.execute(DECREASE_ITEM_STOCK, requestKeys, args);
+                        long elapsed = System.nanoTime() - start;
+                        if (!result.isSuccess()) {
+                            failures.incrementAndGet();
+                        }
+                        if (count == samples.length) {
+                            samples = Arrays.copyOf(samples, samples.length * 2);
+                        }
+                        samples[count++] = elapsed;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    latencies[index] = samples;
+                    counts[index] = count;
+                    doneLatch.countDown();
+                }
+            }).start();
+        }
+        startLatch.countDown();
+        doneLatch.await();
+
+        int total = Arrays.stream(counts).sum();
+        long[] merged = new long[total];
+        int offset = 0;
+        for (int i = 0; i < threads; i++) {
+            System.arraycopy(latencies[i], 0, merged, offset, counts[i]);
+            offset += counts[i];
+        }
+        Arrays.sort(merged);
+        Long commandsAfter = getProcessedCommands(redisTemplate);
+        String redisCalls = commandsBefore == null || commandsAfter == null ? "-" : String.valueOf(commandsAfter - commandsBefore);
+        System.out.printf("%-14d%-14d%-12d%-12d%-12d%-12s%n", windowMicros, total / seconds,
+                percentile(merged, 0.50), percentile(merged, 0.99), percentile(merged, 0.999), redisCalls);
+        if (failures.get() > 0) {
+            System.out.println("failures: " + failures.get());
+        }
+        redisTemplate.delete(keys);
+    }
+
+    private static long percentile(long[] sortedNanos, double percentile) {
+        if (sortedNanos.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.min(sortedNanos.length - 1, Math.ceil(percentile * sortedNanos.length) - 1);
+        return TimeUnit.NANOSECONDS.toMicros(sortedNanos[Math.max(index, 0)]);
+    }
+
+    private static Long getProcessedCommands(RedisTemplate<String, Object> redisTemplate) {
+        try (RedisConnection connection = redisTemplate.getRequiredConnectionFactory().getConnection()) {
+            Object commands = connection.info("stats").get("total_commands_processed");
+            return commands == null ? null : Long.valueOf(commands.toString());
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}